@@ -0,0 +1,116 @@
+package com.payex.project.consumer;
+
+import com.payex.project.codec.KafkaMessageCodec;
+import com.payex.project.constant.AppConstant;
+import com.payex.project.engine.CompiledStateMachine;
+import com.payex.project.local.InMemoryRedisService;
+import com.payex.project.local.InMemoryRepoUtil;
+import com.payex.project.models.KafkaMessage;
+import com.payex.project.models.StateMachineDB;
+import com.payex.project.models.TransitionResult;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.statemachine.StateMachine;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The consumer's per-event path without I/O: Mongo and Redis are replaced by the in-memory stand-ins, so the
+ * numbers are what the JVM spends on an event around its round trips.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransitionBenchmark {
+
+    private static final int PROCESSES = 1024;
+
+    private JsonObject definition;
+    private StateMachineDB stateMachineDB;
+    private KafkaVerticle kafkaVerticle;
+    private KafkaMessage[] messages;
+    private byte[][] records;
+    private List<KafkaMessage> batch;
+    private int next;
+
+    @Setup
+    public void setup() {
+        // Every event is accepted: the single event toggles between the two states
+        definition = new JsonObject()
+                .put("_id", "door")
+                .put("stateMachineName", "door")
+                .put("states", new JsonArray().add("OPEN").add("CLOSED"))
+                .put("events", new JsonArray().add("TOGGLE"))
+                .put("transitions", new JsonObject()
+                        .put("OPEN", new JsonObject().put("TOGGLE", "CLOSED"))
+                        .put("CLOSED", new JsonObject().put("TOGGLE", "OPEN")))
+                .put("partition", 1);
+        stateMachineDB = definition.mapTo(StateMachineDB.class);
+
+        InMemoryRepoUtil repoUtil = new InMemoryRepoUtil();
+        repoUtil.save(AppConstant.COLLECTION_STATE_MACHINES, definition);
+        // A dedupe window of 0 keeps the benchmark on the plain read and write path
+        kafkaVerticle = new KafkaVerticle(new InMemoryRedisService(0), repoUtil);
+
+        messages = new KafkaMessage[PROCESSES];
+        records = new byte[PROCESSES][];
+        for (int i = 0; i < PROCESSES; i++) {
+            messages[i] = new KafkaMessage("door", "process-" + i, "TOGGLE", UUID.randomUUID().toString());
+            records[i] = KafkaMessageCodec.encodeBinary(messages[i]);
+        }
+        batch = Arrays.asList(messages);
+    }
+
+    @Benchmark
+    public StateMachine<String, String> buildSpringStateMachine() {
+        return kafkaVerticle.buildStateMachine(definition);
+    }
+
+    @Benchmark
+    public CompiledStateMachine compileStateMachine() {
+        return CompiledStateMachine.compile(stateMachineDB);
+    }
+
+    /**
+     * Resolving the cached machine, reading the state, firing the transition and saving the new state.
+     */
+    @Benchmark
+    public TransitionResult applyEvent() {
+        return kafkaVerticle.applyEvent(messages[next++ & (PROCESSES - 1)]).result();
+    }
+
+    /**
+     * The whole cycle of one consumed record: decoding the binary record value, then {@link #applyEvent()}.
+     */
+    @Benchmark
+    public TransitionResult consumeRecord() {
+        KafkaMessage message = KafkaMessageCodec.decodeBinary(records[next++ & (PROCESSES - 1)]);
+        return kafkaVerticle.applyEvent(message).result();
+    }
+
+    /**
+     * Batch mode, reported per event.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PROCESSES)
+    public List<TransitionResult> applyEvents() {
+        return kafkaVerticle.applyEvents(batch).result();
+    }
+}
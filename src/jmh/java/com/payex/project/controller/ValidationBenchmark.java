@@ -0,0 +1,82 @@
+package com.payex.project.controller;
+
+import com.payex.project.engine.StateGraph;
+import com.payex.project.models.StateMachineAnalysis;
+import com.payex.project.models.StateMachineDB;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Validation and graph analysis of a definition's transitions on create and update, by definition size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidationBenchmark {
+
+    private static final int EVENTS = 10;
+
+    @Param({"10", "100", "1000", "10000"})
+    private int states;
+
+    private ControllerVerticle controllerVerticle;
+    private StateMachineDB stateMachineDB;
+
+    @Setup
+    public void setup() {
+        controllerVerticle = new ControllerVerticle(null);
+
+        List<String> stateNames = new ArrayList<>(states);
+        for (int i = 0; i < states; i++) {
+            stateNames.add("STATE_" + i);
+        }
+        List<String> eventNames = new ArrayList<>(EVENTS);
+        for (int j = 0; j < EVENTS; j++) {
+            eventNames.add("EVENT_" + j);
+        }
+        // Every state handles every event, so the whole table has to be checked
+        Map<String, Map<String, String>> transitions = new HashMap<>();
+        for (int i = 0; i < states; i++) {
+            Map<String, String> stateTransitions = new HashMap<>();
+            for (int j = 0; j < EVENTS; j++) {
+                stateTransitions.put(eventNames.get(j), stateNames.get((i + j + 1) % states));
+            }
+            transitions.put(stateNames.get(i), stateTransitions);
+        }
+        stateMachineDB = StateMachineDB.builder()
+                ._id("large")
+                .stateMachineName("large")
+                .states(stateNames)
+                .events(eventNames)
+                .transitions(transitions)
+                .build();
+    }
+
+    @Benchmark
+    public boolean isValidTransitions() {
+        return controllerVerticle.isValidTransitions(stateMachineDB);
+    }
+
+    @Benchmark
+    public StateMachineAnalysis analyze() {
+        return StateGraph.analyze(stateMachineDB);
+    }
+}
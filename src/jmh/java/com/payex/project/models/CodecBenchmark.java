@@ -0,0 +1,123 @@
+package com.payex.project.models;
+
+import com.payex.project.codec.KafkaMessageCodec;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mapping of the models: event messages are decoded for every consumed record and encoded for every send, in
+ * either wire format, definitions are mapped whenever one is built or validated.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    private KafkaMessage message;
+    private String record;
+    private byte[] jsonValue;
+    private byte[] binaryValue;
+
+    @Setup
+    public void setup() {
+        message = new KafkaMessage("orderFlow", "order-123456", "PAY", "6f1c7d4e-8a0b-4f57-9b43-1a2e3c4d5e6f");
+        record = JsonObject.mapFrom(message).encode();
+        jsonValue = KafkaMessageCodec.encodeJson(message);
+        binaryValue = KafkaMessageCodec.encodeBinary(message);
+    }
+
+    /**
+     * Definitions of a given size, kept apart so only the definition benchmarks run once per size.
+     */
+    @State(Scope.Benchmark)
+    public static class Definitions {
+
+        @Param({"10", "100", "1000"})
+        private int states;
+
+        private JsonObject definition;
+        private StateMachineDB stateMachineDB;
+
+        @Setup
+        public void setup() {
+            JsonArray stateNames = new JsonArray();
+            JsonObject transitions = new JsonObject();
+            for (int i = 0; i < states; i++) {
+                stateNames.add("STATE_" + i);
+                transitions.put("STATE_" + i, new JsonObject().put("NEXT", "STATE_" + ((i + 1) % states)));
+            }
+            definition = new JsonObject()
+                    .put("_id", "large")
+                    .put("stateMachineName", "large")
+                    .put("states", stateNames)
+                    .put("events", new JsonArray().add("NEXT"))
+                    .put("transitions", transitions)
+                    .put("partition", 1);
+            stateMachineDB = definition.mapTo(StateMachineDB.class);
+        }
+    }
+
+    @Benchmark
+    public JsonObject parseKafkaMessage() {
+        return new JsonObject(record);
+    }
+
+    @Benchmark
+    public KafkaMessage decodeKafkaMessage() {
+        return new JsonObject(record).mapTo(KafkaMessage.class);
+    }
+
+    @Benchmark
+    public String encodeKafkaMessage() {
+        return JsonObject.mapFrom(message).encode();
+    }
+
+    /**
+     * What the consumer's deserializer does for legacy records: one Jackson pass straight onto the message.
+     */
+    @Benchmark
+    public KafkaMessage decodeJsonValue() {
+        return KafkaMessageCodec.decodeJson(jsonValue);
+    }
+
+    @Benchmark
+    public byte[] encodeJsonValue() {
+        return KafkaMessageCodec.encodeJson(message);
+    }
+
+    @Benchmark
+    public KafkaMessage decodeBinaryValue() {
+        return KafkaMessageCodec.decodeBinary(binaryValue);
+    }
+
+    @Benchmark
+    public byte[] encodeBinaryValue() {
+        return KafkaMessageCodec.encodeBinary(message);
+    }
+
+    @Benchmark
+    public StateMachineDB mapStateMachineDB(Definitions definitions) {
+        return definitions.definition.mapTo(StateMachineDB.class);
+    }
+
+    @Benchmark
+    public JsonObject mapFromStateMachineDB(Definitions definitions) {
+        return JsonObject.mapFrom(definitions.stateMachineDB);
+    }
+}
@@ -0,0 +1,577 @@
+package com.payex.project.local;
+
+import com.payex.project.consumer.KafkaClientFactory;
+import io.vertx.core.Vertx;
+import io.vertx.kafka.client.consumer.KafkaConsumer;
+import io.vertx.kafka.client.producer.KafkaProducer;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerGroupMetadata;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.consumer.internals.NoOpConsumerRebalanceListener;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.Node;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.utils.Utils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single-process Kafka broker for running the pipeline without a cluster. Every topic has the same number of
+ * partitions and records are kept in memory until every consumer group that reads the topic committed them.
+ * <p>
+ * Records are stored serialized, with their headers. Producers append synchronously and get their metadata
+ * immediately. Consumers are {@link MockConsumer}s fed from the partition logs at their current positions, so
+ * pause, resume, seek and commit behave as with a real broker. Consumers of a group share the partitions round-robin and are rebalanced whenever one joins or
+ * leaves. With {@code enable.auto.commit} left on, a poll commits the positions it returned.
+ */
+public class InMemoryKafka implements KafkaClientFactory {
+
+    // How long an idle poll sleeps before it looks at the logs again
+    private static final long IDLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final Node NODE = new Node(0, "localhost", 9092);
+
+    private final int partitions;
+    private final Map<String, PartitionLog[]> topics = new ConcurrentHashMap<>();
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    // Spreads records without a key, like the default partitioner
+    private final AtomicInteger nextPartition = new AtomicInteger();
+
+    public InMemoryKafka(int partitions) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("Partitions must be positive: " + partitions);
+        }
+        this.partitions = partitions;
+    }
+
+    /**
+     * Wraps a producer for the calling verticle. All producers append to the same logs, so the name only
+     * matters to real brokers.
+     */
+    @Override
+    public <V> KafkaProducer<String, V> createProducer(Vertx vertx, String name, Map<String, String> config) {
+        return KafkaProducer.create(vertx, producer(config));
+    }
+
+    @Override
+    public <V> KafkaConsumer<String, V> createConsumer(Vertx vertx, Map<String, String> config) {
+        return KafkaConsumer.create(vertx, consumer(config));
+    }
+
+    /**
+     * A producer serializing with the {@code key.serializer} and {@code value.serializer} of the config, which
+     * default to strings. Sends complete before they return.
+     */
+    public <V> Producer<String, V> producer(Map<String, String> config) {
+        return new InMemoryProducer<>(serializer(config, "key.serializer", true),
+                serializer(config, "value.serializer", false));
+    }
+
+    /**
+     * A consumer of the config's {@code group.id}, deserializing with its {@code key.deserializer} and
+     * {@code value.deserializer}, which default to strings.
+     */
+    public <V> Consumer<String, V> consumer(Map<String, String> config) {
+        String groupId = config.getOrDefault("group.id", "");
+        int maxPollRecords = Integer.parseInt(config.getOrDefault("max.poll.records", "500"));
+        boolean autoCommit = !"false".equals(config.get("enable.auto.commit"));
+        return new InMemoryConsumer<>(groups.computeIfAbsent(groupId, Group::new), maxPollRecords, autoCommit,
+                deserializer(config, "key.deserializer", true), deserializer(config, "value.deserializer", false));
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Records appended to the topic so far, whether consumed or not.
+     */
+    public long endOffset(String topic) {
+        long total = 0;
+        for (int partition = 0; partition < partitions; partition++) {
+            total += partitionLog(topic, partition).endOffset();
+        }
+        return total;
+    }
+
+    /**
+     * Records of the topic still held in memory, that is not yet committed by every group reading it.
+     */
+    public long retained(String topic) {
+        long total = 0;
+        for (int partition = 0; partition < partitions; partition++) {
+            total += partitionLog(topic, partition).size();
+        }
+        return total;
+    }
+
+    /**
+     * Whether the group has {@code members} consumers and each of them has taken its share of the partitions.
+     */
+    public boolean isStable(String groupId, int members) {
+        Group group = groups.get(groupId);
+        return group != null && group.isStable(members);
+    }
+
+    private int partitionFor(byte[] key) {
+        if (key == null) {
+            return (nextPartition.getAndIncrement() & Integer.MAX_VALUE) % partitions;
+        }
+        return Utils.toPositive(Utils.murmur2(key)) % partitions;
+    }
+
+    private static <T> Serializer<T> serializer(Map<String, String> config, String property, boolean isKey) {
+        Serializer<T> serializer = newInstance(config.getOrDefault(property, StringSerializer.class.getName()), Serializer.class);
+        serializer.configure(config, isKey);
+        return serializer;
+    }
+
+    private static <T> Deserializer<T> deserializer(Map<String, String> config, String property, boolean isKey) {
+        Deserializer<T> deserializer = newInstance(config.getOrDefault(property, StringDeserializer.class.getName()), Deserializer.class);
+        deserializer.configure(config, isKey);
+        return deserializer;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T newInstance(String className, Class<?> type) {
+        try {
+            return (T) Utils.newInstance(className, type);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("Unknown class " + className, e);
+        }
+    }
+
+    private PartitionLog partitionLog(String topic, int partition) {
+        if (partition < 0 || partition >= partitions) {
+            throw new IllegalArgumentException("Invalid partition " + partition + " for topic " + topic);
+        }
+        return topics.computeIfAbsent(topic, t -> {
+            PartitionLog[] logs = new PartitionLog[partitions];
+            for (int i = 0; i < partitions; i++) {
+                logs[i] = new PartitionLog(new TopicPartition(t, i));
+            }
+            return logs;
+        })[partition];
+    }
+
+    /**
+     * Drops records every group reading the topic has committed.
+     */
+    private void trim(TopicPartition partition) {
+        long committed = Long.MAX_VALUE;
+        for (Group group : groups.values()) {
+            if (group.reads(partition.topic())) {
+                committed = Math.min(committed, group.committed.getOrDefault(partition, 0L));
+            }
+        }
+        if (committed != Long.MAX_VALUE) {
+            partitionLog(partition.topic(), partition.partition()).trim(committed);
+        }
+    }
+
+    /**
+     * Records of one partition as the producers serialized them.
+     */
+    private static final class PartitionLog {
+        private final TopicPartition partition;
+        private final List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+        // Offset of records.get(0)
+        private long base;
+
+        private PartitionLog(TopicPartition partition) {
+            this.partition = partition;
+        }
+
+        private synchronized ConsumerRecord<byte[], byte[]> append(byte[] key, byte[] value, Headers headers, long timestamp) {
+            ConsumerRecord<byte[], byte[]> record = new ConsumerRecord<>(partition.topic(), partition.partition(),
+                    base + records.size(), timestamp, TimestampType.CREATE_TIME,
+                    key == null ? -1 : key.length, value == null ? -1 : value.length,
+                    key, value, headers, Optional.empty());
+            records.add(record);
+            return record;
+        }
+
+        private synchronized List<ConsumerRecord<byte[], byte[]>> read(long from, int max) {
+            int start = (int) Math.max(0, from - base);
+            int end = Math.min(records.size(), start + max);
+            return start >= end ? List.of() : new ArrayList<>(records.subList(start, end));
+        }
+
+        private synchronized void trim(long below) {
+            int count = (int) Math.min(records.size(), below - base);
+            // Trimmed in chunks, so dropping the head of the list stays cheap
+            if (count > 0 && count >= records.size() / 2) {
+                records.subList(0, count).clear();
+                base += count;
+            }
+        }
+
+        private synchronized long endOffset() {
+            return base + records.size();
+        }
+
+        private synchronized int size() {
+            return records.size();
+        }
+    }
+
+    private final class Group {
+        private final String id;
+        private final List<InMemoryConsumer<?>> members = new ArrayList<>();
+        private final Map<TopicPartition, Long> committed = new ConcurrentHashMap<>();
+        private final Set<String> topics = ConcurrentHashMap.newKeySet();
+
+        private Group(String id) {
+            this.id = id;
+        }
+
+        private boolean reads(String topic) {
+            return topics.contains(topic);
+        }
+
+        private synchronized boolean isStable(int expected) {
+            return members.size() == expected
+                    && members.stream().allMatch(member -> member.pendingAssignment.get() == null);
+        }
+
+        private synchronized void join(InMemoryConsumer<?> member, Collection<String> subscribed) {
+            topics.addAll(subscribed);
+            if (!members.contains(member)) {
+                members.add(member);
+            }
+            rebalance();
+        }
+
+        private synchronized void leave(InMemoryConsumer<?> member) {
+            if (members.remove(member)) {
+                rebalance();
+            }
+        }
+
+        private void commit(Map<TopicPartition, OffsetAndMetadata> offsets) {
+            offsets.forEach((partition, offset) -> {
+                committed.merge(partition, offset.offset(), Math::max);
+                trim(partition);
+            });
+        }
+
+        private void rebalance() {
+            List<TopicPartition> all = new ArrayList<>();
+            topics.stream().sorted().forEach(topic -> {
+                for (int partition = 0; partition < partitions; partition++) {
+                    all.add(new TopicPartition(topic, partition));
+                }
+            });
+            List<Set<TopicPartition>> assignments = new ArrayList<>();
+            members.forEach(member -> assignments.add(new HashSet<>()));
+            for (int i = 0; i < all.size() && !members.isEmpty(); i++) {
+                assignments.get(i % members.size()).add(all.get(i));
+            }
+            for (int i = 0; i < members.size(); i++) {
+                members.get(i).pendingAssignment.set(assignments.get(i));
+            }
+        }
+    }
+
+    private final class InMemoryConsumer<V> extends MockConsumer<String, V> {
+        private final Group group;
+        private final int maxPollRecords;
+        private final boolean autoCommit;
+        private final Deserializer<String> keyDeserializer;
+        private final Deserializer<V> valueDeserializer;
+        // Set by the group from any thread, applied by the polling thread
+        private final AtomicReference<Set<TopicPartition>> pendingAssignment = new AtomicReference<>();
+        private ConsumerRebalanceListener listener = new NoOpConsumerRebalanceListener();
+        private int nextPartition;
+
+        private InMemoryConsumer(Group group, int maxPollRecords, boolean autoCommit,
+                                 Deserializer<String> keyDeserializer, Deserializer<V> valueDeserializer) {
+            super(OffsetResetStrategy.EARLIEST);
+            this.group = group;
+            this.maxPollRecords = maxPollRecords;
+            this.autoCommit = autoCommit;
+            this.keyDeserializer = keyDeserializer;
+            this.valueDeserializer = valueDeserializer;
+        }
+
+        @Override
+        public synchronized void subscribe(Collection<String> topics, ConsumerRebalanceListener listener) {
+            super.subscribe(topics, listener);
+            this.listener = listener;
+            group.join(this, topics);
+        }
+
+        @Override
+        public synchronized void subscribe(Collection<String> topics) {
+            subscribe(topics, new NoOpConsumerRebalanceListener());
+        }
+
+        @Override
+        public synchronized void assign(Collection<TopicPartition> partitions) {
+            super.assign(partitions);
+            Map<TopicPartition, Long> beginning = new HashMap<>();
+            Map<TopicPartition, Long> end = new HashMap<>();
+            partitions.forEach(partition -> {
+                PartitionLog log = partitionLog(partition.topic(), partition.partition());
+                beginning.put(partition, 0L);
+                end.put(partition, log.endOffset());
+            });
+            updateBeginningOffsets(beginning);
+            updateEndOffsets(end);
+        }
+
+        @Override
+        public synchronized void unsubscribe() {
+            group.leave(this);
+            super.unsubscribe();
+        }
+
+        @Override
+        public synchronized void close(Duration timeout) {
+            group.leave(this);
+            super.close(timeout);
+        }
+
+        @Override
+        public synchronized void commitAsync(Map<TopicPartition, OffsetAndMetadata> offsets, OffsetCommitCallback callback) {
+            group.commit(offsets);
+            super.commitAsync(offsets, callback);
+        }
+
+        @Override
+        public synchronized void commitSync(Map<TopicPartition, OffsetAndMetadata> offsets) {
+            group.commit(offsets);
+            super.commitSync(offsets);
+        }
+
+        /**
+         * Returns as soon as records are available, checking the logs every millisecond until the timeout.
+         * Not synchronized, so the monitor is free while idle.
+         */
+        @Override
+        public ConsumerRecords<String, V> poll(Duration timeout) {
+            long deadline = System.nanoTime() + timeout.toNanos();
+            while (true) {
+                applyAssignment();
+                fetch();
+                ConsumerRecords<String, V> records = super.poll(Duration.ZERO);
+                if (!records.isEmpty()) {
+                    if (autoCommit) {
+                        commitPositions(records);
+                    }
+                    return records;
+                }
+                if (System.nanoTime() >= deadline) {
+                    return records;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.sleep(IDLE_POLL_NANOS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return records;
+                }
+            }
+        }
+
+        private synchronized void applyAssignment() {
+            Set<TopicPartition> next = pendingAssignment.getAndSet(null);
+            if (next == null) {
+                return;
+            }
+            Set<TopicPartition> revoked = new HashSet<>(assignment());
+            revoked.removeAll(next);
+            Set<TopicPartition> added = new HashSet<>(next);
+            added.removeAll(assignment());
+
+            listener.onPartitionsRevoked(revoked);
+            rebalance(next);
+            Map<TopicPartition, Long> beginning = new HashMap<>();
+            added.forEach(partition -> beginning.put(partition, 0L));
+            updateBeginningOffsets(beginning);
+            // New owners continue from the group's committed offsets
+            added.forEach(partition -> seek(partition, group.committed.getOrDefault(partition, 0L)));
+            listener.onPartitionsAssigned(added);
+        }
+
+        /**
+         * Hands the records at the current positions of the assigned, unpaused partitions to the mock, up to
+         * {@code max.poll.records}, starting with a different partition each time. Records are deserialized here,
+         * on the polling thread, as the Kafka client does.
+         */
+        private synchronized void fetch() {
+            List<TopicPartition> assigned = new ArrayList<>(assignment());
+            if (assigned.isEmpty()) {
+                return;
+            }
+            assigned.sort((a, b) -> a.partition() != b.partition()
+                    ? Integer.compare(a.partition(), b.partition())
+                    : a.topic().compareTo(b.topic()));
+            Set<TopicPartition> paused = paused();
+            int budget = maxPollRecords;
+            int first = nextPartition++ % assigned.size();
+            for (int i = 0; i < assigned.size() && budget > 0; i++) {
+                TopicPartition partition = assigned.get((first + i) % assigned.size());
+                if (paused.contains(partition)) {
+                    continue;
+                }
+                List<ConsumerRecord<byte[], byte[]>> records = partitionLog(partition.topic(), partition.partition())
+                        .read(position(partition), budget);
+                records.forEach(record -> addRecord(deserialize(record)));
+                budget -= records.size();
+            }
+        }
+
+        private ConsumerRecord<String, V> deserialize(ConsumerRecord<byte[], byte[]> record) {
+            return new ConsumerRecord<>(record.topic(), record.partition(), record.offset(), record.timestamp(),
+                    record.timestampType(), record.serializedKeySize(), record.serializedValueSize(),
+                    keyDeserializer.deserialize(record.topic(), record.headers(), record.key()),
+                    valueDeserializer.deserialize(record.topic(), record.headers(), record.value()),
+                    record.headers(), Optional.empty());
+        }
+
+        private void commitPositions(ConsumerRecords<String, V> records) {
+            Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+            for (TopicPartition partition : records.partitions()) {
+                List<ConsumerRecord<String, V>> partitionRecords = records.records(partition);
+                offsets.put(partition, new OffsetAndMetadata(partitionRecords.get(partitionRecords.size() - 1).offset() + 1));
+            }
+            commitSync(offsets);
+        }
+
+        @Override
+        public synchronized ConsumerGroupMetadata groupMetadata() {
+            return new ConsumerGroupMetadata(group.id);
+        }
+    }
+
+    private final class InMemoryProducer<V> implements Producer<String, V> {
+        private final Serializer<String> keySerializer;
+        private final Serializer<V> valueSerializer;
+
+        private InMemoryProducer(Serializer<String> keySerializer, Serializer<V> valueSerializer) {
+            this.keySerializer = keySerializer;
+            this.valueSerializer = valueSerializer;
+        }
+
+        @Override
+        public Future<RecordMetadata> send(ProducerRecord<String, V> record) {
+            return send(record, null);
+        }
+
+        @Override
+        public Future<RecordMetadata> send(ProducerRecord<String, V> record, Callback callback) {
+            RecordMetadata metadata;
+            try {
+                // Serializers may add headers, such as the message format
+                Headers headers = new RecordHeaders(record.headers().toArray());
+                byte[] key = keySerializer.serialize(record.topic(), headers, record.key());
+                byte[] value = valueSerializer.serialize(record.topic(), headers, record.value());
+                int partition = record.partition() == null ? partitionFor(key) : record.partition();
+                long timestamp = record.timestamp() == null ? System.currentTimeMillis() : record.timestamp();
+                ConsumerRecord<byte[], byte[]> appended = partitionLog(record.topic(), partition)
+                        .append(key, value, headers, timestamp);
+                metadata = new RecordMetadata(new TopicPartition(record.topic(), partition), appended.offset(), 0,
+                        timestamp, appended.serializedKeySize(), appended.serializedValueSize());
+            } catch (RuntimeException e) {
+                if (callback != null) {
+                    callback.onCompletion(null, e);
+                }
+                return CompletableFuture.failedFuture(e);
+            }
+            if (callback != null) {
+                callback.onCompletion(metadata, null);
+            }
+            return CompletableFuture.completedFuture(metadata);
+        }
+
+        @Override
+        public List<PartitionInfo> partitionsFor(String topic) {
+            List<PartitionInfo> infos = new ArrayList<>(partitions);
+            for (int partition = 0; partition < partitions; partition++) {
+                infos.add(new PartitionInfo(topic, partition, NODE, new Node[]{NODE}, new Node[]{NODE}));
+            }
+            return infos;
+        }
+
+        @Override
+        public Map<MetricName, ? extends Metric> metrics() {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void close(Duration timeout) {
+        }
+
+        @Override
+        public void initTransactions() {
+            throw new UnsupportedOperationException("Transactions are not supported in memory");
+        }
+
+        @Override
+        public void beginTransaction() {
+            throw new UnsupportedOperationException("Transactions are not supported in memory");
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void sendOffsetsToTransaction(Map<TopicPartition, OffsetAndMetadata> offsets, String consumerGroupId) {
+            throw new UnsupportedOperationException("Transactions are not supported in memory");
+        }
+
+        @Override
+        public void sendOffsetsToTransaction(Map<TopicPartition, OffsetAndMetadata> offsets, ConsumerGroupMetadata groupMetadata) {
+            throw new UnsupportedOperationException("Transactions are not supported in memory");
+        }
+
+        @Override
+        public void commitTransaction() {
+            throw new UnsupportedOperationException("Transactions are not supported in memory");
+        }
+
+        @Override
+        public void abortTransaction() {
+            throw new UnsupportedOperationException("Transactions are not supported in memory");
+        }
+    }
+}
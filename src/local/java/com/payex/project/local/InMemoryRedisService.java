@@ -0,0 +1,186 @@
+package com.payex.project.local;
+
+import com.payex.project.engine.CompiledStateMachine;
+import com.payex.project.models.KafkaMessage;
+import com.payex.project.models.StateMachineDB;
+import com.payex.project.models.TransitionResult;
+import com.payex.project.service.RedisService;
+import com.payex.project.service.StateStore;
+import io.vertx.core.Future;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link RedisService} keeping process states, dedupe windows and transition tables in memory, for running the
+ * pipeline without Redis.
+ * <p>
+ * Every call completes immediately. The atomic transition follows the Redis script step by step, including the
+ * dedupe window, the version pin and the failure for a missing transition table, under a lock per process.
+ */
+public class InMemoryRedisService extends RedisService {
+
+    private final Map<String, ProcessEntry> processes = new ConcurrentHashMap<>();
+    // By id and version
+    private final Map<String, CompiledStateMachine> transitionTables = new ConcurrentHashMap<>();
+    private final int dedupeWindow;
+
+    public InMemoryRedisService(int dedupeWindow) {
+        super(null, 0, dedupeWindow);
+        this.dedupeWindow = dedupeWindow;
+    }
+
+    /**
+     * Number of processes, not counting their version pins.
+     */
+    public int size() {
+        return (int) processes.keySet().stream().filter(key -> !key.startsWith(StateStore.VERSION_KEY_PREFIX)).count();
+    }
+
+    @Override
+    public Future<Void> saveState(String orderId, String state) {
+        entry(orderId).state = state;
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<String> getState(String orderId) {
+        ProcessEntry entry = processes.get(orderId);
+        return Future.succeededFuture(entry == null ? null : entry.state);
+    }
+
+    @Override
+    public Future<Void> loadTransitionTable(CompiledStateMachine compiled) {
+        transitionTables.put(StateMachineDB.versionId(compiled.getId(), compiled.getVersion()), compiled);
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<TransitionResult> applyTransition(String processId, CompiledStateMachine latest, String event, String eventId) {
+        TransitionResult result = transition(processId, latest, event, eventId);
+        return result == null
+                ? Future.failedFuture(ERROR_NO_TRANSITION_TABLE + " " + latest.getId())
+                : Future.succeededFuture(result);
+    }
+
+    @Override
+    public Future<Map<String, String>> getStates(List<String> processIds) {
+        Map<String, String> states = new HashMap<>(processIds.size() * 2);
+        for (String processId : processIds) {
+            ProcessEntry entry = processes.get(processId);
+            if (entry != null && entry.state != null) {
+                states.put(processId, entry.state);
+            }
+        }
+        return Future.succeededFuture(states);
+    }
+
+    @Override
+    public Future<Void> saveStates(Map<String, String> states) {
+        states.forEach((processId, state) -> entry(processId).state = state);
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<Set<String>> findProcessedEvents(List<KafkaMessage> messages) {
+        Set<String> processed = new HashSet<>();
+        for (KafkaMessage message : messages) {
+            if (!isDedupeEnabled() || message.getEventId() == null) {
+                continue;
+            }
+            ProcessEntry entry = processes.get(message.getProcessId());
+            if (entry != null) {
+                synchronized (entry) {
+                    if (entry.eventIds.contains(message.getEventId())) {
+                        processed.add(message.getEventId());
+                    }
+                }
+            }
+        }
+        return Future.succeededFuture(processed);
+    }
+
+    @Override
+    public Future<Void> saveStates(Map<String, String> states, List<KafkaMessage> processed) {
+        saveStates(states);
+        for (KafkaMessage message : processed) {
+            if (isDedupeEnabled() && message.getEventId() != null) {
+                ProcessEntry entry = entry(message.getProcessId());
+                synchronized (entry) {
+                    remember(entry, message.getEventId());
+                }
+            }
+        }
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<List<TransitionResult>> applyTransitions(List<KafkaMessage> messages, Map<String, CompiledStateMachine> latest) {
+        List<TransitionResult> results = new ArrayList<>(messages.size());
+        for (KafkaMessage message : messages) {
+            results.add(transition(message.getProcessId(), latest.get(message.getStateMachineId()), message.getEvent(),
+                    message.getEventId()));
+        }
+        return Future.succeededFuture(results);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return the result, or {@code null} if the transition table of the process's version was never loaded
+     */
+    private TransitionResult transition(String processId, CompiledStateMachine latest, String event, String eventId) {
+        ProcessEntry entry = entry(processId);
+        synchronized (entry) {
+            ProcessEntry pin = processes.get(StateStore.versionKey(processId));
+            String pinned = pin == null ? null : pin.state;
+            int version = pinned == null ? latest.getVersion() : Integer.parseInt(pinned);
+            CompiledStateMachine compiled = transitionTables.get(StateMachineDB.versionId(latest.getId(), version));
+            if (compiled == null) {
+                return null;
+            }
+            String current = entry.state == null ? latest.getInitialState() : entry.state;
+            boolean identified = isDedupeEnabled() && eventId != null;
+            if (identified && entry.eventIds.contains(eventId)) {
+                return TransitionResult.duplicate(current);
+            }
+            String target = compiled.fire(current, event);
+            if (identified) {
+                remember(entry, eventId);
+            }
+            if (target == null) {
+                return new TransitionResult(false, current, current);
+            }
+            entry.state = target;
+            if (pinned == null) {
+                entry(StateStore.versionKey(processId)).state = String.valueOf(version);
+            }
+            return new TransitionResult(true, current, target);
+        }
+    }
+
+    private void remember(ProcessEntry entry, String eventId) {
+        entry.eventIds.addFirst(eventId);
+        while (entry.eventIds.size() > dedupeWindow) {
+            entry.eventIds.removeLast();
+        }
+    }
+
+    private ProcessEntry entry(String processId) {
+        return processes.computeIfAbsent(processId, id -> new ProcessEntry());
+    }
+
+    private static final class ProcessEntry {
+        private volatile String state;
+        // Most recent first, guarded by the entry
+        private final ArrayDeque<String> eventIds = new ArrayDeque<>();
+    }
+}
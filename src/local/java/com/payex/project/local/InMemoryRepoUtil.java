@@ -0,0 +1,337 @@
+package com.payex.project.local;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteError;
+import com.payex.project.repository.RepoUtil;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.IndexOptions;
+import org.bson.BsonDocument;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * {@link RepoUtil} keeping every collection in a map, for running the pipeline without Mongo.
+ * <p>
+ * Queries match documents whose fields equal all fields of the query, where a field may also be compared with
+ * {@code $gt}, {@code $gte}, {@code $lt} or {@code $lte} and alternatives given with {@code $or}, which covers
+ * the queries the application makes. {@link #find} applies the sort, skip, limit and projection of its options.
+ * Like Mongo's defaults, {@link #findOneAndUpdate} returns the document as it was before the update. Stored
+ * documents are copied in and out, so callers cannot change them by reference. {@link #findBatch} streams the
+ * result of {@link #find}, and indexes are not needed.
+ */
+public class InMemoryRepoUtil extends RepoUtil {
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final Map<String, Map<String, JsonObject>> collections = new ConcurrentHashMap<>();
+
+    public InMemoryRepoUtil() {
+        super(null, null);
+    }
+
+    @Override
+    public Future<String> save(String collectionName, JsonObject document) {
+        JsonObject stored = document.copy();
+        if (stored.getValue("_id") == null) {
+            stored.put("_id", UUID.randomUUID().toString());
+        }
+        collection(collectionName).put(String.valueOf(stored.getValue("_id")), stored);
+        return Future.succeededFuture("Document saved");
+    }
+
+    @Override
+    public Future<Void> insert(String collectionName, JsonObject document) {
+        JsonObject copy = document.copy();
+        if (copy.getValue("_id") == null) {
+            copy.put("_id", UUID.randomUUID().toString());
+        }
+        if (collection(collectionName).putIfAbsent(String.valueOf(copy.getValue("_id")), copy) != null) {
+            return Future.failedFuture(new MongoWriteException(
+                    new WriteError(DUPLICATE_KEY, "Duplicate _id " + copy.getValue("_id"), new BsonDocument()),
+                    new ServerAddress()));
+        }
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<Long> insertMany(String collectionName, List<JsonObject> documents) {
+        Map<String, JsonObject> stored = collection(collectionName);
+        long inserted = 0;
+        for (JsonObject document : documents) {
+            JsonObject copy = document.copy();
+            if (copy.getValue("_id") == null) {
+                copy.put("_id", UUID.randomUUID().toString());
+            }
+            if (stored.putIfAbsent(String.valueOf(copy.getValue("_id")), copy) == null) {
+                inserted++;
+            }
+        }
+        return Future.succeededFuture(inserted);
+    }
+
+    @Override
+    public Future<List<JsonObject>> find(String collectionName, JsonObject query, FindOptions options) {
+        try {
+            Stream<JsonObject> found = collection(collectionName).values().stream()
+                    .filter(document -> matches(document, query));
+            if (options.getSort() != null && !options.getSort().isEmpty()) {
+                found = found.sorted(order(options.getSort()));
+            }
+            if (options.getSkip() > 0) {
+                found = found.skip(options.getSkip());
+            }
+            if (options.getLimit() > 0) {
+                found = found.limit(options.getLimit());
+            }
+            return Future.succeededFuture(found
+                    .map(document -> project(document, options.getFields()))
+                    .collect(Collectors.toList()));
+        } catch (IllegalArgumentException e) {
+            return Future.failedFuture(e);
+        }
+    }
+
+    @Override
+    public ReadStream<JsonObject> findBatch(String collectionName, JsonObject query, FindOptions options) {
+        return new ListReadStream(find(collectionName, query, options));
+    }
+
+    @Override
+    public Future<Void> createIndex(String collectionName, JsonObject keys, IndexOptions options) {
+        return Future.succeededFuture();
+    }
+
+    public int count(String collectionName) {
+        return collection(collectionName).size();
+    }
+
+    @Override
+    public Future<JsonObject> findOne(String collectionName, JsonObject query, JsonObject projection) {
+        JsonObject found = find(collectionName, query);
+        return Future.succeededFuture(found == null ? null : found.copy());
+    }
+
+    @Override
+    public Future<JsonObject> findOneAndUpdate(String collectionName, JsonObject query, JsonObject update) {
+        Map<String, JsonObject> documents = collection(collectionName);
+        synchronized (documents) {
+            JsonObject found = find(collectionName, query);
+            if (found == null) {
+                return Future.succeededFuture();
+            }
+            JsonObject before = found.copy();
+            found.mergeIn(update.copy());
+            return Future.succeededFuture(before);
+        }
+    }
+
+    @Override
+    public Future<JsonObject> findOneAndDelete(String collectionName, JsonObject query) {
+        Map<String, JsonObject> documents = collection(collectionName);
+        synchronized (documents) {
+            JsonObject found = find(collectionName, query);
+            if (found == null) {
+                return Future.failedFuture("No document found matching the query.");
+            }
+            documents.remove(String.valueOf(found.getValue("_id")));
+            return Future.succeededFuture(found);
+        }
+    }
+
+    private JsonObject find(String collectionName, JsonObject query) {
+        Map<String, JsonObject> documents = collection(collectionName);
+        Object id = query.getValue("_id");
+        if (id != null) {
+            JsonObject document = documents.get(String.valueOf(id));
+            return document != null && matches(document, query) ? document : null;
+        }
+        return documents.values().stream().filter(document -> matches(document, query)).findFirst().orElse(null);
+    }
+
+    private static boolean matches(JsonObject document, JsonObject query) {
+        for (String field : query.fieldNames()) {
+            Object condition = query.getValue(field);
+            if ("$or".equals(field)) {
+                if (((JsonArray) condition).stream().noneMatch(alternative -> matches(document, (JsonObject) alternative))) {
+                    return false;
+                }
+            } else if (condition instanceof JsonObject operators && isOperators(operators)) {
+                for (String operator : operators.fieldNames()) {
+                    if (!holds(operator, document.getValue(field), operators.getValue(operator))) {
+                        return false;
+                    }
+                }
+            } else if (compare(condition, document.getValue(field)) != 0) {
+                // A null condition matches a missing field, as in Mongo
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isOperators(JsonObject condition) {
+        return !condition.isEmpty() && condition.fieldNames().stream().allMatch(name -> name.startsWith("$"));
+    }
+
+    private static boolean holds(String operator, Object value, Object operand) {
+        if (value == null) {
+            return false;
+        }
+        int comparison = compare(value, operand);
+        return switch (operator) {
+            case "$gt" -> comparison > 0;
+            case "$gte" -> comparison >= 0;
+            case "$lt" -> comparison < 0;
+            case "$lte" -> comparison <= 0;
+            default -> throw new IllegalArgumentException("Operator " + operator + " is not supported in memory");
+        };
+    }
+
+    /**
+     * Orders like Mongo for the values the application stores: nulls first, numbers by value whatever their type,
+     * strings lexicographically.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static int compare(Object a, Object b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        if (a instanceof Number x && b instanceof Number y) {
+            return Double.compare(x.doubleValue(), y.doubleValue());
+        }
+        if (a instanceof Comparable comparable && a.getClass() == b.getClass()) {
+            return comparable.compareTo(b);
+        }
+        return a.equals(b) ? 0 : a.getClass().getName().compareTo(b.getClass().getName());
+    }
+
+    private static Comparator<JsonObject> order(JsonObject sort) {
+        Comparator<JsonObject> order = (a, b) -> 0;
+        for (String field : sort.fieldNames()) {
+            Comparator<JsonObject> byField = (a, b) -> compare(a.getValue(field), b.getValue(field));
+            order = order.thenComparing(sort.getInteger(field) < 0 ? byField.reversed() : byField);
+        }
+        return order;
+    }
+
+    private static JsonObject project(JsonObject document, JsonObject fields) {
+        if (fields == null || fields.isEmpty()) {
+            return document.copy();
+        }
+        JsonObject projected = new JsonObject().put("_id", document.getValue("_id"));
+        for (String field : fields.fieldNames()) {
+            if (document.containsKey(field)) {
+                projected.put(field, document.getValue(field));
+            }
+        }
+        return projected.copy();
+    }
+
+    private Map<String, JsonObject> collection(String collectionName) {
+        return collections.computeIfAbsent(collectionName, name -> new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Emits the documents on the calling thread as soon as a handler is set and there is demand, so the end and
+     * exception handlers must be set first, as a pipe does. The end is emitted once every document was handled
+     * and the stream is not paused.
+     */
+    private static final class ListReadStream implements ReadStream<JsonObject> {
+        private final Future<List<JsonObject>> documents;
+        private Iterator<JsonObject> remaining;
+        private Handler<JsonObject> handler;
+        private Handler<Void> endHandler;
+        private Handler<Throwable> exceptionHandler;
+        private long demand = Long.MAX_VALUE;
+        private boolean emitting;
+        private boolean ended;
+
+        private ListReadStream(Future<List<JsonObject>> documents) {
+            this.documents = documents;
+        }
+
+        @Override
+        public ReadStream<JsonObject> exceptionHandler(Handler<Throwable> handler) {
+            this.exceptionHandler = handler;
+            return this;
+        }
+
+        @Override
+        public ReadStream<JsonObject> handler(Handler<JsonObject> handler) {
+            this.handler = handler;
+            emit();
+            return this;
+        }
+
+        @Override
+        public ReadStream<JsonObject> pause() {
+            demand = 0;
+            return this;
+        }
+
+        @Override
+        public ReadStream<JsonObject> resume() {
+            return fetch(Long.MAX_VALUE);
+        }
+
+        @Override
+        public ReadStream<JsonObject> fetch(long amount) {
+            demand = Long.MAX_VALUE - demand < amount ? Long.MAX_VALUE : demand + amount;
+            emit();
+            return this;
+        }
+
+        @Override
+        public ReadStream<JsonObject> endHandler(Handler<Void> endHandler) {
+            this.endHandler = endHandler;
+            return this;
+        }
+
+        private void emit() {
+            if (emitting || ended || handler == null) {
+                return;
+            }
+            if (documents.failed()) {
+                ended = true;
+                if (exceptionHandler != null) {
+                    exceptionHandler.handle(documents.cause());
+                }
+                return;
+            }
+            emitting = true;
+            try {
+                if (remaining == null) {
+                    remaining = documents.result().iterator();
+                }
+                // The handler may pause or fetch more while it runs
+                while (demand > 0 && remaining.hasNext()) {
+                    if (demand != Long.MAX_VALUE) {
+                        demand--;
+                    }
+                    handler.handle(remaining.next());
+                }
+                if (demand > 0 && !remaining.hasNext()) {
+                    ended = true;
+                    if (endHandler != null) {
+                        endHandler.handle(null);
+                    }
+                }
+            } finally {
+                emitting = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.payex.project.local;
+
+import com.payex.project.cache.LruCache;
+import com.payex.project.codec.KafkaMessageCodec;
+import com.payex.project.config.ConfigLoader;
+import com.payex.project.constant.AppConstant;
+import com.payex.project.consumer.KafkaVerticle;
+import com.payex.project.metrics.AppMetrics;
+import com.payex.project.models.KafkaMessage;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.CountAtBucket;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.core.config.Configurator;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Drives synthetic events through the real consumer verticles, with Kafka, Redis and Mongo replaced by the
+ * in-memory stand-ins of this package, and reports throughput, latency percentiles, GC and allocation.
+ * <p>
+ * Run it from the project root with the load profile, since the settings start from application.yml:
+ * <pre>
+ * mvn -Pload -DskipTests verify -Dload.args="--events=1000000"
+ * </pre>
+ * Options, all given as {@code --name=value}:
+ * <ul>
+ *     <li>{@code events} to produce, {@code processes} they are spread over at random and {@code machines}
+ *     the processes are spread over</li>
+ *     <li>{@code states} and {@code eventsPerState} of each machine; {@code rejectRatio} of the events have
+ *     no transition and are rejected</li>
+ *     <li>{@code partitions}, consumer {@code instances} and {@code workers} per instance</li>
+ *     <li>{@code consumerMode}, {@code transitionMode}, {@code offsetCommit}, {@code dedupeWindow} and
+ *     {@code messageFormat}, as in application.yml</li>
+ *     <li>{@code rate} in events per second, 0 for as fast as possible, and {@code maxLag}, the events
+ *     produced but not yet applied before the producer waits</li>
+ *     <li>{@code logLevel} of the application while running, WARN by default since the consumer logs every
+ *     event at INFO, and {@code progress} to print the throughput every second</li>
+ * </ul>
+ * Latency is measured from the record's timestamp, so it has millisecond resolution and includes the time a
+ * record waited in the topic. Percentiles are the upper bounds of the histogram buckets they fall in, capped at the maximum.
+ */
+public final class LoadGenerator {
+
+    private static final String MACHINE_PREFIX = "load-";
+    // Defined on every machine without any transition
+    private static final String REJECTED_EVENT = "NOOP";
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p99.9"};
+    private static final String[] OUTCOMES = {
+            AppMetrics.OUTCOME_ACCEPTED, AppMetrics.OUTCOME_REJECTED, AppMetrics.OUTCOME_DUPLICATE};
+
+    private LoadGenerator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --name=value but got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        System.out.println(run(options).encodePrettily());
+        // The Kafka client threads of the consumers are not daemons
+        System.exit(0);
+    }
+
+    /**
+     * Deploys the consumers, produces every event and waits until all were applied.
+     *
+     * @return the report printed by {@link #main}
+     */
+    public static JsonObject run(Map<String, String> options) throws Exception {
+        int events = intOption(options, "events", 100_000);
+        int processes = intOption(options, "processes", 10_000);
+        int machines = intOption(options, "machines", 1);
+        int states = intOption(options, "states", 10);
+        int eventsPerState = intOption(options, "eventsPerState", 2);
+        double rejectRatio = Double.parseDouble(options.getOrDefault("rejectRatio", "0"));
+        int partitions = intOption(options, "partitions", 12);
+        int instances = intOption(options, "instances", 1);
+        int rate = intOption(options, "rate", 0);
+        int maxLag = intOption(options, "maxLag", 100_000);
+        long stallTimeoutMs = intOption(options, "stallTimeoutMs", 30_000);
+        boolean progress = Boolean.parseBoolean(options.getOrDefault("progress", "true"));
+
+        ConfigLoader config = ConfigLoader.loadConfig();
+        config.setKafkaInstances(instances);
+        config.setKafkaWorkers(intOption(options, "workers", config.getKafkaWorkers()));
+        config.setKafkaConsumerMode(options.getOrDefault("consumerMode", config.getKafkaConsumerMode()));
+        config.setKafkaOffsetCommit(options.getOrDefault("offsetCommit", config.getKafkaOffsetCommit()));
+        config.setStateMachineTransitionMode(options.getOrDefault("transitionMode", config.getStateMachineTransitionMode()));
+        config.setStateMachineDedupeWindow(intOption(options, "dedupeWindow", config.getStateMachineDedupeWindow()));
+        config.setKafkaMessageFormat(options.getOrDefault("messageFormat", config.getKafkaMessageFormat()));
+        String topic = config.getKafkaTopic();
+
+        // Covers the per-stage event loggers too, which set their own levels
+        Configurator.setAllLevels(LogManager.ROOT_LOGGER_NAME, Level.toLevel(options.getOrDefault("logLevel", "WARN")));
+
+        InMemoryRepoUtil repoUtil = new InMemoryRepoUtil();
+        for (int machine = 0; machine < machines; machine++) {
+            repoUtil.save(AppConstant.COLLECTION_STATE_MACHINES, definition(MACHINE_PREFIX + machine, states, eventsPerState));
+        }
+        InMemoryRedisService redisService = new InMemoryRedisService(config.getStateMachineDedupeWindow());
+        InMemoryKafka kafka = new InMemoryKafka(partitions);
+
+        Vertx vertx = Vertx.vertx();
+        try {
+            vertx.deployVerticle(() -> new KafkaVerticle(redisService, repoUtil,
+                                    new LruCache<>(config.getStateMachineCacheMaxSize()), null, config, kafka),
+                            new DeploymentOptions().setInstances(instances))
+                    .toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+            // Producing before every consumer has its partitions would replay records on the rebalance
+            awaitCondition(() -> kafka.isStable(config.getKafkaGroupId(), instances), 30_000,
+                    "Consumers did not get their partitions");
+
+            double[] counted = countedEvents();
+            long gcCountBefore = gcCount();
+            long gcTimeBefore = gcTimeMs();
+            long allocatedBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long[] produced = {0};
+            if (progress) {
+                long[] last = {0};
+                vertx.setPeriodic(1000, id -> {
+                    long applied = applied(counted);
+                    System.out.printf("produced %d, applied %d (%d/s), lag %d%n",
+                            produced[0], applied, applied - last[0], produced[0] - applied);
+                    last[0] = applied;
+                });
+            }
+
+            Producer<String, KafkaMessage> producer = kafka.producer(Map.of("value.serializer",
+                    KafkaMessageCodec.serializerFor(config.getKafkaMessageFormat())));
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < events; i++) {
+                if (rate > 0) {
+                    long due = start + i * 1_000_000_000L / rate;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                if ((i & 1023) == 0) {
+                    while (i - applied(counted) > maxLag) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    }
+                }
+                int process = random.nextInt(processes);
+                String event = random.nextDouble() < rejectRatio ? REJECTED_EVENT : "E" + random.nextInt(eventsPerState);
+                KafkaMessage message = new KafkaMessage(MACHINE_PREFIX + (process % machines),
+                        "process-" + process, event, "event-" + i);
+                producer.send(new ProducerRecord<>(topic, message.getProcessId(), message));
+                produced[0] = i + 1;
+            }
+            long producedNanos = System.nanoTime() - start;
+
+            long lastApplied = -1;
+            long lastProgress = System.currentTimeMillis();
+            while (applied(counted) < events) {
+                long applied = applied(counted);
+                if (applied != lastApplied) {
+                    lastApplied = applied;
+                    lastProgress = System.currentTimeMillis();
+                } else if (System.currentTimeMillis() - lastProgress > stallTimeoutMs) {
+                    throw new IllegalStateException("Stalled after applying " + applied + " of " + events + " events");
+                }
+                TimeUnit.MILLISECONDS.sleep(1);
+            }
+            long elapsedNanos = System.nanoTime() - start;
+
+            return new JsonObject()
+                    .put("events", events)
+                    .put("processes", processes)
+                    .put("machines", machines)
+                    .put("partitions", partitions)
+                    .put("instances", instances)
+                    .put("consumerMode", config.getKafkaConsumerMode())
+                    .put("transitionMode", config.getStateMachineTransitionMode())
+                    .put("offsetCommit", config.getKafkaOffsetCommit())
+                    .put("messageFormat", config.getKafkaMessageFormat())
+                    .put("elapsedMs", TimeUnit.NANOSECONDS.toMillis(elapsedNanos))
+                    .put("producedPerSecond", Math.round(events * 1e9 / producedNanos))
+                    .put("appliedPerSecond", Math.round(events * 1e9 / elapsedNanos))
+                    .put("outcomes", outcomes(counted))
+                    .put("latencyMs", percentiles(AppMetrics.registry().get("statemachine.event.latency").timer()))
+                    .put("stagesMs", stages())
+                    .put("gc", new JsonObject()
+                            .put("collections", gcCount() - gcCountBefore)
+                            .put("timeMs", gcTimeMs() - gcTimeBefore))
+                    .put("allocatedBytesPerEvent", (allocatedBytes() - allocatedBefore) / events)
+                    .put("processStates", redisService.size())
+                    .put("retainedRecords", kafka.retained(topic));
+        } finally {
+            vertx.close().toCompletionStage().toCompletableFuture().get(30, TimeUnit.SECONDS);
+            Configurator.reconfigure();
+        }
+    }
+
+    /**
+     * A machine moving from each state on each of its events to one of the following states, so every process
+     * keeps cycling through all of them.
+     */
+    static JsonObject definition(String id, int states, int eventsPerState) {
+        JsonArray stateNames = new JsonArray();
+        JsonArray eventNames = new JsonArray().add(REJECTED_EVENT);
+        JsonObject transitions = new JsonObject();
+        for (int event = 0; event < eventsPerState; event++) {
+            eventNames.add("E" + event);
+        }
+        for (int state = 0; state < states; state++) {
+            stateNames.add("S" + state);
+            JsonObject targets = new JsonObject();
+            for (int event = 0; event < eventsPerState; event++) {
+                targets.put("E" + event, "S" + (state + event + 1) % states);
+            }
+            transitions.put("S" + state, targets);
+        }
+        return new JsonObject()
+                .put("_id", id)
+                .put("stateMachineName", id)
+                .put("states", stateNames)
+                .put("events", eventNames)
+                .put("transitions", transitions)
+                .put("partition", 1);
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value.replace("_", ""));
+    }
+
+    private static void awaitCondition(BooleanSupplier condition, long timeoutMs, String message)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException(message);
+            }
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    // The transition counters are process-wide, so a run counts from their values when it started
+    private static double[] countedEvents() {
+        double[] counted = new double[OUTCOMES.length];
+        for (int i = 0; i < OUTCOMES.length; i++) {
+            Counter counter = AppMetrics.registry().find("statemachine.transitions").tag("outcome", OUTCOMES[i]).counter();
+            counted[i] = counter == null ? 0 : counter.count();
+        }
+        return counted;
+    }
+
+    /**
+     * Events applied since the run started. Duplicates are left out, they are redeliveries of counted events.
+     */
+    private static long applied(double[] before) {
+        double[] now = countedEvents();
+        return Math.round(now[0] - before[0] + now[1] - before[1]);
+    }
+
+    private static JsonObject outcomes(double[] before) {
+        double[] now = countedEvents();
+        JsonObject outcomes = new JsonObject();
+        for (int i = 0; i < OUTCOMES.length; i++) {
+            outcomes.put(OUTCOMES[i], Math.round(now[i] - before[i]));
+        }
+        return outcomes;
+    }
+
+    private static JsonObject stages() {
+        JsonObject stages = new JsonObject();
+        for (Timer timer : AppMetrics.registry().find("statemachine.stage").timers()) {
+            stages.put(timer.getId().getTag("stage"), percentiles(timer));
+        }
+        return stages;
+    }
+
+    private static JsonObject percentiles(Timer timer) {
+        HistogramSnapshot snapshot = timer.takeSnapshot();
+        JsonObject result = new JsonObject()
+                .put("count", snapshot.count())
+                .put("mean", snapshot.mean(TimeUnit.MILLISECONDS));
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            result.put(PERCENTILE_NAMES[i], percentile(snapshot, PERCENTILES[i]));
+        }
+        return result.put("max", snapshot.max(TimeUnit.MILLISECONDS));
+    }
+
+    private static double percentile(HistogramSnapshot snapshot, double percentile) {
+        double target = Math.ceil(snapshot.count() * percentile);
+        for (CountAtBucket bucket : snapshot.histogramCounts()) {
+            if (bucket.count() >= target) {
+                return Math.min(bucket.bucket(TimeUnit.MILLISECONDS), snapshot.max(TimeUnit.MILLISECONDS));
+            }
+        }
+        return snapshot.max(TimeUnit.MILLISECONDS);
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+    }
+
+    private static long gcTimeMs() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+    }
+
+    /**
+     * Bytes allocated by the live threads, which include the event loops and workers for the whole run.
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,318 @@
+package com.payex.project.audit;
+
+import com.payex.project.config.ConfigLoader;
+import com.payex.project.constant.AppConstant;
+import com.payex.project.metrics.AppMetrics;
+import com.payex.project.models.TransitionRecord;
+import com.payex.project.repository.RepoUtil;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.IndexOptions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * History of the events applied to each process, buffered in memory and written to Mongo in bulk once
+ * {@code batchSize} records are waiting or every {@code flushIntervalMs}, whichever comes first.
+ * <p>
+ * At most {@code maxBuffered} records are held, counting those being written. Beyond that the overflow policy
+ * decides: "drop" discards the record and counts it, "backpressure" keeps it and reports {@link #isFull()}, so
+ * the consumer pauses until {@link #whenWritable()} completes once the buffer is back under half. A failed write
+ * puts its records back in front of the buffer for the next flush, under "drop" only as many as fit. Records get
+ * their {@code _id} when recorded unless they bring one, so a batch written twice is stored once.
+ * <p>
+ * {@link #record} returns a future completed once the record is stored, or discarded by the drop policy, so the
+ * consumer only commits the offset of an event whose entry can no longer be lost with the buffer.
+ * <p>
+ * A process's entries are read newest first, a page at a time, through an index on processId, timestamp and
+ * _id. The cursor of the next page is the timestamp and _id of the last entry, so every page is a range scan of
+ * the index however deep it is.
+ */
+public class TransitionLog {
+    private static final Logger LOGGER = LogManager.getLogger(TransitionLog.class);
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 1000;
+    private static final String INDEX_NAME = "processId_timestamp_id";
+    private static final JsonObject NEWEST_FIRST = new JsonObject()
+            .put(TransitionRecord.Fields.processId, 1)
+            .put(TransitionRecord.Fields.timestamp, -1)
+            .put(TransitionRecord.Fields._id, -1);
+
+    private final Vertx vertx;
+    private final RepoUtil repoUtil;
+    private final String collection;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final int maxBuffered;
+    private final boolean dropOnOverflow;
+
+    // Guarded by this
+    private final Deque<Pending> buffer = new ArrayDeque<>();
+    private final List<Promise<Void>> waiting = new ArrayList<>();
+    private int writing;
+    private long written;
+    private long dropped;
+    private long failed;
+    private long timerId = -1;
+
+    public TransitionLog(Vertx vertx, RepoUtil repoUtil, ConfigLoader config) {
+        this(vertx, repoUtil, AppConstant.COLLECTION_TRANSITION_LOG, config);
+    }
+
+    public TransitionLog(Vertx vertx, RepoUtil repoUtil, String collection, ConfigLoader config) {
+        if (config.getTransitionLogBatchSize() <= 0 || config.getTransitionLogMaxBuffered() < config.getTransitionLogBatchSize()) {
+            throw new IllegalArgumentException("Transition log batch size must be positive and at most maxBuffered: "
+                    + config.getTransitionLogBatchSize() + ", " + config.getTransitionLogMaxBuffered());
+        }
+        this.vertx = vertx;
+        this.repoUtil = repoUtil;
+        this.collection = collection;
+        this.batchSize = config.getTransitionLogBatchSize();
+        this.flushIntervalMs = config.getTransitionLogFlushIntervalMs();
+        this.maxBuffered = config.getTransitionLogMaxBuffered();
+        this.dropOnOverflow = AppConstant.TRANSITION_LOG_OVERFLOW_DROP.equals(config.getTransitionLogOverflow());
+    }
+
+    /**
+     * Ensures the history index and starts the periodic flush. Startup does not depend on the index: if it
+     * cannot be created a warning is logged and queries scan until it exists.
+     */
+    public Future<Void> start() {
+        return repoUtil.createIndex(collection, NEWEST_FIRST, new IndexOptions().name(INDEX_NAME))
+                .recover(err -> {
+                    LOGGER.warn("Transition log index not ensured, history queries will be slow - {}", err.getMessage());
+                    return Future.succeededFuture();
+                })
+                .onComplete(ar -> {
+                    synchronized (this) {
+                        timerId = vertx.setPeriodic(flushIntervalMs, id -> flush());
+                    }
+                });
+    }
+
+    /**
+     * Stops the periodic flush and writes whatever is buffered.
+     */
+    public Future<Void> close() {
+        synchronized (this) {
+            if (timerId >= 0) {
+                vertx.cancelTimer(timerId);
+                timerId = -1;
+            }
+        }
+        return flush();
+    }
+
+    /**
+     * Buffers a record, writing a batch once enough are waiting. Safe to call from any thread.
+     *
+     * @return completes once the record is stored or was dropped; a failed write keeps it pending until a later
+     * write stores it
+     */
+    public Future<Void> record(TransitionRecord record) {
+        Pending pending = new Pending(record);
+        List<Pending> batch = null;
+        synchronized (this) {
+            if (dropOnOverflow && size() >= maxBuffered) {
+                dropped++;
+                AppMetrics.countTransitionLog(AppMetrics.LOG_DROPPED, 1);
+                return Future.succeededFuture();
+            }
+            if (record.get_id() == null) {
+                record.set_id(new ObjectId().toHexString());
+            }
+            buffer.addLast(pending);
+            if (buffer.size() >= batchSize) {
+                batch = takeBatch();
+            }
+        }
+        if (batch != null) {
+            write(batch);
+        }
+        return pending.stored.future();
+    }
+
+    /**
+     * Writes every record buffered at the time of the call, in batches of at most {@code batchSize}. Records a
+     * failed write puts back wait for the next flush.
+     */
+    public Future<Void> flush() {
+        List<List<Pending>> batches = new ArrayList<>();
+        synchronized (this) {
+            while (!buffer.isEmpty()) {
+                batches.add(takeBatch());
+            }
+        }
+        List<Future<Void>> writes = new ArrayList<>(batches.size());
+        for (List<Pending> batch : batches) {
+            writes.add(write(batch));
+        }
+        return Future.join(writes).mapEmpty();
+    }
+
+    /**
+     * True while the buffer is at capacity under the backpressure policy; always false under "drop", which
+     * never holds up the consumer.
+     */
+    public synchronized boolean isFull() {
+        return !dropOnOverflow && size() >= maxBuffered;
+    }
+
+    /**
+     * Completes at once unless the buffer {@link #isFull() is full}, otherwise once it drained below half.
+     */
+    public synchronized Future<Void> whenWritable() {
+        if (!isFull()) {
+            return Future.succeededFuture();
+        }
+        Promise<Void> promise = Promise.promise();
+        waiting.add(promise);
+        return promise.future();
+    }
+
+    /**
+     * One page of a process's history, newest first.
+     *
+     * @param cursor {@code nextCursor} of the previous page, or {@code null} for the newest entries
+     * @return the page, failed with an {@link IllegalArgumentException} if the cursor or page size is invalid
+     */
+    public Future<JsonObject> history(String processId, String cursor, int limit) {
+        if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+            return Future.failedFuture(new IllegalArgumentException("Limit must be between 1 and " + MAX_PAGE_SIZE));
+        }
+        JsonObject query = new JsonObject().put(TransitionRecord.Fields.processId, processId);
+        if (cursor != null) {
+            try {
+                query.put("$or", after(cursor));
+            } catch (IllegalArgumentException e) {
+                return Future.failedFuture(e);
+            }
+        }
+        // One extra entry tells whether another page follows
+        FindOptions options = new FindOptions()
+                .setSort(NEWEST_FIRST.copy())
+                .setLimit(limit + 1);
+        return repoUtil.find(collection, query, options)
+                .map(entries -> {
+                    boolean more = entries.size() > limit;
+                    List<JsonObject> page = more ? entries.subList(0, limit) : entries;
+                    JsonObject last = page.isEmpty() ? null : page.get(page.size() - 1);
+                    return new JsonObject()
+                            .put("statusCode", 200)
+                            .put("success", true)
+                            .put("processId", processId)
+                            .put("transitions", new JsonArray(new ArrayList<>(page)))
+                            .put("nextCursor", more ? last.getLong(TransitionRecord.Fields.timestamp) + ":"
+                                    + last.getString(TransitionRecord.Fields._id) : null);
+                });
+    }
+
+    public synchronized JsonObject stats() {
+        return new JsonObject()
+                .put("buffered", buffer.size())
+                .put("writing", writing)
+                .put("maxBuffered", maxBuffered)
+                .put("written", written)
+                .put("dropped", dropped)
+                .put("failed", failed);
+    }
+
+    /**
+     * Entries older than the cursor's: an earlier timestamp, or the same one and a lower _id.
+     */
+    private static JsonArray after(String cursor) {
+        int separator = cursor.indexOf(':');
+        long timestamp;
+        try {
+            timestamp = Long.parseLong(cursor.substring(0, Math.max(separator, 0)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        String id = cursor.substring(separator + 1);
+        return new JsonArray()
+                .add(new JsonObject().put(TransitionRecord.Fields.timestamp, new JsonObject().put("$lt", timestamp)))
+                .add(new JsonObject()
+                        .put(TransitionRecord.Fields.timestamp, timestamp)
+                        .put(TransitionRecord.Fields._id, new JsonObject().put("$lt", id)));
+    }
+
+    private int size() {
+        return buffer.size() + writing;
+    }
+
+    private List<Pending> takeBatch() {
+        List<Pending> batch = new ArrayList<>(Math.min(batchSize, buffer.size()));
+        while (batch.size() < batchSize && !buffer.isEmpty()) {
+            batch.add(buffer.pollFirst());
+        }
+        writing += batch.size();
+        return batch;
+    }
+
+    private Future<Void> write(List<Pending> batch) {
+        List<JsonObject> documents = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            documents.add(pending.record.toDocument());
+        }
+        return repoUtil.insertMany(collection, documents)
+                .transform(ar -> {
+                    List<Promise<Void>> writable = List.of();
+                    List<Pending> settled = batch;
+                    synchronized (this) {
+                        writing -= batch.size();
+                        if (ar.succeeded()) {
+                            written += batch.size();
+                            AppMetrics.countTransitionLog(AppMetrics.LOG_WRITTEN, batch.size());
+                        } else {
+                            failed += batch.size();
+                            AppMetrics.countTransitionLog(AppMetrics.LOG_FAILED, batch.size());
+                            settled = requeue(batch);
+                        }
+                        if (!waiting.isEmpty() && size() <= maxBuffered / 2) {
+                            writable = new ArrayList<>(waiting);
+                            waiting.clear();
+                        }
+                    }
+                    settled.forEach(pending -> pending.stored.complete());
+                    writable.forEach(Promise::complete);
+                    return ar.succeeded() ? Future.<Void>succeededFuture() : Future.<Void>failedFuture(ar.cause());
+                });
+    }
+
+    /**
+     * Puts a failed batch back in front of the buffer, keeping its order.
+     *
+     * @return the records that did not fit and were dropped
+     */
+    private List<Pending> requeue(List<Pending> batch) {
+        int keep = dropOnOverflow ? Math.min(batch.size(), Math.max(0, maxBuffered - size())) : batch.size();
+        if (keep < batch.size()) {
+            dropped += batch.size() - keep;
+            AppMetrics.countTransitionLog(AppMetrics.LOG_DROPPED, batch.size() - keep);
+        }
+        for (int i = keep - 1; i >= 0; i--) {
+            buffer.addFirst(batch.get(i));
+        }
+        return batch.subList(keep, batch.size());
+    }
+
+    private static final class Pending {
+        private final TransitionRecord record;
+        private final Promise<Void> stored = Promise.promise();
+
+        private Pending(TransitionRecord record) {
+            this.record = record;
+        }
+    }
+}
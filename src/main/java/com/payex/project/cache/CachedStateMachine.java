@@ -0,0 +1,57 @@
+package com.payex.project.cache;
+
+import com.payex.project.engine.CompiledStateMachine;
+import io.vertx.core.json.JsonObject;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.springframework.statemachine.StateMachine;
+import org.springframework.statemachine.support.DefaultStateMachineContext;
+
+/**
+ * One version of a state machine definition as loaded from Mongo together with its compiled transition table.
+ * Versions are immutable, so an instance never goes stale.
+ * The Spring state machine is only built for definitions that opted into the {@code spring} engine.
+ */
+@Getter
+@AllArgsConstructor
+public class CachedStateMachine {
+    private final JsonObject definition;
+    private final CompiledStateMachine compiled;
+    private final StateMachine<String, String> stateMachine;
+
+    public String getInitialState() {
+        return compiled.getInitialState();
+    }
+
+    public int getVersion() {
+        return compiled.getVersion();
+    }
+
+    public boolean usesSpringEngine() {
+        return stateMachine != null;
+    }
+
+    /**
+     * Fires {@code event} from {@code currentState} on the engine this definition uses.
+     *
+     * @return the new state, or {@code null} if the event was not accepted
+     */
+    public String fire(String currentState, String event) {
+        if (stateMachine == null) {
+            return compiled.fire(currentState, event);
+        }
+
+        // The Spring machine is stateful and shared through the cache, so the reset/start/send cycle holds its monitor
+        synchronized (stateMachine) {
+            stateMachine.stop();
+            stateMachine.getStateMachineAccessor()
+                    .doWithAllRegions(accessor -> accessor.resetStateMachine(
+                            new DefaultStateMachineContext<>(currentState, null, null, null)
+                    ));
+            stateMachine.start();
+
+            boolean accepted = stateMachine.sendEvent(event);
+            return accepted ? stateMachine.getState().getId() : null;
+        }
+    }
+}
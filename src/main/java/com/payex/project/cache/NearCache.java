@@ -0,0 +1,183 @@
+package com.payex.project.cache;
+
+import io.vertx.core.json.JsonObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded, thread safe cache of process states kept in front of Redis.
+ * <p>
+ * Entries are evicted least recently used first once either {@code maxEntries} or {@code maxBytes} is exceeded,
+ * and are dropped when read after {@code ttlMs}. The byte size is an estimate of the strings and map entries
+ * held, not a measurement.
+ * <p>
+ * Like {@link LruCache}, {@link #clear()} bumps a generation counter. Callers capture {@link #generation()}
+ * before going to Redis and store what they read or wrote with {@link #put(String, String, long)}, so a value
+ * from before a clear is never cached after it.
+ */
+public class NearCache {
+
+    // LinkedHashMap entry, the cache's own entry and two String headers
+    static final int ENTRY_OVERHEAD_BYTES = 120;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMs;
+    private final LongSupplier clock;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong sizeEvictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private long bytes;
+    private long generation;
+
+    public NearCache(int maxEntries, long maxBytes, long ttlMs) {
+        this(maxEntries, maxBytes, ttlMs, System::currentTimeMillis);
+    }
+
+    NearCache(int maxEntries, long maxBytes, long ttlMs, LongSupplier clock) {
+        if (maxEntries <= 0 || maxBytes <= 0 || ttlMs <= 0) {
+            throw new IllegalArgumentException("Near cache limits must be positive: "
+                    + maxEntries + ", " + maxBytes + ", " + ttlMs);
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMs = ttlMs;
+        this.clock = clock;
+    }
+
+    public synchronized String get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt <= clock.getAsLong()) {
+            remove(key, entry);
+            expirations.incrementAndGet();
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.value;
+    }
+
+    /**
+     * Stores the value only if the cache was not cleared since {@code expectedGeneration} was read.
+     *
+     * @return true if the value was cached
+     */
+    public synchronized boolean put(String key, String value, long expectedGeneration) {
+        if (generation != expectedGeneration) {
+            return false;
+        }
+        Entry previous = entries.put(key, new Entry(value, clock.getAsLong() + ttlMs));
+        if (previous != null) {
+            bytes -= sizeOf(key, previous.value);
+        }
+        bytes += sizeOf(key, value);
+        evictEldest();
+        return true;
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public synchronized void invalidate(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            remove(key, entry);
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops every entry, such as when other consumers may have taken over some of the processes.
+     */
+    public synchronized void clear() {
+        generation++;
+        invalidations.addAndGet(entries.size());
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getSizeEvictions() {
+        return sizeEvictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    public JsonObject stats() {
+        long requests = getHits() + getMisses();
+        return new JsonObject()
+                .put("size", size())
+                .put("maxEntries", maxEntries)
+                .put("bytes", bytes())
+                .put("maxBytes", maxBytes)
+                .put("ttlMs", ttlMs)
+                .put("hits", getHits())
+                .put("misses", getMisses())
+                .put("hitRatio", requests == 0 ? 0.0 : (double) getHits() / requests)
+                .put("sizeEvictions", getSizeEvictions())
+                .put("expirations", getExpirations())
+                .put("invalidations", getInvalidations());
+    }
+
+    private void evictEldest() {
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            Map.Entry<String, Entry> entry = eldest.next();
+            bytes -= sizeOf(entry.getKey(), entry.getValue().value);
+            eldest.remove();
+            sizeEvictions.incrementAndGet();
+        }
+    }
+
+    private void remove(String key, Entry entry) {
+        entries.remove(key);
+        bytes -= sizeOf(key, entry.value);
+    }
+
+    private static long sizeOf(String key, String value) {
+        return ENTRY_OVERHEAD_BYTES + 2L * (key.length() + value.length());
+    }
+
+    private static final class Entry {
+        private final String value;
+        private final long expiresAt;
+
+        private Entry(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.payex.project.codec;
+
+import com.payex.project.models.KafkaMessage;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Writes event messages in the binary layout of {@link KafkaMessageCodec} and marks the records with the
+ * message format header.
+ */
+public class BinaryKafkaMessageSerializer implements Serializer<KafkaMessage> {
+
+    @Override
+    public byte[] serialize(String topic, KafkaMessage message) {
+        return message == null ? null : KafkaMessageCodec.encodeBinary(message);
+    }
+
+    @Override
+    public byte[] serialize(String topic, Headers headers, KafkaMessage message) {
+        if (message != null) {
+            KafkaMessageCodec.markBinary(headers);
+        }
+        return serialize(topic, message);
+    }
+}
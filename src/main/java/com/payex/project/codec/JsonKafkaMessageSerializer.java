@@ -0,0 +1,15 @@
+package com.payex.project.codec;
+
+import com.payex.project.models.KafkaMessage;
+import org.apache.kafka.common.serialization.Serializer;
+
+/**
+ * Writes event messages as JSON without a format header, readable by consumers of every version.
+ */
+public class JsonKafkaMessageSerializer implements Serializer<KafkaMessage> {
+
+    @Override
+    public byte[] serialize(String topic, KafkaMessage message) {
+        return message == null ? null : KafkaMessageCodec.encodeJson(message);
+    }
+}
@@ -0,0 +1,203 @@
+package com.payex.project.codec;
+
+import com.payex.project.constant.AppConstant;
+import com.payex.project.models.KafkaMessage;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Encodes {@link KafkaMessage}s for the events topic, as JSON or in a compact binary layout.
+ * <p>
+ * The binary layout is a version byte followed by the stateMachineId, processId, event and eventId. Each field
+ * is the UTF-8 length plus one as an unsigned varint, 0 standing for {@code null}, followed by the bytes. Binary
+ * records carry the {@link AppConstant#MESSAGE_FORMAT_HEADER} header; records without it are JSON, which is
+ * what producers wrote before the binary format existed.
+ */
+public final class KafkaMessageCodec {
+
+    public static final byte BINARY_VERSION = 1;
+
+    private static final byte[] BINARY_HEADER_VALUE = AppConstant.MESSAGE_FORMAT_BINARY.getBytes(StandardCharsets.UTF_8);
+
+    private KafkaMessageCodec() {
+    }
+
+    /**
+     * Class name of the value serializer producing {@code format}.
+     */
+    public static String serializerFor(String format) {
+        if (format == null || AppConstant.MESSAGE_FORMAT_JSON.equals(format)) {
+            return JsonKafkaMessageSerializer.class.getName();
+        }
+        if (AppConstant.MESSAGE_FORMAT_BINARY.equals(format)) {
+            return BinaryKafkaMessageSerializer.class.getName();
+        }
+        throw new IllegalArgumentException("Unknown message format: " + format);
+    }
+
+    public static boolean isBinary(Headers headers) {
+        Header header = headers == null ? null : headers.lastHeader(AppConstant.MESSAGE_FORMAT_HEADER);
+        return header != null && Arrays.equals(BINARY_HEADER_VALUE, header.value());
+    }
+
+    static void markBinary(Headers headers) {
+        headers.remove(AppConstant.MESSAGE_FORMAT_HEADER);
+        headers.add(AppConstant.MESSAGE_FORMAT_HEADER, BINARY_HEADER_VALUE);
+    }
+
+    public static byte[] encodeJson(KafkaMessage message) {
+        return Json.encodeToBuffer(message).getBytes();
+    }
+
+    /**
+     * Maps the JSON straight onto the message, without an intermediate {@code JsonObject}.
+     *
+     * @throws io.vertx.core.json.DecodeException if the value is not a JSON event message
+     */
+    public static KafkaMessage decodeJson(byte[] value) {
+        return Json.decodeValue(Buffer.buffer(value), KafkaMessage.class);
+    }
+
+    public static byte[] encodeBinary(KafkaMessage message) {
+        String[] fields = {message.getStateMachineId(), message.getProcessId(), message.getEvent(), message.getEventId()};
+        int size = 1;
+        int[] lengths = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            lengths[i] = fields[i] == null ? -1 : utf8Length(fields[i]);
+            size += varintSize(lengths[i] + 1) + Math.max(0, lengths[i]);
+        }
+        byte[] bytes = new byte[size];
+        bytes[0] = BINARY_VERSION;
+        int position = 1;
+        for (int i = 0; i < fields.length; i++) {
+            position = writeVarint(bytes, position, lengths[i] + 1);
+            if (fields[i] != null) {
+                position = writeUtf8(bytes, position, fields[i]);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads a message in one pass over the value; the only allocations are the message and its strings.
+     *
+     * @throws IllegalArgumentException if the value is not a binary event message of a known version
+     */
+    public static KafkaMessage decodeBinary(byte[] value) {
+        if (value.length == 0 || value[0] != BINARY_VERSION) {
+            throw new IllegalArgumentException("Unknown binary message version");
+        }
+        Reader reader = new Reader(value);
+        return new KafkaMessage(reader.readString(), reader.readString(), reader.readString(), reader.readString());
+    }
+
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (isSurrogatePair(value, i)) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Replaced with '?' like String.getBytes does
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int writeUtf8(byte[] bytes, int position, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte) (0xC0 | c >> 6);
+                bytes[position++] = (byte) (0x80 | c & 0x3F);
+            } else if (isSurrogatePair(value, i)) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                bytes[position++] = (byte) (0xF0 | codePoint >> 18);
+                bytes[position++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                bytes[position++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                bytes[position++] = (byte) (0x80 | codePoint & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                bytes[position++] = '?';
+            } else {
+                bytes[position++] = (byte) (0xE0 | c >> 12);
+                bytes[position++] = (byte) (0x80 | c >> 6 & 0x3F);
+                bytes[position++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return position;
+    }
+
+    private static boolean isSurrogatePair(String value, int index) {
+        return Character.isHighSurrogate(value.charAt(index)) && index + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(index + 1));
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] bytes, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[position++] = (byte) (value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    private static final class Reader {
+        private final byte[] bytes;
+        private int position = 1;
+
+        private Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private String readString() {
+            int length = readVarint() - 1;
+            if (length < 0) {
+                return null;
+            }
+            if (length > bytes.length - position) {
+                throw new IllegalArgumentException("Field of " + length + " bytes exceeds the message");
+            }
+            String value = new String(bytes, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (position >= bytes.length) {
+                    throw new IllegalArgumentException("Truncated message");
+                }
+                byte b = bytes[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed length");
+        }
+    }
+}
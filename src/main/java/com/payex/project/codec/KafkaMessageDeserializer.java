@@ -0,0 +1,42 @@
+package com.payex.project.codec;
+
+import com.payex.project.constant.AppConstant;
+import com.payex.project.metrics.AppMetrics;
+import com.payex.project.models.KafkaMessage;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Reads event messages in either format, binary when the record has the message format header and JSON
+ * otherwise. Runs on the Kafka client's thread, so decoding stays off the event loops.
+ * <p>
+ * A value that is not a valid event message is logged, sampled like the other per-event logs, and returned as {@code null} rather than failing the
+ * poll, which would stop the consumer at that record.
+ */
+public class KafkaMessageDeserializer implements Deserializer<KafkaMessage> {
+
+    private static final Logger LOGGER = LogManager.getLogger(AppConstant.LOGGER_EVENTS_CONSUME);
+
+    @Override
+    public KafkaMessage deserialize(String topic, byte[] value) {
+        return deserialize(topic, null, value);
+    }
+
+    @Override
+    public KafkaMessage deserialize(String topic, Headers headers, byte[] value) {
+        if (value == null) {
+            return null;
+        }
+        boolean binary = KafkaMessageCodec.isBinary(headers);
+        try {
+            return AppMetrics.recordStage(AppMetrics.STAGE_DECODE, () -> binary
+                    ? KafkaMessageCodec.decodeBinary(value)
+                    : KafkaMessageCodec.decodeJson(value));
+        } catch (RuntimeException e) {
+            LOGGER.warn("Invalid {} message received on {} - {}", binary ? "binary" : "JSON", topic, e.getMessage());
+            return null;
+        }
+    }
+}
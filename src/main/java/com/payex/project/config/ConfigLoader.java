@@ -1,5 +1,6 @@
 package com.payex.project.config;
 
+import com.payex.project.constant.AppConstant;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -22,11 +23,60 @@ public class ConfigLoader {
     private String mongoUri;
     private String mongoDatabase;
     private int serverPort;
+    private int serverInstances;
     private String redisHost;
     private int redisPort;
+    private int redisMaxPoolSize;
+    private int redisMaxPoolWaiting;
+    private int redisMaxWaitingHandlers;
+    private int redisPoolRecycleTimeoutMs;
+    private int redisConnectTimeoutMs;
+    private int redisCommandTimeoutMs;
+    private boolean redisNearCacheEnabled;
+    private int redisNearCacheMaxEntries;
+    private int redisNearCacheMaxBytes;
+    private int redisNearCacheTtlMs;
     private String kafkaBootstrapServers;
     private String kafkaGroupId;
     private String kafkaTopic;
+    private int kafkaInstances;
+    private String kafkaDefinitionsTopic;
+    private String kafkaConsumerMode;
+    private int kafkaBatchSize;
+    private int kafkaBatchMaxWaitMs;
+    private int kafkaWorkers;
+    private int kafkaShardQueueCapacity;
+    private String kafkaPartitionStrategy;
+    private String kafkaOffsetCommit;
+    private int kafkaCommitIntervalMs;
+    private int kafkaCommitBatchSize;
+    private int kafkaRetryBackoffMs;
+    private int kafkaPartitionHighWaterMark;
+    private int kafkaPartitionLowWaterMark;
+    private int kafkaGlobalHighWaterMark;
+    private int kafkaGlobalLowWaterMark;
+    private int kafkaProducerLingerMs;
+    private int kafkaProducerBatchSize;
+    private int kafkaIngestMaxInFlight;
+    private String kafkaMessageFormat;
+    private int stateMachineCacheMaxSize;
+    private String stateMachineTransitionMode;
+    private int stateMachineDedupeWindow;
+    private int stateMachineDedupeTtlSeconds;
+    private String stateMachineDefinitionSource;
+    private int stateMachineDefinitionsStartupTimeoutMs;
+    private boolean transitionLogEnabled;
+    private int transitionLogBatchSize;
+    private int transitionLogFlushIntervalMs;
+    private int transitionLogMaxBuffered;
+    private String transitionLogOverflow;
+    private String stateStoreType;
+    private String stateStorePath;
+    private int stateStoreInitialSizeBytes;
+    private int stateStoreSyncIntervalMs;
+    private int stateQueryChunkSize;
+    private int stateQueryMaxInFlight;
+    private int stateQueryMaxProcessIds;
 
     public static ConfigLoader loadConfig() {
         try (InputStream inputStream = Files.newInputStream(Paths.get("src/main/resources/application.yml"))) {
@@ -36,17 +86,71 @@ public class ConfigLoader {
             Map<String, Object> mongodb = (Map<String, Object>) yamlMap.get("mongodb");
             Map<String, Object> server = (Map<String, Object>) yamlMap.get("server");
             Map<String, Object> redis = (Map<String, Object>) yamlMap.get("redis");
+            Map<String, Object> nearCache = (Map<String, Object>) redis.getOrDefault("nearCache", Map.of());
             Map<String, Object> kafka = (Map<String, Object>) yamlMap.get("kafka");
+            Map<String, Object> stateMachine = (Map<String, Object>) yamlMap.getOrDefault("stateMachine", Map.of());
+            Map<String, Object> transitionLog = (Map<String, Object>) yamlMap.getOrDefault("transitionLog", Map.of());
+            Map<String, Object> stateStore = (Map<String, Object>) yamlMap.getOrDefault("stateStore", Map.of());
+            Map<String, Object> stateQuery = (Map<String, Object>) yamlMap.getOrDefault("stateQuery", Map.of());
 
             return ConfigLoader.builder()
                     .mongoUri((String) mongodb.get("uri"))
                     .mongoDatabase((String) mongodb.get("database"))
                     .serverPort((Integer) server.get("port"))
+                    .serverInstances((Integer) server.getOrDefault("instances", 0))
                     .redisHost((String) redis.get("host"))
                     .redisPort((Integer) redis.get("port"))
+                    .redisMaxPoolSize((Integer) redis.getOrDefault("maxPoolSize", 8))
+                    .redisMaxPoolWaiting((Integer) redis.getOrDefault("maxPoolWaiting", 64))
+                    .redisMaxWaitingHandlers((Integer) redis.getOrDefault("maxWaitingHandlers", 2048))
+                    .redisPoolRecycleTimeoutMs((Integer) redis.getOrDefault("poolRecycleTimeoutMs", 15000))
+                    .redisConnectTimeoutMs((Integer) redis.getOrDefault("connectTimeoutMs", 2000))
+                    .redisCommandTimeoutMs((Integer) redis.getOrDefault("commandTimeoutMs", 1000))
+                    .redisNearCacheEnabled((Boolean) nearCache.getOrDefault("enabled", false))
+                    .redisNearCacheMaxEntries((Integer) nearCache.getOrDefault("maxEntries", 100000))
+                    .redisNearCacheMaxBytes((Integer) nearCache.getOrDefault("maxBytes", 67108864))
+                    .redisNearCacheTtlMs((Integer) nearCache.getOrDefault("ttlMs", 60000))
                     .kafkaBootstrapServers((String) kafka.get("bootstrapServers"))
                     .kafkaGroupId((String) kafka.get("groupId"))
                     .kafkaTopic((String) kafka.get("topic"))
+                    .kafkaInstances((Integer) kafka.getOrDefault("instances", 0))
+                    .kafkaDefinitionsTopic((String) kafka.getOrDefault("definitionsTopic", "state-machine-definitions"))
+                    .kafkaConsumerMode((String) kafka.getOrDefault("consumerMode", AppConstant.CONSUMER_MODE_RECORD))
+                    .kafkaBatchSize((Integer) kafka.getOrDefault("batchSize", 500))
+                    .kafkaBatchMaxWaitMs((Integer) kafka.getOrDefault("batchMaxWaitMs", 50))
+                    .kafkaWorkers((Integer) kafka.getOrDefault("workers", 0))
+                    .kafkaShardQueueCapacity((Integer) kafka.getOrDefault("shardQueueCapacity", 1000))
+                    .kafkaPartitionStrategy((String) kafka.getOrDefault("partitionStrategy", AppConstant.PARTITION_STRATEGY_PROCESS_ID))
+                    .kafkaOffsetCommit((String) kafka.getOrDefault("offsetCommit", AppConstant.OFFSET_COMMIT_MANUAL))
+                    .kafkaCommitIntervalMs((Integer) kafka.getOrDefault("commitIntervalMs", 1000))
+                    .kafkaCommitBatchSize((Integer) kafka.getOrDefault("commitBatchSize", 1000))
+                    .kafkaRetryBackoffMs((Integer) kafka.getOrDefault("retryBackoffMs", 1000))
+                    .kafkaPartitionHighWaterMark((Integer) kafka.getOrDefault("partitionHighWaterMark", 500))
+                    .kafkaPartitionLowWaterMark((Integer) kafka.getOrDefault("partitionLowWaterMark", 250))
+                    .kafkaGlobalHighWaterMark((Integer) kafka.getOrDefault("globalHighWaterMark", 5000))
+                    .kafkaGlobalLowWaterMark((Integer) kafka.getOrDefault("globalLowWaterMark", 2500))
+                    .kafkaProducerLingerMs((Integer) kafka.getOrDefault("producerLingerMs", 5))
+                    .kafkaProducerBatchSize((Integer) kafka.getOrDefault("producerBatchSize", 65536))
+                    .kafkaIngestMaxInFlight((Integer) kafka.getOrDefault("ingestMaxInFlight", 1000))
+                    .kafkaMessageFormat((String) kafka.getOrDefault("messageFormat", AppConstant.MESSAGE_FORMAT_JSON))
+                    .stateMachineCacheMaxSize((Integer) stateMachine.getOrDefault("cacheMaxSize", AppConstant.DEFAULT_STATE_MACHINE_CACHE_SIZE))
+                    .stateMachineTransitionMode((String) stateMachine.getOrDefault("transitionMode", AppConstant.TRANSITION_MODE_LOCAL))
+                    .stateMachineDedupeWindow((Integer) stateMachine.getOrDefault("dedupeWindow", AppConstant.DEFAULT_DEDUPE_WINDOW))
+                    .stateMachineDedupeTtlSeconds((Integer) stateMachine.getOrDefault("dedupeTtlSeconds", AppConstant.DEFAULT_DEDUPE_TTL_SECONDS))
+                    .stateMachineDefinitionSource((String) stateMachine.getOrDefault("definitionSource", AppConstant.DEFINITION_SOURCE_TOPIC))
+                    .stateMachineDefinitionsStartupTimeoutMs((Integer) stateMachine.getOrDefault("definitionsStartupTimeoutMs", 30000))
+                    .transitionLogEnabled((Boolean) transitionLog.getOrDefault("enabled", false))
+                    .transitionLogBatchSize((Integer) transitionLog.getOrDefault("batchSize", 500))
+                    .transitionLogFlushIntervalMs((Integer) transitionLog.getOrDefault("flushIntervalMs", 1000))
+                    .transitionLogMaxBuffered((Integer) transitionLog.getOrDefault("maxBuffered", 10000))
+                    .transitionLogOverflow((String) transitionLog.getOrDefault("overflow", AppConstant.TRANSITION_LOG_OVERFLOW_BACKPRESSURE))
+                    .stateStoreType((String) stateStore.getOrDefault("type", AppConstant.STATE_STORE_REDIS))
+                    .stateStorePath((String) stateStore.getOrDefault("path", "data/states.log"))
+                    .stateStoreInitialSizeBytes((Integer) stateStore.getOrDefault("initialSizeBytes", 67108864))
+                    .stateStoreSyncIntervalMs((Integer) stateStore.getOrDefault("syncIntervalMs", 1000))
+                    .stateQueryChunkSize((Integer) stateQuery.getOrDefault("chunkSize", 1000))
+                    .stateQueryMaxInFlight((Integer) stateQuery.getOrDefault("maxInFlight", 4))
+                    .stateQueryMaxProcessIds((Integer) stateQuery.getOrDefault("maxProcessIds", 100000))
                     .build();
         } catch (Exception e) {
             throw new RuntimeException("Failed to load config: " + e.getMessage(), e);
@@ -5,10 +5,81 @@ public class AppConstant {
     public static final String END_POINT_STATE_MACHINE = "/state-machine";
     public static final String END_POINT_STATE_MACHINE_ID = "/state-machine/:id";
     public static final String END_POINT_KAFKA_MESSAGE = "/kafka-message";
+    public static final String END_POINT_KAFKA_MESSAGE_BATCH = "/kafka-message/batch";
+    public static final String END_POINT_TRANSITION = "/transition";
+    public static final String END_POINT_STATS = "/stats";
+    public static final String END_POINT_METRICS = "/metrics";
+    public static final String END_POINT_TRANSITION_LOG = "/transition-log/:processId";
+    public static final String END_POINT_PROCESS_STATES = "/process-states";
 
     // Collection Names
     public static final String COLLECTION_STATE_MACHINES = "state_machines";
+    public static final String COLLECTION_TRANSITION_LOG = "transition_log";
+    // Every version of every definition, immutable; state_machines holds the latest one
+    public static final String COLLECTION_STATE_MACHINE_VERSIONS = "state_machine_versions";
 
     public static final int MIN_PARTITION = 0;
     public static final int MAX_PARTITION = 6;
+    // Reads of the events topic's partition count before a consumer gives up starting
+    public static final int PARTITION_LOOKUP_ATTEMPTS = 5;
+
+    // Name of the Kafka producer shared by all consumer verticle instances
+    public static final String KAFKA_PRODUCER_NAME = "state-machine-events";
+    public static final String DEFINITIONS_PRODUCER_NAME = "state-machine-definitions";
+
+    // Definition sources for event processing: "topic" serves lookups from a local view of the compacted
+    // definitions topic, "mongo" queries Mongo on every cache miss
+    public static final String DEFINITION_SOURCE_TOPIC = "topic";
+    public static final String DEFINITION_SOURCE_MONGO = "mongo";
+
+    // Partition strategies: "processId" hashes the processId over the topic's partitions,
+    // "stateMachine" sends every event of a machine to the partition stored with its definition
+    public static final String PARTITION_STRATEGY_PROCESS_ID = "processId";
+    public static final String PARTITION_STRATEGY_STATE_MACHINE = "stateMachine";
+
+    // State machine definition cache
+    public static final int DEFAULT_STATE_MACHINE_CACHE_SIZE = 10000;
+
+    // Transition engines, "compiled" is used when a definition does not name one
+    public static final String ENGINE_COMPILED = "compiled";
+    public static final String ENGINE_SPRING = "spring";
+
+    // Transition modes: "local" reads the state, fires in the JVM and writes it back,
+    // "atomic" applies the event inside Redis with a script in one round trip
+    public static final String TRANSITION_MODE_LOCAL = "local";
+    public static final String TRANSITION_MODE_ATOMIC = "atomic";
+
+    // Consumer modes: "record" handles each Kafka record on its own, "batch" applies every poll as one batch
+    public static final String CONSUMER_MODE_RECORD = "record";
+    public static final String CONSUMER_MODE_BATCH = "batch";
+
+    // Offset commits: "manual" commits only offsets whose events were applied, "auto" leaves it to the Kafka client
+    public static final String OFFSET_COMMIT_MANUAL = "manual";
+    public static final String OFFSET_COMMIT_AUTO = "auto";
+
+    // Event message formats on the events topic: "json" is readable by consumers of every version, "binary" is
+    // smaller and cheaper to decode. Consumers read both, telling them apart by the message format header.
+    public static final String MESSAGE_FORMAT_JSON = "json";
+    public static final String MESSAGE_FORMAT_BINARY = "binary";
+    public static final String MESSAGE_FORMAT_HEADER = "sm-format";
+
+    // Per-event loggers, one per stage of the event path, leveled and sampled on their own in log4j2.xml
+    public static final String LOGGER_EVENTS_CONSUME = "statemachine.events.consume";
+    public static final String LOGGER_EVENTS_APPLY = "statemachine.events.apply";
+    public static final String LOGGER_EVENTS_PRODUCE = "statemachine.events.produce";
+
+    // Transition log overflow policies: "backpressure" pauses consumption while the buffer is full,
+    // "drop" discards the records that do not fit and keeps consuming
+    public static final String TRANSITION_LOG_OVERFLOW_BACKPRESSURE = "backpressure";
+    public static final String TRANSITION_LOG_OVERFLOW_DROP = "drop";
+
+    // State stores: "redis" is shared by every node, "mapped" keeps the states in a local memory-mapped file
+    // for single node deployments
+    public static final String STATE_STORE_REDIS = "redis";
+    public static final String STATE_STORE_MAPPED = "mapped";
+
+    // Event ids remembered per process to skip redelivered events, 0 disables deduplication
+    public static final int DEFAULT_DEDUPE_WINDOW = 100;
+    // Seconds a process's event ids are kept after its last event, 0 keeps them for good
+    public static final int DEFAULT_DEDUPE_TTL_SECONDS = 7 * 24 * 3600;
 }
@@ -0,0 +1,165 @@
+package com.payex.project.consumer;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonObject;
+import io.vertx.kafka.client.common.TopicPartition;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Counts events that were consumed but not yet applied, per partition and in total, and signals when to pause
+ * and resume consumption.
+ * <p>
+ * A partition is paused when its count reaches the partition high-water mark and resumed once it drops to the
+ * low-water mark; the global marks do the same for the whole consumer. The gap between the marks keeps a busy
+ * partition from flapping between paused and resumed. Time spent paused is accumulated for the metrics.
+ * <p>
+ * {@link #acquire} and {@link #release} may be called from any thread. Handlers are invoked while holding the
+ * lock, in decision order, so they must only hand the work off (for example with {@code runOnContext}).
+ */
+public class InFlightLimiter {
+
+    private final int partitionHighWaterMark;
+    private final int partitionLowWaterMark;
+    private final int globalHighWaterMark;
+    private final int globalLowWaterMark;
+
+    private final Map<TopicPartition, Counter> partitions = new HashMap<>();
+    private final Counter global = new Counter();
+
+    private Handler<TopicPartition> pausePartitionHandler = partition -> { };
+    private Handler<TopicPartition> resumePartitionHandler = partition -> { };
+    private Handler<Void> pauseHandler = v -> { };
+    private Handler<Void> resumeHandler = v -> { };
+
+    public InFlightLimiter(int partitionHighWaterMark, int partitionLowWaterMark,
+                           int globalHighWaterMark, int globalLowWaterMark) {
+        if (partitionLowWaterMark >= partitionHighWaterMark || globalLowWaterMark >= globalHighWaterMark
+                || partitionLowWaterMark < 0 || globalLowWaterMark < 0) {
+            throw new IllegalArgumentException("Low-water marks must be non-negative and below the high-water marks");
+        }
+        this.partitionHighWaterMark = partitionHighWaterMark;
+        this.partitionLowWaterMark = partitionLowWaterMark;
+        this.globalHighWaterMark = globalHighWaterMark;
+        this.globalLowWaterMark = globalLowWaterMark;
+    }
+
+    public synchronized InFlightLimiter partitionHandlers(Handler<TopicPartition> pause, Handler<TopicPartition> resume) {
+        this.pausePartitionHandler = pause;
+        this.resumePartitionHandler = resume;
+        return this;
+    }
+
+    public synchronized InFlightLimiter globalHandlers(Handler<Void> pause, Handler<Void> resume) {
+        this.pauseHandler = pause;
+        this.resumeHandler = resume;
+        return this;
+    }
+
+    public synchronized void acquire(TopicPartition partition) {
+        Counter counter = partitions.computeIfAbsent(partition, p -> new Counter());
+        if (++counter.inFlight >= partitionHighWaterMark && counter.pause()) {
+            pausePartitionHandler.handle(partition);
+        }
+        if (++global.inFlight >= globalHighWaterMark && global.pause()) {
+            pauseHandler.handle(null);
+        }
+    }
+
+    public synchronized void release(TopicPartition partition) {
+        Counter counter = partitions.get(partition);
+        if (counter != null && --counter.inFlight <= partitionLowWaterMark && counter.resume()) {
+            resumePartitionHandler.handle(partition);
+        }
+        if (--global.inFlight <= globalLowWaterMark && global.resume()) {
+            resumeHandler.handle(null);
+        }
+    }
+
+    /**
+     * Forgets revoked partitions. Their events still in flight keep counting towards the global marks until
+     * they are released.
+     */
+    public synchronized void remove(Set<TopicPartition> revoked) {
+        revoked.forEach(partitions::remove);
+    }
+
+    public synchronized int inFlight() {
+        return global.inFlight;
+    }
+
+    public synchronized int inFlight(TopicPartition partition) {
+        Counter counter = partitions.get(partition);
+        return counter == null ? 0 : counter.inFlight;
+    }
+
+    public synchronized boolean isPaused(TopicPartition partition) {
+        Counter counter = partitions.get(partition);
+        return counter != null && counter.paused;
+    }
+
+    public synchronized boolean isPaused() {
+        return global.paused;
+    }
+
+    /**
+     * Milliseconds spent paused so far, including a pause still in progress.
+     */
+    public synchronized long pausedMs() {
+        return global.pausedMs();
+    }
+
+    public synchronized JsonObject stats() {
+        JsonObject partitionStats = new JsonObject();
+        partitions.forEach((partition, counter) -> partitionStats.put(
+                partition.getTopic() + "-" + partition.getPartition(), counter.stats()));
+        return global.stats()
+                .put("partitionHighWaterMark", partitionHighWaterMark)
+                .put("partitionLowWaterMark", partitionLowWaterMark)
+                .put("globalHighWaterMark", globalHighWaterMark)
+                .put("globalLowWaterMark", globalLowWaterMark)
+                .put("partitions", partitionStats);
+    }
+
+    private static final class Counter {
+        private int inFlight;
+        private boolean paused;
+        private long pausedSince;
+        private long pausedNanos;
+        private long pauses;
+
+        private boolean pause() {
+            if (paused) {
+                return false;
+            }
+            paused = true;
+            pausedSince = System.nanoTime();
+            pauses++;
+            return true;
+        }
+
+        private boolean resume() {
+            if (!paused) {
+                return false;
+            }
+            paused = false;
+            pausedNanos += System.nanoTime() - pausedSince;
+            return true;
+        }
+
+        private long pausedMs() {
+            long current = paused ? System.nanoTime() - pausedSince : 0;
+            return (pausedNanos + current) / 1_000_000;
+        }
+
+        private JsonObject stats() {
+            return new JsonObject()
+                    .put("inFlight", inFlight)
+                    .put("paused", paused)
+                    .put("pauses", pauses)
+                    .put("pausedMs", pausedMs());
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.payex.project.consumer;
+
+import io.vertx.core.Vertx;
+import io.vertx.kafka.client.consumer.KafkaConsumer;
+import io.vertx.kafka.client.producer.KafkaProducer;
+
+import java.util.Map;
+
+/**
+ * Creates the Kafka clients of a {@link KafkaVerticle}, so the broker can be replaced, for example by the
+ * in-memory one the load generator uses.
+ */
+public interface KafkaClientFactory {
+
+    KafkaClientFactory DEFAULT = new KafkaClientFactory() {
+        @Override
+        public <V> KafkaProducer<String, V> createProducer(Vertx vertx, String name, Map<String, String> config) {
+            return KafkaProducer.createShared(vertx, name, config);
+        }
+
+        @Override
+        public <V> KafkaConsumer<String, V> createConsumer(Vertx vertx, Map<String, String> config) {
+            return KafkaConsumer.create(vertx, config);
+        }
+    };
+
+    /**
+     * Returns the producer shared under {@code name}, creating it on first use. The value type is the one the
+     * {@code value.serializer} of the config produces.
+     */
+    <V> KafkaProducer<String, V> createProducer(Vertx vertx, String name, Map<String, String> config);
+
+    <V> KafkaConsumer<String, V> createConsumer(Vertx vertx, Map<String, String> config);
+}
@@ -1,133 +1,586 @@
 package com.payex.project.consumer;
 
+import com.payex.project.audit.TransitionLog;
+import com.payex.project.cache.CachedStateMachine;
+import com.payex.project.cache.LruCache;
+import com.payex.project.codec.KafkaMessageCodec;
+import com.payex.project.codec.KafkaMessageDeserializer;
+import com.payex.project.definition.DefinitionView;
+import com.payex.project.engine.CompiledStateMachine;
+import com.payex.project.metrics.AppMetrics;
 import com.payex.project.models.KafkaMessage;
 import com.payex.project.models.StateMachineDB;
+import com.payex.project.models.TransitionRecord;
+import com.payex.project.models.TransitionResult;
+import com.payex.project.partition.PartitionStrategy;
+import com.payex.project.partition.ProcessIdPartitionStrategy;
+import io.micrometer.core.instrument.binder.kafka.KafkaClientMetrics;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Context;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
-import io.vertx.core.json.DecodeException;
+import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.JsonEventType;
+import io.vertx.core.parsetools.JsonParser;
+import io.vertx.kafka.client.common.TopicPartition;
 import io.vertx.kafka.client.consumer.KafkaConsumer;
+import io.vertx.kafka.client.consumer.KafkaConsumerRecord;
+import io.vertx.kafka.client.consumer.KafkaConsumerRecords;
+import io.vertx.kafka.client.consumer.OffsetAndMetadata;
 import io.vertx.kafka.client.producer.KafkaProducer;
 import io.vertx.kafka.client.producer.KafkaProducerRecord;
 import org.springframework.statemachine.StateMachine;
 import org.springframework.statemachine.config.StateMachineBuilder;
-import org.springframework.statemachine.support.DefaultStateMachineContext;
 import com.payex.project.constant.AppConstant;
 import com.payex.project.repository.RepoUtil;
-import com.payex.project.service.RedisService;
+import com.payex.project.service.StateStore;
+import com.payex.project.verticles.MainVerticle;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.payex.project.config.ConfigLoader;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class KafkaVerticle extends AbstractVerticle {
 
     private static final Logger LOGGER = LogManager.getLogger(KafkaVerticle.class);
+    private static final Logger CONSUME_LOGGER = LogManager.getLogger(AppConstant.LOGGER_EVENTS_CONSUME);
+    private static final Logger APPLY_LOGGER = LogManager.getLogger(AppConstant.LOGGER_EVENTS_APPLY);
+    private static final Logger PRODUCE_LOGGER = LogManager.getLogger(AppConstant.LOGGER_EVENTS_PRODUCE);
+    private static final String ERROR_STATE_MACHINE_NOT_FOUND = "State machine not found for ID: ";
 
-    private KafkaConsumer<String, String> consumer;
-    private KafkaProducer<String, String> producer;
-    private final RedisService redisService;
+    // Reasons the consumer or a partition is paused; it resumes once no reason is left
+    private static final String PAUSE_SHARDS_FULL = "shardsFull";
+    private static final String PAUSE_IN_FLIGHT = "inFlight";
+    private static final String PAUSE_REPLAY = "replay";
+    private static final String PAUSE_TRANSITION_LOG = "transitionLog";
+
+    private KafkaConsumer<String, KafkaMessage> consumer;
+    private KafkaClientMetrics consumerMetrics;
+    private KafkaProducer<String, KafkaMessage> producer;
+    private final StateStore stateStore;
     private final RepoUtil repoUtil;
+    // The latest version of each definition by id, invalidated on updates
+    private final LruCache<String, CachedStateMachine> stateMachineCache;
+    // Every version by versionId, which never needs invalidating. Kept apart since a name may contain ':', so a
+    // versionId can equal the id of another definition
+    private final LruCache<String, CachedStateMachine> versionCache;
+    // Local view of the definitions topic; null when definitions are read from Mongo only
+    private final DefinitionView definitionView;
+    private final ConfigLoader config;
+    private final KafkaClientFactory clientFactory;
+    // Shared by every instance; null when the transition log is disabled
+    private final TransitionLog transitionLog;
     private String kafkaTopic ;
+    private String transitionMode = AppConstant.TRANSITION_MODE_LOCAL;
+    private boolean batchMode;
+    private KeyedExecutor executor;
+    private long batchMaxWaitMs;
+    private volatile boolean polling = true;
+    private PartitionStrategy partitionStrategy = new ProcessIdPartitionStrategy();
+    // Read from the topic's metadata before the consumer starts
+    private volatile int partitionCount;
+    // Only set when offsets are committed manually
+    private OffsetTracker offsetTracker;
+    private int commitBatchSize;
+    private long retryBackoffMs;
+    private InFlightLimiter inFlightLimiter;
+    private int ingestMaxInFlight = 1000;
+    // Only touched on this verticle's context
+    private final Set<String> streamPauses = new HashSet<>();
+    private final Map<TopicPartition, Set<String>> partitionPauses = new HashMap<>();
+
 
+    public KafkaVerticle(StateStore stateStore, RepoUtil repoUtil) {
+        this(stateStore, repoUtil, new LruCache<>(AppConstant.DEFAULT_STATE_MACHINE_CACHE_SIZE));
+    }
+
+    public KafkaVerticle(StateStore stateStore, RepoUtil repoUtil,
+                         LruCache<String, CachedStateMachine> stateMachineCache) {
+        this(stateStore, repoUtil, stateMachineCache, null);
+    }
+
+    public KafkaVerticle(StateStore stateStore, RepoUtil repoUtil,
+                         LruCache<String, CachedStateMachine> stateMachineCache, DefinitionView definitionView) {
+        this(stateStore, repoUtil, stateMachineCache, definitionView, null, KafkaClientFactory.DEFAULT);
+    }
+
+    /**
+     * @param config        settings to use instead of loading application.yml on start, may be {@code null}
+     * @param clientFactory creates the Kafka producer and consumer
+     */
+    public KafkaVerticle(StateStore stateStore, RepoUtil repoUtil,
+                         LruCache<String, CachedStateMachine> stateMachineCache, DefinitionView definitionView,
+                         ConfigLoader config, KafkaClientFactory clientFactory) {
+        this(stateStore, repoUtil, stateMachineCache, definitionView, config, clientFactory, null);
+    }
 
-    public KafkaVerticle(RedisService redisService, RepoUtil repoUtil) {
-        this.redisService = redisService;
+    /**
+     * @param transitionLog records every accepted or rejected event, may be {@code null}
+     */
+    public KafkaVerticle(StateStore stateStore, RepoUtil repoUtil,
+                         LruCache<String, CachedStateMachine> stateMachineCache, DefinitionView definitionView,
+                         ConfigLoader config, KafkaClientFactory clientFactory, TransitionLog transitionLog) {
+        this(stateStore, repoUtil, stateMachineCache, new LruCache<>(stateMachineCache.getMaxSize()), definitionView,
+                config, clientFactory, transitionLog);
+    }
+
+    /**
+     * @param versionCache every version processes are pinned to, by versionId; shared between instances like
+     *                     {@code stateMachineCache}
+     */
+    public KafkaVerticle(StateStore stateStore, RepoUtil repoUtil,
+                         LruCache<String, CachedStateMachine> stateMachineCache,
+                         LruCache<String, CachedStateMachine> versionCache, DefinitionView definitionView,
+                         ConfigLoader config, KafkaClientFactory clientFactory, TransitionLog transitionLog) {
+        this.stateStore = stateStore;
         this.repoUtil = repoUtil;
+        this.stateMachineCache = stateMachineCache;
+        this.versionCache = versionCache;
+        this.definitionView = definitionView;
+        this.config = config;
+        this.clientFactory = clientFactory;
+        this.transitionLog = transitionLog;
     }
 
     @Override
-    public void start() {
+    public void start(Promise<Void> startPromise) {
 
-        ConfigLoader config = ConfigLoader.loadConfig();
+        ConfigLoader config = this.config != null ? this.config : ConfigLoader.loadConfig();
         kafkaTopic = config.getKafkaTopic();
+        transitionMode = config.getStateMachineTransitionMode();
+        batchMode = AppConstant.CONSUMER_MODE_BATCH.equals(config.getKafkaConsumerMode());
+        batchMaxWaitMs = config.getKafkaBatchMaxWaitMs();
+        ingestMaxInFlight = config.getKafkaIngestMaxInFlight();
+        partitionStrategy = PartitionStrategy.forName(config.getKafkaPartitionStrategy());
+        commitBatchSize = config.getKafkaCommitBatchSize();
+        retryBackoffMs = config.getKafkaRetryBackoffMs();
+        inFlightLimiter = new InFlightLimiter(
+                config.getKafkaPartitionHighWaterMark(), config.getKafkaPartitionLowWaterMark(),
+                config.getKafkaGlobalHighWaterMark(), config.getKafkaGlobalLowWaterMark())
+                .partitionHandlers(
+                        partition -> context.runOnContext(v -> pausePartition(partition, PAUSE_IN_FLIGHT)),
+                        partition -> context.runOnContext(v -> resumePartition(partition, PAUSE_IN_FLIGHT)))
+                .globalHandlers(
+                        ignored -> context.runOnContext(v -> pauseStream(PAUSE_IN_FLIGHT)),
+                        ignored -> context.runOnContext(v -> resumeStream(PAUSE_IN_FLIGHT)));
 
         // Producer config
         Map<String, String> producerConfig = new HashMap<>();
         producerConfig.put("bootstrap.servers", config.getKafkaBootstrapServers());
         producerConfig.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
-        producerConfig.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+        producerConfig.put("value.serializer", KafkaMessageCodec.serializerFor(config.getKafkaMessageFormat()));
         producerConfig.put("acks", "1");
+        // Lets concurrent sends, such as a bulk ingestion, leave in shared batches instead of one request each
+        producerConfig.put("linger.ms", String.valueOf(config.getKafkaProducerLingerMs()));
+        producerConfig.put("batch.size", String.valueOf(config.getKafkaProducerBatchSize()));
 
-        producer = KafkaProducer.create(vertx, producerConfig);
+        // One underlying producer for all instances of this verticle
+        producer = clientFactory.createProducer(vertx, AppConstant.KAFKA_PRODUCER_NAME, producerConfig);
 
         // Consumer config
         Map<String, String> consumerConfig = new HashMap<>();
         consumerConfig.put("bootstrap.servers", config.getKafkaBootstrapServers());
         consumerConfig.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
-        consumerConfig.put("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        // Reads both message formats, decoding on the client's thread
+        consumerConfig.put("value.deserializer", KafkaMessageDeserializer.class.getName());
         consumerConfig.put("group.id", config.getKafkaGroupId());
 //        consumerConfig.put("auto.offset.reset", "earliest");
-//        consumerConfig.put("enable.auto.commit", "false");
 
-        consumer = KafkaConsumer.create(vertx, consumerConfig);
+        if (AppConstant.OFFSET_COMMIT_MANUAL.equals(config.getKafkaOffsetCommit())) {
+            consumerConfig.put("enable.auto.commit", "false");
+            offsetTracker = new OffsetTracker();
+        }
 
-        consumer.handler(record -> {
-            try {
-            String messageValue = record.value();
-            LOGGER.info("Received Kafka message: " + messageValue);
+        if (batchMode) {
+            consumerConfig.put("max.poll.records", String.valueOf(config.getKafkaBatchSize()));
+            consumerConfig.put("fetch.max.wait.ms", String.valueOf(batchMaxWaitMs));
+        }
 
-            // Validate JSON format before parsing
-            if (!isValidJson(messageValue)) {
-                LOGGER.error("Invalid JSON message received: " + messageValue);
-                return;
-            }
-                JsonObject message = new JsonObject(messageValue);
-                KafkaMessage kafkaMessage = message.mapTo(KafkaMessage.class);
-                LOGGER.info(kafkaMessage);
+        consumer = clientFactory.createConsumer(vertx, consumerConfig);
+        // Exposes the client's metrics, among them the lag of every assigned partition
+        consumerMetrics = AppMetrics.bindKafkaConsumer(consumer.unwrap());
 
-            LOGGER.info("Received Kafka message for stateMachine: " + kafkaMessage.getStateMachineId());
+        // Processes move with their partitions, so any state kept locally for them is dropped
+        consumer.partitionsAssignedHandler(assigned -> stateStore.onRebalance());
+        consumer.partitionsRevokedHandler(revoked -> {
+            stateStore.onRebalance();
+            partitionPauses.keySet().removeAll(revoked);
+            inFlightLimiter.remove(revoked);
+            if (offsetTracker != null) {
+                // Commit what is already applied before the partitions move to another consumer. Vert.x runs this
+                // handler asynchronously, so the commit is best effort; the dedupe window covers redelivered events.
+                Map<TopicPartition, OffsetAndMetadata> offsets = offsetTracker.committable(revoked);
+                offsetTracker.remove(revoked);
+                commit(offsets);
+            }
+        });
+        if (offsetTracker != null) {
+            vertx.setPeriodic(config.getKafkaCommitIntervalMs(), id -> commitOffsets());
+        }
 
-                // Fetch state machine from MongoDB
-                fetchStateMachine(kafkaMessage.getStateMachineId(), res -> {
-                    if (res != null) {
-                        StateMachine<String, String> stateMachine = buildStateMachine(res);
+        // Each consumer instance only shards its own partitions, so by default the cores are split between instances
+        int instances = MainVerticle.instancesOrCores(config.getKafkaInstances());
+        int workers = config.getKafkaWorkers() > 0
+                ? config.getKafkaWorkers()
+                : Math.max(1, Runtime.getRuntime().availableProcessors() / instances);
+        discoverPartitionCount(kafkaTopic, AppConstant.PARTITION_LOOKUP_ATTEMPTS)
+                .compose(v -> KeyedExecutor.create(vertx, workers, config.getKafkaShardQueueCapacity(), this::holdsBackFollowers))
+                .onSuccess(created -> {
+                    executor = created;
+                    LOGGER.info("Transition work sharded across {} workers", workers);
+                    startConsumer(config.getKafkaTopic());
+                    startPromise.complete();
+                })
+                .onFailure(startPromise::fail);
+    }
 
-                        // Get current state from Redis
-                        String currentState = redisService.getState(kafkaMessage.getProcessId());
-                        if (currentState == null) {
-                            currentState = res.getJsonArray("states").getString(0);
-                        }
+    /**
+     * Reads the topic's partition count from the cluster, retrying after the retry backoff. Events are routed by
+     * it, so startup fails once every attempt has failed rather than guessing a count that may send processes to
+     * the wrong partition.
+     */
+    Future<Void> discoverPartitionCount(String topic, int attempts) {
+        return producer.partitionsFor(topic)
+                .compose(partitions -> partitions.isEmpty()
+                        ? Future.failedFuture(new IllegalStateException("Topic " + topic + " has no partitions"))
+                        : Future.succeededFuture(partitions.size()))
+                .map(count -> {
+                    partitionCount = count;
+                    LOGGER.info("Topic {} has {} partitions", topic, count);
+                    return (Void) null;
+                })
+                .recover(err -> {
+                    if (attempts <= 1) {
+                        return Future.failedFuture(
+                                new IllegalStateException("Could not read partitions of " + topic, err));
+                    }
+                    LOGGER.warn("Could not read partitions of {}, retrying in {} ms - {}",
+                            topic, retryBackoffMs, err.getMessage());
+                    Promise<Void> retried = Promise.promise();
+                    vertx.setTimer(retryBackoffMs, id -> discoverPartitionCount(topic, attempts - 1).onComplete(retried));
+                    return retried.future();
+                });
+    }
 
-                        // Reset state machine
-                        stateMachine.stop();
-                        String finalCurrentState = currentState;
+    private void startConsumer(String topic) {
+        if (batchMode) {
+            // Poll based loop: the next poll is only issued once the previous batch is fully applied
+            consumer.subscribe(topic)
+                    .onSuccess(v -> pollBatch())
+                    .onFailure(err -> LOGGER.error("Failed to subscribe to {}", topic, err));
+            return;
+        }
 
-                        stateMachine.getStateMachineAccessor()
-                                .doWithAllRegions(accessor -> accessor.resetStateMachine(
-                                        new DefaultStateMachineContext<>(finalCurrentState, null, null, null)
-                                ));
+        // Pause while any shard is full, resume on this verticle's context once they drained
+        executor.drainHandler(v -> context.runOnContext(ignored -> resumeStream(PAUSE_SHARDS_FULL)));
 
-                        stateMachine.start();
+        consumer.handler(record -> {
+            TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+            long epoch = offsetTracker == null ? 0 : offsetTracker.track(partition, record.offset());
+            if (epoch == OffsetTracker.SKIPPED) {
+                return;
+            }
 
-                        boolean accepted = stateMachine.sendEvent(kafkaMessage.getEvent());
+            // Values that could not be decoded arrive as null
+            KafkaMessage kafkaMessage = record.value();
+            if (kafkaMessage == null) {
+                completeOffset(partition, record.offset(), epoch);
+                return;
+            }
+            CONSUME_LOGGER.debug("Received event {} for order {} of state machine {}",
+                    kafkaMessage.getEventId(), kafkaMessage.getProcessId(), kafkaMessage.getStateMachineId());
 
-                        if (accepted) {
-                            // Store new state in Redis
-                            String newState = stateMachine.getState().getId();
-                            redisService.saveState(kafkaMessage.getProcessId(), newState);
-                            LOGGER.info("Order " + kafkaMessage.getProcessId() + " transitioned to " + newState);
+            inFlightLimiter.acquire(partition);
+            executor.submit(kafkaMessage.getProcessId(), () -> isCurrent(partition, epoch)
+                            ? applyEvent(kafkaMessage)
+                            : Future.failedFuture(new IllegalStateException("Skipped since the partition is replayed")))
+                    .onComplete(ar -> {
+                        inFlightLimiter.release(partition);
+                        if (ar.succeeded()) {
+                            AppMetrics.recordEventLatency(record.timestamp());
+                            // The offset is held until the history entry is stored, so a crash cannot lose it
+                            logTransition(kafkaMessage, ar.result(), record.topic(), record.partition(), record.offset())
+                                    .onComplete(logged -> completeOffset(partition, record.offset(), epoch));
+                        } else if (isPermanentFailure(ar.cause())) {
+                            completeOffset(partition, record.offset(), epoch);
+                        } else if (offsetTracker != null && offsetTracker.rewind(partition, record.offset(), epoch)) {
+                            // Rewound here on the shard, before the tasks queued behind this one run and see the new epoch
+                            context.runOnContext(v -> seekBack(partition, record.offset()));
+                        }
+                    })
+                    .onSuccess(result -> {
+                        if (result.isDuplicate()) {
+                            APPLY_LOGGER.info("Skipped duplicate event {} for order {}", kafkaMessage.getEventId(), kafkaMessage.getProcessId());
+                        } else if (result.isAccepted()) {
+                            APPLY_LOGGER.info("Order {} transitioned to {}", kafkaMessage.getProcessId(), result.getNewState());
                         } else {
-                            LOGGER.warn("Invalid event " + kafkaMessage.getEvent() + " for order " + kafkaMessage.getProcessId());
+                            APPLY_LOGGER.warn("Invalid event {} for order {}", kafkaMessage.getEvent(), kafkaMessage.getProcessId());
                         }
-                    } else {
-                        LOGGER.error("State machine not found for ID: " + kafkaMessage.getStateMachineId());
-                    }
-                });
+                    })
+                    .onFailure(err -> APPLY_LOGGER.error("Failed to apply event {} for order {} - {}",
+                            kafkaMessage.getEvent(), kafkaMessage.getProcessId(), err.getMessage()));
+
+            if (executor.isFull()) {
+                pauseStream(PAUSE_SHARDS_FULL);
             }
-            catch (Exception e) {
-                LOGGER.error("Invalid message received");
+            // Resumes once the log drained; events already handed to the shards are still recorded meanwhile
+            if (transitionLog != null && transitionLog.isFull() && !streamPauses.contains(PAUSE_TRANSITION_LOG)) {
+                pauseStream(PAUSE_TRANSITION_LOG);
+                transitionLog.whenWritable().onComplete(ar -> context.runOnContext(v -> resumeStream(PAUSE_TRANSITION_LOG)));
             }
         });
 
-        consumer.subscribe(config.getKafkaTopic());
+        consumer.subscribe(topic);
+    }
+
+    @Override
+    public void stop(Promise<Void> stopPromise) {
+        polling = false;
+        if (consumerMetrics != null) {
+            consumerMetrics.close();
+        }
+        commitOffsets().onComplete(ar -> stopPromise.complete());
+    }
+
+    private void pollBatch() {
+        if (!polling) {
+            return;
+        }
+        consumer.poll(Duration.ofMillis(batchMaxWaitMs))
+                .compose(this::applyBatch)
+                .onFailure(err -> LOGGER.error("Failed to apply batch - {}", err.getMessage()))
+                .transform(ar -> awaitTransitionLog())
+                .onComplete(ar -> pollBatch());
+    }
+
+    /**
+     * Completes on this verticle's context once the transition log has room, at once unless it is full.
+     */
+    private Future<Void> awaitTransitionLog() {
+        if (transitionLog == null || !transitionLog.isFull()) {
+            return Future.succeededFuture();
+        }
+        Promise<Void> writable = Promise.promise();
+        transitionLog.whenWritable().onComplete(ar -> context.runOnContext(v -> writable.complete()));
+        return writable.future();
+    }
+
+    /**
+     * Applies one poll. In manual commit mode the records are tracked and completed together, or, if the batch
+     * failed, every partition in it is replayed from its first record before the next poll.
+     */
+    private Future<Void> applyBatch(KafkaConsumerRecords<String, KafkaMessage> records) {
+        List<KafkaMessage> messages = new ArrayList<>(records.size());
+        List<KafkaConsumerRecord<String, KafkaMessage>> applied = new ArrayList<>(records.size());
+        Map<TopicPartition, Long> firstOffsets = new HashMap<>();
+        List<KafkaConsumerRecord<String, KafkaMessage>> tracked = new ArrayList<>(records.size());
+        List<Long> epochs = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            KafkaConsumerRecord<String, KafkaMessage> record = records.recordAt(i);
+            if (offsetTracker != null) {
+                TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+                long epoch = offsetTracker.track(partition, record.offset());
+                if (epoch == OffsetTracker.SKIPPED) {
+                    continue;
+                }
+                firstOffsets.putIfAbsent(partition, record.offset());
+                tracked.add(record);
+                epochs.add(epoch);
+            }
+            KafkaMessage kafkaMessage = record.value();
+            if (kafkaMessage != null) {
+                messages.add(kafkaMessage);
+                applied.add(record);
+            }
+        }
+
+        return applyEventsSharded(messages)
+                .map(results -> {
+                    if (!results.isEmpty()) {
+                        long accepted = results.stream().filter(r -> r != null && r.isAccepted()).count();
+                        APPLY_LOGGER.info("Applied batch of {} events, {} accepted", results.size(), accepted);
+                    }
+                    List<Future<Void>> logged = new ArrayList<>(results.size());
+                    for (int i = 0; i < results.size(); i++) {
+                        KafkaConsumerRecord<String, KafkaMessage> record = applied.get(i);
+                        logged.add(logTransition(messages.get(i), results.get(i), record.topic(), record.partition(), record.offset()));
+                    }
+                    for (int i = 0; i < records.size(); i++) {
+                        AppMetrics.recordEventLatency(records.recordAt(i).timestamp());
+                    }
+                    // The offsets are held until the history entries are stored, without holding up the next poll
+                    Future.join(logged).onComplete(ar -> {
+                        for (int i = 0; i < tracked.size(); i++) {
+                            KafkaConsumerRecord<String, KafkaMessage> record = tracked.get(i);
+                            completeOffset(new TopicPartition(record.topic(), record.partition()), record.offset(), epochs.get(i));
+                        }
+                    });
+                    return (Void) null;
+                })
+                .recover(err -> {
+                    LOGGER.error("Failed to apply batch - {}", err.getMessage());
+                    List<Future<Void>> seeks = new ArrayList<>();
+                    firstOffsets.forEach((partition, offset) -> seeks.add(replayFrom(partition, offset)));
+                    return Future.join(seeks).mapEmpty();
+                });
+    }
+
+    /**
+     * Marks a record as applied and commits early once enough records completed since the last commit.
+     */
+    private void completeOffset(TopicPartition partition, long offset, long epoch) {
+        if (offsetTracker == null) {
+            return;
+        }
+        offsetTracker.complete(partition, offset, epoch);
+        if (offsetTracker.getCompletedSinceCommit() >= commitBatchSize) {
+            context.runOnContext(v -> commitOffsets());
+        }
+    }
+
+    /**
+     * Rewinds a partition to a record whose event failed to apply. The partition is paused for the retry
+     * backoff so a failing dependency is not hammered; events after it are applied again and skipped as
+     * duplicates where they carry an event id.
+     */
+    private Future<Void> replayFrom(TopicPartition partition, long offset) {
+        if (offsetTracker == null) {
+            return Future.succeededFuture();
+        }
+        offsetTracker.rewind(partition, offset);
+        return seekBack(partition, offset);
+    }
+
+    /**
+     * Seeks a partition that was already rewound in the offset tracker back to {@code offset}.
+     */
+    private Future<Void> seekBack(TopicPartition partition, long offset) {
+        LOGGER.warn("Replaying {}-{} from offset {} in {} ms", partition.getTopic(), partition.getPartition(), offset,
+                retryBackoffMs);
+        pausePartition(partition, PAUSE_REPLAY);
+        return consumer.seek(partition, offset)
+                .onComplete(ar -> vertx.setTimer(retryBackoffMs, id -> resumePartition(partition, PAUSE_REPLAY)));
+    }
+
+    private void pauseStream(String reason) {
+        if (streamPauses.add(reason) && streamPauses.size() == 1) {
+            consumer.pause();
+        }
+    }
+
+    private void resumeStream(String reason) {
+        if (streamPauses.remove(reason) && streamPauses.isEmpty()) {
+            consumer.resume();
+        }
+    }
+
+    private void pausePartition(TopicPartition partition, String reason) {
+        Set<String> reasons = partitionPauses.computeIfAbsent(partition, p -> new HashSet<>());
+        if (reasons.add(reason) && reasons.size() == 1) {
+            consumer.pause(partition);
+        }
+    }
+
+    private void resumePartition(TopicPartition partition, String reason) {
+        Set<String> reasons = partitionPauses.get(partition);
+        if (reasons != null && reasons.remove(reason) && reasons.isEmpty()) {
+            partitionPauses.remove(partition);
+            consumer.resume(partition);
+        }
+    }
+
+    private Future<Void> commitOffsets() {
+        if (offsetTracker == null) {
+            return Future.succeededFuture();
+        }
+        return commit(offsetTracker.committable());
+    }
+
+    private Future<Void> commit(Map<TopicPartition, OffsetAndMetadata> offsets) {
+        if (offsets.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        return consumer.commit(offsets)
+                .<Void>mapEmpty()
+                .onFailure(err -> {
+                    LOGGER.warn("Offset commit failed, will retry - {}", err.getMessage());
+                    offsetTracker.commitFailed(offsets);
+                });
+    }
+
+    /**
+     * Whether a record still has to be applied. Records consumed before their partition was rewound are
+     * consumed again by the replay and must not overtake the failed record.
+     */
+    private boolean isCurrent(TopicPartition partition, long epoch) {
+        return offsetTracker == null || offsetTracker.isCurrent(partition, epoch);
+    }
+
+    /**
+     * Whether the events queued behind a failed one for the same process must wait for its replay. Only a failure
+     * that rewinds the partition replays them; after any other they would never be consumed again.
+     */
+    boolean holdsBackFollowers(Throwable err) {
+        return offsetTracker != null && !isPermanentFailure(err);
+    }
+
+    /**
+     * Failures that replaying cannot fix: the event is dropped and its offset committed.
+     */
+    private static boolean isPermanentFailure(Throwable err) {
+        return err instanceof IllegalArgumentException
+                || (err.getMessage() != null && err.getMessage().startsWith(ERROR_STATE_MACHINE_NOT_FOUND));
+    }
+
+    /**
+     * Splits a batch by the shard owning each processId and applies the parts in parallel, one
+     * {@link #applyEvents} call per shard. Record order is kept within every shard and so within every process.
+     */
+    private Future<List<TransitionResult>> applyEventsSharded(List<KafkaMessage> messages) {
+        if (messages.isEmpty()) {
+            return Future.succeededFuture(new ArrayList<>());
+        }
+        List<List<Integer>> indexesByShard = new ArrayList<>(executor.getWorkers());
+        for (int shard = 0; shard < executor.getWorkers(); shard++) {
+            indexesByShard.add(new ArrayList<>());
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            indexesByShard.get(executor.shardFor(messages.get(i).getProcessId())).add(i);
+        }
+
+        TransitionResult[] results = new TransitionResult[messages.size()];
+        List<Future<Void>> parts = new ArrayList<>();
+        for (int shard = 0; shard < indexesByShard.size(); shard++) {
+            List<Integer> indexes = indexesByShard.get(shard);
+            if (indexes.isEmpty()) {
+                continue;
+            }
+            List<KafkaMessage> part = indexes.stream().map(messages::get).toList();
+            parts.add(executor.submitToShard(shard, () -> applyEvents(part))
+                    .map(partResults -> {
+                        for (int j = 0; j < partResults.size(); j++) {
+                            results[indexes.get(j)] = partResults.get(j);
+                        }
+                        return null;
+                    }));
+        }
+        return Future.all(parts).map(v -> Arrays.asList(results));
     }
 
     public Future<JsonObject> sendEventToKafka(JsonObject reqJO) {
@@ -135,10 +588,10 @@ public class KafkaVerticle extends AbstractVerticle {
                 .stateMachineId(reqJO.getString("stateMachineId"))
                 .processId(reqJO.getString("processId"))
                 .event(reqJO.getString("event"))
+                .eventId(reqJO.getString("eventId", UUID.randomUUID().toString()))
                 .build();
 
-        return repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES,
-                        new JsonObject().put("_id", kafkaMessage.getStateMachineId()), new JsonObject())
+        return fetchDefinition(kafkaMessage.getStateMachineId())
                 .compose(res -> {
                     if (res == null) {
                         return Future.succeededFuture(new JsonObject()
@@ -148,25 +601,20 @@ public class KafkaVerticle extends AbstractVerticle {
                     }
 
                     StateMachineDB stateMachineDB = res.mapTo(StateMachineDB.class);
-                    int partition = stateMachineDB.getPartition();
+                    KafkaProducerRecord<String, KafkaMessage> record = toProducerRecord(kafkaMessage, stateMachineDB);
 
-                    JsonObject message = JsonObject.mapFrom(kafkaMessage);
+                    PRODUCE_LOGGER.debug("Sending event {} for order {} to Kafka", kafkaMessage.getEventId(), kafkaMessage.getProcessId());
 
-                    LOGGER.info("Sending message to Kafka: {}", message.encodePrettily());
-
-                    String key = String.valueOf(partition);
-                    KafkaProducerRecord<String, String> record = KafkaProducerRecord.create(kafkaTopic, key, message.encode(), partition);
-
-                    return producer.send(record)
+                    return AppMetrics.timeProducerSend(() -> producer.send(record))
                             .map(meta -> {
-                                LOGGER.info("Message sent successfully");
+                                PRODUCE_LOGGER.debug("Event {} for order {} sent", kafkaMessage.getEventId(), kafkaMessage.getProcessId());
                                 return new JsonObject()
                                         .put("statusCode", 200)
                                         .put("success", true)
                                         .put("message", "Message sent successfully");
                             })
                             .recover(err -> {
-                                LOGGER.error("Message failed", err);
+                                PRODUCE_LOGGER.error("Failed to send event {} for order {}", kafkaMessage.getEventId(), kafkaMessage.getProcessId(), err);
                                 return Future.succeededFuture(new JsonObject()
                                         .put("statusCode", 500)
                                         .put("success", false)
@@ -184,26 +632,664 @@ public class KafkaVerticle extends AbstractVerticle {
     }
 
 
-    private boolean isValidJson(String input) {
+    /**
+     * Applies an event directly, without Kafka, and returns the resulting state. It runs the same Redis script
+     * as the consumer in atomic mode, so an event applied here and one arriving through Kafka for the same process
+     * are each applied atomically in the order Redis receives them and no update is lost. The local mode's
+     * read-modify-write could lose one of them, so the endpoint is only available in atomic mode.
+     */
+    public Future<JsonObject> applyEventNow(JsonObject reqJO) {
+        KafkaMessage kafkaMessage = KafkaMessage.builder()
+                .stateMachineId(reqJO.getString("stateMachineId"))
+                .processId(reqJO.getString("processId"))
+                .event(reqJO.getString("event"))
+                .eventId(reqJO.getString("eventId"))
+                .build();
+
+        if (!isAtomicMode()) {
+            return Future.succeededFuture(new JsonObject()
+                    .put("statusCode", 409)
+                    .put("success", false)
+                    .put("message", "Synchronous transitions require the atomic transition mode"));
+        }
+
+        return resolveStateMachine(kafkaMessage.getStateMachineId())
+                .compose(cached -> {
+                    if (cached == null) {
+                        return Future.succeededFuture(new JsonObject()
+                                .put("statusCode", 404)
+                                .put("success", false)
+                                .put("message", "State machine not found"));
+                    }
+                    if (cached.usesSpringEngine()) {
+                        return Future.succeededFuture(new JsonObject()
+                                .put("statusCode", 409)
+                                .put("success", false)
+                                .put("message", "Synchronous transitions are not available for the spring engine"));
+                    }
+                    return applyEventAtomically(cached, kafkaMessage)
+                            .onSuccess(AppMetrics::countTransition)
+                            .onSuccess(result -> logTransition(kafkaMessage, result, null, null, null))
+                            .map(result -> new JsonObject()
+                                    .put("statusCode", 200)
+                                    .put("success", true)
+                                    .put("accepted", result.isAccepted())
+                                    .put("previousState", result.getPreviousState())
+                                    .put("newState", result.getNewState())
+                                    .put("duplicate", result.isDuplicate()));
+                })
+                .recover(err -> {
+                    APPLY_LOGGER.error("Failed to apply event {} for order {} - {}", kafkaMessage.getEvent(),
+                            kafkaMessage.getProcessId(), err.getMessage());
+                    return Future.succeededFuture(new JsonObject()
+                            .put("statusCode", 500)
+                            .put("success", false)
+                            .put("message", "Unexpected error: " + err.getMessage()));
+                });
+    }
+
+    /**
+     * Sends every event object the parser emits, from an NDJSON body or a JSON array, as it is parsed, so the body
+     * is never held whole. Each distinct stateMachineId is looked up once per batch and the sends are not awaited
+     * one by one; the producer groups them into batches. Parsing pauses while {@code kafka.ingestMaxInFlight}
+     * sends are outstanding.
+     *
+     * @return a summary with one result per item, in body order
+     */
+    public Future<JsonObject> sendEventsToKafka(JsonParser parser) {
+        Promise<JsonObject> promise = Promise.promise();
+        Context context = Vertx.currentContext();
+        Map<String, Future<StateMachineDB>> definitions = new HashMap<>();
+        List<Future<JsonObject>> results = new ArrayList<>();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicBoolean paused = new AtomicBoolean();
+
+        parser.objectValueMode();
+        parser.handler(event -> {
+            // Array start and end events frame the items of a JSON array body
+            if (event.type() != JsonEventType.VALUE) {
+                return;
+            }
+            int index = results.size();
+            KafkaMessage kafkaMessage = event.value() instanceof JsonObject item ? toKafkaMessage(item) : null;
+            if (kafkaMessage == null) {
+                results.add(Future.succeededFuture(itemResult(index, 400, "Invalid event")));
+                return;
+            }
+
+            if (inFlight.incrementAndGet() >= ingestMaxInFlight && paused.compareAndSet(false, true)) {
+                parser.pause();
+            }
+            Future<JsonObject> result = definitions
+                    .computeIfAbsent(kafkaMessage.getStateMachineId(), this::findDefinition)
+                    .compose(definition -> {
+                        if (definition == null) {
+                            return Future.succeededFuture(itemResult(index, 404, "State machine not found"));
+                        }
+                        return AppMetrics.timeProducerSend(() -> producer.send(toProducerRecord(kafkaMessage, definition)))
+                                .map(meta -> itemResult(index, 200, "Message sent successfully")
+                                        .put("eventId", kafkaMessage.getEventId())
+                                        .put("partition", meta == null ? null : meta.getPartition())
+                                        .put("offset", meta == null ? null : meta.getOffset()));
+                    })
+                    .recover(err -> Future.succeededFuture(itemResult(index, 500, "Message failed")
+                            .put("error", err.getMessage())));
+            results.add(result.onComplete(ar -> {
+                if (inFlight.decrementAndGet() <= ingestMaxInFlight / 2 && paused.compareAndSet(true, false)) {
+                    if (context == null) {
+                        parser.resume();
+                    } else {
+                        context.runOnContext(v -> parser.resume());
+                    }
+                }
+            }));
+        });
+        parser.exceptionHandler(err -> {
+            LOGGER.error("Invalid bulk event body - {}", err.getMessage());
+            Future.join(new ArrayList<>(results)).onComplete(ar ->
+                    promise.tryComplete(batchResponse(results, 400, "Invalid JSON body: " + err.getMessage())));
+        });
+        parser.endHandler(v -> Future.join(new ArrayList<>(results)).onComplete(ar -> {
+            long sent = results.stream().filter(r -> r.result().getBoolean("success")).count();
+            LOGGER.info("Bulk ingestion sent {} of {} events", sent, results.size());
+            promise.tryComplete(batchResponse(results, sent == results.size() ? 200 : 207,
+                    sent + " of " + results.size() + " events sent"));
+        }));
+        return promise.future();
+    }
+
+    /**
+     * The definition of a state machine, from the local view of the definitions topic or Mongo, or {@code null}
+     * if there is none.
+     */
+    public Future<StateMachineDB> findDefinition(String stateMachineId) {
+        return fetchDefinition(stateMachineId)
+                .map(res -> res == null ? null : res.mapTo(StateMachineDB.class));
+    }
+
+    /**
+     * Looks a definition up in the local view of the definitions topic. Only a miss, such as a definition created
+     * before the topic existed, reads Mongo; the result is kept in the view unless the topic changed meanwhile.
+     */
+    private Future<JsonObject> fetchDefinition(String id) {
+        return AppMetrics.timeStage(AppMetrics.STAGE_DEFINITION_FETCH, () -> lookupDefinition(id));
+    }
+
+    private Future<JsonObject> lookupDefinition(String id) {
+        if (definitionView == null) {
+            return repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, new JsonObject().put("_id", id), new JsonObject());
+        }
+        JsonObject definition = definitionView.get(id);
+        if (definition != null) {
+            return Future.succeededFuture(definition);
+        }
+        long updates = definitionView.updates();
+        return repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, new JsonObject().put("_id", id), new JsonObject())
+                .onSuccess(res -> {
+                    if (res != null) {
+                        definitionView.putIfUnchanged(id, res, updates);
+                    }
+                });
+    }
+
+    private KafkaProducerRecord<String, KafkaMessage> toProducerRecord(KafkaMessage kafkaMessage, StateMachineDB stateMachineDB) {
+        int partition = partitionStrategy.partitionFor(kafkaMessage, stateMachineDB, partitionCount);
+        // Keyed by processId so the key identifies the process whatever strategy picked the partition
+        return KafkaProducerRecord.create(kafkaTopic, kafkaMessage.getProcessId(), kafkaMessage, partition);
+    }
+
+    /**
+     * Builds a message from one bulk item, applying the same rules as the single event endpoint's schema.
+     */
+    private static KafkaMessage toKafkaMessage(JsonObject item) {
         try {
-            new JsonObject(input);
-            return true;
-        } catch (DecodeException e) {
-            return false;
+            String stateMachineId = item.getString("stateMachineId");
+            String processId = item.getString("processId");
+            String event = item.getString("event");
+            if (stateMachineId == null || stateMachineId.length() < 2 || processId == null || processId.length() < 2
+                    || event == null || event.length() < 2) {
+                return null;
+            }
+            String eventId = item.getString("eventId");
+            return new KafkaMessage(stateMachineId, processId, event,
+                    eventId == null || eventId.isEmpty() ? UUID.randomUUID().toString() : eventId);
+        } catch (ClassCastException e) {
+            return null;
+        }
+    }
+
+    private static JsonObject itemResult(int index, int statusCode, String message) {
+        return new JsonObject()
+                .put("index", index)
+                .put("statusCode", statusCode)
+                .put("success", statusCode == 200)
+                .put("message", message);
+    }
+
+    private static JsonObject batchResponse(List<Future<JsonObject>> results, int statusCode, String message) {
+        JsonArray items = new JsonArray();
+        results.forEach(result -> items.add(result.result()));
+        return new JsonObject()
+                .put("statusCode", statusCode)
+                .put("success", statusCode == 200)
+                .put("message", message)
+                .put("results", items);
+    }
+
+    /**
+     * Applies one event to its process. In local mode the current state is read from Redis, the transition is
+     * fired in the JVM and the new state is written back. In atomic mode the whole step runs in Redis in one
+     * round trip; machines on the Spring engine always run locally.
+     */
+    public Future<TransitionResult> applyEvent(KafkaMessage kafkaMessage) {
+        return resolveStateMachine(kafkaMessage.getStateMachineId())
+                .compose(cached -> {
+                    if (cached == null) {
+                        return Future.failedFuture(ERROR_STATE_MACHINE_NOT_FOUND + kafkaMessage.getStateMachineId());
+                    }
+                    if (isAtomicMode() && !cached.usesSpringEngine()) {
+                        return applyEventAtomically(cached, kafkaMessage);
+                    }
+                    if (stateStore.isDedupeEnabled() && kafkaMessage.getEventId() != null) {
+                        return applyEventOnce(cached, kafkaMessage);
+                    }
+                    String processId = kafkaMessage.getProcessId();
+                    String versionKey = StateStore.versionKey(processId);
+                    return AppMetrics.timeStage(AppMetrics.STAGE_REDIS_READ, () -> stateStore.getStates(List.of(processId, versionKey)))
+                            .compose(stored -> resolvePinned(cached, stored.get(versionKey))
+                                    .compose(pinned -> {
+                                        String currentState = stored.getOrDefault(processId, cached.getInitialState());
+                                        String newState = fire(pinned, currentState, kafkaMessage.getEvent());
+
+                                        if (newState == null) {
+                                            return Future.succeededFuture(new TransitionResult(false, currentState, currentState));
+                                        }
+                                        return AppMetrics.timeStage(AppMetrics.STAGE_REDIS_WRITE,
+                                                        () -> stateStore.saveStates(accepted(processId, newState, stored.get(versionKey), pinned)))
+                                                .map(v -> new TransitionResult(true, currentState, newState));
+                                    }));
+                })
+                .onSuccess(AppMetrics::countTransition);
+    }
+
+    /**
+     * The states to write for an accepted event: the new state, and the version the process is pinned to when this
+     * is its first transition.
+     */
+    private static Map<String, String> accepted(String processId, String newState, String storedVersion,
+                                                CachedStateMachine pinned) {
+        if (storedVersion != null) {
+            return Map.of(processId, newState);
+        }
+        return Map.of(processId, newState, StateStore.versionKey(processId), String.valueOf(pinned.getVersion()));
+    }
+
+    private static String fire(CachedStateMachine cached, String currentState, String event) {
+        return AppMetrics.recordStage(AppMetrics.STAGE_TRANSITION, () -> cached.fire(currentState, event));
+    }
+
+    /**
+     * Local mode for an event with an id: skips it if the process already saw the id, otherwise the new state and
+     * the id are written together. Rejected events are recorded too, so a redelivery cannot be accepted later.
+     */
+    private Future<TransitionResult> applyEventOnce(CachedStateMachine cached, KafkaMessage kafkaMessage) {
+        String processId = kafkaMessage.getProcessId();
+        String versionKey = StateStore.versionKey(processId);
+        // Both reads are issued inside the timed stage so it covers them from the start
+        return AppMetrics.timeStage(AppMetrics.STAGE_REDIS_READ, () -> Future.all(
+                        stateStore.getStates(List.of(processId, versionKey)),
+                        stateStore.findProcessedEvents(List.of(kafkaMessage))))
+                .compose(reads -> {
+                    Map<String, String> stored = reads.resultAt(0);
+                    Set<String> processed = reads.resultAt(1);
+                    String currentState = stored.getOrDefault(processId, cached.getInitialState());
+                    if (processed.contains(kafkaMessage.getEventId())) {
+                        return Future.succeededFuture(TransitionResult.duplicate(currentState));
+                    }
+                    String storedVersion = stored.get(versionKey);
+                    return resolvePinned(cached, storedVersion).compose(pinned -> {
+                        String newState = fire(pinned, currentState, kafkaMessage.getEvent());
+                        Map<String, String> states = newState == null
+                                ? Map.of()
+                                : accepted(processId, newState, storedVersion, pinned);
+                        return AppMetrics.timeStage(AppMetrics.STAGE_REDIS_WRITE,
+                                        () -> stateStore.saveStates(states, List.of(kafkaMessage)))
+                                .map(saved -> newState == null
+                                        ? new TransitionResult(false, currentState, currentState)
+                                        : new TransitionResult(true, currentState, newState));
+                    });
+                });
+    }
+
+    /**
+     * Applies the event with the Redis transition script, which picks the table of the version the process is pinned
+     * to. If Redis lost that table (restart, flush) it is uploaded again and the event retried once.
+     */
+    private Future<TransitionResult> applyEventAtomically(CachedStateMachine cached, KafkaMessage kafkaMessage) {
+        return AppMetrics.timeStage(AppMetrics.STAGE_REDIS_TRANSITION, () -> stateStore.applyTransition(
+                        kafkaMessage.getProcessId(), cached.getCompiled(), kafkaMessage.getEvent(), kafkaMessage.getEventId()))
+                .recover(err -> {
+                    if (!StateStore.isMissingTransitionTable(err)) {
+                        return Future.failedFuture(err);
+                    }
+                    LOGGER.warn("Transition table missing in the state store for ID: {}, reloading", kafkaMessage.getStateMachineId());
+                    return stateStore.getState(StateStore.versionKey(kafkaMessage.getProcessId()))
+                            .compose(version -> reloadTransitionTable(cached, version))
+                            .compose(v -> stateStore.applyTransition(kafkaMessage.getProcessId(), cached.getCompiled(),
+                                    kafkaMessage.getEvent(), kafkaMessage.getEventId()));
+                });
+    }
+
+    /**
+     * Uploads the transition table of a version again, whether or not it is cached.
+     *
+     * @param version the stored version of a process, {@code null} for the latest
+     */
+    private Future<Void> reloadTransitionTable(CachedStateMachine latest, String version) {
+        return resolvePinned(latest, version)
+                .compose(pinned -> stateStore.loadTransitionTable(pinned.getCompiled()));
+    }
+
+    /**
+     * Applies a batch of events. Each distinct state machine is resolved once; in local mode all process states
+     * are read with one MGET, transitions are applied in memory in record order and the changed states are
+     * written back with one MSET. In atomic mode the transition scripts are pipelined in one round trip.
+     *
+     * @return one result per message, {@code null} for messages whose state machine could not be resolved
+     */
+    public Future<List<TransitionResult>> applyEvents(List<KafkaMessage> messages) {
+        Map<String, Future<CachedStateMachine>> resolving = new HashMap<>();
+        for (KafkaMessage message : messages) {
+            resolving.computeIfAbsent(message.getStateMachineId(), this::resolveStateMachine);
+        }
+
+        return Future.join(new ArrayList<>(resolving.values()))
+                .transform(ignored -> {
+                    Map<String, CachedStateMachine> machines = new HashMap<>();
+                    resolving.forEach((id, future) -> {
+                        if (future.succeeded() && future.result() != null) {
+                            machines.put(id, future.result());
+                        } else {
+                            LOGGER.error("State machine not found for ID: {}", id);
+                        }
+                    });
+
+                    // Spring machines always run locally; the rest follow the transition mode
+                    List<Integer> atomicIndexes = new ArrayList<>();
+                    List<Integer> localIndexes = new ArrayList<>();
+                    for (int i = 0; i < messages.size(); i++) {
+                        CachedStateMachine cached = machines.get(messages.get(i).getStateMachineId());
+                        if (cached != null) {
+                            (isAtomicMode() && !cached.usesSpringEngine() ? atomicIndexes : localIndexes).add(i);
+                        }
+                    }
+
+                    TransitionResult[] results = new TransitionResult[messages.size()];
+                    return Future.all(
+                                    applyEventsLocally(messages, localIndexes, machines, results),
+                                    applyEventsAtomically(messages, atomicIndexes, machines, results))
+                            .map(v -> {
+                                for (TransitionResult result : results) {
+                                    AppMetrics.countTransition(result);
+                                }
+                                return Arrays.asList(results);
+                            });
+                });
+    }
+
+    private Future<Void> applyEventsLocally(List<KafkaMessage> messages, List<Integer> indexes,
+                                            Map<String, CachedStateMachine> machines, TransitionResult[] results) {
+        if (indexes.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        // Every process's state and the version it is pinned to, read with the same MGET
+        Set<String> keys = new LinkedHashSet<>();
+        for (int i : indexes) {
+            keys.add(messages.get(i).getProcessId());
+            keys.add(StateStore.versionKey(messages.get(i).getProcessId()));
+        }
+
+        boolean dedupe = stateStore.isDedupeEnabled();
+        // Both reads are issued inside the timed stage so it covers them from the start
+        Future<CompositeFuture> reads = AppMetrics.timeStage(AppMetrics.STAGE_REDIS_READ, () -> Future.all(
+                stateStore.getStates(new ArrayList<>(keys)),
+                dedupe
+                        ? stateStore.findProcessedEvents(indexes.stream().map(messages::get).toList())
+                        : Future.succeededFuture(new HashSet<String>())));
+
+        return reads
+                .compose(read -> resolvePinned(messages, indexes, machines, read.resultAt(0)))
+                .compose(versions -> {
+                    Map<String, String> states = reads.result().resultAt(0);
+                    // Ids seen earlier in this batch count as processed too
+                    Set<String> seen = reads.result().resultAt(1);
+                    List<KafkaMessage> processed = new ArrayList<>();
+                    Map<String, String> changed = new HashMap<>();
+                    for (int i : indexes) {
+                        KafkaMessage message = messages.get(i);
+                        CachedStateMachine latest = machines.get(message.getStateMachineId());
+                        String versionKey = StateStore.versionKey(message.getProcessId());
+                        String version = states.get(versionKey);
+                        // Pinned earlier in this batch, or before, to the latest version
+                        CachedStateMachine cached = version == null || Integer.parseInt(version) == latest.getVersion()
+                                ? latest
+                                : versions.get(StateMachineDB.versionId(message.getStateMachineId(), Integer.parseInt(version)));
+                        if (cached == null) {
+                            continue;
+                        }
+                        String currentState = states.getOrDefault(message.getProcessId(), latest.getInitialState());
+                        if (dedupe && message.getEventId() != null && !seen.add(message.getEventId())) {
+                            results[i] = TransitionResult.duplicate(currentState);
+                            continue;
+                        }
+                        processed.add(message);
+                        String newState = fire(cached, currentState, message.getEvent());
+                        if (newState == null) {
+                            results[i] = new TransitionResult(false, currentState, currentState);
+                        } else {
+                            states.put(message.getProcessId(), newState);
+                            changed.put(message.getProcessId(), newState);
+                            if (version == null) {
+                                states.put(versionKey, String.valueOf(cached.getVersion()));
+                                changed.put(versionKey, String.valueOf(cached.getVersion()));
+                            }
+                            results[i] = new TransitionResult(true, currentState, newState);
+                        }
+                    }
+                    return AppMetrics.timeStage(AppMetrics.STAGE_REDIS_WRITE, () -> dedupe
+                            ? stateStore.saveStates(changed, processed)
+                            : stateStore.saveStates(changed));
+                });
+    }
+
+    /**
+     * Resolves every version other than the latest that the batch's processes are pinned to, each once.
+     *
+     * @return the resolved versions by versionId; versions that could not be resolved are left out
+     */
+    private Future<Map<String, CachedStateMachine>> resolvePinned(List<KafkaMessage> messages, List<Integer> indexes,
+                                                                  Map<String, CachedStateMachine> machines,
+                                                                  Map<String, String> stored) {
+        Map<String, Future<CachedStateMachine>> resolving = new HashMap<>();
+        for (int i : indexes) {
+            KafkaMessage message = messages.get(i);
+            String version = stored.get(StateStore.versionKey(message.getProcessId()));
+            if (version != null) {
+                CachedStateMachine latest = machines.get(message.getStateMachineId());
+                resolving.computeIfAbsent(StateMachineDB.versionId(message.getStateMachineId(), Integer.parseInt(version)),
+                        versionId -> resolvePinned(latest, version));
+            }
+        }
+        return Future.join(new ArrayList<>(resolving.values()))
+                .transform(ignored -> {
+                    Map<String, CachedStateMachine> versions = new HashMap<>();
+                    resolving.forEach((versionId, future) -> {
+                        if (future.succeeded()) {
+                            versions.put(versionId, future.result());
+                        } else {
+                            LOGGER.error("State machine version not found: {}", versionId);
+                        }
+                    });
+                    return Future.succeededFuture(versions);
+                });
+    }
+
+    private Future<Void> applyEventsAtomically(List<KafkaMessage> messages, List<Integer> indexes,
+                                               Map<String, CachedStateMachine> machines, TransitionResult[] results) {
+        if (indexes.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        List<KafkaMessage> batch = indexes.stream().map(messages::get).toList();
+        Map<String, CompiledStateMachine> latest = new HashMap<>();
+        machines.forEach((id, cached) -> latest.put(id, cached.getCompiled()));
+
+        return AppMetrics.timeStage(AppMetrics.STAGE_REDIS_TRANSITION, () -> stateStore.applyTransitions(batch, latest))
+                .compose(applied -> {
+                    // Entries whose transition table was missing were not applied; reload the tables of the versions
+                    // their processes are pinned to and retry them in order
+                    List<Integer> retry = new ArrayList<>();
+                    for (int j = 0; j < applied.size(); j++) {
+                        if (applied.get(j) == null) {
+                            retry.add(indexes.get(j));
+                        } else {
+                            results[indexes.get(j)] = applied.get(j);
+                        }
+                    }
+                    if (retry.isEmpty()) {
+                        return Future.succeededFuture();
+                    }
+                    List<KafkaMessage> pending = retry.stream().map(messages::get).toList();
+                    List<String> versionKeys = pending.stream()
+                            .map(message -> StateStore.versionKey(message.getProcessId()))
+                            .distinct()
+                            .toList();
+                    return stateStore.getStates(versionKeys)
+                            .compose(versions -> {
+                                Map<String, Future<Void>> reload = new HashMap<>();
+                                for (KafkaMessage message : pending) {
+                                    CachedStateMachine cached = machines.get(message.getStateMachineId());
+                                    String version = versions.get(StateStore.versionKey(message.getProcessId()));
+                                    reload.computeIfAbsent(StateMachineDB.versionId(message.getStateMachineId(),
+                                                    version == null ? cached.getVersion() : Integer.parseInt(version)),
+                                            versionId -> reloadTransitionTable(cached, version));
+                                }
+                                LOGGER.warn("Transition tables missing in the state store for versions: {}, reloading", reload.keySet());
+                                return Future.all(new ArrayList<>(reload.values()));
+                            })
+                            .compose(v -> stateStore.applyTransitions(pending, latest))
+                            .map(retried -> {
+                                for (int j = 0; j < retried.size(); j++) {
+                                    results[retry.get(j)] = retried.get(j);
+                                }
+                                return null;
+                            });
+                });
+    }
+
+    /**
+     * Adds an applied event to the transition log. Duplicates are left out: the original delivery was logged.
+     */
+    private Future<Void> logTransition(KafkaMessage kafkaMessage, TransitionResult result, String topic, Integer partition, Long offset) {
+        if (transitionLog == null || result == null || (result.isDuplicate() && topic == null)) {
+            return Future.succeededFuture();
+        }
+        // A consumed record always gets the same id, so when it is redelivered after a crash and skipped as a
+        // duplicate its entry is stored only if the first one was lost with the buffer
+        return transitionLog.record(TransitionRecord.builder()
+                ._id(topic == null ? null : topic + ":" + partition + ":" + offset)
+                .processId(kafkaMessage.getProcessId())
+                .stateMachineId(kafkaMessage.getStateMachineId())
+                .eventId(kafkaMessage.getEventId())
+                .event(kafkaMessage.getEvent())
+                .fromState(result.getPreviousState())
+                .toState(result.getNewState())
+                .accepted(result.isAccepted())
+                .duplicate(result.isDuplicate())
+                .timestamp(System.currentTimeMillis())
+                .topic(topic)
+                .partition(partition)
+                .offset(offset)
+                .build());
+    }
+
+    private boolean isAtomicMode() {
+        return AppConstant.TRANSITION_MODE_ATOMIC.equals(transitionMode);
+    }
+
+    public JsonObject stats() {
+        JsonObject stats = new JsonObject()
+                .put("stateMachineCache", stateMachineCache.stats())
+                .put("versionCache", versionCache.stats());
+        if (definitionView != null) {
+            stats.put("definitions", definitionView.stats());
+        }
+        if (executor != null) {
+            stats.put("shards", executor.stats());
+        }
+        if (offsetTracker != null) {
+            stats.put("offsets", offsetTracker.stats());
+        }
+        if (inFlightLimiter != null) {
+            stats.put("backpressure", inFlightLimiter.stats());
+        }
+        if (transitionLog != null) {
+            stats.put("transitionLog", transitionLog.stats());
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the latest version of the state machine with the given id, or {@code null} when no definition exists.
+     * Definitions are loaded from Mongo only on a cache miss, and built only if that version was never built before.
+     */
+    private Future<CachedStateMachine> resolveStateMachine(String id) {
+        CachedStateMachine cached = stateMachineCache.get(id);
+        if (cached != null) {
+            return Future.succeededFuture(cached);
+        }
+
+        long generation = stateMachineCache.generation();
+        Promise<CachedStateMachine> promise = Promise.promise();
+        fetchStateMachine(id, definition -> {
+            if (definition == null) {
+                promise.complete();
+                return;
+            }
+            String versionId = StateMachineDB.versionId(id, definition.getInteger(StateMachineDB.Fields.version, 0));
+            CachedStateMachine built = versionCache.get(versionId);
+            (built != null ? Future.succeededFuture(built) : build(definition))
+                    .onSuccess(latest -> {
+                        versionCache.put(versionId, latest);
+                        stateMachineCache.put(id, latest, generation);
+                        promise.complete(latest);
+                    })
+                    .onFailure(promise::fail);
+        });
+        return promise.future();
+    }
+
+    /**
+     * Returns the version a process is pinned to.
+     *
+     * @param version the stored version of the process, {@code null} if it has none yet and so follows the latest
+     * @return {@code latest} if the process is on it, otherwise the version loaded from Mongo on a cache miss; failed
+     * if the version does not exist
+     */
+    private Future<CachedStateMachine> resolvePinned(CachedStateMachine latest, String version) {
+        if (version == null || Integer.parseInt(version) == latest.getVersion()) {
+            return Future.succeededFuture(latest);
+        }
+        String id = latest.getCompiled().getId();
+        String versionId = StateMachineDB.versionId(id, Integer.parseInt(version));
+        CachedStateMachine cached = versionCache.get(versionId);
+        if (cached != null) {
+            return Future.succeededFuture(cached);
+        }
+        return repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, new JsonObject().put("_id", versionId), new JsonObject())
+                .compose(definition -> {
+                    if (definition == null) {
+                        return Future.failedFuture(ERROR_STATE_MACHINE_NOT_FOUND + versionId);
+                    }
+                    // Stored under its versionId, compiled under the definition's id
+                    return build(definition.copy().put("_id", id));
+                })
+                .onSuccess(built -> versionCache.put(versionId, built));
+    }
+
+    /**
+     * Builds one version of a definition. In atomic mode its transition table is sent to Redis once, when the version
+     * is first built.
+     */
+    private Future<CachedStateMachine> build(JsonObject definition) {
+        CachedStateMachine built;
+        try {
+            built = AppMetrics.recordStage(AppMetrics.STAGE_BUILD, () -> {
+                StateMachineDB stateMachineDB = definition.mapTo(StateMachineDB.class);
+                CompiledStateMachine compiled = CompiledStateMachine.compile(stateMachineDB);
+                StateMachine<String, String> springStateMachine =
+                        AppConstant.ENGINE_SPRING.equals(stateMachineDB.getEngine()) ? buildStateMachine(definition) : null;
+                return new CachedStateMachine(definition, compiled, springStateMachine);
+            });
+        } catch (Exception e) {
+            return Future.failedFuture(e);
         }
+        Future<Void> ready = isAtomicMode() && !built.usesSpringEngine()
+                ? stateStore.loadTransitionTable(built.getCompiled())
+                : Future.succeededFuture();
+        return ready.map(built);
     }
 
     private void fetchStateMachine(String id, java.util.function.Consumer<JsonObject> callback) {
 
-        repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, new JsonObject().put("_id", id), new JsonObject())
+        fetchDefinition(id)
                 .onSuccess(result -> callback.accept(result))
                 .onFailure(err -> {
-                    LOGGER.error("Failed to fetch state machine for ID: " + id + " - " + err.getMessage());
+                    LOGGER.error("Failed to fetch state machine for ID: {} - {}", id, err.getMessage());
                     callback.accept(null);
                 });
     }
 
-    private StateMachine<String, String> buildStateMachine(JsonObject definition) {
+    StateMachine<String, String> buildStateMachine(JsonObject definition) {
         try {
             StateMachineBuilder.Builder<String, String> builder = StateMachineBuilder.builder();
 
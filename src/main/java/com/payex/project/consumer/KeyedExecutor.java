@@ -0,0 +1,192 @@
+package com.payex.project.consumer;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Context;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Runs asynchronous tasks on N event loop shards, chosen by hashing a key (the processId).
+ * <p>
+ * Tasks with the same key always land on the same shard and each starts only after the previous task for that
+ * key completed, so events of one process stay strictly ordered. Different keys run concurrently, both across
+ * shards and within a shard while their Redis calls are in flight.
+ * <p>
+ * When a task fails with an error the executor was told holds its followers back, the tasks already queued
+ * behind it for the same key are not run and fail as well, so a later event is never applied ahead of an earlier
+ * one that is about to be retried. After any other failure the next task runs as usual. Tasks submitted once the
+ * queue for that key ran empty start normally.
+ * <p>
+ * Like a Vert.x {@code WriteStream}, every shard has a soft capacity: {@link #isFull()} turns true once a shard
+ * holds {@code queueCapacity} unfinished tasks, and the drain handler fires once all shards are back under
+ * half of it, on that shard's context. Callers pause their source in between, which bounds each queue by the
+ * capacity plus whatever the source had already handed over.
+ */
+public class KeyedExecutor {
+
+    private final Shard[] shards;
+    private final int queueCapacity;
+    private final Predicate<Throwable> holdsBackFollowers;
+    private final AtomicInteger fullShards = new AtomicInteger();
+    private volatile Handler<Void> drainHandler;
+
+    private KeyedExecutor(int workers, int queueCapacity, Predicate<Throwable> holdsBackFollowers) {
+        this.shards = new Shard[workers];
+        this.queueCapacity = queueCapacity;
+        this.holdsBackFollowers = holdsBackFollowers;
+    }
+
+    /**
+     * Deploys one shard verticle per worker so every shard gets its own event loop context. A failed task never
+     * holds back the tasks queued behind it.
+     */
+    public static Future<KeyedExecutor> create(Vertx vertx, int workers, int queueCapacity) {
+        return create(vertx, workers, queueCapacity, err -> false);
+    }
+
+    /**
+     * @param holdsBackFollowers whether a task failing with this error fails the tasks queued behind it for the
+     *                           same key without running them
+     */
+    public static Future<KeyedExecutor> create(Vertx vertx, int workers, int queueCapacity,
+                                               Predicate<Throwable> holdsBackFollowers) {
+        if (workers <= 0 || queueCapacity <= 0) {
+            return Future.failedFuture(new IllegalArgumentException(
+                    "Workers and queue capacity must be positive: " + workers + ", " + queueCapacity));
+        }
+        KeyedExecutor executor = new KeyedExecutor(workers, queueCapacity, holdsBackFollowers);
+        AtomicInteger nextIndex = new AtomicInteger();
+        return vertx.deployVerticle(() -> new ShardVerticle(executor, nextIndex.getAndIncrement()),
+                        new DeploymentOptions().setInstances(workers))
+                .map(deploymentId -> executor);
+    }
+
+    public int shardFor(String key) {
+        return Math.floorMod(key.hashCode(), shards.length);
+    }
+
+    /**
+     * Runs {@code task} on the shard owning {@code key}, after every earlier task submitted with the same key.
+     * The returned future completes on the shard's context, and fails without running the task if the task
+     * queued before it failed with an error that holds back its followers.
+     */
+    public <T> Future<T> submit(String key, Supplier<Future<T>> task) {
+        return shards[shardFor(key)].submit(key, task);
+    }
+
+    /**
+     * Runs {@code task} on the given shard, ordered after earlier tasks submitted to that shard with this method.
+     */
+    public <T> Future<T> submitToShard(int shard, Supplier<Future<T>> task) {
+        return shards[shard].submit("", task);
+    }
+
+    public boolean isFull() {
+        return fullShards.get() > 0;
+    }
+
+    public KeyedExecutor drainHandler(Handler<Void> handler) {
+        this.drainHandler = handler;
+        return this;
+    }
+
+    public int getWorkers() {
+        return shards.length;
+    }
+
+    public int depth(int shard) {
+        return shards[shard].depth.get();
+    }
+
+    public JsonObject stats() {
+        JsonArray depths = new JsonArray();
+        for (Shard shard : shards) {
+            depths.add(shard.depth.get());
+        }
+        return new JsonObject()
+                .put("workers", shards.length)
+                .put("queueCapacity", queueCapacity)
+                .put("depths", depths);
+    }
+
+    private final class Shard {
+        private final Context context;
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicBoolean full = new AtomicBoolean();
+
+        // Last task per key, only touched on this shard's context
+        private final Map<String, Future<?>> tails = new HashMap<>();
+
+        private Shard(Context context) {
+            this.context = context;
+        }
+
+        private <T> Future<T> submit(String key, Supplier<Future<T>> task) {
+            if (depth.incrementAndGet() >= queueCapacity && full.compareAndSet(false, true)) {
+                fullShards.incrementAndGet();
+            }
+            Promise<T> promise = Promise.promise();
+            context.runOnContext(v -> run(key, task, promise));
+            return promise.future();
+        }
+
+        private <T> void run(String key, Supplier<Future<T>> task, Promise<T> promise) {
+            Future<?> previous = tails.get(key);
+            Future<T> current = previous == null
+                    ? safeGet(task)
+                    : previous.transform(ar -> ar.succeeded() || !holdsBackFollowers.test(ar.cause())
+                            ? safeGet(task)
+                            : Future.failedFuture(new IllegalStateException(
+                                    "Skipped since an earlier task for " + key + " failed", ar.cause())));
+            tails.put(key, current);
+
+            current.onComplete(ar -> {
+                if (tails.get(key) == current) {
+                    tails.remove(key);
+                }
+                if (depth.decrementAndGet() <= queueCapacity / 2 && full.compareAndSet(true, false)) {
+                    Handler<Void> handler = drainHandler;
+                    if (fullShards.decrementAndGet() == 0 && handler != null) {
+                        handler.handle(null);
+                    }
+                }
+                promise.handle(ar);
+            });
+        }
+
+        private <T> Future<T> safeGet(Supplier<Future<T>> task) {
+            try {
+                return task.get();
+            } catch (Exception e) {
+                return Future.failedFuture(e);
+            }
+        }
+    }
+
+    private static final class ShardVerticle extends AbstractVerticle {
+        private final KeyedExecutor executor;
+        private final int index;
+
+        private ShardVerticle(KeyedExecutor executor, int index) {
+            this.executor = executor;
+            this.index = index;
+        }
+
+        @Override
+        public void start() {
+            executor.shards[index] = executor.new Shard(context);
+        }
+    }
+}
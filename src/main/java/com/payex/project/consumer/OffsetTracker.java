@@ -0,0 +1,162 @@
+package com.payex.project.consumer;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.kafka.client.common.TopicPartition;
+import io.vertx.kafka.client.consumer.OffsetAndMetadata;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Works out how far each partition can be committed when records complete out of order.
+ * <p>
+ * Every consumed record is tracked until its event has been applied. A partition's commit position is the
+ * offset after the longest run of applied records from the front, so an offset is never committed while an
+ * earlier record of the same partition is still in flight.
+ * <p>
+ * When a record fails, the partition is rewound: later records are forgotten and nothing is tracked until the
+ * failed offset is consumed again. Each rewind starts a new epoch and completions from older epochs are ignored.
+ * All methods are synchronized since records complete on the executor's shard contexts.
+ */
+public class OffsetTracker {
+
+    public static final long SKIPPED = -1;
+
+    private final Map<TopicPartition, PartitionOffsets> partitions = new HashMap<>();
+    private long nextEpoch;
+    private int completedSinceCommit;
+
+    /**
+     * Starts tracking a consumed record.
+     *
+     * @return the epoch to pass to {@link #complete}, or {@link #SKIPPED} if the record arrived after a rewind
+     * but before the replayed offset and must not be processed
+     */
+    public synchronized long track(TopicPartition partition, long offset) {
+        PartitionOffsets offsets = partitions.computeIfAbsent(partition, p -> new PartitionOffsets(nextEpoch++));
+        if (offsets.awaiting >= 0) {
+            if (offset != offsets.awaiting) {
+                return SKIPPED;
+            }
+            offsets.awaiting = -1;
+        }
+        offsets.inFlight.put(offset, false);
+        return offsets.epoch;
+    }
+
+    /**
+     * Marks a record as applied, advancing the partition's commit position if it was the oldest one in flight.
+     */
+    public synchronized void complete(TopicPartition partition, long offset, long epoch) {
+        PartitionOffsets offsets = partitions.get(partition);
+        if (offsets == null || offsets.epoch != epoch || !offsets.inFlight.containsKey(offset)) {
+            return;
+        }
+        offsets.inFlight.put(offset, true);
+        while (!offsets.inFlight.isEmpty() && offsets.inFlight.firstEntry().getValue()) {
+            offsets.position = offsets.inFlight.pollFirstEntry().getKey() + 1;
+        }
+        completedSinceCommit++;
+    }
+
+    /**
+     * Forgets {@code offset} and everything after it, so the partition can be replayed from there.
+     */
+    public synchronized void rewind(TopicPartition partition, long offset) {
+        PartitionOffsets offsets = partitions.get(partition);
+        if (offsets == null) {
+            return;
+        }
+        offsets.inFlight.tailMap(offset, true).clear();
+        offsets.awaiting = offset;
+        offsets.epoch = nextEpoch++;
+    }
+
+    /**
+     * Rewinds like {@link #rewind(TopicPartition, long)}, but only if the record was tracked in the partition's
+     * current epoch. A record consumed before an earlier rewind is replayed by that rewind already, and rewinding
+     * to it again would skip the records in between.
+     *
+     * @return whether the partition was rewound
+     */
+    public synchronized boolean rewind(TopicPartition partition, long offset, long epoch) {
+        if (!isCurrent(partition, epoch)) {
+            return false;
+        }
+        rewind(partition, offset);
+        return true;
+    }
+
+    /**
+     * Whether a record tracked in {@code epoch} still counts, that is the partition was not rewound since.
+     */
+    public synchronized boolean isCurrent(TopicPartition partition, long epoch) {
+        PartitionOffsets offsets = partitions.get(partition);
+        return offsets != null && offsets.epoch == epoch;
+    }
+
+    /**
+     * Returns the positions that advanced since they were last returned and treats them as committed.
+     */
+    public synchronized Map<TopicPartition, OffsetAndMetadata> committable() {
+        return committable(partitions.keySet());
+    }
+
+    public synchronized Map<TopicPartition, OffsetAndMetadata> committable(Set<TopicPartition> only) {
+        Map<TopicPartition, OffsetAndMetadata> result = new HashMap<>();
+        for (TopicPartition partition : only) {
+            PartitionOffsets offsets = partitions.get(partition);
+            if (offsets != null && offsets.position > offsets.committed) {
+                offsets.committed = offsets.position;
+                result.put(partition, new OffsetAndMetadata(offsets.position, ""));
+            }
+        }
+        completedSinceCommit = 0;
+        return result;
+    }
+
+    /**
+     * Hands positions back after a failed commit so the next {@link #committable()} includes them again.
+     */
+    public synchronized void commitFailed(Map<TopicPartition, OffsetAndMetadata> failed) {
+        failed.forEach((partition, offset) -> {
+            PartitionOffsets offsets = partitions.get(partition);
+            if (offsets != null && offsets.committed == offset.getOffset()) {
+                offsets.committed = -1;
+            }
+        });
+    }
+
+    public synchronized void remove(Set<TopicPartition> revoked) {
+        revoked.forEach(partitions::remove);
+    }
+
+    public synchronized int getCompletedSinceCommit() {
+        return completedSinceCommit;
+    }
+
+    public synchronized JsonObject stats() {
+        JsonObject stats = new JsonObject();
+        partitions.forEach((partition, offsets) -> stats.put(partition.getTopic() + "-" + partition.getPartition(),
+                new JsonObject()
+                        .put("inFlight", offsets.inFlight.size())
+                        .put("position", offsets.position)
+                        .put("committed", offsets.committed)));
+        return stats;
+    }
+
+    private static final class PartitionOffsets {
+        // Tracked offsets in order, true once applied
+        private final TreeMap<Long, Boolean> inFlight = new TreeMap<>();
+        private long epoch;
+        private long position = -1;
+        private long committed = -1;
+        private long awaiting = -1;
+
+        private PartitionOffsets(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+}
@@ -1,10 +1,22 @@
 package com.payex.project.controller;
 
+import com.payex.project.cache.CachedStateMachine;
+import com.payex.project.cache.LruCache;
+import com.payex.project.definition.DefinitionPublisher;
+import com.payex.project.engine.StateGraph;
+import com.payex.project.models.StateMachineAnalysis;
 import com.payex.project.models.StateMachineDB;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.core.streams.WriteStream;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.IndexOptions;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import com.payex.project.constant.AppConstant;
@@ -12,15 +24,54 @@ import com.payex.project.repository.RepoUtil;
 
 import java.util.*;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 
 public class ControllerVerticle extends AbstractVerticle {
 
     private static final Logger LOGGER = LogManager.getLogger(ControllerVerticle.class);
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+    // Definitions fetched from Mongo at once while exporting
+    private static final int EXPORT_BATCH_SIZE = 500;
+    private static final Pattern FIELD_NAME = Pattern.compile("\\w+");
+    private static final JsonObject BY_ID = new JsonObject().put("_id", 1);
+    private static final String VERSIONS_INDEX_NAME = "stateMachineName_version";
+    private static final JsonObject NEWEST_VERSION_FIRST = new JsonObject()
+            .put(StateMachineDB.Fields.stateMachineName, 1)
+            .put(StateMachineDB.Fields.version, -1);
     private final RepoUtil repoUtil;
+    private final LruCache<String, CachedStateMachine> stateMachineCache;
+    private final DefinitionPublisher definitionPublisher;
 
     public ControllerVerticle(RepoUtil repoUtil) {
+        this(repoUtil, null);
+    }
+
+    public ControllerVerticle(RepoUtil repoUtil, LruCache<String, CachedStateMachine> stateMachineCache) {
+        this(repoUtil, stateMachineCache, null);
+    }
+
+    public ControllerVerticle(RepoUtil repoUtil, LruCache<String, CachedStateMachine> stateMachineCache,
+                              DefinitionPublisher definitionPublisher) {
         this.repoUtil = repoUtil;
+        this.definitionPublisher = definitionPublisher;
+        this.stateMachineCache = stateMachineCache;
+    }
+
+    /**
+     * Ensures the index the next version number of a definition is read from. Startup does not depend on it: if it
+     * cannot be created a warning is logged and creating a definition scans its versions until it exists.
+     */
+    public Future<Void> ensureIndexes() {
+        return repoUtil.createIndex(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, NEWEST_VERSION_FIRST,
+                        new IndexOptions().name(VERSIONS_INDEX_NAME))
+                .recover(err -> {
+                    LOGGER.warn("State machine versions index not ensured - {}", err.getMessage());
+                    return Future.succeededFuture();
+                });
     }
 
     public Future<JsonObject> createStateMachine(JsonObject reqJO) {
@@ -38,6 +89,7 @@ public class ControllerVerticle extends AbstractVerticle {
                         .events(reqJO.getJsonArray("events").getList())
                         .transitions(reqJO.getJsonObject("transitions").mapTo(Map.class))
                         .partition(partition)
+                        .engine(reqJO.getString("engine"))
                         .build();
 
         if (!isValidTransitions(stateMachineDB)) {
@@ -48,6 +100,7 @@ public class ControllerVerticle extends AbstractVerticle {
             LOGGER.info("Invalid transitions: Missing states or events");
             return promise.future();
         }
+        StateMachineAnalysis analysis = analyze(id, stateMachineDB);
 
         repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, new JsonObject().put("_id", id), new JsonObject())
                 .onSuccess(res -> {
@@ -61,17 +114,35 @@ public class ControllerVerticle extends AbstractVerticle {
                         return;
                     }
 
-                    repoUtil.save(AppConstant.COLLECTION_STATE_MACHINES, JsonObject.mapFrom(stateMachineDB))
-                            .onSuccess(result -> {
+                    // Numbers of deleted definitions are not reused, so a cached version is never another definition
+                    latestVersion(id)
+                            .compose(latest -> {
+                                stateMachineDB.setVersion(latest + 1);
+                                JsonObject definition = JsonObject.mapFrom(stateMachineDB);
+                                return repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINES, definition)
+                                        .compose(v -> archive(definition))
+                                        .compose(v -> publishDefinition(id, definition));
+                            })
+                            .onSuccess(published -> {
                                 JsonObject response = new JsonObject()
                                         .put("statusCode", 201)
                                         .put("success", true)
                                         .put("message", "State machine created successfully")
-                                        .put("id", id);
-                                LOGGER.info("State machine created: {}", id);
+                                        .put("id", id)
+                                        .put("version", stateMachineDB.getVersion())
+                                        .put("analysis", JsonObject.mapFrom(analysis));
+                                LOGGER.info("State machine created: {} version {}", id, stateMachineDB.getVersion());
                                 promise.complete(response);
                             })
                             .onFailure(err -> {
+                                if (RepoUtil.isDuplicateKey(err)) {
+                                    LOGGER.warn("State machine with ID {} was created concurrently", id);
+                                    promise.complete(new JsonObject()
+                                            .put("statusCode", 409)
+                                            .put("success", false)
+                                            .put("message", "State machine with Name already exists"));
+                                    return;
+                                }
                                 JsonObject errorResponse = new JsonObject()
                                         .put("statusCode", 500)
                                         .put("success", false)
@@ -127,6 +198,11 @@ public class ControllerVerticle extends AbstractVerticle {
         return promise.future();
     }
 
+    /**
+     * Stores the definition as a new version. Versions are immutable: the previous one is kept in the versions
+     * collection for the processes that started on it, and the definition only moves to the new version if no other
+     * update moved it since it was read.
+     */
     public Future<JsonObject>  updateStateMachine(String id, JsonObject reqJO) {
         Promise<JsonObject> promise = Promise.promise();
 
@@ -137,6 +213,7 @@ public class ControllerVerticle extends AbstractVerticle {
                         .states(reqJO.getJsonArray("states").getList())
                         .events(reqJO.getJsonArray("events").getList())
                         .transitions(reqJO.getJsonObject("transitions").mapTo(Map.class))
+                        .engine(reqJO.getString("engine"))
                         .build();
 
         if (!isValidTransitions(stateMachineDB)) {
@@ -147,6 +224,7 @@ public class ControllerVerticle extends AbstractVerticle {
             LOGGER.info("Invalid transitions: Missing states or events");
             return promise.future();
         }
+        StateMachineAnalysis analysis = analyze(id, stateMachineDB);
 
         JsonObject updateData = JsonObject.mapFrom(stateMachineDB);
 
@@ -154,24 +232,48 @@ public class ControllerVerticle extends AbstractVerticle {
         updateData.remove("stateMachineName");
         updateData.remove("partition");
 
-        repoUtil.findOneAndUpdate(AppConstant.COLLECTION_STATE_MACHINES, query, updateData)
-                .onSuccess(result -> {
-                    if (result== null) {
-                        JsonObject response = new JsonObject()
+        repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, query, new JsonObject())
+                .compose(current -> {
+                    if (current == null) {
+                        return Future.succeededFuture(new JsonObject()
                                 .put("statusCode", 404)
                                 .put("success", false)
-                                .put("message", "State machine not found");
-                        LOGGER.info("Invalid transitions: Missing states or events");
-                        promise.complete(response);
-                    } else {
-                        JsonObject response = new JsonObject()
-                                .put("statusCode", 200)
-                                .put("success", true)
-                                .put("message", "State machine updated successfully");
-                        LOGGER.info("State machine {} updated successfully", id);
-                        promise.complete(response);
+                                .put("message", "State machine not found"));
                     }
+                    // Definitions stored before versioning have no version, which Mongo matches as null
+                    Integer stored = current.getInteger(StateMachineDB.Fields.version);
+                    int version = stored == null ? 0 : stored;
+                    updateData.put(StateMachineDB.Fields.version, version + 1);
+                    JsonObject expected = query.copy().put(StateMachineDB.Fields.version, stored);
+                    // Archiving the current version again is a no-op, unless it predates versioning or a previous
+                    // update failed before archiving it
+                    return archive(current)
+                            .compose(v -> repoUtil.findOneAndUpdate(AppConstant.COLLECTION_STATE_MACHINES, expected, updateData))
+                            .compose(result -> {
+                                if (result == null) {
+                                    LOGGER.warn("State machine {} was modified concurrently", id);
+                                    return Future.succeededFuture(new JsonObject()
+                                            .put("statusCode", 409)
+                                            .put("success", false)
+                                            .put("message", "State machine was modified concurrently"));
+                                }
+                                invalidateCachedStateMachine(id);
+                                // findOneAndUpdate returns the document as it was before the update
+                                JsonObject definition = result.copy().mergeIn(updateData);
+                                return archive(definition)
+                                        .compose(v -> publishDefinition(id, definition))
+                                        .map(published -> {
+                                            LOGGER.info("State machine {} updated to version {}", id, version + 1);
+                                            return new JsonObject()
+                                                    .put("statusCode", 200)
+                                                    .put("success", true)
+                                                    .put("message", "State machine updated successfully")
+                                                    .put("version", version + 1)
+                                                    .put("analysis", JsonObject.mapFrom(analysis));
+                                        });
+                            });
                 })
+                .onSuccess(promise::complete)
                 .onFailure(err -> {
                     LOGGER.error("Failed to update state machine {}: {}", id, err.getMessage());
 
@@ -188,7 +290,7 @@ public class ControllerVerticle extends AbstractVerticle {
         Promise<JsonObject> promise = Promise.promise();
 
         repoUtil.findOneAndDelete(AppConstant.COLLECTION_STATE_MACHINES, new JsonObject().put("_id",id))
-                .onSuccess(res -> {
+                .compose(res -> {
                     if (res== null) {
 
                         JsonObject response = new JsonObject()
@@ -196,17 +298,22 @@ public class ControllerVerticle extends AbstractVerticle {
                                 .put("success", false)
                                 .put("message", "State machine not found");
                         LOGGER.info("State machine not found");
-                        promise.complete(response);
+                        // Published again in case the delete that removed it failed to publish its tombstone
+                        return publishDefinition(id, null).map(response);
                     }
                     else {
-                        JsonObject response = new JsonObject()
-                                .put("statusCode", 200)
-                                .put("success", true)
-                                .put("message", "State machine deleted successfully");
-                        LOGGER.info("State machine deleted successfully");
-                        promise.complete(response);
+                        invalidateCachedStateMachine(id);
+                        return publishDefinition(id, null).map(published -> {
+                            JsonObject response = new JsonObject()
+                                    .put("statusCode", 200)
+                                    .put("success", true)
+                                    .put("message", "State machine deleted successfully");
+                            LOGGER.info("State machine deleted successfully");
+                            return response;
+                        });
                     }
                 })
+                .onSuccess(promise::complete)
                 .onFailure(err -> {
 
                     LOGGER.error("Failed to delete state machine for ID: " + id + " - " + err.getMessage());
@@ -220,7 +327,196 @@ public class ControllerVerticle extends AbstractVerticle {
         return promise.future();
     }
 
-    private boolean isValidTransitions(StateMachineDB stateMachineDB) {
+    /**
+     * A page of definitions in _id order. The cursor of the next page is the last _id, so every page is a range
+     * scan of the _id index however deep it is.
+     *
+     * @param cursor {@code nextCursor} of the previous page, or {@code null} for the first one
+     * @param fields fields to return besides _id, or empty for the whole definitions
+     */
+    public Future<JsonObject> listStateMachines(String cursor, int limit, List<String> fields) {
+        if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+            return Future.succeededFuture(badRequest("Limit must be between 1 and " + MAX_PAGE_SIZE));
+        }
+        JsonObject projection;
+        try {
+            projection = projection(fields);
+        } catch (IllegalArgumentException e) {
+            return Future.succeededFuture(badRequest(e.getMessage()));
+        }
+        JsonObject query = cursor == null ? new JsonObject() : new JsonObject().put("_id", new JsonObject().put("$gt", cursor));
+        // One extra definition tells whether another page follows
+        FindOptions options = new FindOptions()
+                .setSort(BY_ID.copy())
+                .setFields(projection)
+                .setLimit(limit + 1);
+
+        Promise<JsonObject> promise = Promise.promise();
+        repoUtil.find(AppConstant.COLLECTION_STATE_MACHINES, query, options)
+                .onSuccess(res -> {
+                    boolean more = res.size() > limit;
+                    List<JsonObject> page = more ? res.subList(0, limit) : res;
+                    JsonObject response = new JsonObject()
+                            .put("statusCode", 200)
+                            .put("success", true)
+                            .put("message", page.size() + " state machines found")
+                            .put("stateMachines", new JsonArray(new ArrayList<>(page)))
+                            .put("nextCursor", more ? page.get(page.size() - 1).getString("_id") : null);
+                    promise.complete(response);
+                })
+                .onFailure(err -> {
+                    LOGGER.error("Failed to list state machines after {} - {}", cursor, err.getMessage());
+                    JsonObject errorResponse = new JsonObject()
+                            .put("statusCode", 500)
+                            .put("success", false)
+                            .put("error", "Failed to list state machines: " + err.getMessage());
+                    promise.fail(errorResponse.encode());
+                });
+        return promise.future();
+    }
+
+    /**
+     * Writes every definition to {@code out} as NDJSON in _id order. Definitions are fetched from Mongo a batch
+     * at a time as they are written, and fetching pauses while {@code out}'s write queue is full, so the
+     * collection is never held whole. If {@code out} fails, for example because the client disconnected, the
+     * cursor is closed.
+     *
+     * @param projection fields to return, see {@link #projection}
+     * @return the number of definitions written; failed if reading or writing failed part way, in which case the
+     * output is incomplete
+     */
+    public Future<Long> exportStateMachines(JsonObject projection, WriteStream<Buffer> out) {
+        Promise<Long> promise = Promise.promise();
+        AtomicLong written = new AtomicLong();
+        ReadStream<JsonObject> definitions = repoUtil.findBatch(AppConstant.COLLECTION_STATE_MACHINES, new JsonObject(),
+                new FindOptions()
+                        .setSort(BY_ID.copy())
+                        .setFields(projection)
+                        .setBatchSize(EXPORT_BATCH_SIZE));
+        definitions.exceptionHandler(err -> {
+            LOGGER.error("State machine export failed after {} definitions - {}", written.get(), err.getMessage());
+            promise.tryFail(err);
+        });
+        // Removing the handler closes the cursor
+        Handler<Throwable> abort = err -> {
+            definitions.handler(null);
+            if (promise.tryFail(err)) {
+                LOGGER.warn("State machine export aborted after {} definitions - {}", written.get(), err.getMessage());
+            }
+        };
+        // An HTTP response reports a closed connection here, also while reading is paused for a drain that never comes
+        out.exceptionHandler(abort);
+        definitions.endHandler(v -> {
+            LOGGER.info("Exported {} state machines", written.get());
+            promise.tryComplete(written.get());
+        });
+        definitions.handler(definition -> {
+            try {
+                out.write(Buffer.buffer(definition.encode()).appendByte((byte) '\n'));
+            } catch (IllegalStateException e) {
+                // The client went away
+                abort.handle(e);
+                return;
+            }
+            written.incrementAndGet();
+            if (out.writeQueueFull()) {
+                definitions.pause();
+                out.drainHandler(drained -> definitions.resume());
+            }
+        });
+        return promise.future();
+    }
+
+    /**
+     * Builds a Mongo projection of {@code fields}; _id is always returned.
+     *
+     * @throws IllegalArgumentException if a field is not a plain field name
+     */
+    public static JsonObject projection(List<String> fields) {
+        JsonObject projection = new JsonObject();
+        for (String field : fields) {
+            if (!FIELD_NAME.matcher(field).matches()) {
+                throw new IllegalArgumentException("Invalid field: " + field);
+            }
+            projection.put(field, 1);
+        }
+        return projection;
+    }
+
+    private static JsonObject badRequest(String message) {
+        return new JsonObject()
+                .put("statusCode", 400)
+                .put("success", false)
+                .put("message", message);
+    }
+
+    /**
+     * Publishes a definition, or its deletion when {@code definition} is null, to the definitions topic.
+     * Other nodes only learn about changes from the topic, so a failed publish fails the request; Mongo already
+     * holds the change and repeating the request publishes it again.
+     */
+    private Future<Void> publishDefinition(String id, JsonObject definition) {
+        if (definitionPublisher == null) {
+            return Future.succeededFuture();
+        }
+        Future<Void> published = definition == null
+                ? definitionPublisher.publishDeletion(id)
+                : definitionPublisher.publish(id, definition);
+        return published.recover(err -> {
+            LOGGER.error("Failed to publish state machine definition for ID: " + id + " - " + err.getMessage());
+            return Future.failedFuture(new IllegalStateException(
+                    "Stored but not published to the definitions topic - " + err.getMessage(), err));
+        });
+    }
+
+    /**
+     * The highest version any definition with this id ever had, 0 if none.
+     */
+    private Future<Integer> latestVersion(String id) {
+        FindOptions options = new FindOptions()
+                .setSort(NEWEST_VERSION_FIRST.copy())
+                .setFields(new JsonObject().put(StateMachineDB.Fields.version, 1))
+                .setLimit(1);
+        return repoUtil.find(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS,
+                        new JsonObject().put(StateMachineDB.Fields.stateMachineName, id), options)
+                .map(res -> res.isEmpty() ? 0 : res.get(0).getInteger(StateMachineDB.Fields.version, 0));
+    }
+
+    /**
+     * Stores a definition as its version, unless that version is already stored.
+     */
+    private Future<Void> archive(JsonObject definition) {
+        String id = definition.getString("_id");
+        int version = definition.getInteger(StateMachineDB.Fields.version, 0);
+        JsonObject document = definition.copy()
+                .put("_id", StateMachineDB.versionId(id, version))
+                .put(StateMachineDB.Fields.stateMachineName, definition.getString(StateMachineDB.Fields.stateMachineName, id))
+                .put(StateMachineDB.Fields.version, version);
+        return repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, document)
+                .recover(err -> RepoUtil.isDuplicateKey(err) ? Future.succeededFuture() : Future.failedFuture(err));
+    }
+
+    private void invalidateCachedStateMachine(String id) {
+        if (stateMachineCache != null) {
+            stateMachineCache.invalidate(id);
+        }
+    }
+
+    /**
+     * Analyses the transition graph of a valid definition and stores the result in it, so it is saved with the
+     * definition. Unreachable and dead end states are reported but accepted.
+     */
+    private StateMachineAnalysis analyze(String id, StateMachineDB stateMachineDB) {
+        StateMachineAnalysis analysis = StateGraph.analyze(stateMachineDB);
+        stateMachineDB.setAnalysis(analysis);
+        if (!analysis.getUnreachableStates().isEmpty() || !analysis.getDeadEndStates().isEmpty()) {
+            LOGGER.warn("State machine {} has {} unreachable and {} dead end states", id,
+                    analysis.getUnreachableStates().size(), analysis.getDeadEndStates().size());
+        }
+        return analysis;
+    }
+
+    boolean isValidTransitions(StateMachineDB stateMachineDB) {
         Set<String> stateSet = new HashSet<>(stateMachineDB.getStates());
         Set<String> eventSet = new HashSet<>(stateMachineDB.getEvents());
         Map<String, Map<String, String>> transitions = stateMachineDB.getTransitions();
@@ -0,0 +1,29 @@
+package com.payex.project.definition;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import io.vertx.kafka.client.producer.KafkaProducer;
+import io.vertx.kafka.client.producer.KafkaProducerRecord;
+
+/**
+ * Publishes state machine definitions to the compacted definitions topic, keyed by id. A deletion is published
+ * as a tombstone, which compaction eventually removes together with the older versions of the key.
+ */
+public class DefinitionPublisher {
+
+    private final KafkaProducer<String, String> producer;
+    private final String topic;
+
+    public DefinitionPublisher(KafkaProducer<String, String> producer, String topic) {
+        this.producer = producer;
+        this.topic = topic;
+    }
+
+    public Future<Void> publish(String id, JsonObject definition) {
+        return producer.send(KafkaProducerRecord.create(topic, id, definition.encode())).mapEmpty();
+    }
+
+    public Future<Void> publishDeletion(String id) {
+        return producer.send(KafkaProducerRecord.<String, String>create(topic, id, null)).mapEmpty();
+    }
+}
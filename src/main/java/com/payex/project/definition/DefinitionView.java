@@ -0,0 +1,212 @@
+package com.payex.project.definition;
+
+import com.payex.project.models.StateMachineDB;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonObject;
+import io.vertx.kafka.client.common.PartitionInfo;
+import io.vertx.kafka.client.common.TopicPartition;
+import io.vertx.kafka.client.consumer.KafkaConsumer;
+import io.vertx.kafka.client.consumer.KafkaConsumerRecord;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Local, in-memory copy of every state machine definition, materialized from the compacted definitions topic.
+ * <p>
+ * On start the view reads the whole topic from the beginning with manually assigned partitions, so no consumer
+ * group is involved, and {@link #start} completes once it has caught up with the end offsets seen at startup.
+ * Afterwards it keeps following the topic; every change is passed to the listeners so built state machines can
+ * be invalidated on every node.
+ * <p>
+ * Concurrent updates may be published out of order, so a definition older than the version already seen for its
+ * id is ignored. The version of a deleted definition is remembered as well; a definition created again gets a
+ * higher version.
+ */
+public class DefinitionView {
+
+    private static final Logger LOGGER = LogManager.getLogger(DefinitionView.class);
+
+    private final Map<String, JsonObject> definitions = new ConcurrentHashMap<>();
+    // Highest version seen per id, deleted ids included; only touched while holding the lock
+    private final Map<String, Integer> versions = new HashMap<>();
+    private final List<Consumer<String>> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean ready;
+    // Bumped by every record, guards fallback reads from Mongo against a concurrent update or deletion
+    private long updates;
+
+    public JsonObject get(String id) {
+        return definitions.get(id);
+    }
+
+    public int size() {
+        return definitions.size();
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Registers a callback invoked with the id of every definition that changed or was deleted.
+     */
+    public DefinitionView addListener(Consumer<String> listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Applies one record of the topic; a {@code null} definition is a tombstone. A definition with a lower
+     * version than the one already seen for the id is dropped. Only called from the consumer's context.
+     */
+    public void apply(String id, JsonObject definition) {
+        if (id == null) {
+            return;
+        }
+        synchronized (this) {
+            if (definition == null) {
+                definitions.remove(id);
+            } else {
+                int version = definition.getInteger(StateMachineDB.Fields.version, 0);
+                if (version < versions.getOrDefault(id, 0)) {
+                    LOGGER.warn("Ignoring version {} of {}, version {} was already applied", version, id, versions.get(id));
+                    return;
+                }
+                versions.put(id, version);
+                definitions.put(id, definition);
+            }
+            updates++;
+        }
+        listeners.forEach(listener -> listener.accept(id));
+    }
+
+    public synchronized long updates() {
+        return updates;
+    }
+
+    /**
+     * Stores a definition read from Mongo after a miss, unless the topic delivered any record since
+     * {@code expectedUpdates} was read; that record may have changed or deleted this very definition.
+     */
+    public synchronized void putIfUnchanged(String id, JsonObject definition, long expectedUpdates) {
+        if (updates == expectedUpdates) {
+            definitions.putIfAbsent(id, definition);
+        }
+    }
+
+    /**
+     * Starts following {@code topic} and completes once the view caught up with it, or after
+     * {@code timeoutMs} with a warning; lookups that miss the view fall back to Mongo in the meantime.
+     */
+    public Future<Void> start(KafkaConsumer<String, String> consumer, String topic, long timeoutMs) {
+        Promise<Void> caughtUp = Promise.promise();
+        // Records may arrive before the end offsets are known
+        CatchUp catchUp = new CatchUp();
+
+        consumer.handler(record -> {
+            JsonObject definition = decode(record);
+            if (record.value() == null || definition != null) {
+                apply(record.key(), definition);
+            }
+            TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+            synchronized (catchUp) {
+                catchUp.positions.put(partition, record.offset() + 1);
+                if (!catchUp.endsKnown) {
+                    return;
+                }
+                Long end = catchUp.remaining.get(partition);
+                if (end != null && record.offset() + 1 >= end) {
+                    catchUp.remaining.remove(partition);
+                }
+                if (catchUp.remaining.isEmpty()) {
+                    caughtUp.tryComplete();
+                }
+            }
+        });
+        consumer.exceptionHandler(err -> LOGGER.error("Definitions topic consumer failed - {}", err.getMessage()));
+
+        consumer.partitionsFor(topic)
+                .compose(infos -> {
+                    Set<TopicPartition> partitions = infos.stream()
+                            .map(PartitionInfo::getPartition)
+                            .map(partition -> new TopicPartition(topic, partition))
+                            .collect(Collectors.toSet());
+                    if (partitions.isEmpty()) {
+                        LOGGER.warn("Definitions topic {} has no partitions", topic);
+                        caughtUp.tryComplete();
+                        return Future.succeededFuture();
+                    }
+                    return consumer.assign(partitions)
+                            .compose(v -> consumer.seekToBeginning(partitions))
+                            .compose(v -> consumer.endOffsets(partitions))
+                            .onSuccess(ends -> {
+                                synchronized (catchUp) {
+                                    ends.forEach((partition, end) -> {
+                                        if (end > catchUp.positions.getOrDefault(partition, 0L)) {
+                                            catchUp.remaining.put(partition, end);
+                                        }
+                                    });
+                                    catchUp.endsKnown = true;
+                                    if (catchUp.remaining.isEmpty()) {
+                                        caughtUp.tryComplete();
+                                    }
+                                }
+                            })
+                            .mapEmpty();
+                })
+                .onFailure(caughtUp::tryFail);
+
+        long startedAt = System.currentTimeMillis();
+        return caughtUp.future()
+                .timeout(timeoutMs, TimeUnit.MILLISECONDS)
+                .onSuccess(v -> {
+                    ready = true;
+                    LOGGER.info("Loaded {} definitions from {} in {} ms", definitions.size(), topic,
+                            System.currentTimeMillis() - startedAt);
+                })
+                .recover(err -> {
+                    LOGGER.warn("Definitions view not caught up with {}, serving misses from Mongo - {}", topic,
+                            err.getMessage());
+                    return Future.succeededFuture();
+                });
+    }
+
+    public JsonObject stats() {
+        return new JsonObject()
+                .put("ready", ready)
+                .put("size", definitions.size())
+                .put("updates", updates());
+    }
+
+    /**
+     * Progress of the initial read, guarded by itself: the next offset per partition and the end offsets not
+     * reached yet, which are complete once {@code endsKnown} is set.
+     */
+    private static final class CatchUp {
+        private final Map<TopicPartition, Long> positions = new HashMap<>();
+        private final Map<TopicPartition, Long> remaining = new HashMap<>();
+        private boolean endsKnown;
+    }
+
+    private static JsonObject decode(KafkaConsumerRecord<String, String> record) {
+        if (record.value() == null) {
+            return null;
+        }
+        try {
+            return new JsonObject(record.value());
+        } catch (Exception e) {
+            LOGGER.error("Skipping invalid definition for ID: {}", record.key());
+            return null;
+        }
+    }
+}
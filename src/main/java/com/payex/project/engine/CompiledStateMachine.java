@@ -0,0 +1,223 @@
+package com.payex.project.engine;
+
+import com.payex.project.models.StateMachineDB;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable, int-indexed form of a {@link StateMachineDB}.
+ * <p>
+ * State and event names are interned to indices at compile time and transitions are stored as a
+ * {@code [state][event] -> target} table, so {@link #fire(String, String)} is two hash lookups and an array
+ * read. Nothing is allocated per call and instances can be shared freely between threads.
+ * <p>
+ * Machines whose {@code states x events} table would exceed {@link #MAX_DENSE_CELLS} fall back to a sorted
+ * per-state row that is binary searched, which keeps memory proportional to the number of transitions.
+ * <p>
+ * The definition's stored analysis is not read, so a stale or mismatched one can never fail compilation.
+ */
+public final class CompiledStateMachine {
+
+    public static final int NO_TRANSITION = -1;
+    static final int MAX_DENSE_CELLS = 1 << 22;
+
+    private final String id;
+    private final int version;
+    private final String[] states;
+    private final String[] events;
+    private final Map<String, Integer> stateIndex;
+    private final Map<String, Integer> eventIndex;
+    private final int transitionCount;
+
+    // Dense layout: table[state * events.length + event]
+    private final int[] table;
+
+    // Sparse layout: rowEvents[state] is sorted, rowTargets[state] is aligned with it
+    private final int[][] rowEvents;
+    private final int[][] rowTargets;
+
+    private CompiledStateMachine(String id, int version, String[] states, String[] events,
+                                 Map<String, Integer> stateIndex, Map<String, Integer> eventIndex,
+                                 int transitionCount, int[] table, int[][] rowEvents, int[][] rowTargets) {
+        this.id = id;
+        this.version = version;
+        this.states = states;
+        this.events = events;
+        this.stateIndex = stateIndex;
+        this.eventIndex = eventIndex;
+        this.transitionCount = transitionCount;
+        this.table = table;
+        this.rowEvents = rowEvents;
+        this.rowTargets = rowTargets;
+    }
+
+    public static CompiledStateMachine compile(StateMachineDB definition) {
+        List<String> stateList = definition.getStates();
+        List<String> eventList = definition.getEvents();
+        if (stateList == null || stateList.isEmpty()) {
+            throw new IllegalArgumentException("State machine " + definition.get_id() + " has no states");
+        }
+
+        String[] states = stateList.toArray(new String[0]);
+        String[] events = eventList == null ? new String[0] : eventList.toArray(new String[0]);
+        Map<String, Integer> stateIndex = intern(states);
+        Map<String, Integer> eventIndex = intern(events);
+
+        Map<String, Map<String, String>> transitions =
+                definition.getTransitions() == null ? Map.of() : definition.getTransitions();
+
+        int count = 0;
+        int[][] rowEvents = new int[states.length][];
+        int[][] rowTargets = new int[states.length][];
+        for (int s = 0; s < states.length; s++) {
+            Map<String, String> row = transitions.getOrDefault(states[s], Map.of());
+            int[] rowE = new int[row.size()];
+            int n = 0;
+            for (String event : row.keySet()) {
+                rowE[n++] = indexOf(eventIndex, event, "event");
+            }
+            Arrays.sort(rowE);
+            int[] rowT = new int[n];
+            for (int i = 0; i < n; i++) {
+                rowT[i] = indexOf(stateIndex, row.get(events[rowE[i]]), "state");
+            }
+            rowEvents[s] = rowE;
+            rowTargets[s] = rowT;
+            count += n;
+        }
+
+        long cells = (long) states.length * events.length;
+        if (cells > MAX_DENSE_CELLS) {
+            return new CompiledStateMachine(definition.get_id(), definition.getVersion(), states, events,
+                    stateIndex, eventIndex, count, null, rowEvents, rowTargets);
+        }
+
+        int[] table = new int[(int) cells];
+        Arrays.fill(table, NO_TRANSITION);
+        for (int s = 0; s < states.length; s++) {
+            for (int i = 0; i < rowEvents[s].length; i++) {
+                table[s * events.length + rowEvents[s][i]] = rowTargets[s][i];
+            }
+        }
+        return new CompiledStateMachine(definition.get_id(), definition.getVersion(), states, events,
+                stateIndex, eventIndex, count, table, null, null);
+    }
+
+    /**
+     * Applies {@code event} to {@code currentState}.
+     *
+     * @return the target state, or {@code null} if the state or event is unknown or no transition exists
+     */
+    public String fire(String currentState, String event) {
+        Integer state = stateIndex.get(currentState);
+        Integer evt = eventIndex.get(event);
+        if (state == null || evt == null) {
+            return null;
+        }
+        int target = fire(state, evt);
+        return target == NO_TRANSITION ? null : states[target];
+    }
+
+    /**
+     * Index based variant of {@link #fire(String, String)}.
+     *
+     * @return the target state index, or {@link #NO_TRANSITION}
+     */
+    public int fire(int state, int event) {
+        if (table != null) {
+            return table[state * events.length + event];
+        }
+        int i = Arrays.binarySearch(rowEvents[state], event);
+        return i < 0 ? NO_TRANSITION : rowTargets[state][i];
+    }
+
+    /**
+     * Visits every defined transition, in state order.
+     */
+    public void forEachTransition(TransitionVisitor visitor) {
+        for (int state = 0; state < states.length; state++) {
+            if (table != null) {
+                int row = state * events.length;
+                for (int event = 0; event < events.length; event++) {
+                    if (table[row + event] != NO_TRANSITION) {
+                        visitor.visit(state, event, table[row + event]);
+                    }
+                }
+            } else {
+                for (int i = 0; i < rowEvents[state].length; i++) {
+                    visitor.visit(state, rowEvents[state][i], rowTargets[state][i]);
+                }
+            }
+        }
+    }
+
+    public int stateIndex(String state) {
+        Integer index = stateIndex.get(state);
+        return index == null ? NO_TRANSITION : index;
+    }
+
+    public int eventIndex(String event) {
+        Integer index = eventIndex.get(event);
+        return index == null ? NO_TRANSITION : index;
+    }
+
+    public String stateName(int index) {
+        return states[index];
+    }
+
+    public String eventName(int index) {
+        return events[index];
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public String getInitialState() {
+        return states[0];
+    }
+
+    public int getStateCount() {
+        return states.length;
+    }
+
+    public int getEventCount() {
+        return events.length;
+    }
+
+    public int getTransitionCount() {
+        return transitionCount;
+    }
+
+    public boolean isDense() {
+        return table != null;
+    }
+
+    @FunctionalInterface
+    public interface TransitionVisitor {
+        void visit(int source, int event, int target);
+    }
+
+    private static Map<String, Integer> intern(String[] names) {
+        Map<String, Integer> index = new HashMap<>(names.length * 2);
+        for (int i = 0; i < names.length; i++) {
+            index.putIfAbsent(names[i], i);
+        }
+        return index;
+    }
+
+    private static int indexOf(Map<String, Integer> index, String name, String kind) {
+        Integer i = index.get(name);
+        if (i == null) {
+            throw new IllegalArgumentException("Transition references undefined " + kind + " '" + name + "'");
+        }
+        return i;
+    }
+}
@@ -0,0 +1,273 @@
+package com.payex.project.engine;
+
+import com.payex.project.models.StateMachineAnalysis;
+import com.payex.project.models.StateMachineDB;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Analysis of a definition's transition graph in O(states + transitions).
+ * <p>
+ * States are interned to indices once and the transitions are laid out as compressed rows, {@code targets[offsets[s]]}
+ * to {@code targets[offsets[s + 1] - 1]} being the targets of state {@code s}; every pass after that works on int
+ * arrays only. Reachability is a breadth first search from the initial state, dead ends a breadth first search
+ * from the terminal states over the reversed edges and the strongly connected components an iterative Tarjan, so
+ * deep graphs cannot overflow the stack.
+ */
+public final class StateGraph {
+
+    private static final int UNVISITED = -1;
+
+    private final String[] states;
+    private final int[] offsets;
+    private final int[] targets;
+    private final boolean[] selfLoop;
+
+    private StateGraph(String[] states, int[] offsets, int[] targets, boolean[] selfLoop) {
+        this.states = states;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.selfLoop = selfLoop;
+    }
+
+    /**
+     * Analyses a definition whose transitions only reference its own states, see
+     * {@code ControllerVerticle.isValidTransitions}. The first state is the initial state.
+     *
+     * @throws IllegalArgumentException if a transition references an undefined state
+     */
+    public static StateMachineAnalysis analyze(StateMachineDB definition) {
+        return of(definition).analyze();
+    }
+
+    static StateGraph of(StateMachineDB definition) {
+        String[] states = definition.getStates().toArray(new String[0]);
+        Map<String, Integer> index = new HashMap<>(states.length * 2);
+        for (int i = 0; i < states.length; i++) {
+            index.putIfAbsent(states[i], i);
+        }
+        Map<String, Map<String, String>> transitions =
+                definition.getTransitions() == null ? Map.of() : definition.getTransitions();
+
+        int[] offsets = new int[states.length + 1];
+        for (int s = 0; s < states.length; s++) {
+            Map<String, String> row = transitions.get(states[s]);
+            offsets[s + 1] = offsets[s] + (row == null ? 0 : row.size());
+        }
+        int[] targets = new int[offsets[states.length]];
+        boolean[] selfLoop = new boolean[states.length];
+        for (int s = 0; s < states.length; s++) {
+            Map<String, String> row = transitions.get(states[s]);
+            if (row == null) {
+                continue;
+            }
+            int next = offsets[s];
+            for (String target : row.values()) {
+                Integer t = index.get(target);
+                if (t == null) {
+                    throw new IllegalArgumentException("Transition references undefined state '" + target + "'");
+                }
+                targets[next++] = t;
+                selfLoop[s] |= t == s;
+            }
+        }
+        return new StateGraph(states, offsets, targets, selfLoop);
+    }
+
+    StateMachineAnalysis analyze() {
+        int n = states.length;
+        boolean[] reachable = reachableFromInitial();
+        boolean[] leadsToTerminal = leadsToTerminal();
+        boolean anyTerminal = false;
+
+        List<String> terminal = new ArrayList<>();
+        List<String> unreachable = new ArrayList<>();
+        for (int s = 0; s < n; s++) {
+            if (isTerminal(s)) {
+                terminal.add(states[s]);
+                anyTerminal = true;
+            }
+            if (!reachable[s]) {
+                unreachable.add(states[s]);
+            }
+        }
+        // A machine without terminal states is meant to run forever, which is not a dead end
+        List<String> deadEnds = new ArrayList<>();
+        if (anyTerminal) {
+            for (int s = 0; s < n; s++) {
+                if (!leadsToTerminal[s]) {
+                    deadEnds.add(states[s]);
+                }
+            }
+        }
+
+        int[] component = new int[n];
+        int componentCount = stronglyConnectedComponents(component);
+        int[] size = new int[componentCount];
+        for (int s = 0; s < n; s++) {
+            size[component[s]]++;
+        }
+        // Cycles in the order their first state is defined
+        int[] cycleOf = new int[componentCount];
+        Arrays.fill(cycleOf, UNVISITED);
+        List<List<String>> cycles = new ArrayList<>();
+        List<Integer> components = new ArrayList<>(n);
+        for (int s = 0; s < n; s++) {
+            int c = component[s];
+            components.add(c);
+            if (size[c] > 1 || selfLoop[s]) {
+                if (cycleOf[c] == UNVISITED) {
+                    cycleOf[c] = cycles.size();
+                    cycles.add(new ArrayList<>(size[c]));
+                }
+                cycles.get(cycleOf[c]).add(states[s]);
+            }
+        }
+
+        return StateMachineAnalysis.builder()
+                .terminalStates(terminal)
+                .unreachableStates(unreachable)
+                .deadEndStates(deadEnds)
+                .cycles(cycles)
+                .components(components)
+                .componentCount(componentCount)
+                .build();
+    }
+
+    private boolean isTerminal(int state) {
+        return offsets[state] == offsets[state + 1];
+    }
+
+    private boolean[] reachableFromInitial() {
+        boolean[] seen = new boolean[states.length];
+        if (states.length == 0) {
+            return seen;
+        }
+        int[] queue = new int[states.length];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = 0;
+        seen[0] = true;
+        while (head < tail) {
+            int s = queue[head++];
+            for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                int t = targets[e];
+                if (!seen[t]) {
+                    seen[t] = true;
+                    queue[tail++] = t;
+                }
+            }
+        }
+        return seen;
+    }
+
+    private boolean[] leadsToTerminal() {
+        int n = states.length;
+        // Reversed edges, laid out like the forward ones
+        int[] reverseOffsets = new int[n + 1];
+        for (int target : targets) {
+            reverseOffsets[target + 1]++;
+        }
+        for (int s = 0; s < n; s++) {
+            reverseOffsets[s + 1] += reverseOffsets[s];
+        }
+        int[] sources = new int[targets.length];
+        int[] next = Arrays.copyOf(reverseOffsets, n);
+        for (int s = 0; s < n; s++) {
+            for (int e = offsets[s]; e < offsets[s + 1]; e++) {
+                sources[next[targets[e]]++] = s;
+            }
+        }
+
+        boolean[] seen = new boolean[n];
+        int[] queue = new int[n];
+        int head = 0;
+        int tail = 0;
+        for (int s = 0; s < n; s++) {
+            if (isTerminal(s)) {
+                seen[s] = true;
+                queue[tail++] = s;
+            }
+        }
+        while (head < tail) {
+            int t = queue[head++];
+            for (int e = reverseOffsets[t]; e < reverseOffsets[t + 1]; e++) {
+                int s = sources[e];
+                if (!seen[s]) {
+                    seen[s] = true;
+                    queue[tail++] = s;
+                }
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Tarjan's algorithm with an explicit call stack. Components are numbered as they complete, which is reverse
+     * topological order.
+     *
+     * @param component filled with the component of each state
+     * @return the number of components
+     */
+    private int stronglyConnectedComponents(int[] component) {
+        int n = states.length;
+        int[] order = new int[n];
+        int[] low = new int[n];
+        Arrays.fill(order, UNVISITED);
+        boolean[] onStack = new boolean[n];
+        int[] stack = new int[n];
+        int stackSize = 0;
+        int[] callStack = new int[n];
+        // Next edge to follow of each state on the call stack
+        int[] edge = new int[n];
+        int visited = 0;
+        int components = 0;
+
+        for (int root = 0; root < n; root++) {
+            if (order[root] != UNVISITED) {
+                continue;
+            }
+            int depth = 0;
+            callStack[0] = root;
+            order[root] = low[root] = visited++;
+            edge[root] = offsets[root];
+            stack[stackSize++] = root;
+            onStack[root] = true;
+
+            while (depth >= 0) {
+                int v = callStack[depth];
+                if (edge[v] < offsets[v + 1]) {
+                    int w = targets[edge[v]++];
+                    if (order[w] == UNVISITED) {
+                        order[w] = low[w] = visited++;
+                        edge[w] = offsets[w];
+                        stack[stackSize++] = w;
+                        onStack[w] = true;
+                        callStack[++depth] = w;
+                    } else if (onStack[w]) {
+                        low[v] = Math.min(low[v], order[w]);
+                    }
+                    continue;
+                }
+                if (low[v] == order[v]) {
+                    int w;
+                    do {
+                        w = stack[--stackSize];
+                        onStack[w] = false;
+                        component[w] = components;
+                    } while (w != v);
+                    components++;
+                }
+                if (--depth >= 0) {
+                    int parent = callStack[depth];
+                    low[parent] = Math.min(low[parent], low[v]);
+                }
+            }
+        }
+        return components;
+    }
+}
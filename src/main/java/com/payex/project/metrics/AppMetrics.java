@@ -0,0 +1,246 @@
+package com.payex.project.metrics;
+
+import com.payex.project.cache.NearCache;
+import com.payex.project.models.TransitionResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.jvm.ClassLoaderMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmGcMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmMemoryMetrics;
+import io.micrometer.core.instrument.binder.jvm.JvmThreadMetrics;
+import io.micrometer.core.instrument.binder.kafka.KafkaClientMetrics;
+import io.micrometer.core.instrument.binder.system.ProcessorMetrics;
+import io.micrometer.prometheus.PrometheusConfig;
+import io.micrometer.prometheus.PrometheusMeterRegistry;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.ext.web.Route;
+import io.vertx.ext.web.RoutingContext;
+import org.apache.kafka.clients.consumer.Consumer;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide metrics, scraped in the Prometheus text format on {@code /metrics}.
+ * <p>
+ * Every consumer stage of applying an event is timed under {@code statemachine_stage_seconds}, tagged with the
+ * stage; Mongo operations, producer sends and HTTP routes have their own timers. All timers publish histogram
+ * buckets so percentiles can be aggregated across instances in Prometheus. Consumer lag per partition comes from
+ * the Kafka client's own metrics, bound with {@link #bindKafkaConsumer}.
+ */
+public final class AppMetrics {
+
+    public static final String STAGE_DECODE = "decode";
+    public static final String STAGE_DEFINITION_FETCH = "definition_fetch";
+    public static final String STAGE_BUILD = "build";
+    public static final String STAGE_REDIS_READ = "redis_read";
+    public static final String STAGE_TRANSITION = "transition";
+    public static final String STAGE_REDIS_WRITE = "redis_write";
+    // Atomic mode reads, transitions and writes in one Redis script
+    public static final String STAGE_REDIS_TRANSITION = "redis_transition";
+
+    public static final String OUTCOME_ACCEPTED = "accepted";
+    public static final String OUTCOME_REJECTED = "rejected";
+    public static final String OUTCOME_DUPLICATE = "duplicate";
+
+    public static final String LOG_WRITTEN = "written";
+    public static final String LOG_DROPPED = "dropped";
+    public static final String LOG_FAILED = "failed";
+
+    private static final PrometheusMeterRegistry REGISTRY = createRegistry();
+
+    private static final Map<String, Timer> STAGE_TIMERS = new ConcurrentHashMap<>();
+    private static final Map<String, Timer> MONGO_TIMERS = new ConcurrentHashMap<>();
+    private static final Map<String, Counter> TRANSITION_COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Counter> TRANSITION_LOG_COUNTERS = new ConcurrentHashMap<>();
+    private static final Timer PRODUCER_SEND_TIMER = Timer.builder("statemachine.kafka.send")
+            .description("Time until the broker acknowledged a produced event")
+            .publishPercentileHistogram()
+            .register(REGISTRY);
+
+    private static final Timer EVENT_LATENCY_TIMER = Timer.builder("statemachine.event.latency")
+            .description("Time from producing an event until the consumer applied it")
+            .publishPercentileHistogram()
+            .maximumExpectedValue(Duration.ofMinutes(1))
+            .register(REGISTRY);
+
+    private AppMetrics() {
+    }
+
+    public static PrometheusMeterRegistry registry() {
+        return REGISTRY;
+    }
+
+    public static String scrape() {
+        return REGISTRY.scrape();
+    }
+
+    /**
+     * Times an asynchronous stage from the call until the returned future completes, successfully or not.
+     */
+    public static <T> Future<T> timeStage(String stage, Supplier<Future<T>> work) {
+        return time(stageTimer(stage), work);
+    }
+
+    /**
+     * Times a synchronous stage, such as decoding a record or firing a transition in memory.
+     */
+    public static <T> T recordStage(String stage, Supplier<T> work) {
+        return stageTimer(stage).record(work);
+    }
+
+    public static <T> Future<T> timeMongo(String operation, Supplier<Future<T>> work) {
+        Timer timer = MONGO_TIMERS.computeIfAbsent(operation, op -> Timer.builder("statemachine.mongo")
+                .description("Latency of Mongo operations")
+                .tag("operation", op)
+                .publishPercentileHistogram()
+                .register(REGISTRY));
+        return time(timer, work);
+    }
+
+    public static <T> Future<T> timeProducerSend(Supplier<Future<T>> send) {
+        return time(PRODUCER_SEND_TIMER, send);
+    }
+
+    /**
+     * Records the time from producing an event, given by its record timestamp, until it was applied.
+     */
+    public static void recordEventLatency(long producedAtMs) {
+        if (producedAtMs > 0) {
+            EVENT_LATENCY_TIMER.record(Math.max(0, System.currentTimeMillis() - producedAtMs), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public static void countTransition(TransitionResult result) {
+        if (result == null) {
+            return;
+        }
+        String outcome = result.isDuplicate() ? OUTCOME_DUPLICATE
+                : result.isAccepted() ? OUTCOME_ACCEPTED : OUTCOME_REJECTED;
+        TRANSITION_COUNTERS.computeIfAbsent(outcome, o -> Counter.builder("statemachine.transitions")
+                        .description("Events applied, by outcome")
+                        .tag("outcome", o)
+                        .register(REGISTRY))
+                .increment();
+    }
+
+    /**
+     * Counts transition log records by what became of them: written to Mongo, dropped on overflow, or failed to
+     * write, in which case they are retried.
+     */
+    public static void countTransitionLog(String outcome, long records) {
+        TRANSITION_LOG_COUNTERS.computeIfAbsent(outcome, o -> Counter.builder("statemachine.transition.log")
+                        .description("Transition log records, by outcome")
+                        .tag("outcome", o)
+                        .register(REGISTRY))
+                .increment(records);
+    }
+
+    /**
+     * Registers the Kafka client's metrics, which include {@code records-lag} per assigned partition, until the
+     * returned binder is closed.
+     */
+    public static KafkaClientMetrics bindKafkaConsumer(Consumer<?, ?> consumer) {
+        KafkaClientMetrics metrics = new KafkaClientMetrics(consumer);
+        metrics.bindTo(REGISTRY);
+        return metrics;
+    }
+
+    /**
+     * Registers the near cache's lookups by result and its evictions by cause, from which Prometheus derives the
+     * hit ratio, along with its current size in entries and estimated bytes.
+     */
+    public static void bindNearCache(NearCache cache) {
+        FunctionCounter.builder("statemachine.nearcache.requests", cache, NearCache::getHits)
+                .description("Near cache lookups, by result")
+                .tag("result", "hit")
+                .register(REGISTRY);
+        FunctionCounter.builder("statemachine.nearcache.requests", cache, NearCache::getMisses)
+                .description("Near cache lookups, by result")
+                .tag("result", "miss")
+                .register(REGISTRY);
+        FunctionCounter.builder("statemachine.nearcache.evictions", cache, NearCache::getSizeEvictions)
+                .description("Entries removed from the near cache, by cause")
+                .tag("cause", "size")
+                .register(REGISTRY);
+        FunctionCounter.builder("statemachine.nearcache.evictions", cache, NearCache::getExpirations)
+                .description("Entries removed from the near cache, by cause")
+                .tag("cause", "expired")
+                .register(REGISTRY);
+        FunctionCounter.builder("statemachine.nearcache.evictions", cache, NearCache::getInvalidations)
+                .description("Entries removed from the near cache, by cause")
+                .tag("cause", "invalidated")
+                .register(REGISTRY);
+        Gauge.builder("statemachine.nearcache.entries", cache, NearCache::size)
+                .description("Entries in the near cache")
+                .register(REGISTRY);
+        Gauge.builder("statemachine.nearcache.bytes", cache, NearCache::bytes)
+                .description("Estimated size of the near cache")
+                .baseUnit("bytes")
+                .register(REGISTRY);
+    }
+
+    /**
+     * Route handler timing every request until its response ended, tagged with the route's path template rather
+     * than the actual path, so ids in the path do not create a series each.
+     */
+    public static Handler<RoutingContext> httpHandler() {
+        return ctx -> {
+            long start = System.nanoTime();
+            ctx.addEndHandler(ar -> Timer.builder("statemachine.http.requests")
+                    .description("Latency of HTTP requests")
+                    .tag("method", ctx.request().method().name())
+                    .tag("route", routeOf(ctx))
+                    .tag("status", String.valueOf(ctx.response().getStatusCode()))
+                    .publishPercentileHistogram()
+                    .register(REGISTRY)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+            ctx.next();
+        };
+    }
+
+    private static String routeOf(RoutingContext ctx) {
+        Route route = ctx.currentRoute();
+        String path = route == null ? null : route.getPath();
+        return path == null ? "unmatched" : path;
+    }
+
+    private static Timer stageTimer(String stage) {
+        return STAGE_TIMERS.computeIfAbsent(stage, s -> Timer.builder("statemachine.stage")
+                .description("Latency of each consumer stage of applying an event")
+                .tag("stage", s)
+                .publishPercentileHistogram()
+                // In-memory stages take microseconds, well below the default lowest bucket
+                .minimumExpectedValue(Duration.ofNanos(1_000))
+                .maximumExpectedValue(Duration.ofSeconds(10))
+                .register(REGISTRY));
+    }
+
+    private static <T> Future<T> time(Timer timer, Supplier<Future<T>> work) {
+        long start = System.nanoTime();
+        Future<T> future;
+        try {
+            future = work.get();
+        } catch (RuntimeException e) {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            throw e;
+        }
+        return future.onComplete(ar -> timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS));
+    }
+
+    private static PrometheusMeterRegistry createRegistry() {
+        PrometheusMeterRegistry registry = new PrometheusMeterRegistry(PrometheusConfig.DEFAULT);
+        new ClassLoaderMetrics().bindTo(registry);
+        new JvmMemoryMetrics().bindTo(registry);
+        new JvmGcMetrics().bindTo(registry);
+        new JvmThreadMetrics().bindTo(registry);
+        new ProcessorMetrics().bindTo(registry);
+        return registry;
+    }
+}
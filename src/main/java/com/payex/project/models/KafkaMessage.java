@@ -1,5 +1,6 @@
 package com.payex.project.models;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -15,4 +16,11 @@ public class KafkaMessage {
     String stateMachineId;
     String processId;
     String event;
-}
\ No newline at end of file
+    // Identifies the event across redeliveries; messages from older producers have none
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    String eventId;
+
+    public KafkaMessage(String stateMachineId, String processId, String event) {
+        this(stateMachineId, processId, event, null);
+    }
+}
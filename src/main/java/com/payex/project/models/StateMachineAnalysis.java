@@ -0,0 +1,32 @@
+package com.payex.project.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.FieldNameConstants;
+
+import java.util.List;
+
+/**
+ * Structure of a definition's transition graph, computed on create and update and stored with the definition.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@FieldNameConstants
+public class StateMachineAnalysis {
+    // States without outgoing transitions
+    List<String> terminalStates;
+    // States the initial state cannot lead to
+    List<String> unreachableStates;
+    // Non-terminal states that cannot lead to any terminal state
+    List<String> deadEndStates;
+    // Strongly connected components of more than one state, or of one state with a self loop
+    List<List<String>> cycles;
+    // Strongly connected component of each state, aligned with the definition's states. Components are numbered
+    // in reverse topological order, so a state only leads to states whose component is not higher than its own
+    List<Integer> components;
+    int componentCount;
+}
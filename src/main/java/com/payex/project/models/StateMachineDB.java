@@ -1,6 +1,7 @@
 package com.payex.project.models;
 
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
@@ -22,4 +23,18 @@ public class StateMachineDB {
     List<String> events;
     Map<String, Map<String, String>> transitions;
     int partition;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    String engine;
+    // 0 for definitions stored before versioning
+    int version;
+    // Computed on create and update, absent on definitions stored before
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    StateMachineAnalysis analysis;
+
+    /**
+     * {@code _id} of a version of a definition in the versions collection.
+     */
+    public static String versionId(String id, int version) {
+        return id + ":" + version;
+    }
 }
@@ -0,0 +1,62 @@
+package com.payex.project.models;
+
+import io.vertx.core.json.JsonObject;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.FieldNameConstants;
+
+/**
+ * One entry of the transition log: an event that was accepted or rejected for a process.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@FieldNameConstants
+public class TransitionRecord {
+    String _id;
+    String processId;
+    String stateMachineId;
+    String eventId;
+    String event;
+    String fromState;
+    String toState;
+    boolean accepted;
+    // The event was redelivered and skipped; only stored if no entry for the same record exists yet
+    boolean duplicate;
+    // When the event was applied, in epoch milliseconds
+    long timestamp;
+    // Where the event was consumed from; null for events applied through POST /transition
+    String topic;
+    Integer partition;
+    Long offset;
+
+    /**
+     * Builds the Mongo document by hand, leaving out absent fields, which is cheaper than mapping with Jackson.
+     */
+    public JsonObject toDocument() {
+        JsonObject document = new JsonObject()
+                .put(Fields._id, _id)
+                .put(Fields.processId, processId)
+                .put(Fields.stateMachineId, stateMachineId)
+                .put(Fields.event, event)
+                .put(Fields.fromState, fromState)
+                .put(Fields.toState, toState)
+                .put(Fields.accepted, accepted)
+                .put(Fields.timestamp, timestamp);
+        if (eventId != null) {
+            document.put(Fields.eventId, eventId);
+        }
+        if (duplicate) {
+            document.put(Fields.duplicate, true);
+        }
+        if (topic != null) {
+            document.put(Fields.topic, topic)
+                    .put(Fields.partition, partition)
+                    .put(Fields.offset, offset);
+        }
+        return document;
+    }
+}
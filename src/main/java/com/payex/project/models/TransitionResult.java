@@ -0,0 +1,28 @@
+package com.payex.project.models;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.experimental.FieldNameConstants;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Builder
+@FieldNameConstants
+public class TransitionResult {
+    boolean accepted;
+    String previousState;
+    String newState;
+    // The event was already applied earlier and was skipped
+    boolean duplicate;
+
+    public TransitionResult(boolean accepted, String previousState, String newState) {
+        this(accepted, previousState, newState, false);
+    }
+
+    public static TransitionResult duplicate(String state) {
+        return new TransitionResult(false, state, state, true);
+    }
+}
@@ -0,0 +1,29 @@
+package com.payex.project.partition;
+
+import com.payex.project.constant.AppConstant;
+import com.payex.project.models.KafkaMessage;
+import com.payex.project.models.StateMachineDB;
+
+/**
+ * Chooses the Kafka partition an event is produced to. Every strategy must map all events of one process to
+ * the same partition, which is what keeps a process's events ordered on the consumer side.
+ */
+public interface PartitionStrategy {
+
+    /**
+     * @param definition     the stored definition of the event's state machine
+     * @param partitionCount number of partitions of the topic, always positive
+     * @return a partition in {@code [0, partitionCount)}
+     */
+    int partitionFor(KafkaMessage message, StateMachineDB definition, int partitionCount);
+
+    static PartitionStrategy forName(String name) {
+        if (name == null || AppConstant.PARTITION_STRATEGY_PROCESS_ID.equals(name)) {
+            return new ProcessIdPartitionStrategy();
+        }
+        if (AppConstant.PARTITION_STRATEGY_STATE_MACHINE.equals(name)) {
+            return new StateMachinePartitionStrategy();
+        }
+        throw new IllegalArgumentException("Unknown partition strategy: " + name);
+    }
+}
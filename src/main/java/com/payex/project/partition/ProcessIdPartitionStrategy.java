@@ -0,0 +1,20 @@
+package com.payex.project.partition;
+
+import com.payex.project.models.KafkaMessage;
+import com.payex.project.models.StateMachineDB;
+import org.apache.kafka.common.utils.Utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Spreads the processes of every state machine over all partitions by hashing the processId with murmur2,
+ * the hash Kafka's default partitioner applies to record keys.
+ */
+public class ProcessIdPartitionStrategy implements PartitionStrategy {
+
+    @Override
+    public int partitionFor(KafkaMessage message, StateMachineDB definition, int partitionCount) {
+        byte[] key = message.getProcessId().getBytes(StandardCharsets.UTF_8);
+        return Utils.toPositive(Utils.murmur2(key)) % partitionCount;
+    }
+}
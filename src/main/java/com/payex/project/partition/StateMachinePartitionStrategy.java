@@ -0,0 +1,17 @@
+package com.payex.project.partition;
+
+import com.payex.project.models.KafkaMessage;
+import com.payex.project.models.StateMachineDB;
+
+/**
+ * Legacy placement: every event of a state machine goes to the partition stored with its definition.
+ * Stored values are taken modulo the real partition count, so definitions created against a different
+ * partition range still land on an existing partition.
+ */
+public class StateMachinePartitionStrategy implements PartitionStrategy {
+
+    @Override
+    public int partitionFor(KafkaMessage message, StateMachineDB definition, int partitionCount) {
+        return Math.floorMod(definition.getPartition(), partitionCount);
+    }
+}
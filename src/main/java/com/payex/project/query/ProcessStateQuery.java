@@ -0,0 +1,135 @@
+package com.payex.project.query;
+
+import com.payex.project.config.ConfigLoader;
+import com.payex.project.service.StateStore;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.WriteStream;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads the states of many processes at once and writes them as NDJSON, one
+ * {@code {"processId": ..., "state": ...}} line per process in request order, with a null state for unknown ones.
+ * <p>
+ * States are read in chunks of {@code chunkSize} with one {@link StateStore#getStates} each, which is an MGET on
+ * Redis. Up to {@code maxInFlight} chunks are requested at once, so their commands are pipelined on the pooled
+ * connections; a chunk is written once it and every chunk before it were read, and reading pauses while the
+ * output's write queue is full. The query stops as soon as the output fails, which is how an HTTP response
+ * reports a disconnected client, so a drain that never comes does not leave it pending.
+ */
+public class ProcessStateQuery {
+
+    private final StateStore stateStore;
+    private final int chunkSize;
+    private final int maxInFlight;
+    private final int maxProcessIds;
+
+    public ProcessStateQuery(StateStore stateStore, ConfigLoader config) {
+        if (config.getStateQueryChunkSize() <= 0 || config.getStateQueryMaxInFlight() <= 0) {
+            throw new IllegalArgumentException("State query chunk size and max in flight must be positive: "
+                    + config.getStateQueryChunkSize() + ", " + config.getStateQueryMaxInFlight());
+        }
+        this.stateStore = stateStore;
+        this.chunkSize = config.getStateQueryChunkSize();
+        this.maxInFlight = config.getStateQueryMaxInFlight();
+        this.maxProcessIds = config.getStateQueryMaxProcessIds();
+    }
+
+    public int getMaxProcessIds() {
+        return maxProcessIds;
+    }
+
+    /**
+     * @param states when not {@code null}, only processes in one of these states are written
+     * @return the number of lines written, failed if a read or write failed, in which case the output is
+     * incomplete
+     */
+    public Future<Long> stream(List<String> processIds, Set<String> states, WriteStream<Buffer> out) {
+        Query query = new Query(processIds, states, out);
+        out.exceptionHandler(query.promise::tryFail);
+        pump(query);
+        return query.promise.future();
+    }
+
+    /**
+     * Writes every chunk that is already read, in order, until one is still being read or the output is full.
+     */
+    private void pump(Query query) {
+        while (!query.promise.future().isComplete()) {
+            while (query.reads.size() < maxInFlight && query.next < query.processIds.size()) {
+                int end = Math.min(query.next + chunkSize, query.processIds.size());
+                List<String> chunk = query.processIds.subList(query.next, end);
+                query.chunks.addLast(chunk);
+                query.reads.addLast(stateStore.getStates(chunk));
+                query.next = end;
+            }
+            Future<Map<String, String>> read = query.reads.peekFirst();
+            if (read == null) {
+                query.promise.tryComplete(query.written);
+                return;
+            }
+            if (!read.isComplete()) {
+                read.onComplete(ar -> pump(query));
+                return;
+            }
+            if (read.failed()) {
+                query.promise.tryFail(read.cause());
+                return;
+            }
+            query.reads.pollFirst();
+            try {
+                query.out.write(lines(query, query.chunks.pollFirst(), read.result()));
+            } catch (IllegalStateException e) {
+                // The client went away
+                query.promise.tryFail(e);
+                return;
+            }
+            if (query.out.writeQueueFull()) {
+                query.out.drainHandler(v -> pump(query));
+                return;
+            }
+        }
+    }
+
+    private static Buffer lines(Query query, List<String> chunk, Map<String, String> stored) {
+        Buffer buffer = Buffer.buffer(chunk.size() * 48);
+        for (String processId : chunk) {
+            String state = stored.get(processId);
+            if (query.states != null && (state == null || !query.states.contains(state))) {
+                continue;
+            }
+            buffer.appendString(new JsonObject()
+                            .put("processId", processId)
+                            .put("state", state)
+                            .encode())
+                    .appendByte((byte) '\n');
+            query.written++;
+        }
+        return buffer;
+    }
+
+    private static final class Query {
+        private final List<String> processIds;
+        private final Set<String> states;
+        private final WriteStream<Buffer> out;
+        private final Promise<Long> promise = Promise.promise();
+        // Requested chunks and their reads, oldest first
+        private final Deque<List<String>> chunks = new ArrayDeque<>();
+        private final Deque<Future<Map<String, String>>> reads = new ArrayDeque<>();
+        private int next;
+        private long written;
+
+        private Query(List<String> processIds, Set<String> states, WriteStream<Buffer> out) {
+            this.processIds = processIds;
+            this.states = states;
+            this.out = out;
+        }
+    }
+}
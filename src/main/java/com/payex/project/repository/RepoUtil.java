@@ -1,14 +1,26 @@
 package com.payex.project.repository;
 
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
 import com.payex.project.config.ConfigLoader;
+import com.payex.project.metrics.AppMetrics;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.ReadStream;
+import io.vertx.ext.mongo.BulkOperation;
+import io.vertx.ext.mongo.BulkWriteOptions;
+import io.vertx.ext.mongo.FindOptions;
+import io.vertx.ext.mongo.IndexOptions;
 import io.vertx.ext.mongo.MongoClient;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class RepoUtil {
     private static final Logger LOGGER = LogManager.getLogger(RepoUtil.class);
 
@@ -33,41 +45,59 @@ public class RepoUtil {
     public Future<String> save(String collectionName, JsonObject document) {
         Promise<String> promise = Promise.promise();
 
-        mongoClient
-                .save(collectionName, document)
+        AppMetrics.timeMongo("save", () -> mongoClient.save(collectionName, document))
                 .onSuccess(
                         id -> {
-                            LOGGER.info("Document saved");
+                            LOGGER.debug("Document saved in {}", collectionName);
                             promise.complete("Document saved");
                         })
                 .onFailure(
                         err -> {
-                            LOGGER.error("Failed to save document: " + err.getMessage());
+                            LOGGER.error("Failed to save document in {} - {}", collectionName, err.getMessage());
                             promise.fail(err);
                         });
 
         return promise.future();
     }
 
+    /**
+     * Inserts a document, failing with a duplicate key error, see {@link #isDuplicateKey}, if its {@code _id} is
+     * already stored.
+     */
+    public Future<Void> insert(String collectionName, JsonObject document) {
+        return AppMetrics.timeMongo("insert", () -> mongoClient.insert(collectionName, document))
+                .<Void>mapEmpty()
+                .onSuccess(v -> LOGGER.debug("Document inserted in {}", collectionName))
+                .onFailure(err -> {
+                    if (!isDuplicateKey(err)) {
+                        LOGGER.error("Failed to insert document in {} - {}", collectionName, err.getMessage());
+                    }
+                });
+    }
+
+    public static boolean isDuplicateKey(Throwable err) {
+        return err instanceof MongoWriteException writeError
+                && writeError.getError().getCategory() == ErrorCategory.DUPLICATE_KEY;
+    }
+
     public Future<JsonObject> findOne(
             String collectionName, JsonObject query, JsonObject projection) {
         Promise<JsonObject> promise = Promise.promise();
 
-        mongoClient
-                .findOne(collectionName, query, projection)
+        AppMetrics.timeMongo("findOne", () -> mongoClient.findOne(collectionName, query, projection))
                 .onSuccess(
                         result -> {
                             if (result != null) {
-                                LOGGER.info("Document found: " + result.encodePrettily());
+                                LOGGER.debug("Document found in {} for query {}", collectionName, query);
                                 promise.complete(result);
                             } else {
-                                LOGGER.info("No document found");
+                                LOGGER.debug("No document found in {} for query {}", collectionName, query);
                                 promise.complete();
                             }
                         })
                 .onFailure(
                         err -> {
-                            LOGGER.error("Error fetching document: " + err.getMessage());
+                            LOGGER.error("Error fetching document from {} - {}", collectionName, err.getMessage());
                             promise.fail(err);
                         });
 
@@ -78,21 +108,21 @@ public class RepoUtil {
             String collectionName, JsonObject query, JsonObject update) {
         Promise<JsonObject> promise = Promise.promise();
 
-        mongoClient
-                .findOneAndUpdate(collectionName, query, new JsonObject().put("$set", update))
+        AppMetrics.timeMongo("findOneAndUpdate",
+                        () -> mongoClient.findOneAndUpdate(collectionName, query, new JsonObject().put("$set", update)))
                 .onSuccess(
                         updatedDoc -> {
                             if (updatedDoc != null) {
-                                LOGGER.info("Document updated: " + updatedDoc);
+                                LOGGER.debug("Document updated in {} for query {}", collectionName, query);
                                 promise.complete(updatedDoc);
                             } else {
-                                LOGGER.info("No document found for update");
+                                LOGGER.debug("No document found in {} for update, query {}", collectionName, query);
                                 promise.complete();
                             }
                         })
                 .onFailure(
                         err -> {
-                            LOGGER.error("Failed to  update document : " + err);
+                            LOGGER.error("Failed to update document in {} - {}", collectionName, err.getMessage());
                             promise.fail(err);
                         });
 
@@ -102,22 +132,72 @@ public class RepoUtil {
     public Future<JsonObject> findOneAndDelete(String collectionName, JsonObject query) {
         Promise<JsonObject> promise = Promise.promise();
 
-        mongoClient.findOneAndDelete(collectionName, query)
+        AppMetrics.timeMongo("findOneAndDelete", () -> mongoClient.findOneAndDelete(collectionName, query))
                 .onSuccess(result -> {
                     if (result != null) {
-                        LOGGER.info("Document deleted from collection '{}' : {}", collectionName, result.encodePrettily());
+                        LOGGER.info("Document deleted from collection '{}' for query: {}", collectionName, query);
                         promise.complete(result);
                     } else {
-                        LOGGER.warn("No document found in collection '{}' for query: {}", collectionName, query.encode());
+                        LOGGER.warn("No document found in collection '{}' for query: {}", collectionName, query);
                         promise.fail("No document found matching the query.");
                     }
                 })
                 .onFailure(err -> {
-                    LOGGER.error("Error deleting document from '{}' for query {}: {}", collectionName, query.encode(), err.getMessage());
+                    LOGGER.error("Error deleting document from '{}' for query {}: {}", collectionName, query, err.getMessage());
                     promise.fail(err);
                 });
 
         return promise.future();
     }
 
+    /**
+     * Inserts the documents with one unordered bulk write. Documents whose {@code _id} is already stored are
+     * skipped rather than failing the write, so a batch that failed part way can simply be written again.
+     *
+     * @return the number of documents inserted
+     */
+    public Future<Long> insertMany(String collectionName, List<JsonObject> documents) {
+        List<BulkOperation> inserts = new ArrayList<>(documents.size());
+        for (JsonObject document : documents) {
+            inserts.add(BulkOperation.createInsert(document));
+        }
+        return AppMetrics.timeMongo("insertMany", () -> mongoClient.bulkWriteWithOptions(collectionName, inserts,
+                        new BulkWriteOptions().setOrdered(false)))
+                .map(result -> {
+                    LOGGER.debug("Inserted {} documents in {}", result.getInsertedCount(), collectionName);
+                    return result.getInsertedCount();
+                })
+                .recover(err -> {
+                    if (err instanceof MongoBulkWriteException bulkError && bulkError.getWriteErrors().stream()
+                            .allMatch(error -> ErrorCategory.fromErrorCode(error.getCode()) == ErrorCategory.DUPLICATE_KEY)) {
+                        return Future.succeededFuture((long) bulkError.getWriteResult().getInsertedCount());
+                    }
+                    LOGGER.error("Failed to insert {} documents in {} - {}", documents.size(), collectionName, err.getMessage());
+                    return Future.failedFuture(err);
+                });
+    }
+
+    public Future<List<JsonObject>> find(String collectionName, JsonObject query, FindOptions options) {
+        return AppMetrics.timeMongo("find", () -> mongoClient.findWithOptions(collectionName, query, options))
+                .onFailure(err -> LOGGER.error("Error finding documents in {} for query {} - {}",
+                        collectionName, query, err.getMessage()));
+    }
+
+    /**
+     * Streams the matching documents, fetched {@code options.batchSize} at a time as the stream is read, so a
+     * large result is never held whole. While the stream is paused no further batch is fetched.
+     */
+    public ReadStream<JsonObject> findBatch(String collectionName, JsonObject query, FindOptions options) {
+        return mongoClient.findBatchWithOptions(collectionName, query, options);
+    }
+
+    /**
+     * Creates the index unless an identical one exists.
+     */
+    public Future<Void> createIndex(String collectionName, JsonObject keys, IndexOptions options) {
+        return mongoClient.createIndexWithOptions(collectionName, keys, options)
+                .onSuccess(v -> LOGGER.info("Index {} ensured on {}", options.getName(), collectionName))
+                .onFailure(err -> LOGGER.error("Failed to create index {} on {} - {}",
+                        options.getName(), collectionName, err.getMessage()));
+    }
 }
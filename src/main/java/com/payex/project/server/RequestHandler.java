@@ -1,20 +1,56 @@
 package com.payex.project.server;
 
+import com.payex.project.audit.TransitionLog;
 import com.payex.project.consumer.KafkaVerticle;
 import com.payex.project.controller.ControllerVerticle;
+import com.payex.project.metrics.AppMetrics;
+import com.payex.project.query.ProcessStateQuery;
+import io.prometheus.client.exporter.common.TextFormat;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.JsonParser;
 import io.vertx.ext.web.RoutingContext;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
 public class RequestHandler {
     private static final Logger LOGGER = LogManager.getLogger(RequestHandler.class);
     private final ControllerVerticle controllerVerticle;
+    // Every consumer instance shares one producer, so events are sent through the first one
     private final KafkaVerticle kafkaVerticle;
+    private final List<KafkaVerticle> kafkaVerticles;
+    // Null when the transition log is disabled
+    private final TransitionLog transitionLog;
+    // Null when not configured
+    private final ProcessStateQuery processStateQuery;
 
     public RequestHandler(KafkaVerticle kafkaVerticle, ControllerVerticle controllerVerticle) {
-        this.kafkaVerticle = kafkaVerticle;
+        this(List.of(kafkaVerticle), controllerVerticle);
+    }
+
+    public RequestHandler(List<KafkaVerticle> kafkaVerticles, ControllerVerticle controllerVerticle) {
+        this(kafkaVerticles, controllerVerticle, null);
+    }
+
+    public RequestHandler(List<KafkaVerticle> kafkaVerticles, ControllerVerticle controllerVerticle,
+                          TransitionLog transitionLog) {
+        this(kafkaVerticles, controllerVerticle, transitionLog, null);
+    }
+
+    public RequestHandler(List<KafkaVerticle> kafkaVerticles, ControllerVerticle controllerVerticle,
+                          TransitionLog transitionLog, ProcessStateQuery processStateQuery) {
+        this.kafkaVerticle = kafkaVerticles.get(0);
+        this.kafkaVerticles = kafkaVerticles;
         this.controllerVerticle = controllerVerticle;
+        this.transitionLog = transitionLog;
+        this.processStateQuery = processStateQuery;
     }
 
     public void createStateMachine(RoutingContext ctx) {
@@ -107,6 +143,49 @@ public class RequestHandler {
     }
 
 
+    /**
+     * A page of definitions in _id order. {@code limit} sets the page size, {@code cursor} takes the
+     * {@code nextCursor} of the previous page and {@code fields} lists the fields to return, comma separated.
+     * With {@code export=true} every definition is streamed as NDJSON instead and {@code limit} and {@code cursor}
+     * are ignored.
+     */
+    public void listStateMachines(RoutingContext ctx) {
+        try {
+            String fieldsParam = ctx.queryParams().get("fields");
+            List<String> fields = fieldsParam == null || fieldsParam.isBlank()
+                    ? List.of()
+                    : Arrays.asList(fieldsParam.split(","));
+            if (Boolean.parseBoolean(ctx.queryParams().get("export"))) {
+                exportStateMachines(ctx, ControllerVerticle.projection(fields));
+                return;
+            }
+            String limit = ctx.queryParams().get("limit");
+            controllerVerticle
+                    .listStateMachines(ctx.queryParams().get("cursor"),
+                            limit == null ? ControllerVerticle.DEFAULT_PAGE_SIZE : Integer.parseInt(limit), fields)
+                    .onSuccess(res -> respond(ctx, res))
+                    .onFailure(
+                            failed -> {
+                                JsonObject errorResponse = new JsonObject(failed.getMessage());
+                                int statusCode = errorResponse.getInteger("statusCode", 500);
+                                ctx.response().setStatusCode(statusCode).end(failed.getMessage());
+                            });
+        } catch (NumberFormatException e) {
+            respond(ctx, new JsonObject()
+                    .put("statusCode", 400)
+                    .put("success", false)
+                    .put("message", "Invalid limit: " + e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            respond(ctx, new JsonObject()
+                    .put("statusCode", 400)
+                    .put("success", false)
+                    .put("message", e.getMessage()));
+        } catch (Exception e) {
+            LOGGER.error(e);
+            ctx.response().setStatusCode(500).end(e.getMessage());
+        }
+    }
+
     public void sendEventToKafka(RoutingContext ctx) {
         try {
             JsonObject reqJO = ctx.body().asJsonObject();
@@ -128,5 +207,231 @@ public class RequestHandler {
             ctx.response().setStatusCode(500).end(e.getMessage());
         }
     }
-}
 
+    public void applyEventNow(RoutingContext ctx) {
+        try {
+            JsonObject reqJO = ctx.body().asJsonObject();
+            kafkaVerticle
+                    .applyEventNow(reqJO)
+                    .onSuccess(
+                            res -> {
+                                int statusCode = res.getInteger("statusCode", 200);
+                                ctx.response()
+                                        .setStatusCode(statusCode)
+                                        .putHeader("Content-Type", "application/json")
+                                        .end(res.encode());
+                            })
+                    .onFailure(
+                            failed -> ctx.response().setStatusCode(500).end(failed.getMessage()));
+        } catch (Exception e) {
+            LOGGER.error(e);
+            ctx.response().setStatusCode(500).end(e.getMessage());
+        }
+    }
+
+    public void sendEventsToKafka(RoutingContext ctx) {
+        try {
+            JsonParser parser = JsonParser.newParser(ctx.request());
+            kafkaVerticle
+                    .sendEventsToKafka(parser)
+                    .onSuccess(
+                            res -> {
+                                int statusCode = res.getInteger("statusCode", 200);
+                                ctx.response()
+                                        .setStatusCode(statusCode)
+                                        .putHeader("Content-Type", "application/json")
+                                        .end(res.encode());
+                            })
+                    .onFailure(
+                            failed -> ctx.response().setStatusCode(500).end(failed.getMessage()));
+            ctx.request().resume();
+        } catch (Exception e) {
+            LOGGER.error(e);
+            ctx.response().setStatusCode(500).end(e.getMessage());
+        }
+    }
+
+    /**
+     * A page of a process's transition history, newest first. {@code limit} sets the page size and
+     * {@code cursor} takes the {@code nextCursor} of the previous page.
+     */
+    public void getTransitionLog(RoutingContext ctx) {
+        try {
+            if (transitionLog == null) {
+                respond(ctx, new JsonObject()
+                        .put("statusCode", 409)
+                        .put("success", false)
+                        .put("message", "Transition log is disabled"));
+                return;
+            }
+            String limit = ctx.queryParams().get("limit");
+            transitionLog
+                    .history(ctx.pathParam("processId"), ctx.queryParams().get("cursor"),
+                            limit == null ? TransitionLog.DEFAULT_PAGE_SIZE : Integer.parseInt(limit))
+                    .onSuccess(res -> respond(ctx, res))
+                    .onFailure(
+                            failed -> respond(ctx, new JsonObject()
+                                    .put("statusCode", failed instanceof IllegalArgumentException ? 400 : 500)
+                                    .put("success", false)
+                                    .put("message", failed.getMessage())));
+        } catch (NumberFormatException e) {
+            respond(ctx, new JsonObject()
+                    .put("statusCode", 400)
+                    .put("success", false)
+                    .put("message", "Invalid limit: " + e.getMessage()));
+        } catch (Exception e) {
+            LOGGER.error(e);
+            ctx.response().setStatusCode(500).end(e.getMessage());
+        }
+    }
+
+    /**
+     * States of the processes in the body's {@code processIds}, streamed as NDJSON. With {@code stateMachineId},
+     * only processes in one of that machine's states are returned: the store keeps a process's state, not which
+     * machine it runs on.
+     */
+    public void getProcessStates(RoutingContext ctx) {
+        try {
+            if (processStateQuery == null) {
+                respond(ctx, new JsonObject()
+                        .put("statusCode", 409)
+                        .put("success", false)
+                        .put("message", "Process state queries are not available"));
+                return;
+            }
+            JsonObject reqJO = ctx.body().asJsonObject();
+            List<String> processIds = reqJO.getJsonArray("processIds").stream()
+                    .map(String::valueOf)
+                    .collect(Collectors.toList());
+            if (processIds.size() > processStateQuery.getMaxProcessIds()) {
+                respond(ctx, new JsonObject()
+                        .put("statusCode", 400)
+                        .put("success", false)
+                        .put("message", "At most " + processStateQuery.getMaxProcessIds() + " process ids per request"));
+                return;
+            }
+            String stateMachineId = reqJO.getString("stateMachineId");
+            if (stateMachineId == null) {
+                streamProcessStates(ctx, processIds, null);
+                return;
+            }
+            kafkaVerticle
+                    .findDefinition(stateMachineId)
+                    .onSuccess(
+                            definition -> {
+                                if (definition == null) {
+                                    respond(ctx, new JsonObject()
+                                            .put("statusCode", 404)
+                                            .put("success", false)
+                                            .put("message", "State machine not found"));
+                                } else {
+                                    streamProcessStates(ctx, processIds, new HashSet<>(definition.getStates()));
+                                }
+                            })
+                    .onFailure(
+                            failed -> ctx.response().setStatusCode(500).end(failed.getMessage()));
+        } catch (Exception e) {
+            LOGGER.error(e);
+            ctx.response().setStatusCode(500).end(e.getMessage());
+        }
+    }
+
+    public void getStats(RoutingContext ctx) {
+        try {
+            ctx.response()
+                    .setStatusCode(200)
+                    .putHeader("Content-Type", "application/json")
+                    .end(stats().encodePrettily());
+        } catch (Exception e) {
+            LOGGER.error(e);
+            ctx.response().setStatusCode(500).end(e.getMessage());
+        }
+    }
+
+    public void getMetrics(RoutingContext ctx) {
+        try {
+            ctx.response()
+                    .setStatusCode(200)
+                    .putHeader("Content-Type", TextFormat.CONTENT_TYPE_004)
+                    .end(AppMetrics.scrape());
+        } catch (Exception e) {
+            LOGGER.error(e);
+            ctx.response().setStatusCode(500).end(e.getMessage());
+        }
+    }
+
+    /**
+     * Once streaming started the status is sent, so a failure ends the body with an error line instead.
+     */
+    private void streamProcessStates(RoutingContext ctx, List<String> processIds, Set<String> states) {
+        HttpServerResponse response = ctx.response()
+                .setStatusCode(200)
+                .setChunked(true)
+                .putHeader("Content-Type", "application/x-ndjson");
+        processStateQuery
+                .stream(processIds, states, response)
+                .onSuccess(written -> response.end())
+                .onFailure(
+                        failed -> {
+                            LOGGER.error("Process state query for {} processes failed - {}", processIds.size(), failed.getMessage());
+                            if (!response.closed()) {
+                                response.end(new JsonObject()
+                                        .put("success", false)
+                                        .put("message", failed.getMessage())
+                                        .encode() + "\n");
+                            }
+                        });
+    }
+
+    /**
+     * Like {@link #streamProcessStates}, a failure after streaming started ends the body with an error line.
+     */
+    private void exportStateMachines(RoutingContext ctx, JsonObject projection) {
+        HttpServerResponse response = ctx.response()
+                .setStatusCode(200)
+                .setChunked(true)
+                .putHeader("Content-Type", "application/x-ndjson");
+        controllerVerticle
+                .exportStateMachines(projection, response)
+                .onSuccess(written -> response.end())
+                .onFailure(
+                        failed -> {
+                            LOGGER.error("State machine export failed - {}", failed.getMessage());
+                            if (!response.closed()) {
+                                response.end(new JsonObject()
+                                        .put("success", false)
+                                        .put("message", failed.getMessage())
+                                        .encode() + "\n");
+                            }
+                        });
+    }
+
+    private static void respond(RoutingContext ctx, JsonObject res) {
+        ctx.response()
+                .setStatusCode(res.getInteger("statusCode", 200))
+                .putHeader("Content-Type", "application/json")
+                .end(res.encode());
+    }
+
+    /**
+     * Stats of every consumer instance; the definition and version caches, the view and the transition log are
+     * shared, so they are reported once.
+     */
+    private JsonObject stats() {
+        JsonObject stats = new JsonObject();
+        JsonArray consumers = new JsonArray();
+        for (KafkaVerticle instance : kafkaVerticles) {
+            JsonObject instanceStats = instance.stats();
+            stats.put("stateMachineCache", instanceStats.remove("stateMachineCache"));
+            stats.put("versionCache", instanceStats.remove("versionCache"));
+            if (instanceStats.containsKey("definitions")) {
+                stats.put("definitions", instanceStats.remove("definitions"));
+            }
+            if (instanceStats.containsKey("transitionLog")) {
+                stats.put("transitionLog", instanceStats.remove("transitionLog"));
+            }
+            consumers.add(instanceStats);
+        }
+        return stats.put("consumers", consumers);
+    }
+}
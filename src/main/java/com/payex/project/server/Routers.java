@@ -19,10 +19,21 @@ import static io.vertx.json.schema.common.dsl.Keywords.minLength;
 
 public class Routers  {
     private final RequestHandler requestHandler;
+    private final ValidationHandler fileBatchingValidation;
+    private final ValidationHandler kafkaMessageValidation;
+    private final ValidationHandler processStatesValidation;
 
 
-    public Routers(RequestHandler requestHandler) {
+    /**
+     * @param vertx the deployed instance, which the schema router of every validation handler runs on
+     */
+    public Routers(Vertx vertx, RequestHandler requestHandler) {
         this.requestHandler = requestHandler;
+        SchemaParser schemaParser = SchemaParser.createDraft201909SchemaParser(
+                SchemaRouter.create(vertx, new SchemaRouterOptions()));
+        this.fileBatchingValidation = fileBatchingValidation(schemaParser);
+        this.kafkaMessageValidation = kafkaMessageValidation(schemaParser);
+        this.processStatesValidation = processStatesValidation(schemaParser);
     }
 
     public void registerRoutes(Router router) {
@@ -31,6 +42,10 @@ public class Routers  {
                 .handler(requestHandler::createStateMachine)
                 .failureHandler(this::commonFailureHandler);
 
+        router.get(AppConstant.END_POINT_STATE_MACHINE)
+                .handler(requestHandler::listStateMachines)
+                .failureHandler(this::commonFailureHandler);
+
         router.get(AppConstant.END_POINT_STATE_MACHINE_ID)
                 .handler(requestHandler::getStateMachine)
                 .failureHandler(this::commonFailureHandler);
@@ -49,44 +64,83 @@ public class Routers  {
                 .handler(requestHandler::sendEventToKafka)
                 .failureHandler(this::commonFailureHandler);
 
+        router.post(AppConstant.END_POINT_TRANSITION)
+                .handler(kafkaMessageValidation)
+                .handler(requestHandler::applyEventNow)
+                .failureHandler(this::commonFailureHandler);
+
+        // No validation handler: the body is streamed and every item is validated as it is parsed
+        router.post(AppConstant.END_POINT_KAFKA_MESSAGE_BATCH)
+                .handler(requestHandler::sendEventsToKafka)
+                .failureHandler(this::commonFailureHandler);
+
+        router.get(AppConstant.END_POINT_TRANSITION_LOG)
+                .handler(requestHandler::getTransitionLog)
+                .failureHandler(this::commonFailureHandler);
+
+        router.post(AppConstant.END_POINT_PROCESS_STATES)
+                .handler(processStatesValidation)
+                .handler(requestHandler::getProcessStates)
+                .failureHandler(this::commonFailureHandler);
+
+        router.get(AppConstant.END_POINT_STATS)
+                .handler(requestHandler::getStats)
+                .failureHandler(this::commonFailureHandler);
+
+        router.get(AppConstant.END_POINT_METRICS)
+                .handler(requestHandler::getMetrics)
+                .failureHandler(this::commonFailureHandler);
+
     }
 
 
-    ValidationHandler fileBatchingValidation =
-            ValidationHandlerBuilder.create(
-                            SchemaParser.createDraft201909SchemaParser(
-                                    SchemaRouter.create(Vertx.vertx(), new SchemaRouterOptions())))
-                    .body(
-                            Bodies.json(
-                                    Schemas.objectSchema()
-                                            .requiredProperty("stateMachineName", Schemas.stringSchema().with(minLength(2)))
-                                            .requiredProperty("states", Schemas.arraySchema().items(Schemas.stringSchema().with(minLength(2))))
-                                            .requiredProperty("events", Schemas.arraySchema().items(Schemas.stringSchema().with(minLength(2))))
-                                            .requiredProperty(
-                                                    "transitions",
-                                                    Schemas.objectSchema()
-                                                            .additionalProperties(
-                                                                    Schemas.objectSchema()
-                                                                            .additionalProperties(Schemas.stringSchema().with(minLength(2)))
-                                                            )
-                                            )
-                            )
-                    )
-                    .build();
-
-    ValidationHandler kafkaMessageValidation =
-            ValidationHandlerBuilder.create(
-                            SchemaParser.createDraft201909SchemaParser(
-                                    SchemaRouter.create(Vertx.vertx(), new SchemaRouterOptions())))
-                    .body(
-                            Bodies.json(
-                                    Schemas.objectSchema()
-                                            .requiredProperty("stateMachineId", Schemas.stringSchema().with(minLength(2)))
-                                            .requiredProperty("processId", Schemas.stringSchema().with(minLength(2)))
-                                            .requiredProperty("event", Schemas.stringSchema().with(minLength(2)))
-                            )
-                    )
-                    .build();
+    private static ValidationHandler fileBatchingValidation(SchemaParser schemaParser) {
+        return ValidationHandlerBuilder.create(schemaParser)
+                .body(
+                        Bodies.json(
+                                Schemas.objectSchema()
+                                        .requiredProperty("stateMachineName", Schemas.stringSchema().with(minLength(2)))
+                                        .requiredProperty("states", Schemas.arraySchema().items(Schemas.stringSchema().with(minLength(2))))
+                                        .requiredProperty("events", Schemas.arraySchema().items(Schemas.stringSchema().with(minLength(2))))
+                                        .requiredProperty(
+                                                "transitions",
+                                                Schemas.objectSchema()
+                                                        .additionalProperties(
+                                                                Schemas.objectSchema()
+                                                                        .additionalProperties(Schemas.stringSchema().with(minLength(2)))
+                                                        )
+                                        )
+                                        .optionalProperty("engine", Schemas.enumSchema(AppConstant.ENGINE_COMPILED, AppConstant.ENGINE_SPRING))
+                        )
+                )
+                .build();
+    }
+
+    private static ValidationHandler kafkaMessageValidation(SchemaParser schemaParser) {
+        return ValidationHandlerBuilder.create(schemaParser)
+                .body(
+                        Bodies.json(
+                                Schemas.objectSchema()
+                                        .requiredProperty("stateMachineId", Schemas.stringSchema().with(minLength(2)))
+                                        .requiredProperty("processId", Schemas.stringSchema().with(minLength(2)))
+                                        .requiredProperty("event", Schemas.stringSchema().with(minLength(2)))
+                                        .optionalProperty("eventId", Schemas.stringSchema().with(minLength(1)))
+                        )
+                )
+                .build();
+    }
+
+    private static ValidationHandler processStatesValidation(SchemaParser schemaParser) {
+        return ValidationHandlerBuilder.create(schemaParser)
+                .body(
+                        Bodies.json(
+                                Schemas.objectSchema()
+                                        .requiredProperty("processIds", Schemas.arraySchema().items(Schemas.stringSchema().with(minLength(2))))
+                                        .optionalProperty("stateMachineId", Schemas.stringSchema().with(minLength(2)))
+                        )
+                )
+                .build();
+    }
 
 
     private void commonFailureHandler(RoutingContext ctx) {
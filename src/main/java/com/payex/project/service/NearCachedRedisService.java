@@ -0,0 +1,161 @@
+package com.payex.project.service;
+
+import com.payex.project.cache.NearCache;
+import com.payex.project.engine.CompiledStateMachine;
+import com.payex.project.models.KafkaMessage;
+import com.payex.project.models.TransitionResult;
+import io.vertx.core.Future;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link StateStore} serving process state reads from a {@link NearCache} and writing through to Redis.
+ * <p>
+ * Only reads are served locally: a miss goes to Redis and caches what it found, batch reads MGET only the
+ * processes not cached. Every write goes to Redis first and is cached once Redis acknowledged it; a failed write
+ * invalidates the process, since Redis may or may not have applied it. Atomic transitions cache the new state
+ * only when the script stored it; the version the script may have pinned is not cached and read from Redis on
+ * first use.
+ * <p>
+ * This is correct as long as this consumer is the only writer of its processes, which holds while it owns their
+ * partitions; {@link #onRebalance()} therefore clears the cache whenever partitions are revoked or assigned.
+ */
+public class NearCachedRedisService implements StateStore {
+
+    private final StateStore delegate;
+    private final NearCache cache;
+
+    public NearCachedRedisService(StateStore delegate, NearCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    public NearCache getCache() {
+        return cache;
+    }
+
+    @Override
+    public boolean isDedupeEnabled() {
+        return delegate.isDedupeEnabled();
+    }
+
+    @Override
+    public Future<Void> saveState(String orderId, String state) {
+        long generation = cache.generation();
+        return delegate.saveState(orderId, state)
+                .onSuccess(v -> cache.put(orderId, state, generation))
+                .onFailure(err -> cache.invalidate(orderId));
+    }
+
+    @Override
+    public Future<String> getState(String orderId) {
+        String cached = cache.get(orderId);
+        if (cached != null) {
+            return Future.succeededFuture(cached);
+        }
+        long generation = cache.generation();
+        return delegate.getState(orderId)
+                .onSuccess(state -> {
+                    if (state != null) {
+                        cache.put(orderId, state, generation);
+                    }
+                });
+    }
+
+    @Override
+    public Future<Void> loadTransitionTable(CompiledStateMachine compiled) {
+        return delegate.loadTransitionTable(compiled);
+    }
+
+    @Override
+    public Future<TransitionResult> applyTransition(String processId, CompiledStateMachine latest, String event, String eventId) {
+        long generation = cache.generation();
+        return delegate.applyTransition(processId, latest, event, eventId)
+                .onSuccess(result -> cacheTransition(processId, result, generation))
+                .onFailure(err -> cache.invalidate(processId));
+    }
+
+    @Override
+    public Future<Map<String, String>> getStates(List<String> processIds) {
+        Map<String, String> states = new HashMap<>(processIds.size() * 2);
+        List<String> missing = new ArrayList<>();
+        for (String processId : processIds) {
+            String cached = cache.get(processId);
+            if (cached != null) {
+                states.put(processId, cached);
+            } else {
+                missing.add(processId);
+            }
+        }
+        if (missing.isEmpty()) {
+            return Future.succeededFuture(states);
+        }
+        long generation = cache.generation();
+        return delegate.getStates(missing).map(stored -> {
+            stored.forEach((processId, state) -> cache.put(processId, state, generation));
+            states.putAll(stored);
+            return states;
+        });
+    }
+
+    @Override
+    public Future<Void> saveStates(Map<String, String> states) {
+        long generation = cache.generation();
+        return cacheWrite(delegate.saveStates(states), states, generation);
+    }
+
+    @Override
+    public Future<Set<String>> findProcessedEvents(List<KafkaMessage> messages) {
+        return delegate.findProcessedEvents(messages);
+    }
+
+    @Override
+    public Future<Void> saveStates(Map<String, String> states, List<KafkaMessage> processed) {
+        long generation = cache.generation();
+        return cacheWrite(delegate.saveStates(states, processed), states, generation);
+    }
+
+    @Override
+    public Future<List<TransitionResult>> applyTransitions(List<KafkaMessage> messages, Map<String, CompiledStateMachine> latest) {
+        long generation = cache.generation();
+        return delegate.applyTransitions(messages, latest)
+                .onSuccess(results -> {
+                    for (int i = 0; i < results.size(); i++) {
+                        cacheTransition(messages.get(i).getProcessId(), results.get(i), generation);
+                    }
+                })
+                .onFailure(err -> messages.forEach(message -> cache.invalidate(message.getProcessId())));
+    }
+
+    /**
+     * Clears the cache: processes this consumer no longer owns may be written by another one from now on.
+     */
+    @Override
+    public void onRebalance() {
+        cache.clear();
+        delegate.onRebalance();
+    }
+
+    @Override
+    public void close() {
+        cache.clear();
+        delegate.close();
+    }
+
+    private void cacheTransition(String processId, TransitionResult result, long generation) {
+        // Rejected and duplicate events leave the key untouched, which may still be unset
+        if (result != null && result.isAccepted()) {
+            cache.put(processId, result.getNewState(), generation);
+        }
+    }
+
+    private Future<Void> cacheWrite(Future<Void> write, Map<String, String> states, long generation) {
+        return write
+                .onSuccess(v -> states.forEach((processId, state) -> cache.put(processId, state, generation)))
+                .onFailure(err -> states.keySet().forEach(cache::invalidate));
+    }
+}
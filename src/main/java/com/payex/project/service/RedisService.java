@@ -1,24 +1,365 @@
 package com.payex.project.service;
 
 import com.payex.project.config.ConfigLoader;
-import redis.clients.jedis.Jedis;
+import com.payex.project.constant.AppConstant;
+import com.payex.project.engine.CompiledStateMachine;
+import com.payex.project.models.KafkaMessage;
+import com.payex.project.models.TransitionResult;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.redis.client.Command;
+import io.vertx.redis.client.Redis;
+import io.vertx.redis.client.RedisOptions;
+import io.vertx.redis.client.Request;
+import io.vertx.redis.client.Response;
 
-public class RedisService {
-    private final Jedis jedis;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
-    public RedisService() {
+/**
+ * Process state store backed by the non-blocking, pooled Vert.x Redis client.
+ * <p>
+ * All calls return immediately; commands issued concurrently are pipelined over the pooled connections up to
+ * {@code redis.maxWaitingHandlers} per connection, so the client can be shared by every verticle.
+ */
+public class RedisService implements StateStore {
+
+    public static final String TRANSITION_TABLE_KEY_PREFIX = "sm:transitions:";
+
+    // Separates version, state and event in a transition table field; "\31" in Lua
+    static final String FIELD_SEPARATOR = "\u001F";
+
+    public static final String PROCESSED_EVENTS_KEY_PREFIX = "sm:events:";
+
+    // KEYS[1] process state, KEYS[2] transition table, KEYS[3] processed event ids, KEYS[4] pinned version;
+    // ARGV[1] event, ARGV[2] initial state and ARGV[5] version of the latest definition, ARGV[3] event id ("" when
+    // unknown), ARGV[4] dedupe window, ARGV[6] seconds the processed event ids are kept (0 keeps them forever).
+    // Replies {status, previousState, newState}: 1 accepted, 0 rejected, 2 duplicate, -1 transition table missing.
+    // A missing table is a reply rather than an error so one bad entry does not fail a whole pipeline.
+    static final String TRANSITION_SCRIPT =
+            "local function remember()\n" +
+            "  if ARGV[3] ~= '' then\n" +
+            "    redis.call('LPUSH', KEYS[3], ARGV[3])\n" +
+            "    redis.call('LTRIM', KEYS[3], 0, tonumber(ARGV[4]) - 1)\n" +
+            "    if tonumber(ARGV[6]) > 0 then redis.call('EXPIRE', KEYS[3], ARGV[6]) end\n" +
+            "  end\n" +
+            "end\n" +
+            "local current = redis.call('GET', KEYS[1])\n" +
+            "if not current then current = ARGV[2] end\n" +
+            "local pinned = redis.call('GET', KEYS[4])\n" +
+            "local version = pinned or ARGV[5]\n" +
+            "if ARGV[3] ~= '' and redis.call('LPOS', KEYS[3], ARGV[3]) then return {2, current, current} end\n" +
+            "local target = redis.call('HGET', KEYS[2], version .. '\\31' .. current .. '\\31' .. ARGV[1])\n" +
+            "if not target then\n" +
+            "  if redis.call('HEXISTS', KEYS[2], version .. '\\31') == 0 then return {-1, current, current} end\n" +
+            "  remember()\n" +
+            "  return {0, current, current}\n" +
+            "end\n" +
+            "redis.call('SET', KEYS[1], target)\n" +
+            "if not pinned then redis.call('SET', KEYS[4], version) end\n" +
+            "remember()\n" +
+            "return {1, current, target}\n";
+
+    private static final String TRANSITION_SCRIPT_SHA = sha1(TRANSITION_SCRIPT);
+    private static final int STATUS_ACCEPTED = 1;
+    private static final int STATUS_DUPLICATE = 2;
+    private static final int STATUS_NO_TRANSITION_TABLE = -1;
+
+    private final Redis redis;
+    private final long commandTimeoutMs;
+    private final int dedupeWindow;
+    private final int dedupeTtlSeconds;
+
+    public RedisService(Vertx vertx) {
         ConfigLoader config = ConfigLoader.loadConfig();
-        this.jedis = new Jedis(config.getRedisHost(), config.getRedisPort());
+
+        RedisOptions options = new RedisOptions()
+                .setConnectionString("redis://" + config.getRedisHost() + ":" + config.getRedisPort())
+                .setMaxPoolSize(config.getRedisMaxPoolSize())
+                .setMaxPoolWaiting(config.getRedisMaxPoolWaiting())
+                .setMaxWaitingHandlers(config.getRedisMaxWaitingHandlers())
+                .setPoolRecycleTimeout(config.getRedisPoolRecycleTimeoutMs())
+                .setNetClientOptions(new NetClientOptions()
+                        .setConnectTimeout(config.getRedisConnectTimeoutMs())
+                        .setTcpNoDelay(true)
+                        .setTcpKeepAlive(true));
+
+        this.redis = Redis.createClient(vertx, options);
+        this.commandTimeoutMs = config.getRedisCommandTimeoutMs();
+        this.dedupeWindow = config.getStateMachineDedupeWindow();
+        this.dedupeTtlSeconds = config.getStateMachineDedupeTtlSeconds();
     }
 
-    public void saveState(String orderId, String state) {
-        jedis.set(orderId, state);
+    public RedisService(Redis redis, long commandTimeoutMs) {
+        this(redis, commandTimeoutMs, AppConstant.DEFAULT_DEDUPE_WINDOW);
     }
 
-    public String getState(String orderId) {
-        return jedis.get(orderId);
+    public RedisService(Redis redis, long commandTimeoutMs, int dedupeWindow) {
+        this(redis, commandTimeoutMs, dedupeWindow, AppConstant.DEFAULT_DEDUPE_TTL_SECONDS);
     }
 
-}
+    public RedisService(Redis redis, long commandTimeoutMs, int dedupeWindow, int dedupeTtlSeconds) {
+        this.redis = redis;
+        this.commandTimeoutMs = commandTimeoutMs;
+        this.dedupeWindow = dedupeWindow;
+        this.dedupeTtlSeconds = dedupeTtlSeconds;
+    }
 
+    /**
+     * Whether the ids of applied events are remembered per process, see {@link #findProcessedEvents}.
+     */
+    @Override
+    public boolean isDedupeEnabled() {
+        return dedupeWindow > 0;
+    }
 
+    @Override
+    public Future<Void> saveState(String orderId, String state) {
+        return send(Request.cmd(Command.SET).arg(orderId).arg(state)).mapEmpty();
+    }
+
+    @Override
+    public Future<String> getState(String orderId) {
+        return send(Request.cmd(Command.GET).arg(orderId))
+                .map(response -> response == null ? null : response.toString());
+    }
+
+    /**
+     * Adds the transitions of one version to its machine's table with one HSET, every field prefixed with the
+     * version. A marker field per version is always written so an empty table is distinguishable from a missing
+     * one.
+     */
+    @Override
+    public Future<Void> loadTransitionTable(CompiledStateMachine compiled) {
+        String version = compiled.getVersion() + FIELD_SEPARATOR;
+        Request request = Request.cmd(Command.HSET)
+                .arg(TRANSITION_TABLE_KEY_PREFIX + compiled.getId())
+                .arg(version)
+                .arg("");
+        compiled.forEachTransition((source, event, target) ->
+                request.arg(version + compiled.stateName(source) + FIELD_SEPARATOR + compiled.eventName(event))
+                        .arg(compiled.stateName(target)));
+        return send(request).mapEmpty();
+    }
+
+    /**
+     * Applies an event in a single round trip. The script reads the current state and pinned version, looks the
+     * transition up in that version's part of the table uploaded by {@link #loadTransitionTable} and writes the new
+     * state, and the version if the process was not pinned yet, all atomically, so concurrent events for the same
+     * process cannot lose updates.
+     * <p>
+     * When dedupe is enabled and {@code eventId} is set, an event already in the process's window is skipped
+     * and reported as a duplicate; applied and rejected events are added to the window in the same script.
+     * <p>
+     * Fails with a message starting with {@link #ERROR_NO_TRANSITION_TABLE} when the table is not in Redis.
+     */
+    @Override
+    public Future<TransitionResult> applyTransition(String processId, CompiledStateMachine latest, String event, String eventId) {
+        return send(transitionRequest(Command.EVALSHA, TRANSITION_SCRIPT_SHA, processId, latest, event, eventId))
+                .recover(err -> isNoScript(err)
+                        ? send(transitionRequest(Command.EVAL, TRANSITION_SCRIPT, processId, latest, event, eventId))
+                        : Future.failedFuture(err))
+                .compose(response -> {
+                    TransitionResult result = toTransitionResult(response);
+                    return result == null
+                            ? Future.failedFuture(ERROR_NO_TRANSITION_TABLE + " " + latest.getId())
+                            : Future.succeededFuture(result);
+                });
+    }
+
+    /**
+     * Reads the states of many processes with a single MGET. Unknown processes are absent from the map.
+     */
+    @Override
+    public Future<Map<String, String>> getStates(List<String> processIds) {
+        if (processIds.isEmpty()) {
+            return Future.succeededFuture(new HashMap<>());
+        }
+        Request request = Request.cmd(Command.MGET);
+        processIds.forEach(request::arg);
+        return send(request).map(response -> {
+            Map<String, String> states = new HashMap<>(processIds.size() * 2);
+            for (int i = 0; i < processIds.size(); i++) {
+                Response state = response.get(i);
+                if (state != null) {
+                    states.put(processIds.get(i), state.toString());
+                }
+            }
+            return states;
+        });
+    }
+
+    /**
+     * Writes the states of many processes with a single MSET.
+     */
+    @Override
+    public Future<Void> saveStates(Map<String, String> states) {
+        if (states.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        Request request = Request.cmd(Command.MSET);
+        states.forEach((processId, state) -> request.arg(processId).arg(state));
+        return send(request).mapEmpty();
+    }
+
+    /**
+     * Returns the ids among {@code messages} that are already in their process's dedupe window, checked with one
+     * pipelined LPOS per message. Messages without an id are never duplicates.
+     */
+    @Override
+    public Future<Set<String>> findProcessedEvents(List<KafkaMessage> messages) {
+        List<KafkaMessage> identified = messages.stream()
+                .filter(message -> isDedupeEnabled() && message.getEventId() != null)
+                .toList();
+        if (identified.isEmpty()) {
+            return Future.succeededFuture(new HashSet<>());
+        }
+        List<Request> requests = new ArrayList<>(identified.size());
+        for (KafkaMessage message : identified) {
+            requests.add(Request.cmd(Command.LPOS)
+                    .arg(PROCESSED_EVENTS_KEY_PREFIX + message.getProcessId())
+                    .arg(message.getEventId()));
+        }
+        return batch(requests).map(responses -> {
+            Set<String> processed = new HashSet<>();
+            for (int i = 0; i < identified.size(); i++) {
+                if (responses.get(i) != null) {
+                    processed.add(identified.get(i).getEventId());
+                }
+            }
+            return processed;
+        });
+    }
+
+    /**
+     * Writes the states of many processes and records {@code processed} in the dedupe windows in one
+     * MULTI/EXEC, so a state is never stored without the ids of the events that produced it. Every window
+     * written is given the dedupe TTL again. Falls back to a plain MSET when there is nothing to record.
+     */
+    @Override
+    public Future<Void> saveStates(Map<String, String> states, List<KafkaMessage> processed) {
+        Map<String, List<String>> eventIds = new LinkedHashMap<>();
+        for (KafkaMessage message : processed) {
+            if (isDedupeEnabled() && message.getEventId() != null) {
+                eventIds.computeIfAbsent(message.getProcessId(), k -> new ArrayList<>()).add(message.getEventId());
+            }
+        }
+        if (eventIds.isEmpty()) {
+            return saveStates(states);
+        }
+
+        List<Request> requests = new ArrayList<>();
+        requests.add(Request.cmd(Command.MULTI));
+        if (!states.isEmpty()) {
+            Request mset = Request.cmd(Command.MSET);
+            states.forEach((processId, state) -> mset.arg(processId).arg(state));
+            requests.add(mset);
+        }
+        eventIds.forEach((processId, ids) -> {
+            String key = PROCESSED_EVENTS_KEY_PREFIX + processId;
+            Request lpush = Request.cmd(Command.LPUSH).arg(key);
+            ids.forEach(lpush::arg);
+            requests.add(lpush);
+            requests.add(Request.cmd(Command.LTRIM).arg(key).arg(0).arg(dedupeWindow - 1));
+            if (dedupeTtlSeconds > 0) {
+                requests.add(Request.cmd(Command.EXPIRE).arg(key).arg(dedupeTtlSeconds));
+            }
+        });
+        requests.add(Request.cmd(Command.EXEC));
+        return batch(requests).mapEmpty();
+    }
+
+    /**
+     * Pipelines one transition script call per message in a single round trip, preceded by SCRIPT LOAD so
+     * EVALSHA cannot miss. Redis runs the calls in order, so events for the same process keep their order.
+     *
+     * @param latest latest version of each message's machine, by stateMachineId
+     * @return one result per message, {@code null} where the transition table of the process's version was missing
+     */
+    @Override
+    public Future<List<TransitionResult>> applyTransitions(List<KafkaMessage> messages, Map<String, CompiledStateMachine> latest) {
+        if (messages.isEmpty()) {
+            return Future.succeededFuture(new ArrayList<>());
+        }
+        List<Request> requests = new ArrayList<>(messages.size() + 1);
+        requests.add(Request.cmd(Command.SCRIPT).arg("LOAD").arg(TRANSITION_SCRIPT));
+        for (KafkaMessage message : messages) {
+            requests.add(transitionRequest(Command.EVALSHA, TRANSITION_SCRIPT_SHA, message.getProcessId(),
+                    latest.get(message.getStateMachineId()), message.getEvent(), message.getEventId()));
+        }
+        return batch(requests).map(responses -> {
+            List<TransitionResult> results = new ArrayList<>(messages.size());
+            for (int i = 1; i < responses.size(); i++) {
+                results.add(toTransitionResult(responses.get(i)));
+            }
+            return results;
+        });
+    }
+
+    @Override
+    public void close() {
+        redis.close();
+    }
+
+    private Request transitionRequest(Command command, String script, String processId, CompiledStateMachine latest,
+                                      String event, String eventId) {
+        return Request.cmd(command)
+                .arg(script)
+                .arg(4)
+                .arg(processId)
+                .arg(TRANSITION_TABLE_KEY_PREFIX + latest.getId())
+                .arg(PROCESSED_EVENTS_KEY_PREFIX + processId)
+                .arg(StateStore.versionKey(processId))
+                .arg(event)
+                .arg(latest.getInitialState())
+                .arg(isDedupeEnabled() && eventId != null ? eventId : "")
+                .arg(dedupeWindow)
+                .arg(latest.getVersion())
+                .arg(dedupeTtlSeconds);
+    }
+
+    private static TransitionResult toTransitionResult(Response response) {
+        int status = response.get(0).toInteger();
+        if (status == STATUS_NO_TRANSITION_TABLE) {
+            return null;
+        }
+        if (status == STATUS_DUPLICATE) {
+            return TransitionResult.duplicate(response.get(1).toString());
+        }
+        return new TransitionResult(status == STATUS_ACCEPTED, response.get(1).toString(), response.get(2).toString());
+    }
+
+    private Future<List<Response>> batch(List<Request> requests) {
+        Future<List<Response>> responses = redis.batch(requests);
+        return commandTimeoutMs > 0 ? responses.timeout(commandTimeoutMs, TimeUnit.MILLISECONDS) : responses;
+    }
+
+    private Future<Response> send(Request request) {
+        Future<Response> response = redis.send(request);
+        return commandTimeoutMs > 0 ? response.timeout(commandTimeoutMs, TimeUnit.MILLISECONDS) : response;
+    }
+
+    private static boolean isNoScript(Throwable err) {
+        return err.getMessage() != null && err.getMessage().startsWith("NOSCRIPT");
+    }
+
+    private static String sha1(String script) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return HexFormat.of().formatHex(digest.digest(script.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+}
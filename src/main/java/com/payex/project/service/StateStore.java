@@ -0,0 +1,103 @@
+package com.payex.project.service;
+
+import com.payex.project.engine.CompiledStateMachine;
+import com.payex.project.models.KafkaMessage;
+import com.payex.project.models.TransitionResult;
+import io.vertx.core.Future;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Where the consumers keep the current state of every process, the ids of the events recently applied to it and
+ * the transition tables of the atomic mode.
+ * <p>
+ * A process is pinned to the definition version that accepted its first event: the version is kept as an
+ * ordinary value under {@link #versionKey}, written atomically with that first state, or before it where the store
+ * cannot write both at once, and never changed. It lives as long as the state. Processes without one, including
+ * those started before definitions were versioned, run on the latest version.
+ * <p>
+ * {@link RedisService} shares the store between nodes; {@link com.payex.project.store.MappedStateStore} keeps it in
+ * a local file for single node deployments. Implementations are called from every consumer shard concurrently.
+ */
+public interface StateStore {
+
+    String ERROR_NO_TRANSITION_TABLE = "NOTABLE";
+    String VERSION_KEY_PREFIX = "sm:version:";
+
+    static boolean isMissingTransitionTable(Throwable err) {
+        return err.getMessage() != null && err.getMessage().startsWith(ERROR_NO_TRANSITION_TABLE);
+    }
+
+    /**
+     * Key of the definition version a process is pinned to.
+     */
+    static String versionKey(String processId) {
+        return VERSION_KEY_PREFIX + processId;
+    }
+
+    /**
+     * Whether the ids of applied events are remembered per process, see {@link #findProcessedEvents}.
+     */
+    boolean isDedupeEnabled();
+
+    Future<Void> saveState(String processId, String state);
+
+    /**
+     * @return the state, or {@code null} for an unknown process
+     */
+    Future<String> getState(String processId);
+
+    /**
+     * Stores the transition table of one version of a compiled machine for {@link #applyTransition}. Versions are
+     * immutable, so loading one again changes nothing.
+     */
+    Future<Void> loadTransitionTable(CompiledStateMachine compiled);
+
+    /**
+     * Reads the current state and pinned version, looks the transition up in that version's table loaded by
+     * {@link #loadTransitionTable} and writes the new state atomically, skipping events already in the process's
+     * dedupe window. A process not pinned yet starts on {@code latest} and is pinned to it once an event is
+     * accepted.
+     * <p>
+     * Fails with a message starting with {@link #ERROR_NO_TRANSITION_TABLE} when the table is not loaded.
+     */
+    Future<TransitionResult> applyTransition(String processId, CompiledStateMachine latest, String event, String eventId);
+
+    /**
+     * Reads the states of many processes at once. Unknown processes are absent from the map.
+     */
+    Future<Map<String, String>> getStates(List<String> processIds);
+
+    Future<Void> saveStates(Map<String, String> states);
+
+    /**
+     * Returns the ids among {@code messages} that are already in their process's dedupe window. Messages without
+     * an id are never duplicates.
+     */
+    Future<Set<String>> findProcessedEvents(List<KafkaMessage> messages);
+
+    /**
+     * Writes the states of many processes and records {@code processed} in the dedupe windows, so a state is
+     * never stored without the ids of the events that produced it.
+     */
+    Future<Void> saveStates(Map<String, String> states, List<KafkaMessage> processed);
+
+    /**
+     * {@link #applyTransition} for many messages in order.
+     *
+     * @param latest latest version of each message's machine, by stateMachineId
+     * @return one result per message, {@code null} where the transition table of the process's version was missing
+     */
+    Future<List<TransitionResult>> applyTransitions(List<KafkaMessage> messages, Map<String, CompiledStateMachine> latest);
+
+    /**
+     * Called when the consumer's partitions were revoked or assigned, so state kept locally for processes that
+     * may now be written elsewhere can be dropped.
+     */
+    default void onRebalance() {
+    }
+
+    void close();
+}
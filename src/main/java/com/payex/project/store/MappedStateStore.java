@@ -0,0 +1,825 @@
+package com.payex.project.store;
+
+import com.payex.project.constant.AppConstant;
+import com.payex.project.engine.CompiledStateMachine;
+import com.payex.project.models.KafkaMessage;
+import com.payex.project.models.StateMachineDB;
+import com.payex.project.models.TransitionResult;
+import com.payex.project.service.StateStore;
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * {@link StateStore} for a single node, keeping every process's state in a local memory-mapped log, so reads and
+ * writes take microseconds instead of a Redis round trip.
+ * <p>
+ * Every write appends a record to the log: the process id, the index of its state in a table of state names
+ * also kept in the log, and the id of the event applied and when, if any. Version pins have records of their own. An {@link OffHeapIndex} maps each process to its
+ * latest record. Once the file is three quarters full the live records are copied to a new file, twice as large if
+ * they fill more than half of it, on the compaction executor while appends continue. The records appended meanwhile
+ * are then copied over and the new file atomically replaces the old one. A file that fills up before that is grown
+ * in place.
+ * <p>
+ * Records carry a CRC, so on start the log is replayed up to the first incomplete record, which a crash may have
+ * left behind. Writes reach the page cache at once and survive a crash of the JVM; {@link #sync()} forces them to
+ * disk. Dedupe windows are rebuilt from the log and kept on the heap until they expire, as in Redis, a TTL after
+ * their last event. Transition tables are only kept in memory and reloaded by the consumers when missing.
+ * <p>
+ * Only one consumer group member may use a file, so this store is for deployments of a single node. A lock on a
+ * file next to the log, held until {@link #close()}, makes a second store opening it fail.
+ */
+public class MappedStateStore implements StateStore {
+    private static final Logger LOGGER = LogManager.getLogger(MappedStateStore.class);
+
+    // "SMST" and the format version; 2 added the time to event ids
+    private static final int MAGIC = 0x534D5354;
+    private static final int VERSION = 2;
+    private static final int FILE_HEADER_BYTES = 8;
+    // Body length and CRC32 of the body
+    private static final int RECORD_HEADER_BYTES = 8;
+    // Body: type, value, key length, key, payload
+    private static final int BODY_HEADER_BYTES = 5;
+    // Value is the name's index, key the state name
+    private static final byte TYPE_STATE_NAME = 1;
+    // Value is the state's index or NO_STATE, key the process id, payload the time it was written and the event id
+    private static final byte TYPE_PROCESS = 2;
+    // Key the process's version key, payload the version it is pinned to, so versions take no state names
+    private static final byte TYPE_PIN = 3;
+    private static final short NO_STATE = -1;
+    private static final int MAX_CAPACITY = 1 << 30;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Path path;
+    private final int dedupeWindow;
+    private final long dedupeTtlMs;
+    private final Executor compactor;
+    private final LongSupplier clock;
+    // By id and version
+    private final Map<String, CompiledStateMachine> transitionTables = new ConcurrentHashMap<>();
+
+    // Holds the lock, kept apart from the log, which compactions replace
+    private FileChannel lockChannel;
+    // Guarded by this; log is also read by sync()
+    private FileChannel channel;
+    private volatile MappedByteBuffer log;
+    private int position;
+    private OffHeapIndex index = new OffHeapIndex(1024);
+    private final List<String> stateNames = new ArrayList<>();
+    private final Map<String, Short> stateIndexes = new HashMap<>();
+    // In the order they were last written, so expired windows are at the head
+    private final Map<String, Window> windows = new LinkedHashMap<>();
+    private long compactions;
+    // Taken when a compaction is due, handed to the compactor once the store is unlocked
+    private Snapshot pendingCompaction;
+    private boolean compacting;
+    private boolean closed;
+
+    /**
+     * Opens the file like {@link #MappedStateStore(Path, int, int, int, Executor)} with the default dedupe TTL,
+     * compacting it on the calling thread once the store is unlocked.
+     */
+    public MappedStateStore(Path path, int initialCapacity, int dedupeWindow) {
+        this(path, initialCapacity, dedupeWindow, AppConstant.DEFAULT_DEDUPE_TTL_SECONDS, Runnable::run);
+    }
+
+    /**
+     * Opens the file, creating it with {@code initialCapacity} bytes if missing, and replays it.
+     *
+     * @throws IllegalStateException if another store, in this or another process, has the file open
+     * @param dedupeTtlSeconds how long a process's dedupe window is kept after its last event, 0 keeps it forever
+     * @param compactor        runs compactions, which copy the live records and force them to disk, so it should
+     *                         not be an event loop
+     */
+    public MappedStateStore(Path path, int initialCapacity, int dedupeWindow, int dedupeTtlSeconds, Executor compactor) {
+        this(path, initialCapacity, dedupeWindow, dedupeTtlSeconds, compactor, System::currentTimeMillis);
+    }
+
+    MappedStateStore(Path path, int initialCapacity, int dedupeWindow, int dedupeTtlSeconds, Executor compactor,
+                     LongSupplier clock) {
+        this.path = path;
+        this.dedupeWindow = dedupeWindow;
+        this.dedupeTtlMs = dedupeTtlSeconds * 1000L;
+        this.compactor = compactor;
+        this.clock = clock;
+        try {
+            lock();
+            open(Math.min(Math.max(initialCapacity, 4096), MAX_CAPACITY));
+        } catch (IOException e) {
+            unlock();
+            throw new UncheckedIOException("Could not open state store " + path, e);
+        } catch (RuntimeException e) {
+            unlock();
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isDedupeEnabled() {
+        return dedupeWindow > 0;
+    }
+
+    @Override
+    public Future<Void> saveState(String processId, String state) {
+        return complete(() -> {
+            put(processId, state);
+            return null;
+        });
+    }
+
+    @Override
+    public Future<String> getState(String processId) {
+        return complete(() -> read(processId));
+    }
+
+    @Override
+    public Future<Void> loadTransitionTable(CompiledStateMachine compiled) {
+        transitionTables.put(StateMachineDB.versionId(compiled.getId(), compiled.getVersion()), compiled);
+        return Future.succeededFuture();
+    }
+
+    @Override
+    public Future<TransitionResult> applyTransition(String processId, CompiledStateMachine latest, String event, String eventId) {
+        return complete(() -> transition(processId, latest, event, eventId))
+                .compose(result -> result == null
+                        ? Future.failedFuture(ERROR_NO_TRANSITION_TABLE + " " + latest.getId())
+                        : Future.succeededFuture(result));
+    }
+
+    @Override
+    public Future<Map<String, String>> getStates(List<String> processIds) {
+        return complete(() -> {
+            Map<String, String> states = new HashMap<>(processIds.size() * 2);
+            for (String processId : processIds) {
+                String state = read(processId);
+                if (state != null) {
+                    states.put(processId, state);
+                }
+            }
+            return states;
+        });
+    }
+
+    @Override
+    public Future<Void> saveStates(Map<String, String> states) {
+        return saveStates(states, List.of());
+    }
+
+    @Override
+    public Future<Set<String>> findProcessedEvents(List<KafkaMessage> messages) {
+        return complete(() -> {
+            Set<String> processed = new HashSet<>();
+            for (KafkaMessage message : messages) {
+                if (isProcessed(message.getProcessId(), message.getEventId())) {
+                    processed.add(message.getEventId());
+                }
+            }
+            return processed;
+        });
+    }
+
+    /**
+     * Appends the event ids and then the version pins before the states, so a crash in between never leaves a
+     * state without them.
+     */
+    @Override
+    public Future<Void> saveStates(Map<String, String> states, List<KafkaMessage> processed) {
+        return complete(() -> {
+            for (KafkaMessage message : processed) {
+                if (isDedupeEnabled() && message.getEventId() != null) {
+                    write(message.getProcessId(), null, message.getEventId());
+                }
+            }
+            states.forEach((key, state) -> {
+                if (key.startsWith(VERSION_KEY_PREFIX)) {
+                    put(key, state);
+                }
+            });
+            states.forEach((key, state) -> {
+                if (!key.startsWith(VERSION_KEY_PREFIX)) {
+                    put(key, state);
+                }
+            });
+            return null;
+        });
+    }
+
+    @Override
+    public Future<List<TransitionResult>> applyTransitions(List<KafkaMessage> messages, Map<String, CompiledStateMachine> latest) {
+        return complete(() -> {
+            List<TransitionResult> results = new ArrayList<>(messages.size());
+            for (KafkaMessage message : messages) {
+                results.add(transition(message.getProcessId(), latest.get(message.getStateMachineId()),
+                        message.getEvent(), message.getEventId()));
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Forces the log to disk. Blocks, so it must not run on an event loop.
+     */
+    public void sync() {
+        log.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        try {
+            log.force();
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Could not close state store {} - {}", path, e.getMessage());
+        }
+        unlock();
+    }
+
+    /**
+     * Number of keys with a state, version pins included.
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized JsonObject stats() {
+        return new JsonObject()
+                .put("processes", index.size())
+                .put("stateNames", stateNames.size())
+                .put("usedBytes", position)
+                .put("capacityBytes", log.capacity())
+                .put("compactions", compactions);
+    }
+
+    private <T> Future<T> complete(Supplier<T> operation) {
+        Future<T> result;
+        Snapshot snapshot;
+        synchronized (this) {
+            try {
+                result = Future.succeededFuture(operation.get());
+            } catch (RuntimeException e) {
+                result = Future.failedFuture(e);
+            }
+            snapshot = pendingCompaction;
+            pendingCompaction = null;
+        }
+        if (snapshot != null) {
+            compactor.execute(() -> compact(snapshot));
+        }
+        return result;
+    }
+
+    /**
+     * @return the result, or {@code null} if the transition table of the process's version was never loaded
+     */
+    private TransitionResult transition(String processId, CompiledStateMachine latest, String event, String eventId) {
+        String pinned = read(StateStore.versionKey(processId));
+        int version = pinned == null ? latest.getVersion() : Integer.parseInt(pinned);
+        CompiledStateMachine compiled = transitionTables.get(StateMachineDB.versionId(latest.getId(), version));
+        if (compiled == null) {
+            return null;
+        }
+        String stored = read(processId);
+        String current = stored == null ? latest.getInitialState() : stored;
+        boolean identified = isDedupeEnabled() && eventId != null;
+        if (identified && isProcessed(processId, eventId)) {
+            return TransitionResult.duplicate(current);
+        }
+        String target = compiled.fire(current, event);
+        if (target == null) {
+            if (identified) {
+                write(processId, null, eventId);
+            }
+            return new TransitionResult(false, current, current);
+        }
+        if (pinned == null) {
+            // Before the state, so a crash in between never leaves a state without its pin
+            pin(StateStore.versionKey(processId), version);
+        }
+        write(processId, target, identified ? eventId : null);
+        return new TransitionResult(true, current, target);
+    }
+
+    private boolean isProcessed(String processId, String eventId) {
+        if (!isDedupeEnabled() || eventId == null) {
+            return false;
+        }
+        Window window = windows.get(processId);
+        return window != null && !isExpired(window, clock.getAsLong()) && window.eventIds.contains(eventId);
+    }
+
+    /**
+     * @return the state of a process or the version under a version key, {@code null} if there is none
+     */
+    private String read(String processId) {
+        byte[] key = processId.getBytes(StandardCharsets.UTF_8);
+        long offset = index.get(processId.hashCode(), candidate -> keyEquals(log, (int) candidate, key));
+        if (offset < 0) {
+            return null;
+        }
+        int body = (int) offset + RECORD_HEADER_BYTES;
+        if (log.get(body) == TYPE_PIN) {
+            return String.valueOf(log.getInt(body + BODY_HEADER_BYTES + key.length));
+        }
+        // Files written before pins had their own records hold them as states
+        return stateNames.get(log.getShort(body + 1));
+    }
+
+    private void put(String key, String value) {
+        if (key.startsWith(VERSION_KEY_PREFIX)) {
+            pin(key, Integer.parseInt(value));
+        } else {
+            write(key, value, null);
+        }
+    }
+
+    private void pin(String versionKey, int version) {
+        byte[] key = versionKey.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = ByteBuffer.allocate(Integer.BYTES).putInt(version).array();
+        int offset = reserve(key, payload);
+        position = putRecord(log, offset, TYPE_PIN, NO_STATE, key, payload);
+        index.put(versionKey.hashCode(), offset, candidate -> keyEquals(log, (int) candidate, key));
+    }
+
+    /**
+     * Appends a process record.
+     *
+     * @param state   the new state, or {@code null} to only remember the event
+     * @param eventId the event to remember, or {@code null}
+     */
+    private void write(String processId, String state, String eventId) {
+        byte[] key = processId.getBytes(StandardCharsets.UTF_8);
+        long now = clock.getAsLong();
+        byte[] payload = eventId == null || !isDedupeEnabled() ? EMPTY : eventPayload(eventId, now);
+        short value = state == null ? NO_STATE : stateIndex(state);
+        int offset = reserve(key, payload);
+        position = putRecord(log, offset, TYPE_PROCESS, value, key, payload);
+        if (value != NO_STATE) {
+            index.put(processId.hashCode(), offset, candidate -> keyEquals(log, (int) candidate, key));
+        }
+        if (payload.length > 0) {
+            remember(processId, eventId, now);
+        }
+    }
+
+    private short stateIndex(String state) {
+        Short existing = stateIndexes.get(state);
+        if (existing != null) {
+            return existing;
+        }
+        if (stateNames.size() > Short.MAX_VALUE) {
+            throw new IllegalStateException("State store holds the maximum of " + stateNames.size() + " state names");
+        }
+        short value = (short) stateNames.size();
+        byte[] name = state.getBytes(StandardCharsets.UTF_8);
+        int offset = reserve(name, EMPTY);
+        position = putRecord(log, offset, TYPE_STATE_NAME, value, name, EMPTY);
+        stateNames.add(state);
+        stateIndexes.put(state, value);
+        return value;
+    }
+
+    /**
+     * Adds the event to the process's window, starting a new one if it expired, and drops the windows that expired
+     * since.
+     */
+    private void remember(String processId, String eventId, long writtenAt) {
+        long now = clock.getAsLong();
+        // Taken out and put back, so the map stays in the order windows were written
+        Window window = windows.remove(processId);
+        if (window == null || isExpired(window, now)) {
+            window = new Window();
+        }
+        window.add(eventId, writtenAt, dedupeWindow);
+        windows.put(processId, window);
+        for (Iterator<Window> it = windows.values().iterator(); it.hasNext(); ) {
+            if (!isExpired(it.next(), now)) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    private boolean isExpired(Window window, long now) {
+        return dedupeTtlMs > 0 && now - window.writtenAt >= dedupeTtlMs;
+    }
+
+    private static byte[] eventPayload(String eventId, long writtenAt) {
+        byte[] id = eventId.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(Long.BYTES + id.length).putLong(writtenAt).put(id).array();
+    }
+
+    /**
+     * @return where a record of this key and payload can be written, growing the log first if it is full and
+     * scheduling a compaction once it is three quarters full
+     */
+    private int reserve(byte[] key, byte[] payload) {
+        if (key.length > 0xFFFF) {
+            throw new IllegalArgumentException("Key longer than 65535 bytes");
+        }
+        int size = recordSize(key, payload);
+        if (position + size > log.capacity()) {
+            log = grow(channel, log.capacity(), (long) position + size);
+        }
+        if (!compacting && position + size > log.capacity() / 4 * 3) {
+            compacting = true;
+            pendingCompaction = new Snapshot(log, position);
+        }
+        return position;
+    }
+
+    /**
+     * Maps the file with at least {@code needed} bytes, doubling {@code capacity} until they fit. The pages already
+     * written stay where they are, so this is cheap enough to do under the lock.
+     */
+    private MappedByteBuffer grow(FileChannel file, int capacity, long needed) {
+        int grown = capacity;
+        while (needed > grown && grown < MAX_CAPACITY) {
+            grown = (int) Math.min(grown * 2L, MAX_CAPACITY);
+        }
+        if (needed > grown) {
+            throw new IllegalStateException("State store is full at " + grown + " bytes");
+        }
+        try {
+            return file.map(FileChannel.MapMode.READ_WRITE, 0, grown);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not grow state store " + path, e);
+        }
+    }
+
+    private static boolean keyEquals(MappedByteBuffer buffer, int offset, byte[] key) {
+        int body = offset + RECORD_HEADER_BYTES;
+        if ((buffer.getShort(body + 3) & 0xFFFF) != key.length) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(body + BODY_HEADER_BYTES + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void lock() throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Path lockPath = path.resolveSibling(path.getFileName() + ".lock");
+        lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // Held by another store in this JVM
+            lock = null;
+        }
+        if (lock == null) {
+            throw new IllegalStateException("State store " + path + " is already open, " + lockPath + " is locked");
+        }
+    }
+
+    private void unlock() {
+        try {
+            if (lockChannel != null) {
+                // Releases the lock too
+                lockChannel.close();
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Could not release the lock of state store {} - {}", path, e.getMessage());
+        }
+    }
+
+    private void open(int initialCapacity) throws IOException {
+        // Left over by a compaction that did not finish; the log itself is intact
+        Files.deleteIfExists(compactionPath());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean created = channel.size() == 0;
+        int capacity = (int) Math.min(Math.max(initialCapacity, channel.size()), MAX_CAPACITY);
+        log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (created) {
+            log.putInt(0, MAGIC);
+            log.putInt(4, VERSION);
+        } else if (log.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IllegalStateException("Not a state store file: " + path);
+        } else if (log.getInt(4) != VERSION) {
+            int version = log.getInt(4);
+            channel.close();
+            throw new IllegalStateException("State store " + path + " has format version " + version + ", expected "
+                    + VERSION);
+        }
+        replay();
+    }
+
+    private void replay() {
+        long started = System.nanoTime();
+        int offset = FILE_HEADER_BYTES;
+        int records = 0;
+        while (isValidRecord(offset)) {
+            int body = offset + RECORD_HEADER_BYTES;
+            short value = log.getShort(body + 1);
+            int keyLength = log.getShort(body + 3) & 0xFFFF;
+            String key = readString(log, body + BODY_HEADER_BYTES, keyLength);
+            int payloadLength = log.getInt(offset) - BODY_HEADER_BYTES - keyLength;
+            if (log.get(body) == TYPE_STATE_NAME) {
+                stateNames.add(key);
+                stateIndexes.put(key, value);
+            } else {
+                byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+                if (value != NO_STATE || log.get(body) == TYPE_PIN) {
+                    index.put(key.hashCode(), offset, candidate -> keyEquals(log, (int) candidate, keyBytes));
+                }
+                int payload = body + BODY_HEADER_BYTES + keyLength;
+                if (log.get(body) == TYPE_PROCESS && payloadLength > 0 && isDedupeEnabled()) {
+                    remember(key, readString(log, payload + Long.BYTES, payloadLength - Long.BYTES), log.getLong(payload));
+                }
+            }
+            offset = body + log.getInt(offset);
+            records++;
+        }
+        position = offset;
+        if (offset + 4 <= log.capacity() && log.getInt(offset) != 0) {
+            // An incomplete record from a crash, cleared so it cannot be mistaken for one written later
+            LOGGER.warn("Discarding the incomplete record at offset {} of {}", offset, path);
+            for (int i = offset; i < log.capacity(); i++) {
+                log.put(i, (byte) 0);
+            }
+        }
+        LOGGER.info("State store {} replayed: {} records, {} processes in {} ms", path, records, index.size(),
+                (System.nanoTime() - started) / 1_000_000);
+    }
+
+    private boolean isValidRecord(int offset) {
+        if (offset + RECORD_HEADER_BYTES + BODY_HEADER_BYTES > log.capacity()) {
+            return false;
+        }
+        int length = log.getInt(offset);
+        if (length < BODY_HEADER_BYTES || length > log.capacity() - offset - RECORD_HEADER_BYTES) {
+            return false;
+        }
+        return crc(log, offset + RECORD_HEADER_BYTES, length) == log.getInt(offset + 4);
+    }
+
+    /**
+     * Copies the state names, the latest state of every process and its dedupe window as of the snapshot, unless
+     * it expired, to a new file and forces it to disk, all without the lock, as the log is only ever appended to. The new file is twice
+     * as large when the live records would fill more than half of it. Failures are logged, appends continue in the
+     * current file and the next write schedules another attempt.
+     */
+    private void compact(Snapshot snapshot) {
+        long started = System.nanoTime();
+        MappedByteBuffer source = snapshot.log;
+        List<String> names = new ArrayList<>();
+        Map<String, Short> states = new LinkedHashMap<>();
+        Map<String, Integer> pins = new LinkedHashMap<>();
+        Map<String, Window> liveWindows = new HashMap<>();
+        for (int offset = FILE_HEADER_BYTES; offset < snapshot.end; ) {
+            int body = offset + RECORD_HEADER_BYTES;
+            int length = source.getInt(offset);
+            int keyLength = source.getShort(body + 3) & 0xFFFF;
+            String key = readString(source, body + BODY_HEADER_BYTES, keyLength);
+            short value = source.getShort(body + 1);
+            if (source.get(body) == TYPE_STATE_NAME) {
+                names.add(key);
+            } else if (source.get(body) == TYPE_PIN) {
+                pins.put(key, source.getInt(body + BODY_HEADER_BYTES + keyLength));
+            } else {
+                if (value != NO_STATE) {
+                    states.put(key, value);
+                }
+                int payloadLength = length - BODY_HEADER_BYTES - keyLength;
+                int payload = body + BODY_HEADER_BYTES + keyLength;
+                if (payloadLength > 0) {
+                    liveWindows.computeIfAbsent(key, id -> new Window()).add(
+                            readString(source, payload + Long.BYTES, payloadLength - Long.BYTES),
+                            source.getLong(payload), dedupeWindow);
+                }
+            }
+            offset = body + length;
+        }
+        long now = clock.getAsLong();
+        liveWindows.values().removeIf(window -> isExpired(window, now));
+        Set<String> processes = new LinkedHashSet<>(states.keySet());
+        processes.addAll(liveWindows.keySet());
+
+        Path compactionPath = compactionPath();
+        FileChannel compacted = null;
+        boolean swapped = false;
+        try {
+            long live = FILE_HEADER_BYTES;
+            for (String name : names) {
+                live += recordSize(name.getBytes(StandardCharsets.UTF_8), EMPTY);
+            }
+            for (String versionKey : pins.keySet()) {
+                live += recordSize(versionKey.getBytes(StandardCharsets.UTF_8), new byte[Integer.BYTES]);
+            }
+            for (String processId : processes) {
+                byte[] key = processId.getBytes(StandardCharsets.UTF_8);
+                Window window = liveWindows.get(processId);
+                for (String eventId : window == null ? List.<String>of() : window.eventIds) {
+                    live += recordSize(key, eventPayload(eventId, window.writtenAt));
+                }
+                live += states.containsKey(processId) ? recordSize(key, EMPTY) : 0;
+            }
+            int capacity = source.capacity();
+            while (live > capacity / 2 && capacity < MAX_CAPACITY) {
+                capacity = (int) Math.min(capacity * 2L, MAX_CAPACITY);
+            }
+            if (live > capacity) {
+                throw new IllegalStateException("State store is full at " + capacity + " bytes");
+            }
+
+            compacted = FileChannel.open(compactionPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer target = compacted.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            OffHeapIndex targetIndex = new OffHeapIndex(states.size() + pins.size());
+            target.putInt(0, MAGIC);
+            target.putInt(4, VERSION);
+            int offset = FILE_HEADER_BYTES;
+            for (int i = 0; i < names.size(); i++) {
+                offset = putRecord(target, offset, TYPE_STATE_NAME, (short) i,
+                        names.get(i).getBytes(StandardCharsets.UTF_8), EMPTY);
+            }
+            // Before the states, as when they were first written
+            for (Map.Entry<String, Integer> pin : pins.entrySet()) {
+                targetIndex.put(pin.getKey().hashCode(), offset, candidate -> false);
+                offset = putRecord(target, offset, TYPE_PIN, NO_STATE, pin.getKey().getBytes(StandardCharsets.UTF_8),
+                        ByteBuffer.allocate(Integer.BYTES).putInt(pin.getValue()).array());
+            }
+            for (String processId : processes) {
+                byte[] key = processId.getBytes(StandardCharsets.UTF_8);
+                Window window = liveWindows.get(processId);
+                if (window != null) {
+                    // Oldest first, so the replay rebuilds the window in order
+                    for (Iterator<String> it = window.eventIds.descendingIterator(); it.hasNext(); ) {
+                        offset = putRecord(target, offset, TYPE_PROCESS, NO_STATE, key,
+                                eventPayload(it.next(), window.writtenAt));
+                    }
+                }
+                Short state = states.get(processId);
+                if (state != null) {
+                    // Every process appears once, so no existing entry can match
+                    targetIndex.put(processId.hashCode(), offset, candidate -> false);
+                    offset = putRecord(target, offset, TYPE_PROCESS, state, key, EMPTY);
+                }
+            }
+            target.force();
+            swapped = swap(snapshot, compacted, target, targetIndex, offset);
+            if (swapped) {
+                LOGGER.info("State store {} compacted from {} to {} live bytes in {} ms", path, snapshot.end, offset,
+                        (System.nanoTime() - started) / 1_000_000);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Could not compact state store {} - {}", path, e.getMessage());
+        } finally {
+            if (!swapped) {
+                discard(compacted, compactionPath);
+            }
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Copies the records appended since the snapshot to the compacted file and swaps it in. Both are plain copies
+     * and a rename, so appends wait no longer than they would for a grow.
+     *
+     * @return {@code false} if the store was closed meanwhile
+     */
+    private synchronized boolean swap(Snapshot snapshot, FileChannel compacted, MappedByteBuffer target,
+                                      OffHeapIndex targetIndex, int end) throws IOException {
+        if (closed) {
+            return false;
+        }
+        int tail = position - snapshot.end;
+        MappedByteBuffer grown = end + tail > target.capacity() ? grow(compacted, target.capacity(), (long) end + tail) : target;
+        grown.put(end, log, snapshot.end, tail);
+        for (int offset = end; offset < end + tail; ) {
+            int body = offset + RECORD_HEADER_BYTES;
+            if (grown.get(body) == TYPE_PIN || grown.get(body) == TYPE_PROCESS && grown.getShort(body + 1) != NO_STATE) {
+                byte[] key = new byte[grown.getShort(body + 3) & 0xFFFF];
+                grown.get(body + BODY_HEADER_BYTES, key);
+                targetIndex.put(new String(key, StandardCharsets.UTF_8).hashCode(), offset,
+                        candidate -> keyEquals(grown, (int) candidate, key));
+            }
+            offset = body + grown.getInt(offset);
+        }
+        Files.move(compactionPath(), path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        channel.close();
+        channel = compacted;
+        log = grown;
+        position = end + tail;
+        index = targetIndex;
+        compactions++;
+        return true;
+    }
+
+    private void discard(FileChannel compacted, Path compactionPath) {
+        try {
+            if (compacted != null) {
+                compacted.close();
+            }
+            Files.deleteIfExists(compactionPath);
+        } catch (IOException e) {
+            LOGGER.warn("Could not delete {} - {}", compactionPath, e.getMessage());
+        }
+    }
+
+    private Path compactionPath() {
+        return path.resolveSibling(path.getFileName() + ".compact");
+    }
+
+    private static String readString(MappedByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int recordSize(byte[] key, byte[] payload) {
+        return RECORD_HEADER_BYTES + BODY_HEADER_BYTES + key.length + payload.length;
+    }
+
+    /**
+     * Writes a record at {@code offset}, its length last so a partially written record is never valid.
+     *
+     * @return the offset after the record
+     */
+    private static int putRecord(MappedByteBuffer buffer, int offset, byte type, short value, byte[] key, byte[] payload) {
+        int body = offset + RECORD_HEADER_BYTES;
+        int length = BODY_HEADER_BYTES + key.length + payload.length;
+        buffer.put(body, type);
+        buffer.putShort(body + 1, value);
+        buffer.putShort(body + 3, (short) key.length);
+        buffer.put(body + BODY_HEADER_BYTES, key);
+        buffer.put(body + BODY_HEADER_BYTES + key.length, payload);
+        buffer.putInt(offset + 4, crc(buffer, body, length));
+        buffer.putInt(offset, length);
+        return body + length;
+    }
+
+    /**
+     * The ids of the events last applied to a process, most recent first, and when the last one was written.
+     */
+    private static final class Window {
+        private final ArrayDeque<String> eventIds = new ArrayDeque<>();
+        private long writtenAt;
+
+        private void add(String eventId, long writtenAt, int size) {
+            eventIds.addFirst(eventId);
+            while (eventIds.size() > size) {
+                eventIds.removeLast();
+            }
+            this.writtenAt = writtenAt;
+        }
+    }
+
+    /**
+     * The end of the log when a compaction was scheduled, and the buffer to read it from.
+     */
+    private static final class Snapshot {
+        private final MappedByteBuffer log;
+        private final int end;
+
+        private Snapshot(MappedByteBuffer log, int end) {
+            this.log = log;
+            this.end = end;
+        }
+    }
+
+    private static int crc(MappedByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,115 @@
+package com.payex.project.store;
+
+import java.nio.ByteBuffer;
+import java.util.function.LongConsumer;
+import java.util.function.LongPredicate;
+
+/**
+ * Open addressing hash table in direct memory from a key's hash to a non-negative long, so millions of processes
+ * cost no Java objects.
+ * <p>
+ * Keys are not stored. Each slot holds a hash and a value, and callers confirm a candidate with a predicate on its
+ * value, such as by reading the key at that offset of the log. Probes are linear; the table doubles once half
+ * full. Not thread safe.
+ */
+final class OffHeapIndex {
+
+    // Hash and value + 1, so a zeroed slot is empty
+    private static final int SLOT_BYTES = 16;
+    // Largest power of two whose table fits in one buffer
+    private static final int MAX_SLOTS = 1 << 26;
+
+    private ByteBuffer slots;
+    private int mask;
+    private int size;
+
+    OffHeapIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, expectedSize * 2 - 1)) << 1;
+        allocate(Math.min(capacity, MAX_SLOTS));
+    }
+
+    /**
+     * @return the value of the entry with this hash accepted by {@code matches}, or -1 if there is none
+     */
+    long get(int hash, LongPredicate matches) {
+        for (int slot = slot(hash); ; slot = (slot + 1) & mask) {
+            long stored = slots.getLong(slot * SLOT_BYTES + 8);
+            if (stored == 0) {
+                return -1;
+            }
+            if (slots.getLong(slot * SLOT_BYTES) == hash && matches.test(stored - 1)) {
+                return stored - 1;
+            }
+        }
+    }
+
+    /**
+     * Replaces the value of the entry with this hash accepted by {@code matches}, or adds one.
+     */
+    void put(int hash, long value, LongPredicate matches) {
+        int slot = slot(hash);
+        for (; ; slot = (slot + 1) & mask) {
+            long stored = slots.getLong(slot * SLOT_BYTES + 8);
+            if (stored == 0) {
+                break;
+            }
+            if (slots.getLong(slot * SLOT_BYTES) == hash && matches.test(stored - 1)) {
+                slots.putLong(slot * SLOT_BYTES + 8, value + 1);
+                return;
+            }
+        }
+        if ((size + 1) * 2L > mask + 1L) {
+            grow();
+            put(hash, value, v -> false);
+            return;
+        }
+        slots.putLong(slot * SLOT_BYTES, hash);
+        slots.putLong(slot * SLOT_BYTES + 8, value + 1);
+        size++;
+    }
+
+    void forEach(LongConsumer action) {
+        for (int slot = 0; slot <= mask; slot++) {
+            long stored = slots.getLong(slot * SLOT_BYTES + 8);
+            if (stored != 0) {
+                action.accept(stored - 1);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        if (mask + 1 >= MAX_SLOTS) {
+            throw new IllegalStateException("Index is full at " + size + " entries");
+        }
+        ByteBuffer previous = slots;
+        int previousSlots = mask + 1;
+        allocate(previousSlots * 2);
+        for (int slot = 0; slot < previousSlots; slot++) {
+            long stored = previous.getLong(slot * SLOT_BYTES + 8);
+            if (stored != 0) {
+                int hash = (int) previous.getLong(slot * SLOT_BYTES);
+                int target = slot(hash);
+                while (slots.getLong(target * SLOT_BYTES + 8) != 0) {
+                    target = (target + 1) & mask;
+                }
+                slots.putLong(target * SLOT_BYTES, hash);
+                slots.putLong(target * SLOT_BYTES + 8, stored);
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_BYTES);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
@@ -0,0 +1,38 @@
+package com.payex.project.verticles;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Promise;
+import io.vertx.ext.web.Router;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Serves the shared router on one event loop. Deployed with several instances, Vert.x lets every instance
+ * listen on the same port and spreads connections across them.
+ */
+public class HttpServerVerticle extends AbstractVerticle {
+    private static final Logger LOGGER = LogManager.getLogger(HttpServerVerticle.class);
+
+    private final Router router;
+    private final int port;
+
+    public HttpServerVerticle(Router router, int port) {
+        this.router = router;
+        this.port = port;
+    }
+
+    @Override
+    public void start(Promise<Void> startPromise) {
+        vertx.createHttpServer()
+                .requestHandler(router)
+                .listen(port)
+                .onSuccess(server -> {
+                    startPromise.complete();
+                    LOGGER.info("HTTP server started on port {}", port);
+                })
+                .onFailure(err -> {
+                    LOGGER.error("Failed to start HTTP server on port {}", port, err);
+                    startPromise.fail(err);
+                });
+    }
+}
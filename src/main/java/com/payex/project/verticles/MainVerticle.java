@@ -1,68 +1,201 @@
 package com.payex.project.verticles;
 
+import com.payex.project.audit.TransitionLog;
+import com.payex.project.cache.CachedStateMachine;
+import com.payex.project.cache.LruCache;
+import com.payex.project.cache.NearCache;
+import com.payex.project.constant.AppConstant;
+import com.payex.project.definition.DefinitionPublisher;
+import com.payex.project.definition.DefinitionView;
+import com.payex.project.metrics.AppMetrics;
+import com.payex.project.query.ProcessStateQuery;
 import com.payex.project.exception.GlobalExceptionHandler;
 import com.payex.project.repository.RepoUtil;
 import com.payex.project.server.RequestHandler;
 import com.payex.project.server.Routers;
 import io.vertx.core.AbstractVerticle;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.handler.BodyHandler;
 import com.payex.project.config.ConfigLoader;
+import com.payex.project.consumer.KafkaClientFactory;
 import com.payex.project.consumer.KafkaVerticle;
 import com.payex.project.controller.ControllerVerticle;
 import io.vertx.ext.web.handler.CorsHandler;
+import io.vertx.kafka.client.consumer.KafkaConsumer;
+import io.vertx.kafka.client.producer.KafkaProducer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import com.payex.project.service.NearCachedRedisService;
 import com.payex.project.service.RedisService;
+import com.payex.project.service.StateStore;
+import com.payex.project.store.MappedStateStore;
 
+import java.nio.file.Paths;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class MainVerticle extends AbstractVerticle {
     private static final Logger LOGGER = LogManager.getLogger(MainVerticle.class);
 
+    private TransitionLog transitionLog;
+    private StateStore stateStore;
+
     @Override
     public void start(Promise<Void> startPromise) {
         ConfigLoader config = ConfigLoader.loadConfig();
+        int httpInstances = instancesOrCores(config.getServerInstances());
+        int kafkaInstances = instancesOrCores(config.getKafkaInstances());
 
+        // Created once and shared by every instance: the Mongo client and the Redis pool are thread safe
+        // and the definition cache is synchronized
         RepoUtil repoUtil = new RepoUtil(vertx);
-        RedisService redisService = new RedisService();
+        stateStore = stateStore(config);
 
-        KafkaVerticle kafkaVerticle = new KafkaVerticle(redisService, repoUtil);
-        ControllerVerticle controllerVerticle = new ControllerVerticle(repoUtil);
+        LruCache<String, CachedStateMachine> stateMachineCache =
+                new LruCache<>(config.getStateMachineCacheMaxSize());
+        // Versions are immutable, so the consumers share them without any invalidation
+        LruCache<String, CachedStateMachine> versionCache =
+                new LruCache<>(config.getStateMachineCacheMaxSize());
 
-        RequestHandler requestHandler = new RequestHandler(kafkaVerticle, controllerVerticle);
+        DefinitionPublisher definitionPublisher = new DefinitionPublisher(
+                KafkaProducer.createShared(vertx, AppConstant.DEFINITIONS_PRODUCER_NAME, definitionsProducerConfig(config)),
+                config.getKafkaDefinitionsTopic());
+        ControllerVerticle controllerVerticle = new ControllerVerticle(repoUtil, stateMachineCache, definitionPublisher);
 
-        Router router = Router.router(vertx);
-        router.route().handler(BodyHandler.create());
+        controllerVerticle.ensureIndexes();
 
         GlobalExceptionHandler.register(vertx, "MainVerticle");
-        GlobalExceptionHandler.register(router, "MainRouter");
-
-        enableCors(router);
 
-        new Routers(requestHandler).registerRoutes(router);
+        DefinitionView definitionView = AppConstant.DEFINITION_SOURCE_TOPIC.equals(config.getStateMachineDefinitionSource())
+                ? new DefinitionView().addListener(stateMachineCache::invalidate)
+                : null;
+        Future<Void> definitionsLoaded = definitionView == null
+                ? Future.succeededFuture()
+                : definitionView.start(KafkaConsumer.create(vertx, definitionsConsumerConfig(config)),
+                        config.getKafkaDefinitionsTopic(), config.getStateMachineDefinitionsStartupTimeoutMs());
+
+        // One buffer for all consumer instances, so bulk writes fill up sooner
+        transitionLog = config.isTransitionLogEnabled() ? new TransitionLog(vertx, repoUtil, config) : null;
+        Future<Void> transitionLogStarted = transitionLog == null ? Future.succeededFuture() : transitionLog.start();
+
+        List<KafkaVerticle> kafkaVerticles = new CopyOnWriteArrayList<>();
+        // Consumers start once the definitions view is rebuilt, so their lookups are served from memory
+        Future.all(definitionsLoaded, transitionLogStarted).compose(loaded -> vertx.deployVerticle(() -> {
+                    KafkaVerticle kafkaVerticle = new KafkaVerticle(stateStore, repoUtil, stateMachineCache,
+                            versionCache, definitionView, config, KafkaClientFactory.DEFAULT, transitionLog);
+                    kafkaVerticles.add(kafkaVerticle);
+                    return kafkaVerticle;
+                }, new DeploymentOptions().setInstances(kafkaInstances)))
+                .onSuccess(id -> LOGGER.info("KafkaVerticle deployed successfully with {} instances.", kafkaInstances))
+                .onFailure(err -> LOGGER.error("Failed to deploy KafkaVerticle", err))
+                // Requests are handed to the consumers, so without them there is nothing to serve
+                .compose(deployed -> {
+                    RequestHandler requestHandler = new RequestHandler(kafkaVerticles, controllerVerticle, transitionLog,
+                            new ProcessStateQuery(stateStore, config));
+
+                    // The router is stateless once configured, so all HTTP instances share it
+                    Router router = Router.router(vertx);
+                    router.route().handler(AppMetrics.httpHandler());
+                    // Bulk ingestion reads its body as a stream, so it must not be buffered by the BodyHandler
+                    BodyHandler bodyHandler = BodyHandler.create();
+                    router.route().handler(ctx -> {
+                        if (AppConstant.END_POINT_KAFKA_MESSAGE_BATCH.equals(ctx.normalizedPath())) {
+                            ctx.next();
+                        } else {
+                            bodyHandler.handle(ctx);
+                        }
+                    });
+
+                    GlobalExceptionHandler.register(router, "MainRouter");
+
+                    enableCors(router);
+
+                    new Routers(vertx, requestHandler).registerRoutes(router);
+
+                    return vertx.deployVerticle(() -> new HttpServerVerticle(router, config.getServerPort()),
+                            new DeploymentOptions().setInstances(httpInstances));
+                })
+                .onSuccess(id -> {
+                    LOGGER.info("HTTP server deployed with {} instances", httpInstances);
+                    startPromise.complete();
+                })
+                .onFailure(startPromise::fail);
+    }
 
-        vertx.deployVerticle(kafkaVerticle)
-                .onSuccess(id -> LOGGER.info("KafkaVerticle deployed successfully."))
-                .onFailure(err -> LOGGER.error("Failed to deploy KafkaVerticle", err));
+    @Override
+    public void stop(Promise<Void> stopPromise) {
+        // Writes what is still buffered; the consumers are undeployed first, so nothing is added meanwhile
+        Future<Void> transitionLogClosed = transitionLog == null ? Future.succeededFuture() : transitionLog.close();
+        transitionLogClosed.onComplete(ar -> {
+            if (stateStore != null) {
+                stateStore.close();
+            }
+            stopPromise.complete();
+        });
+    }
 
+    private StateStore stateStore(ConfigLoader config) {
+        if (AppConstant.STATE_STORE_MAPPED.equals(config.getStateStoreType())) {
+            // Compactions copy the live states and force them to disk, so they run on a worker thread too
+            MappedStateStore mappedStateStore = new MappedStateStore(Paths.get(config.getStateStorePath()),
+                    config.getStateStoreInitialSizeBytes(), config.getStateMachineDedupeWindow(),
+                    config.getStateMachineDedupeTtlSeconds(), compaction -> vertx.executeBlocking(() -> {
+                        compaction.run();
+                        return null;
+                    }, false));
+            // Forcing the pages to disk blocks, so it runs on a worker thread
+            vertx.setPeriodic(config.getStateStoreSyncIntervalMs(), id -> vertx.executeBlocking(() -> {
+                mappedStateStore.sync();
+                return null;
+            }, false));
+            LOGGER.info("Process states kept in {}", config.getStateStorePath());
+            return mappedStateStore;
+        }
+        RedisService redisService = new RedisService(vertx);
+        if (!config.isRedisNearCacheEnabled()) {
+            return redisService;
+        }
+        NearCache nearCache = new NearCache(config.getRedisNearCacheMaxEntries(),
+                config.getRedisNearCacheMaxBytes(), config.getRedisNearCacheTtlMs());
+        AppMetrics.bindNearCache(nearCache);
+        LOGGER.info("Near cache enabled for up to {} process states", config.getRedisNearCacheMaxEntries());
+        return new NearCachedRedisService(redisService, nearCache);
+    }
 
-        vertx.createHttpServer()
-                .requestHandler(router)
-                .listen(config.getServerPort())
-                .onSuccess(server -> {
-                    startPromise.complete();
-                    LOGGER.info("HTTP server started on port {}", config.getServerPort());
-                })
-                .onFailure(err -> {
-                    LOGGER.error("Failed to start HTTP server on port {}", config.getServerPort(), err);
-                    startPromise.fail(err);
-                });
+    private static Map<String, String> definitionsProducerConfig(ConfigLoader config) {
+        Map<String, String> producerConfig = new HashMap<>();
+        producerConfig.put("bootstrap.servers", config.getKafkaBootstrapServers());
+        producerConfig.put("key.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+        producerConfig.put("value.serializer", "org.apache.kafka.common.serialization.StringSerializer");
+        // Definitions are rare and must not be lost
+        producerConfig.put("acks", "all");
+        return producerConfig;
+    }
 
+    private static Map<String, String> definitionsConsumerConfig(ConfigLoader config) {
+        // Partitions are assigned manually and always read from the beginning, so no group or commits are needed
+        Map<String, String> consumerConfig = new HashMap<>();
+        consumerConfig.put("bootstrap.servers", config.getKafkaBootstrapServers());
+        consumerConfig.put("key.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        consumerConfig.put("value.deserializer", "org.apache.kafka.common.serialization.StringDeserializer");
+        consumerConfig.put("enable.auto.commit", "false");
+        consumerConfig.put("auto.offset.reset", "earliest");
+        return consumerConfig;
+    }
 
+    /**
+     * Instance count from the config, where 0 means one per available core.
+     */
+    public static int instancesOrCores(int configured) {
+        return configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
     }
 
     public static void enableCors(Router router) {
@@ -0,0 +1,229 @@
+package com.payex.project.audit
+
+import com.payex.project.config.ConfigLoader
+import com.payex.project.constant.AppConstant
+import com.payex.project.models.TransitionRecord
+import com.payex.project.repository.RepoUtil
+import io.vertx.core.Future
+import io.vertx.core.Promise
+import io.vertx.core.Vertx
+import io.vertx.core.json.JsonObject
+import io.vertx.ext.mongo.FindOptions
+import spock.lang.Specification
+import spock.util.concurrent.PollingConditions
+
+class TransitionLogTest extends Specification {
+
+    Vertx vertx = Vertx.vertx()
+    RepoUtil repoUtil = Mock()
+
+    def cleanup() {
+        vertx.close()
+    }
+
+    def "record should write a batch with one bulk insert once batchSize records are buffered"() {
+        given:
+        def log = transitionLog(2, 10, AppConstant.TRANSITION_LOG_OVERFLOW_BACKPRESSURE)
+
+        when:
+        log.record(record("order-1", 1))
+
+        then: "Nothing is written below the batch size"
+        0 * repoUtil.insertMany(*_)
+
+        when:
+        log.record(record("order-2", 2))
+
+        then:
+        1 * repoUtil.insertMany(AppConstant.COLLECTION_TRANSITION_LOG, { List<JsonObject> documents ->
+            documents*.getString("processId") == ["order-1", "order-2"] && documents.every { it.getString("_id") }
+        }) >> Future.succeededFuture(2L)
+        log.stats().getLong("written") == 2
+        log.stats().getInteger("buffered") == 0
+    }
+
+    def "start should ensure the history index and flush partial batches every interval"() {
+        given:
+        def log = transitionLog(100, 1000, AppConstant.TRANSITION_LOG_OVERFLOW_BACKPRESSURE)
+        repoUtil.insertMany(*_) >> Future.succeededFuture(1L)
+
+        when:
+        log.start().toCompletionStage().toCompletableFuture().get()
+        log.record(record("order-1", 1))
+
+        then:
+        1 * repoUtil.createIndex(AppConstant.COLLECTION_TRANSITION_LOG,
+                new JsonObject().put("processId", 1).put("timestamp", -1).put("_id", -1), _) >> Future.succeededFuture()
+        new PollingConditions(timeout: 5).eventually {
+            assert log.stats().getLong("written") == 1
+        }
+
+        cleanup:
+        log.close()
+    }
+
+    def "the drop policy should discard records beyond maxBuffered, counting those being written"() {
+        given:
+        def log = transitionLog(2, 2, AppConstant.TRANSITION_LOG_OVERFLOW_DROP)
+        repoUtil.insertMany(*_) >> Promise.promise().future()
+
+        when:
+        3.times { log.record(record("order-$it", it)) }
+
+        then:
+        !log.isFull()
+        log.stats().getInteger("writing") == 2
+        log.stats().getLong("dropped") == 1
+    }
+
+    def "the backpressure policy should report full until the buffer drained below half"() {
+        given:
+        def log = transitionLog(2, 4, AppConstant.TRANSITION_LOG_OVERFLOW_BACKPRESSURE)
+        def writes = [Promise.promise(), Promise.promise()]
+        repoUtil.insertMany(*_) >>> writes*.future()
+        4.times { log.record(record("order-$it", it)) }
+
+        when:
+        def writable = log.whenWritable()
+
+        then:
+        log.isFull()
+        !writable.isComplete()
+
+        when:
+        writes[0].complete(2L)
+
+        then: "Half of the capacity is free again"
+        !log.isFull()
+        writable.succeeded()
+    }
+
+    def "a failed write should put its records back in order for the next flush"() {
+        given:
+        def log = transitionLog(2, 10, AppConstant.TRANSITION_LOG_OVERFLOW_BACKPRESSURE)
+        def attempts = []
+        repoUtil.insertMany(_, _) >> { String collection, List<JsonObject> documents ->
+            attempts << documents
+            attempts.size() == 1 ? Future.failedFuture("Mongo unavailable") : Future.succeededFuture((long) documents.size())
+        }
+
+        when:
+        log.record(record("order-1", 1))
+        log.record(record("order-2", 2))
+
+        then:
+        attempts.size() == 1
+        log.stats().getLong("failed") == 2
+        log.stats().getInteger("buffered") == 2
+
+        when:
+        def flushed = log.flush()
+
+        then: "The same records are written again, with the ids they were given the first time"
+        flushed.succeeded()
+        attempts.size() == 2
+        attempts[1]*.getString("processId") == ["order-1", "order-2"]
+        attempts[1]*.getString("_id") == attempts[0]*.getString("_id")
+        log.stats().getInteger("buffered") == 0
+    }
+
+    def "record should complete once the record is stored, after a failed write only on the retry"() {
+        given:
+        def log = transitionLog(2, 10, AppConstant.TRANSITION_LOG_OVERFLOW_BACKPRESSURE)
+        def writes = [Promise.promise(), Promise.promise()]
+        repoUtil.insertMany(*_) >>> writes*.future()
+
+        when:
+        def first = log.record(record("order-1", 1))
+        def second = log.record(record("order-2", 2))
+
+        then: "Nothing is complete while the batch is written"
+        !first.isComplete()
+        !second.isComplete()
+
+        when:
+        writes[0].fail("Mongo unavailable")
+
+        then: "A failed write keeps the records pending"
+        !first.isComplete()
+
+        when:
+        log.flush()
+        writes[1].complete(2L)
+
+        then:
+        first.succeeded()
+        second.succeeded()
+    }
+
+    def "record should complete at once for a record the drop policy discards"() {
+        given:
+        def log = transitionLog(1, 1, AppConstant.TRANSITION_LOG_OVERFLOW_DROP)
+        repoUtil.insertMany(*_) >> Promise.promise().future()
+
+        when:
+        def written = log.record(record("order-1", 1))
+        def dropped = log.record(record("order-2", 2))
+
+        then:
+        !written.isComplete()
+        dropped.succeeded()
+    }
+
+    def "history should read a page newest first and return the cursor of the next one"() {
+        given:
+        def log = transitionLog(10, 10, AppConstant.TRANSITION_LOG_OVERFLOW_BACKPRESSURE)
+        def entries = [
+                new JsonObject().put("_id", "c").put("timestamp", 300L),
+                new JsonObject().put("_id", "b").put("timestamp", 200L),
+                new JsonObject().put("_id", "a").put("timestamp", 200L)]
+
+        when:
+        def page = log.history("order-1", "400:z", 2).result()
+
+        then:
+        1 * repoUtil.find(AppConstant.COLLECTION_TRANSITION_LOG, { JsonObject query ->
+            query.getString("processId") == "order-1" &&
+                    query.getJsonArray("\$or").getJsonObject(0).getJsonObject("timestamp").getLong("\$lt") == 400L &&
+                    query.getJsonArray("\$or").getJsonObject(1).getJsonObject("_id").getString("\$lt") == "z"
+        }, { FindOptions options -> options.limit == 3 && options.sort.getInteger("timestamp") == -1 }) >>
+                Future.succeededFuture(entries)
+        page.getJsonArray("transitions").size() == 2
+        page.getString("nextCursor") == "200:b"
+    }
+
+    def "history should leave out the cursor on the last page and reject invalid requests"() {
+        given:
+        def log = transitionLog(10, 10, AppConstant.TRANSITION_LOG_OVERFLOW_BACKPRESSURE)
+        repoUtil.find(*_) >> Future.succeededFuture([new JsonObject().put("_id", "a").put("timestamp", 1L)])
+
+        expect:
+        log.history("order-1", null, 2).result().getString("nextCursor") == null
+        log.history("order-1", "not-a-cursor", 2).cause() instanceof IllegalArgumentException
+        log.history("order-1", null, TransitionLog.MAX_PAGE_SIZE + 1).cause() instanceof IllegalArgumentException
+    }
+
+    private TransitionLog transitionLog(int batchSize, int maxBuffered, String overflow) {
+        new TransitionLog(vertx, repoUtil, ConfigLoader.builder()
+                .transitionLogBatchSize(batchSize)
+                .transitionLogFlushIntervalMs(50)
+                .transitionLogMaxBuffered(maxBuffered)
+                .transitionLogOverflow(overflow)
+                .build())
+    }
+
+    private static TransitionRecord record(String processId, long offset) {
+        TransitionRecord.builder()
+                .processId(processId)
+                .stateMachineId("orderFlow")
+                .event("PAY")
+                .fromState("NEW")
+                .toState("PAID")
+                .accepted(true)
+                .timestamp(System.currentTimeMillis())
+                .topic("events")
+                .partition(0)
+                .offset(offset)
+                .build()
+    }
+}
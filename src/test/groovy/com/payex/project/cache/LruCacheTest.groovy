@@ -0,0 +1,75 @@
+package com.payex.project.cache
+
+import spock.lang.Specification
+
+class LruCacheTest extends Specification {
+
+    def "should count hits and misses"() {
+        given:
+        def cache = new LruCache<String, String>(2)
+        cache.put("a", "A")
+
+        when:
+        def hit = cache.get("a")
+        def miss = cache.get("b")
+
+        then:
+        hit == "A"
+        miss == null
+        cache.hits == 1
+        cache.misses == 1
+    }
+
+    def "should evict the least recently used entry when full"() {
+        given:
+        def cache = new LruCache<String, String>(2)
+        cache.put("a", "A")
+        cache.put("b", "B")
+
+        when: "a is touched so b becomes the eldest"
+        cache.get("a")
+        cache.put("c", "C")
+
+        then:
+        cache.size() == 2
+        cache.get("b") == null
+        cache.get("a") == "A"
+        cache.get("c") == "C"
+        cache.evictions == 1
+    }
+
+    def "should remove an invalidated entry"() {
+        given:
+        def cache = new LruCache<String, String>(2)
+        cache.put("a", "A")
+
+        when:
+        cache.invalidate("a")
+
+        then:
+        cache.get("a") == null
+        cache.invalidations == 1
+    }
+
+    def "should not cache a value loaded before an invalidation"() {
+        given:
+        def cache = new LruCache<String, String>(2)
+        def generation = cache.generation()
+
+        when: "the definition is invalidated while it is being loaded"
+        cache.invalidate("a")
+        def stored = cache.put("a", "stale", generation)
+
+        then:
+        !stored
+        cache.get("a") == null
+    }
+
+    def "should reject a non positive max size"() {
+        when:
+        new LruCache<String, String>(0)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
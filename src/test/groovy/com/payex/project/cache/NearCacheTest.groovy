@@ -0,0 +1,117 @@
+package com.payex.project.cache
+
+import spock.lang.Specification
+
+class NearCacheTest extends Specification {
+
+    long now = 0
+    NearCache cache = new NearCache(3, 10_000, 1000, { now })
+
+    def "get should return what was put and count hits and misses"() {
+        when:
+        cache.put("order-1", "PAID", cache.generation())
+
+        then:
+        cache.get("order-1") == "PAID"
+        cache.get("order-2") == null
+        cache.stats().getLong("hits") == 1
+        cache.stats().getLong("misses") == 1
+        cache.stats().getDouble("hitRatio") == 0.5d
+    }
+
+    def "put should evict the least recently used entry beyond maxEntries"() {
+        given:
+        ["order-1", "order-2", "order-3"].each { cache.put(it, "NEW", cache.generation()) }
+        cache.get("order-1")
+
+        when:
+        cache.put("order-4", "NEW", cache.generation())
+
+        then:
+        cache.size() == 3
+        cache.get("order-2") == null
+        cache.get("order-1") == "NEW"
+        cache.getSizeEvictions() == 1
+    }
+
+    def "put should evict entries until the estimated size is under maxBytes"() {
+        given: "Room for two entries of this size"
+        def entryBytes = NearCache.ENTRY_OVERHEAD_BYTES + 2 * ("order-1".length() + "PAID".length())
+        def cache = new NearCache(100, entryBytes * 2, 1000, { now })
+        ["order-1", "order-2", "order-3"].each { cache.put(it, "PAID", cache.generation()) }
+
+        expect:
+        cache.size() == 2
+        cache.bytes() == entryBytes * 2
+        cache.get("order-1") == null
+        cache.getSizeEvictions() == 1
+    }
+
+    def "replacing an entry should account for the size of the new value only"() {
+        when:
+        cache.put("order-1", "NEW", cache.generation())
+        cache.put("order-1", "SHIPPED", cache.generation())
+
+        then:
+        cache.size() == 1
+        cache.bytes() == NearCache.ENTRY_OVERHEAD_BYTES + 2 * ("order-1".length() + "SHIPPED".length())
+    }
+
+    def "entries should expire ttlMs after they were put"() {
+        given:
+        cache.put("order-1", "PAID", cache.generation())
+
+        when:
+        now = 999
+
+        then:
+        cache.get("order-1") == "PAID"
+
+        when:
+        now = 1000
+
+        then:
+        cache.get("order-1") == null
+        cache.size() == 0
+        cache.bytes() == 0
+        cache.getExpirations() == 1
+    }
+
+    def "a value read before a clear should not be cached after it"() {
+        given:
+        cache.put("order-1", "PAID", cache.generation())
+        def generation = cache.generation()
+
+        when:
+        cache.clear()
+
+        then:
+        !cache.put("order-2", "PAID", generation)
+        cache.size() == 0
+        cache.getInvalidations() == 1
+        cache.put("order-2", "PAID", cache.generation())
+    }
+
+    def "invalidate should remove a single entry"() {
+        given:
+        cache.put("order-1", "PAID", cache.generation())
+        cache.put("order-2", "PAID", cache.generation())
+
+        when:
+        cache.invalidate("order-1")
+        cache.invalidate("order-3")
+
+        then:
+        cache.get("order-1") == null
+        cache.get("order-2") == "PAID"
+        cache.getInvalidations() == 1
+    }
+
+    def "limits should be positive"() {
+        when:
+        new NearCache(0, 100, 100)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
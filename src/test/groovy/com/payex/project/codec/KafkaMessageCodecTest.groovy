@@ -0,0 +1,97 @@
+package com.payex.project.codec
+
+import com.payex.project.constant.AppConstant
+import com.payex.project.models.KafkaMessage
+import io.vertx.core.json.JsonObject
+import org.apache.kafka.common.header.internals.RecordHeaders
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class KafkaMessageCodecTest extends Specification {
+
+    def "should round trip messages through the binary layout"() {
+        when:
+        def decoded = KafkaMessageCodec.decodeBinary(KafkaMessageCodec.encodeBinary(message))
+
+        then:
+        decoded == message
+
+        where:
+        message << [
+                new KafkaMessage("orderFlow", "order-1", "PAY", "3f2a"),
+                new KafkaMessage("orderFlow", "order-1", "PAY", null),
+                new KafkaMessage("flöw", "ордер-€", "支付", "🚀" * 100)]
+    }
+
+    def "should only add a version byte and a length byte per short field"() {
+        given:
+        def message = new KafkaMessage("orderFlow", "order-1", "PAY", UUID.randomUUID().toString())
+
+        expect: "60 bytes where the JSON takes 115"
+        KafkaMessageCodec.encodeBinary(message).length == 1 + 4 + "orderFlow".length() + "order-1".length() + "PAY".length() + 36
+        KafkaMessageCodec.encodeJson(message).length == 115
+    }
+
+    def "should reject truncated or unknown binary values"() {
+        when:
+        KafkaMessageCodec.decodeBinary(value)
+
+        then:
+        thrown(IllegalArgumentException)
+
+        where:
+        value << [new byte[0], [9, 1] as byte[],
+                  Arrays.copyOf(KafkaMessageCodec.encodeBinary(new KafkaMessage("orderFlow", "order-1", "PAY", "e1")), 12)]
+    }
+
+    def "should mark binary records and decode by the header"() {
+        given:
+        def message = new KafkaMessage("orderFlow", "order-1", "PAY", "e1")
+        def headers = new RecordHeaders()
+        def deserializer = new KafkaMessageDeserializer()
+
+        when: "A message is written in each format"
+        byte[] binary = new BinaryKafkaMessageSerializer().serialize("events", headers, message)
+        byte[] json = new JsonKafkaMessageSerializer().serialize("events", new RecordHeaders(), message)
+
+        then: "Only the binary one carries the header, and both decode"
+        new String(headers.lastHeader(AppConstant.MESSAGE_FORMAT_HEADER).value(), StandardCharsets.UTF_8) == AppConstant.MESSAGE_FORMAT_BINARY
+        deserializer.deserialize("events", headers, binary) == message
+        deserializer.deserialize("events", new RecordHeaders(), json) == message
+    }
+
+    def "should read legacy JSON records without a header"() {
+        given: "A record as producers wrote it before the binary format"
+        def legacy = JsonObject.mapFrom(new KafkaMessage("orderFlow", "order-1", "PAY")).encode().getBytes(StandardCharsets.UTF_8)
+
+        expect:
+        new KafkaMessageDeserializer().deserialize("events", new RecordHeaders(), legacy) == new KafkaMessage("orderFlow", "order-1", "PAY")
+    }
+
+    def "should turn values that are not event messages into null instead of failing the poll"() {
+        expect:
+        new KafkaMessageDeserializer().deserialize("events", new RecordHeaders(), value.getBytes(StandardCharsets.UTF_8)) == null
+
+        where:
+        value << ['{"key":"value"', '{key:"value"}', '{"key":"value",}', "{'key':'value'}", "random text", "", " ",
+                  '["apple", "banana", "cherry"]', "12345", "true", '{"stateMachineId":"orderFlow","unknown":1}']
+    }
+
+    def "should turn binary values that do not decode into null"() {
+        given:
+        def headers = new RecordHeaders()
+        KafkaMessageCodec.markBinary(headers)
+
+        expect:
+        new KafkaMessageDeserializer().deserialize("events", headers, '{"stateMachineId":"orderFlow"}'.bytes) == null
+    }
+
+    def "should reject unknown formats"() {
+        when:
+        KafkaMessageCodec.serializerFor("avro")
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
@@ -0,0 +1,49 @@
+package com.payex.project.config
+
+import com.payex.project.constant.AppConstant
+import org.apache.logging.log4j.Level
+import org.apache.logging.log4j.LogManager
+import org.apache.logging.log4j.core.Filter
+import org.apache.logging.log4j.core.LoggerContext
+import org.apache.logging.log4j.core.appender.AsyncAppender
+import org.apache.logging.log4j.core.filter.BurstFilter
+import org.apache.logging.log4j.core.impl.Log4jLogEvent
+import spock.lang.Specification
+
+class LoggingConfigTest extends Specification {
+
+    def configuration = (LogManager.getContext(false) as LoggerContext).configuration
+
+    def "log4j2.xml should write through an asynchronous appender"() {
+        expect:
+        configuration.rootLogger.appenders.values().every { it instanceof AsyncAppender }
+    }
+
+    def "each event stage should have its own level and a sampling filter"() {
+        when:
+        def logger = configuration.getLoggerConfig(name)
+
+        then: "The stage is configured itself rather than inheriting from the root"
+        logger.name == name
+        logger.level == Level.INFO
+        logger.filter instanceof BurstFilter
+
+        where:
+        name << [AppConstant.LOGGER_EVENTS_CONSUME, AppConstant.LOGGER_EVENTS_APPLY, AppConstant.LOGGER_EVENTS_PRODUCE]
+    }
+
+    def "the sampling filter should drop per-event lines past the burst but never errors"() {
+        given:
+        def filter = BurstFilter.newBuilder().setLevel(Level.WARN).setRate(1).setMaxBurst(2).build()
+
+        expect:
+        (1..2).collect { filter.filter(event(Level.INFO)) } == [Filter.Result.NEUTRAL, Filter.Result.NEUTRAL]
+        filter.filter(event(Level.INFO)) == Filter.Result.DENY
+        filter.filter(event(Level.WARN)) == Filter.Result.DENY
+        filter.filter(event(Level.ERROR)) == Filter.Result.NEUTRAL
+    }
+
+    private static event(Level level) {
+        Log4jLogEvent.newBuilder().setLevel(level).setLoggerName(AppConstant.LOGGER_EVENTS_APPLY).build()
+    }
+}
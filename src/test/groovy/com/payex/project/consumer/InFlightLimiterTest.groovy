@@ -0,0 +1,100 @@
+package com.payex.project.consumer
+
+import io.vertx.kafka.client.common.TopicPartition
+import spock.lang.Specification
+
+class InFlightLimiterTest extends Specification {
+
+    def partition = new TopicPartition("orders", 0)
+    def other = new TopicPartition("orders", 1)
+    def signals = []
+    def limiter = new InFlightLimiter(3, 1, 5, 2)
+            .partitionHandlers({ signals << "pause " + it.partition }, { signals << "resume " + it.partition })
+            .globalHandlers({ signals << "pause all" }, { signals << "resume all" })
+
+    def "should pause a partition at the high-water mark and resume it at the low-water mark"() {
+        when:
+        3.times { limiter.acquire(partition) }
+
+        then:
+        signals == ["pause 0"]
+        limiter.isPaused(partition)
+        limiter.inFlight(partition) == 3
+
+        when: "Dropping below the high-water mark is not enough"
+        limiter.release(partition)
+
+        then:
+        signals == ["pause 0"]
+
+        when:
+        limiter.release(partition)
+
+        then:
+        signals == ["pause 0", "resume 0"]
+        !limiter.isPaused(partition)
+    }
+
+    def "should pause and resume the whole consumer on the global marks"() {
+        when:
+        2.times { limiter.acquire(partition) }
+        3.times { limiter.acquire(other) }
+
+        then:
+        signals == ["pause 1", "pause all"]
+        limiter.paused
+        limiter.inFlight() == 5
+
+        when:
+        3.times { limiter.release(other) }
+
+        then:
+        signals == ["pause 1", "pause all", "resume 1", "resume all"]
+        !limiter.paused
+    }
+
+    def "should forget revoked partitions but keep their events in the global count"() {
+        given:
+        3.times { limiter.acquire(partition) }
+
+        when:
+        limiter.remove([partition] as Set)
+
+        then:
+        !limiter.isPaused(partition)
+        limiter.inFlight(partition) == 0
+        limiter.inFlight() == 3
+        !limiter.stats().getJsonObject("partitions").containsKey("orders-0")
+
+        when:
+        limiter.release(partition)
+
+        then:
+        limiter.inFlight() == 2
+        signals == ["pause 0"]
+    }
+
+    def "should report pause time and counts"() {
+        when:
+        3.times { limiter.acquire(partition) }
+        sleep(20)
+        2.times { limiter.release(partition) }
+
+        then:
+        def stats = limiter.stats()
+        def partitionStats = stats.getJsonObject("partitions").getJsonObject("orders-0")
+        partitionStats.getLong("pausedMs") >= 20
+        partitionStats.getLong("pauses") == 1
+        !partitionStats.getBoolean("paused")
+        stats.getInteger("inFlight") == 1
+        stats.getInteger("partitionHighWaterMark") == 3
+    }
+
+    def "should reject low-water marks that are not below the high-water marks"() {
+        when:
+        new InFlightLimiter(3, 3, 5, 2)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
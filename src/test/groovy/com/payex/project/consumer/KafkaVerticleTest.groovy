@@ -1,12 +1,31 @@
 package com.payex.project.consumer
 
 
+import com.payex.project.audit.TransitionLog
+import com.payex.project.cache.LruCache
+import com.payex.project.constant.AppConstant
+import com.payex.project.definition.DefinitionView
+import com.payex.project.models.KafkaMessage
+import com.payex.project.models.TransitionRecord
+import com.payex.project.models.TransitionResult
+import com.payex.project.partition.ProcessIdPartitionStrategy
+import com.payex.project.partition.StateMachinePartitionStrategy
 import com.payex.project.service.RedisService
+import com.payex.project.service.StateStore
 import io.vertx.kafka.client.producer.KafkaProducer
+import io.vertx.kafka.client.producer.KafkaProducerRecord
+import io.vertx.kafka.client.producer.RecordMetadata
+import io.vertx.core.buffer.Buffer
+import io.vertx.core.parsetools.JsonParser
 import com.payex.project.repository.RepoUtil
 import io.vertx.core.json.JsonObject
 import spock.lang.Specification
 import io.vertx.core.Future
+import io.vertx.core.Vertx
+import io.vertx.kafka.client.common.PartitionInfo
+
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
 
 
 class KafkaVerticleTest extends Specification {
@@ -19,6 +38,7 @@ class KafkaVerticleTest extends Specification {
     def setup() {
         kafkaVerticle.producer = producer
         kafkaVerticle.kafkaTopic = "test-topic"
+        kafkaVerticle.partitionCount = AppConstant.MAX_PARTITION
     }
 
     def "sendEventToKafka should return 404 when state machine not found"() {
@@ -39,169 +59,81 @@ class KafkaVerticleTest extends Specification {
         result.getString("message") == "State machine not found"
     }
 
-    def "should return true for a valid JSON object"() {
-        given:
-        def validJson = '{"key":"value"}'
-
-        when:
-        def result = kafkaVerticle.isValidJson(validJson)
-
-        then:
-        result == true
-    }
-
-    def "should return true for a valid JSON object with nested structure"() {
-        given:
-        def validJson = '{"user":{"name":"John","age":30}}'
-
-        when:
-        def result = kafkaVerticle.isValidJson(validJson)
-
-        then:
-        result == true
-    }
-
-    def "should return true for a valid JSON object with arrays"() {
-        given:
-        def validJson = '{"fruits":["apple","banana","cherry"]}'
-
-        when:
-        def result = kafkaVerticle.isValidJson(validJson)
-
-        then:
-        result == true
-    }
-
-    def "should return true for a valid JSON object with numbers, booleans, and null"() {
-        given:
-        def validJson = '{"count":10,"isActive":true,"data":null}'
-
-        when:
-        def result = kafkaVerticle.isValidJson(validJson)
-
-        then:
-        result == true
-    }
-
-    def "should return true for an empty JSON object"() {
-        given:
-        def validJson = '{}'
-
-        when:
-        def result = kafkaVerticle.isValidJson(validJson)
-
-        then:
-        result == true
-    }
-
-    def "should return false for malformed JSON (missing closing bracket)"() {
-        given:
-        def invalidJson = '{"key":"value"'
-
-        when:
-        def result = kafkaVerticle.isValidJson(invalidJson)
-
-        then:
-        result == false
-    }
-
-    def "should return false for malformed JSON (unquoted key name)"() {
-        given:
-        def invalidJson = '{key:"value"}'
-
-        when:
-        def result = kafkaVerticle.isValidJson(invalidJson)
-
-        then:
-        result == false
-    }
-
-    def "should return false for malformed JSON (trailing comma)"() {
-        given:
-        def invalidJson = '{"key":"value",}'
-
-        when:
-        def result = kafkaVerticle.isValidJson(invalidJson)
-
-        then:
-        result == false
-    }
-
-    def "should return false for JSON with single quotes instead of double quotes"() {
-        given:
-        def invalidJson = "{'key':'value'}"
-
-        when:
-        def result = kafkaVerticle.isValidJson(invalidJson)
-
-        then:
-        result == false
-    }
-
-    def "should return false for completely invalid JSON"() {
+    def "sendEventToKafka should key the record by processId and hash it to a partition"() {
         given:
-        def invalidJson = "random text"
+        def reqJO = new JsonObject()
+                .put("stateMachineId", "orderFlow")
+                .put("processId", "order-1")
+                .put("event", "PAY")
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+        def expected = new ProcessIdPartitionStrategy().partitionFor(
+                new KafkaMessage("orderFlow", "order-1", "PAY"), null, AppConstant.MAX_PARTITION)
 
         when:
-        def result = kafkaVerticle.isValidJson(invalidJson)
+        def result = kafkaVerticle.sendEventToKafka(reqJO).result()
 
         then:
-        result == false
+        1 * producer.send({ KafkaProducerRecord record ->
+            record.key() == "order-1" && record.partition() == expected && record.topic() == "test-topic" &&
+                    record.value().eventId != null
+        }) >> Future.succeededFuture(null)
+        result.getInteger("statusCode") == 200
     }
 
-    def "should return false for empty string input"() {
+    def "sendEventToKafka should use the stored partition with the stateMachine strategy"() {
         given:
-        def invalidJson = ""
+        kafkaVerticle.partitionStrategy = new StateMachinePartitionStrategy()
+        kafkaVerticle.partitionCount = 1
+        def reqJO = new JsonObject()
+                .put("stateMachineId", "orderFlow")
+                .put("processId", "order-1")
+                .put("event", "PAY")
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
 
         when:
-        def result = kafkaVerticle.isValidJson(invalidJson)
+        kafkaVerticle.sendEventToKafka(reqJO).result()
 
-        then:
-        result == false
+        then: "The stored partition 1 is mapped onto the single partition"
+        1 * producer.send({ KafkaProducerRecord record -> record.partition() == 0 }) >> Future.succeededFuture(null)
     }
 
-    def "should return false for JSON array instead of object"() {
+    def "discoverPartitionCount should retry a failed metadata lookup"() {
         given:
-        def invalidJson = '["apple", "banana", "cherry"]'
+        def vertx = Vertx.vertx()
+        kafkaVerticle.vertx = vertx
+        kafkaVerticle.retryBackoffMs = 1
+        producer.partitionsFor("test-topic") >>> [
+                Future.failedFuture(new RuntimeException("Broker not available")),
+                Future.succeededFuture([]),
+                Future.succeededFuture((0..2).collect { new PartitionInfo().setTopic("test-topic").setPartition(it) })]
 
         when:
-        def result = kafkaVerticle.isValidJson(invalidJson)
+        kafkaVerticle.discoverPartitionCount("test-topic", 3).toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS)
 
         then:
-        result == false
-    }
-
-    def "should return false for whitespace only string"() {
-        given:
-        def invalidJson = " "
-
-        when:
-        def result = kafkaVerticle.isValidJson(invalidJson)
+        kafkaVerticle.partitionCount == 3
 
-        then:
-        result == false
+        cleanup:
+        vertx.close()
     }
 
-    def "should return false for valid JSON but not an object (number)"() {
+    def "discoverPartitionCount should fail startup instead of guessing once every attempt failed"() {
         given:
-        def invalidJson = "12345"
+        def vertx = Vertx.vertx()
+        kafkaVerticle.vertx = vertx
+        kafkaVerticle.retryBackoffMs = 1
 
         when:
-        def result = kafkaVerticle.isValidJson(invalidJson)
+        kafkaVerticle.discoverPartitionCount("test-topic", 2).toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS)
 
         then:
-        result == false
-    }
-
-    def "should return false for valid JSON but not an object (boolean)"() {
-        given:
-        def invalidJson = "true"
+        2 * producer.partitionsFor("test-topic") >> Future.failedFuture(new RuntimeException("Broker not available"))
+        def e = thrown(ExecutionException)
+        e.cause.message == "Could not read partitions of test-topic"
+        kafkaVerticle.partitionCount == AppConstant.MAX_PARTITION
 
-        when:
-        def result = kafkaVerticle.isValidJson(invalidJson)
-
-        then:
-        result == false
+        cleanup:
+        vertx.close()
     }
 
     def "should call callback with valid JsonObject when state machine is found"() {
@@ -349,4 +281,484 @@ class KafkaVerticleTest extends Specification {
         e.message.contains("Failed to build state machine")
     }
 
+    def orderFlow = new JsonObject()
+            .put("_id", "orderFlow")
+            .put("stateMachineName", "orderFlow")
+            .put("states", ["NEW", "PAID", "SHIPPED"])
+            .put("events", ["PAY", "SHIP"])
+            .put("transitions", new JsonObject()
+                    .put("NEW", new JsonObject().put("PAY", "PAID"))
+                    .put("PAID", new JsonObject().put("SHIP", "SHIPPED")))
+            .put("partition", 1)
+
+    static final String ORDER_1_VERSION = StateStore.versionKey("order-1")
+    static final String ORDER_2_VERSION = StateStore.versionKey("order-2")
+
+    def "applyEvent should start a new process from the initial state and save the new state"() {
+        given:
+        def message = new KafkaMessage("orderFlow", "order-1", "PAY")
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+        redisService.getStates(["order-1", ORDER_1_VERSION]) >> Future.succeededFuture([:])
+
+        when:
+        def result = kafkaVerticle.applyEvent(message).result()
+
+        then: "The process is pinned to the version it started on"
+        1 * redisService.saveStates(["order-1": "PAID", (ORDER_1_VERSION): "0"]) >> Future.succeededFuture()
+        result.accepted
+        result.previousState == "NEW"
+        result.newState == "PAID"
+    }
+
+    def "applyEvent should reject an event without a transition and not write to Redis"() {
+        given:
+        def message = new KafkaMessage("orderFlow", "order-1", "SHIP")
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+        redisService.getStates(["order-1", ORDER_1_VERSION]) >> Future.succeededFuture(["order-1": "NEW", (ORDER_1_VERSION): "0"])
+
+        when:
+        def result = kafkaVerticle.applyEvent(message).result()
+
+        then:
+        0 * redisService.saveStates(_)
+        !result.accepted
+        result.newState == "NEW"
+    }
+
+    def "applyEvent should load the definition from Mongo only once"() {
+        given:
+        redisService.getStates(_) >> Future.succeededFuture([:])
+        redisService.saveStates(_) >> Future.succeededFuture()
+
+        when:
+        kafkaVerticle.applyEvent(new KafkaMessage("orderFlow", "order-1", "PAY"))
+        kafkaVerticle.applyEvent(new KafkaMessage("orderFlow", "order-2", "PAY"))
+
+        then:
+        1 * repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+        kafkaVerticle.stats().getJsonObject("stateMachineCache").getLong("hits") == 1
+    }
+
+    def "applyEvent should serve definitions from the topic view without querying Mongo"() {
+        given: "A consumer backed by a definitions view that holds the definition"
+        def view = new DefinitionView()
+        view.apply("orderFlow", orderFlow)
+        def viewVerticle = new KafkaVerticle(redisService, repoUtil, new LruCache<>(10), view)
+        redisService.getStates(_) >> Future.succeededFuture(["order-1": "NEW"])
+        redisService.saveStates(_) >> Future.succeededFuture()
+
+        when:
+        def result = viewVerticle.applyEvent(new KafkaMessage("orderFlow", "order-1", "PAY")).result()
+
+        then:
+        0 * repoUtil.findOne(_, _, _)
+        result.newState == "PAID"
+    }
+
+    def "applyEvent should fall back to Mongo when the view misses and cache the result in the view"() {
+        given:
+        def view = new DefinitionView()
+        def viewVerticle = new KafkaVerticle(redisService, repoUtil, new LruCache<>(10), view)
+        redisService.getStates(_) >> Future.succeededFuture(["order-1": "NEW"])
+        redisService.saveStates(_) >> Future.succeededFuture()
+
+        when:
+        viewVerticle.applyEvent(new KafkaMessage("orderFlow", "order-1", "PAY"))
+
+        then:
+        1 * repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+        view.get("orderFlow") != null
+    }
+
+    def "applyEvent should fail when the state machine does not exist"() {
+        given:
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(null)
+
+        when:
+        def future = kafkaVerticle.applyEvent(new KafkaMessage("missing", "order-1", "PAY"))
+
+        then:
+        future.failed()
+        future.cause().message == "State machine not found for ID: missing"
+    }
+
+    def "applyEvent in atomic mode should upload the transition table once and apply in Redis"() {
+        given:
+        kafkaVerticle.transitionMode = "atomic"
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+
+        when:
+        def first = kafkaVerticle.applyEvent(new KafkaMessage("orderFlow", "order-1", "PAY")).result()
+        kafkaVerticle.applyEvent(new KafkaMessage("orderFlow", "order-2", "PAY"))
+
+        then:
+        1 * redisService.loadTransitionTable({ it.id == "orderFlow" }) >> Future.succeededFuture()
+        2 * redisService.applyTransition(_, { it.id == "orderFlow" }, "PAY", null) >> Future.succeededFuture(new TransitionResult(true, "NEW", "PAID"))
+        0 * redisService.getStates(_)
+        0 * redisService.saveStates(_)
+        first.accepted
+        first.newState == "PAID"
+    }
+
+    def "applyEvent in atomic mode should reload a missing transition table and retry"() {
+        given:
+        kafkaVerticle.transitionMode = "atomic"
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+
+        when:
+        def result = kafkaVerticle.applyEvent(new KafkaMessage("orderFlow", "order-1", "PAY")).result()
+
+        then:
+        1 * redisService.getState(ORDER_1_VERSION) >> Future.succeededFuture(null)
+        2 * redisService.loadTransitionTable(_) >> Future.succeededFuture()
+        2 * redisService.applyTransition(_, _, _, _) >>> [
+                Future.failedFuture(new RuntimeException("NOTABLE")),
+                Future.succeededFuture(new TransitionResult(true, "NEW", "PAID"))
+        ]
+        result.accepted
+    }
+
+    def "applyEvents should read and write all process states once and apply events in order"() {
+        given:
+        def messages = [
+                new KafkaMessage("orderFlow", "order-1", "PAY"),
+                new KafkaMessage("orderFlow", "order-2", "SHIP"),
+                new KafkaMessage("orderFlow", "order-1", "SHIP"),
+                new KafkaMessage("missing", "order-3", "PAY")
+        ]
+        repoUtil.findOne(_, { it.getString("_id") == "orderFlow" }, _) >> Future.succeededFuture(orderFlow)
+        repoUtil.findOne(_, { it.getString("_id") == "missing" }, _) >> Future.succeededFuture(null)
+
+        when:
+        def results = kafkaVerticle.applyEvents(messages).result()
+
+        then:
+        1 * redisService.getStates(["order-1", ORDER_1_VERSION, "order-2", ORDER_2_VERSION]) >>
+                Future.succeededFuture(["order-2": "NEW", (ORDER_2_VERSION): "0"])
+        1 * redisService.saveStates(["order-1": "SHIPPED", (ORDER_1_VERSION): "0"]) >> Future.succeededFuture()
+        results.size() == 4
+        results[0].accepted && results[0].newState == "PAID"
+        !results[1].accepted
+        results[2].accepted && results[2].previousState == "PAID" && results[2].newState == "SHIPPED"
+        results[3] == null
+    }
+
+    def "should hold back the events behind a failed one only when the failure replays them"() {
+        expect: "With auto commit nothing is replayed"
+        !kafkaVerticle.holdsBackFollowers(new RuntimeException("Redis timeout"))
+
+        when:
+        kafkaVerticle.offsetTracker = new OffsetTracker()
+
+        then: "A transient failure rewinds the partition, a permanent one is committed past"
+        kafkaVerticle.holdsBackFollowers(new RuntimeException("Redis timeout"))
+        !kafkaVerticle.holdsBackFollowers(new IllegalArgumentException("Invalid event"))
+        !kafkaVerticle.holdsBackFollowers(new RuntimeException("State machine not found for ID: missing"))
+    }
+
+    def "applyEvent should keep a process on the version it started on"() {
+        given: "order-1 started on version 1, then version 2 made PAY ship at once"
+        def latest = orderFlow.copy().put("version", 2)
+        latest.getJsonObject("transitions").put("NEW", new JsonObject().put("PAY", "SHIPPED"))
+        repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, _, _) >> Future.succeededFuture(latest)
+        redisService.getStates(["order-1", ORDER_1_VERSION]) >> Future.succeededFuture(["order-1": "NEW", (ORDER_1_VERSION): "1"])
+        redisService.getStates(["order-2", ORDER_2_VERSION]) >> Future.succeededFuture([:])
+
+        when:
+        def pinned = kafkaVerticle.applyEvent(new KafkaMessage("orderFlow", "order-1", "PAY")).result()
+        kafkaVerticle.applyEvent(new KafkaMessage("orderFlow", "order-1", "PAY"))
+        def started = kafkaVerticle.applyEvent(new KafkaMessage("orderFlow", "order-2", "PAY")).result()
+
+        then: "Version 1 is read from Mongo once and then served from the cache"
+        1 * repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, new JsonObject().put("_id", "orderFlow:1"), _) >>
+                Future.succeededFuture(orderFlow.copy().put("_id", "orderFlow:1").put("version", 1))
+        2 * redisService.saveStates(["order-1": "PAID"]) >> Future.succeededFuture()
+        1 * redisService.saveStates(["order-2": "SHIPPED", (ORDER_2_VERSION): "2"]) >> Future.succeededFuture()
+        pinned.newState == "PAID"
+        started.newState == "SHIPPED"
+    }
+
+    def "applyEvent should share pinned versions between instances given the same version cache"() {
+        given: "Two consumer instances sharing the definition and version caches"
+        def stateMachineCache = new LruCache<>(10)
+        def versionCache = new LruCache<>(10)
+        def first = new KafkaVerticle(redisService, repoUtil, stateMachineCache, versionCache, null, null,
+                KafkaClientFactory.DEFAULT, null)
+        def second = new KafkaVerticle(redisService, repoUtil, stateMachineCache, versionCache, null, null,
+                KafkaClientFactory.DEFAULT, null)
+        repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, _, _) >> Future.succeededFuture(orderFlow.copy().put("version", 2))
+        redisService.getStates(["order-1", ORDER_1_VERSION]) >> Future.succeededFuture(["order-1": "NEW", (ORDER_1_VERSION): "1"])
+
+        when:
+        def fromFirst = first.applyEvent(new KafkaMessage("orderFlow", "order-1", "PAY")).result()
+        def fromSecond = second.applyEvent(new KafkaMessage("orderFlow", "order-1", "PAY")).result()
+
+        then: "Version 1 is read from Mongo once for both"
+        1 * repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, new JsonObject().put("_id", "orderFlow:1"), _) >>
+                Future.succeededFuture(orderFlow.copy().put("_id", "orderFlow:1").put("version", 1))
+        2 * redisService.saveStates(["order-1": "PAID"]) >> Future.succeededFuture()
+        fromFirst.newState == "PAID"
+        fromSecond.newState == "PAID"
+        versionCache.getHits() == 1
+    }
+
+    def "applyEvent should not mistake a pinned version for a definition named like its versionId"() {
+        given: "A definition whose name is the versionId of version 1 of orderFlow"
+        def latest = orderFlow.copy().put("version", 2)
+        def lookalike = orderFlow.copy().put("_id", "orderFlow:1").put("version", 1)
+        lookalike.getJsonObject("transitions").put("NEW", new JsonObject().put("PAY", "SHIPPED"))
+        repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, _, _) >> { args ->
+            Future.succeededFuture(args[1].getString("_id") == "orderFlow" ? latest : lookalike)
+        }
+        repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, _, _) >>
+                Future.succeededFuture(orderFlow.copy().put("_id", "orderFlow:1").put("version", 1))
+        redisService.getStates(["order-1", ORDER_1_VERSION]) >> Future.succeededFuture(["order-1": "NEW", (ORDER_1_VERSION): "1"])
+        redisService.getStates(["order-3", StateStore.versionKey("order-3")]) >> Future.succeededFuture([:])
+        redisService.saveStates(_) >> Future.succeededFuture()
+
+        when: "Version 1 of orderFlow is cached first"
+        def pinned = kafkaVerticle.applyEvent(new KafkaMessage("orderFlow", "order-1", "PAY")).result()
+        def other = kafkaVerticle.applyEvent(new KafkaMessage("orderFlow:1", "order-3", "PAY")).result()
+
+        then:
+        pinned.newState == "PAID"
+        other.newState == "SHIPPED"
+    }
+
+    def "applyEvent should fail when the version a process is pinned to does not exist"() {
+        given:
+        repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, _, _) >> Future.succeededFuture(orderFlow.copy().put("version", 2))
+        repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, _, _) >> Future.succeededFuture(null)
+        redisService.getStates(_) >> Future.succeededFuture(["order-1": "NEW", (ORDER_1_VERSION): "1"])
+
+        when:
+        def future = kafkaVerticle.applyEvent(new KafkaMessage("orderFlow", "order-1", "PAY"))
+
+        then:
+        0 * redisService.saveStates(_)
+        future.failed()
+        future.cause().message == "State machine not found for ID: orderFlow:1"
+    }
+
+    def "applyEvents in atomic mode should pipeline the scripts and retry entries whose table was missing"() {
+        given:
+        kafkaVerticle.transitionMode = "atomic"
+        def messages = [
+                new KafkaMessage("orderFlow", "order-1", "PAY"),
+                new KafkaMessage("orderFlow", "order-2", "PAY")
+        ]
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+
+        when:
+        def results = kafkaVerticle.applyEvents(messages).result()
+
+        then:
+        2 * redisService.loadTransitionTable(_) >> Future.succeededFuture()
+        1 * redisService.applyTransitions(messages, { it.keySet() == ["orderFlow"] as Set && it.orderFlow.initialState == "NEW" }) >>
+                Future.succeededFuture([new TransitionResult(true, "NEW", "PAID"), null])
+        1 * redisService.getStates([ORDER_2_VERSION]) >> Future.succeededFuture([:])
+        1 * redisService.applyTransitions([messages[1]], _) >>
+                Future.succeededFuture([new TransitionResult(true, "NEW", "PAID")])
+        0 * redisService.saveStates(_)
+        results.every { it.accepted }
+    }
+
+    def "applyEvent should skip an event whose id the process already saw"() {
+        given:
+        def message = new KafkaMessage("orderFlow", "order-1", "PAY", "evt-1")
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+        redisService.isDedupeEnabled() >> true
+        redisService.getStates(["order-1", ORDER_1_VERSION]) >> Future.succeededFuture(["order-1": "PAID", (ORDER_1_VERSION): "0"])
+        redisService.findProcessedEvents([message]) >> Future.succeededFuture(["evt-1"] as Set)
+
+        when:
+        def result = kafkaVerticle.applyEvent(message).result()
+
+        then:
+        0 * redisService.saveStates(_, _)
+        0 * redisService.saveStates(_)
+        result.duplicate
+        !result.accepted
+        result.newState == "PAID"
+    }
+
+    def "applyEvent should save the new state together with the event id"() {
+        given:
+        def message = new KafkaMessage("orderFlow", "order-1", "PAY", "evt-1")
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+        redisService.isDedupeEnabled() >> true
+        redisService.getStates(["order-1", ORDER_1_VERSION]) >> Future.succeededFuture([:])
+        redisService.findProcessedEvents(_) >> Future.succeededFuture([] as Set)
+
+        when:
+        def result = kafkaVerticle.applyEvent(message).result()
+
+        then:
+        1 * redisService.saveStates(["order-1": "PAID", (ORDER_1_VERSION): "0"], [message]) >> Future.succeededFuture()
+        result.accepted
+        !result.duplicate
+    }
+
+    def "applyEvents should skip duplicates from Redis and within the batch"() {
+        given:
+        def messages = [
+                new KafkaMessage("orderFlow", "order-1", "PAY", "evt-1"),
+                new KafkaMessage("orderFlow", "order-2", "PAY", "evt-2"),
+                new KafkaMessage("orderFlow", "order-2", "PAY", "evt-2")
+        ]
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+        redisService.isDedupeEnabled() >> true
+        redisService.getStates(_) >> Future.succeededFuture([:])
+        redisService.findProcessedEvents(messages) >> Future.succeededFuture(["evt-1"] as Set)
+
+        when:
+        def results = kafkaVerticle.applyEvents(messages).result()
+
+        then:
+        1 * redisService.saveStates(["order-2": "PAID", (ORDER_2_VERSION): "0"], [messages[1]]) >> Future.succeededFuture()
+        results[0].duplicate
+        results[1].accepted
+        results[2].duplicate
+    }
+
+    def "sendEventsToKafka should stream NDJSON, look each state machine up once and report every item"() {
+        given:
+        def parser = JsonParser.newParser()
+        def future = kafkaVerticle.sendEventsToKafka(parser)
+
+        when: "Items arrive split across buffers"
+        parser.handle(Buffer.buffer('{"stateMachineId":"orderFlow","processId":"order-1","event":"PAY"}\n{"stateMachineId":"orderFlow",'))
+        parser.handle(Buffer.buffer('"processId":"order-2","event":"PAY","eventId":"evt-2"}\n{"processId":"x"}\n'))
+        parser.handle(Buffer.buffer('{"stateMachineId":"missing","processId":"order-3","event":"PAY"}\n'))
+        parser.end()
+        def response = future.result()
+
+        then:
+        1 * repoUtil.findOne(_, { it.getString("_id") == "orderFlow" }, _) >> Future.succeededFuture(orderFlow)
+        1 * repoUtil.findOne(_, { it.getString("_id") == "missing" }, _) >> Future.succeededFuture(null)
+        2 * producer.send({ KafkaProducerRecord record -> record.key().startsWith("order-") }) >>
+                Future.succeededFuture(new RecordMetadata(7, 1, 0, "test-topic"))
+        response.getInteger("statusCode") == 207
+        response.getString("message") == "2 of 4 events sent"
+        def results = response.getJsonArray("results")
+        results*.getInteger("statusCode") == [200, 200, 400, 404]
+        results.getJsonObject(1).getString("eventId") == "evt-2"
+        results.getJsonObject(0).getLong("offset") == 7
+    }
+
+    def "sendEventsToKafka should accept a JSON array body"() {
+        given:
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+        producer.send(_) >> Future.succeededFuture(new RecordMetadata(1, 0, 0, "test-topic"))
+        def parser = JsonParser.newParser()
+        def future = kafkaVerticle.sendEventsToKafka(parser)
+
+        when:
+        parser.handle(Buffer.buffer('[{"stateMachineId":"orderFlow","processId":"order-1","event":"PAY"},' +
+                '{"stateMachineId":"orderFlow","processId":"order-2","event":"PAY"}]'))
+        parser.end()
+
+        then:
+        future.result().getInteger("statusCode") == 200
+        future.result().getJsonArray("results").size() == 2
+    }
+
+    def "sendEventsToKafka should report a malformed body with the items sent before it"() {
+        given:
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+        producer.send(_) >> Future.succeededFuture(new RecordMetadata(1, 0, 0, "test-topic"))
+        def parser = JsonParser.newParser()
+        def future = kafkaVerticle.sendEventsToKafka(parser)
+
+        when:
+        parser.handle(Buffer.buffer('{"stateMachineId":"orderFlow","processId":"order-1","event":"PAY"}\n{"broken'))
+        parser.handle(Buffer.buffer('": }'))
+        parser.end()
+
+        then:
+        future.result().getInteger("statusCode") == 400
+        future.result().getJsonArray("results").size() == 1
+    }
+
+    def "applyEventNow should apply the event in Redis and return the resulting state"() {
+        given:
+        kafkaVerticle.transitionMode = "atomic"
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+        redisService.loadTransitionTable(_) >> Future.succeededFuture()
+        def reqJO = new JsonObject()
+                .put("stateMachineId", "orderFlow")
+                .put("processId", "order-1")
+                .put("event", "PAY")
+                .put("eventId", "evt-1")
+
+        when:
+        def response = kafkaVerticle.applyEventNow(reqJO).result()
+
+        then:
+        1 * redisService.applyTransition("order-1", { it.id == "orderFlow" }, "PAY", "evt-1") >>
+                Future.succeededFuture(new TransitionResult(true, "NEW", "PAID"))
+        0 * producer.send(_)
+        response.getInteger("statusCode") == 200
+        response.getBoolean("accepted")
+        response.getString("previousState") == "NEW"
+        response.getString("newState") == "PAID"
+        !response.getBoolean("duplicate")
+    }
+
+    def "applyEventNow should record the transition in the transition log, without a Kafka position"() {
+        given:
+        def transitionLog = Mock(TransitionLog)
+        def verticle = new KafkaVerticle(redisService, repoUtil, new LruCache<>(10), null, null,
+                KafkaClientFactory.DEFAULT, transitionLog)
+        verticle.transitionMode = "atomic"
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(orderFlow)
+        redisService.loadTransitionTable(_) >> Future.succeededFuture()
+        redisService.applyTransition(*_) >>> [
+                Future.succeededFuture(new TransitionResult(true, "NEW", "PAID")),
+                Future.succeededFuture(TransitionResult.duplicate("PAID"))]
+        def reqJO = new JsonObject()
+                .put("stateMachineId", "orderFlow")
+                .put("processId", "order-1")
+                .put("event", "PAY")
+                .put("eventId", "evt-1")
+
+        when:
+        verticle.applyEventNow(reqJO)
+
+        then:
+        1 * transitionLog.record({ TransitionRecord record ->
+            record.processId == "order-1" && record.stateMachineId == "orderFlow" && record.event == "PAY" &&
+                    record.eventId == "evt-1" && record.fromState == "NEW" && record.toState == "PAID" &&
+                    record.accepted && record.timestamp > 0 && record.topic == null && record.offset == null
+        })
+
+        when: "The same event is redelivered"
+        verticle.applyEventNow(reqJO)
+
+        then: "The duplicate is not recorded again"
+        0 * transitionLog.record(_)
+    }
+
+    def "applyEventNow should refuse to run outside the atomic transition mode"() {
+        when:
+        def response = kafkaVerticle.applyEventNow(new JsonObject()
+                .put("stateMachineId", "orderFlow").put("processId", "order-1").put("event", "PAY")).result()
+
+        then:
+        0 * redisService._
+        response.getInteger("statusCode") == 409
+    }
+
+    def "applyEventNow should return 404 for an unknown state machine"() {
+        given:
+        kafkaVerticle.transitionMode = "atomic"
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(null)
+
+        when:
+        def response = kafkaVerticle.applyEventNow(new JsonObject()
+                .put("stateMachineId", "missing").put("processId", "order-1").put("event", "PAY")).result()
+
+        then:
+        response.getInteger("statusCode") == 404
+    }
 }
@@ -0,0 +1,149 @@
+package com.payex.project.consumer
+
+import io.vertx.core.Future
+import io.vertx.core.Promise
+import io.vertx.core.Vertx
+import spock.lang.Specification
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.TimeUnit
+
+class KeyedExecutorTest extends Specification {
+
+    Vertx vertx = Vertx.vertx()
+
+    def cleanup() {
+        vertx.close().toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS)
+    }
+
+    def "should run tasks for the same key in submission order"() {
+        given:
+        def executor = await(KeyedExecutor.create(vertx, 4, 100))
+        def seen = new ConcurrentHashMap<String, List<Integer>>()
+
+        when: "later tasks finish faster than earlier ones"
+        def futures = []
+        (0..<20).each { i ->
+            def key = "process-" + (i % 3)
+            futures << executor.submit(key, {
+                Promise<Void> promise = Promise.promise()
+                vertx.setTimer(20 - i, { id ->
+                    seen.computeIfAbsent(key, { new CopyOnWriteArrayList<Integer>() }).add(i)
+                    promise.complete()
+                })
+                promise.future()
+            })
+        }
+        await(Future.all(futures))
+
+        then:
+        seen.each { key, order -> assert order == order.toSorted() }
+        seen.values().sum { it.size() } == 20
+    }
+
+    def "should always route a key to the same shard"() {
+        given:
+        def executor = await(KeyedExecutor.create(vertx, 4, 100))
+
+        expect:
+        executor.shardFor("order-1") == executor.shardFor("order-1")
+        executor.shardFor("order-1") in (0..<4)
+        executor.workers == 4
+    }
+
+    def "should report depth and signal full and drained shards"() {
+        given:
+        def executor = await(KeyedExecutor.create(vertx, 1, 2))
+        def drained = Promise.<Void>promise()
+        executor.drainHandler({ drained.tryComplete() })
+        def gate = Promise.<Void>promise()
+
+        when:
+        def first = executor.submit("a", { gate.future() })
+        def second = executor.submit("b", { gate.future() })
+
+        then:
+        executor.depth(0) == 2
+        executor.full
+        executor.stats().getJsonArray("depths").getInteger(0) == 2
+
+        when:
+        gate.complete()
+        await(Future.all(first, second))
+        await(drained.future())
+
+        then:
+        executor.depth(0) == 0
+        !executor.full
+    }
+
+    def "should fail the task future when the task throws"() {
+        given:
+        def executor = await(KeyedExecutor.create(vertx, 2, 10))
+
+        when:
+        def future = executor.submit("a", { throw new IllegalStateException("boom") })
+        await(future)
+
+        then:
+        def e = thrown(Exception)
+        e.cause.message == "boom"
+    }
+
+    def "should not run tasks queued behind a task whose failure holds back its followers"() {
+        given:
+        def executor = await(KeyedExecutor.create(vertx, 1, 10, { it.message == "transient" }))
+        def gate = Promise.<Void>promise()
+        def ran = new CopyOnWriteArrayList<String>()
+
+        when: "Event N fails while N+1 for the same key and one for another key are queued"
+        def first = executor.submit("a", { gate.future().compose { Future.failedFuture(new RuntimeException("transient")) } })
+        def second = executor.submit("a", { ran << "a"; Future.succeededFuture() })
+        // Runs on the shard once both tasks for "a" are queued
+        def other = executor.submit("b", { ran << "b"; gate.complete(); Future.succeededFuture() })
+        await(Future.join(first, second, other))
+
+        then:
+        thrown(Exception)
+        first.failed()
+        second.failed()
+        second.cause().cause.message == "transient"
+        other.succeeded()
+        ran == ["b"]
+
+        when: "The key's queue ran empty"
+        await(executor.submit("a", { ran << "a"; Future.succeededFuture() }))
+
+        then:
+        ran == ["b", "a"]
+    }
+
+    def "should run tasks queued behind a task whose failure does not hold back its followers"() {
+        given:
+        def executor = await(KeyedExecutor.create(vertx, 1, 10, { it.message == "transient" }))
+        def gate = Promise.<Void>promise()
+        def ran = new CopyOnWriteArrayList<String>()
+
+        when:
+        def first = executor.submit("a", { gate.future().compose { Future.failedFuture(new IllegalArgumentException("permanent")) } })
+        def second = executor.submit("a", { ran << "a"; Future.succeededFuture() })
+        def other = executor.submit("b", { ran << "b"; gate.complete(); Future.succeededFuture() })
+        await(Future.join(first, second, other))
+
+        then:
+        thrown(Exception)
+        first.failed()
+        second.succeeded()
+        ran == ["b", "a"]
+    }
+
+    def "should reject non positive sizes"() {
+        expect:
+        KeyedExecutor.create(vertx, 0, 10).failed()
+    }
+
+    private static <T> T await(Future<T> future) {
+        future.toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS)
+    }
+}
@@ -0,0 +1,107 @@
+package com.payex.project.consumer
+
+import io.vertx.kafka.client.common.TopicPartition
+import spock.lang.Specification
+
+class OffsetTrackerTest extends Specification {
+
+    def tracker = new OffsetTracker()
+    def partition = new TopicPartition("orders", 0)
+
+    def "should only commit up to the oldest record still in flight"() {
+        given:
+        def epochs = (10..13).collect { tracker.track(partition, it) }
+
+        when: "Records 11 and 13 finish before 10"
+        tracker.complete(partition, 11, epochs[1])
+        tracker.complete(partition, 13, epochs[3])
+
+        then:
+        tracker.committable().isEmpty()
+
+        when:
+        tracker.complete(partition, 10, epochs[0])
+
+        then:
+        tracker.committable()[partition].offset == 12
+        tracker.committable().isEmpty()
+    }
+
+    def "should skip records until the replayed offset arrives and ignore completions from before the rewind"() {
+        given:
+        def oldEpoch = tracker.track(partition, 5)
+        tracker.track(partition, 6)
+        tracker.track(partition, 7)
+
+        when:
+        tracker.rewind(partition, 6)
+
+        then: "Records fetched before the seek are skipped"
+        tracker.track(partition, 7) == OffsetTracker.SKIPPED
+
+        when:
+        def newEpoch = tracker.track(partition, 6)
+        tracker.complete(partition, 6, oldEpoch)
+
+        then:
+        newEpoch != oldEpoch
+        tracker.committable().isEmpty()
+
+        when:
+        tracker.complete(partition, 5, newEpoch)
+        tracker.complete(partition, 6, newEpoch)
+
+        then:
+        tracker.committable()[partition].offset == 7
+    }
+
+    def "should not rewind again for a record consumed before the last rewind"() {
+        given:
+        def epoch = tracker.track(partition, 5)
+        tracker.track(partition, 6)
+
+        when: "Record 5 fails and then 6, which was queued behind it"
+        def first = tracker.rewind(partition, 5, epoch)
+        def second = tracker.rewind(partition, 6, epoch)
+
+        then: "The replay still starts at 5"
+        first
+        !second
+        !tracker.isCurrent(partition, epoch)
+        tracker.track(partition, 6) == OffsetTracker.SKIPPED
+        tracker.track(partition, 5) != OffsetTracker.SKIPPED
+    }
+
+    def "should hand positions back after a failed commit"() {
+        given:
+        def epoch = tracker.track(partition, 0)
+        tracker.complete(partition, 0, epoch)
+        def offsets = tracker.committable()
+
+        when:
+        tracker.commitFailed(offsets)
+
+        then:
+        tracker.committable()[partition].offset == 1
+    }
+
+    def "should count completions and forget revoked partitions"() {
+        given:
+        def other = new TopicPartition("orders", 1)
+        def epoch = tracker.track(partition, 0)
+        def otherEpoch = tracker.track(other, 0)
+        tracker.complete(partition, 0, epoch)
+
+        expect:
+        tracker.completedSinceCommit == 1
+
+        when:
+        tracker.remove([other] as Set)
+        tracker.complete(other, 0, otherEpoch)
+
+        then:
+        tracker.committable().keySet() == [partition] as Set
+        tracker.completedSinceCommit == 0
+        tracker.stats().getJsonObject("orders-0").getLong("position") == 1
+    }
+}
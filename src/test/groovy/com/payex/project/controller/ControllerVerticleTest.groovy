@@ -1,9 +1,21 @@
 package com.payex.project.controller
 
+import com.mongodb.MongoWriteException
+import com.mongodb.ServerAddress
+import com.mongodb.WriteError
+import com.payex.project.cache.CachedStateMachine
+import com.payex.project.cache.LruCache
 import com.payex.project.constant.AppConstant
+import com.payex.project.definition.DefinitionPublisher
 import com.payex.project.models.StateMachineDB
 import com.payex.project.repository.RepoUtil
+import io.vertx.core.Handler
+import io.vertx.core.buffer.Buffer
 import io.vertx.core.json.JsonObject
+import io.vertx.core.streams.ReadStream
+import io.vertx.core.streams.WriteStream
+import io.vertx.ext.mongo.FindOptions
+import org.bson.BsonDocument
 import spock.lang.Specification
 import io.vertx.core.Future
 import java.util.concurrent.ThreadLocalRandom;
@@ -32,14 +44,19 @@ class ControllerVerticleTest extends Specification {
         then: "It should check if the state machine already exists"
         1 * repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, new JsonObject().put("_id", "TestStateMachine"), _) >> Future.succeededFuture(existingStateMachine)
 
-        and: "It should save the new state machine"
-        1 * repoUtil.save(AppConstant.COLLECTION_STATE_MACHINES, _) >> Future.succeededFuture("TestStateMachine")
+        and: "It should save the new state machine as its first version"
+        1 * repoUtil.find(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, new JsonObject().put("stateMachineName", "TestStateMachine"), _) >>
+                Future.succeededFuture([])
+        1 * repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINES, { it.getInteger("version") == 1 }) >> Future.succeededFuture()
+        1 * repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, { it.getString("_id") == "TestStateMachine:1" }) >>
+                Future.succeededFuture()
 
         and: "It should return success response"
         futureResponse.result().getInteger("statusCode") == 201
         futureResponse.result().getBoolean("success") == true
         futureResponse.result().getString("message") == "State machine created successfully"
         futureResponse.result().getString("id") == "TestStateMachine"
+        futureResponse.result().getInteger("version") == 1
     }
 
     def "should return 400 when state machine is Invalid"() {
@@ -133,7 +150,8 @@ class ControllerVerticleTest extends Specification {
 
         and: "The save operation fails with an error"
         def errorMessage = "Database insert error"
-        repoUtil.save(_, _) >> Future.failedFuture(new Exception(errorMessage)) // Simulates MongoDB save failure
+        repoUtil.find(_, _, _) >> Future.succeededFuture([])
+        repoUtil.insert(_, _) >> Future.failedFuture(new Exception(errorMessage)) // Simulates MongoDB save failure
 
         when: "createStateMachine is called"
         def resultFuture = controllerVerticle.createStateMachine(reqJO)
@@ -163,7 +181,8 @@ class ControllerVerticleTest extends Specification {
         repoUtil.findOne(_, _, _) >> Future.succeededFuture(null)
 
         and: "The save operation succeeds"
-        repoUtil.save(_, _) >> Future.succeededFuture("success")
+        repoUtil.find(_, _, _) >> Future.succeededFuture([])
+        repoUtil.insert(_, _) >> Future.succeededFuture()
 
         when: "createStateMachine is called"
         def resultFuture = controllerVerticle.createStateMachine(reqJO)
@@ -300,21 +319,37 @@ class ControllerVerticleTest extends Specification {
                 .put("transitions", new JsonObject()
                         .put("START", new JsonObject().put("BEGIN", "END"))
                 )
+                .put("analysis", new JsonObject()
+                        .put("terminalStates", ["END"])
+                        .put("unreachableStates", [])
+                        .put("deadEndStates", [])
+                        .put("cycles", [])
+                        .put("components", [1, 0])
+                        .put("componentCount", 2))
 
         JsonObject query = new JsonObject().put("_id", id)
 
-        JsonObject dbResult = new JsonObject()
+        JsonObject dbResult = new JsonObject().put("_id", id).put("stateMachineName", id).put("version", 1)
+        repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, query, _) >> Future.succeededFuture(dbResult)
 
         when: "The updateStateMachine method is called"
         Future<JsonObject> future = controllerVerticle.updateStateMachine(id, reqJO)
 
-        then: "findOneAndUpdate is called with correct parameters"
-        1 * repoUtil.findOneAndUpdate(AppConstant.COLLECTION_STATE_MACHINES, query, expectedUpdateData) >> Future.succeededFuture(dbResult)
+        then: "The current version is kept and the definition moves to the next one if it is still on version 1"
+        1 * repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, { it.getString("_id") == "stateMachine123:1" }) >>
+                Future.failedFuture(duplicateKey())
+        1 * repoUtil.findOneAndUpdate(AppConstant.COLLECTION_STATE_MACHINES, query.copy().put("version", 1),
+                expectedUpdateData.put("version", 2)) >> Future.succeededFuture(dbResult)
+        1 * repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, { JsonObject version ->
+            version.getString("_id") == "stateMachine123:2" && version.getInteger("version") == 2 &&
+                    version.getString("stateMachineName") == id && version.getJsonArray("states").size() == 2
+        }) >> Future.succeededFuture()
 
         and: "The response indicates success"
         future.result().getInteger("statusCode") == 200
         future.result().getBoolean("success") == true
         future.result().getString("message") == "State machine updated successfully"
+        future.result().getInteger("version") == 2
     }
 
     def "should return 404 when state machine is not found"() {
@@ -333,14 +368,23 @@ class ControllerVerticleTest extends Specification {
                 .put("transitions", new JsonObject()
                         .put("START", new JsonObject().put("BEGIN", "END"))
                 )
+                .put("analysis", new JsonObject()
+                        .put("terminalStates", ["END"])
+                        .put("unreachableStates", [])
+                        .put("deadEndStates", [])
+                        .put("cycles", [])
+                        .put("components", [1, 0])
+                        .put("componentCount", 2))
 
         JsonObject query = new JsonObject().put("_id", id)
 
         when: "The updateStateMachine method is called"
         Future<JsonObject> future = controllerVerticle.updateStateMachine(id, reqJO)
 
-        then: "findOneAndUpdate is called with correct parameters but returns null"
-        1 * repoUtil.findOneAndUpdate(AppConstant.COLLECTION_STATE_MACHINES, query, expectedUpdateData) >> Future.succeededFuture(null)
+        then: "The current definition is looked up but not found"
+        1 * repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, query, _) >> Future.succeededFuture(null)
+        0 * repoUtil.findOneAndUpdate(_, _, _)
+        0 * repoUtil.insert(_, _)
 
         and: "The response indicates state machine not found"
         future.result().getInteger("statusCode") == 404
@@ -364,16 +408,26 @@ class ControllerVerticleTest extends Specification {
                 .put("transitions", new JsonObject()
                         .put("START", new JsonObject().put("BEGIN", "END"))
                 )
+                .put("analysis", new JsonObject()
+                        .put("terminalStates", ["END"])
+                        .put("unreachableStates", [])
+                        .put("deadEndStates", [])
+                        .put("cycles", [])
+                        .put("components", [1, 0])
+                        .put("componentCount", 2))
 
         JsonObject query = new JsonObject().put("_id", id)
 
         Exception dbException = new RuntimeException("Database update error")
+        repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, query, _) >> Future.succeededFuture(new JsonObject().put("_id", id))
+        repoUtil.insert(_, _) >> Future.succeededFuture()
 
         when: "The updateStateMachine method is called"
         Future<JsonObject> future = controllerVerticle.updateStateMachine(id, reqJO)
 
         then: "findOneAndUpdate is called with correct parameters but fails"
-        1 * repoUtil.findOneAndUpdate(AppConstant.COLLECTION_STATE_MACHINES, query, expectedUpdateData) >> Future.failedFuture(dbException)
+        1 * repoUtil.findOneAndUpdate(AppConstant.COLLECTION_STATE_MACHINES, query.copy().put("version", null),
+                expectedUpdateData.put("version", 1)) >> Future.failedFuture(dbException)
 
         and: "The response indicates failure with a 500 status"
         future.failed()
@@ -438,16 +492,26 @@ class ControllerVerticleTest extends Specification {
                 .put("transitions", new JsonObject()
                         .put("A", new JsonObject().put("e1", "A"))
                 )
+                .put("analysis", new JsonObject()
+                        .put("terminalStates", [])
+                        .put("unreachableStates", [])
+                        .put("deadEndStates", [])
+                        .put("cycles", [["A"]])
+                        .put("components", [0])
+                        .put("componentCount", 1))
 
         JsonObject query = new JsonObject().put("_id", id)
 
-        JsonObject dbResult = new JsonObject()
+        JsonObject dbResult = new JsonObject().put("_id", id).put("version", 3)
+        repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, query, _) >> Future.succeededFuture(dbResult)
+        repoUtil.insert(_, _) >> Future.succeededFuture()
 
         when: "The updateStateMachine method is called"
         Future<JsonObject> future = controllerVerticle.updateStateMachine(id, reqJO)
 
         then:
-        1 * repoUtil.findOneAndUpdate(AppConstant.COLLECTION_STATE_MACHINES, query, expectedUpdateData) >> Future.succeededFuture(dbResult)
+        1 * repoUtil.findOneAndUpdate(AppConstant.COLLECTION_STATE_MACHINES, query.copy().put("version", 3),
+                expectedUpdateData.put("version", 4)) >> Future.succeededFuture(dbResult)
 
         and: "The response indicates success"
         future.result().getInteger("statusCode") == 200
@@ -530,6 +594,41 @@ class ControllerVerticleTest extends Specification {
         errorResponse.getString("error") == "Failed to delete state machine for ID: ${id} - ${dbException.getMessage()}"
     }
 
+    def "should invalidate the cached state machine after an update"() {
+        given: "A cache holding the current definition"
+        def cache = new LruCache<String, CachedStateMachine>(10)
+        cache.put("stateMachine123", new CachedStateMachine(new JsonObject(), null, null))
+        def cachingController = new ControllerVerticle(repoUtil, cache)
+        def reqJO = new JsonObject()
+                .put("states", ["START", "END"])
+                .put("events", ["BEGIN"])
+                .put("transitions", new JsonObject().put("START", new JsonObject().put("BEGIN", "END")))
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(new JsonObject().put("_id", "stateMachine123"))
+        repoUtil.insert(_, _) >> Future.succeededFuture()
+        repoUtil.findOneAndUpdate(_, _, _) >> Future.succeededFuture(new JsonObject().put("_id", "stateMachine123"))
+
+        when:
+        cachingController.updateStateMachine("stateMachine123", reqJO)
+
+        then:
+        cache.get("stateMachine123") == null
+        cache.invalidations == 1
+    }
+
+    def "should invalidate the cached state machine after a delete"() {
+        given: "A cache holding the current definition"
+        def cache = new LruCache<String, CachedStateMachine>(10)
+        cache.put("stateMachine123", new CachedStateMachine(new JsonObject(), null, null))
+        def cachingController = new ControllerVerticle(repoUtil, cache)
+        repoUtil.findOneAndDelete(_, _) >> Future.succeededFuture(new JsonObject())
+
+        when:
+        cachingController.deleteStateMachine("stateMachine123")
+
+        then:
+        cache.get("stateMachine123") == null
+    }
+
 
 //    isValidTransitions()
     def "should return true for valid transitions"() {
@@ -741,4 +840,297 @@ class ControllerVerticleTest extends Specification {
         then: "The method returns true"
         result == true
     }
+
+    def "should publish the merged definition after an update"() {
+        given: "A controller with a definitions publisher"
+        def publisher = Mock(DefinitionPublisher)
+        def publishingController = new ControllerVerticle(repoUtil, null, publisher)
+        def reqJO = new JsonObject()
+                .put("states", ["START", "END"])
+                .put("events", ["BEGIN"])
+                .put("transitions", new JsonObject().put("START", new JsonObject().put("BEGIN", "END")))
+
+        def stored = new JsonObject().put("_id", "sm1").put("initialState", "START").put("version", 1)
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(stored)
+        repoUtil.insert(_, _) >> Future.succeededFuture()
+
+        when: "The state machine is updated"
+        def future = publishingController.updateStateMachine("sm1", reqJO)
+
+        then: "The stored definition merged with the update is published with its new version"
+        1 * repoUtil.findOneAndUpdate(AppConstant.COLLECTION_STATE_MACHINES, _, _) >> Future.succeededFuture(stored)
+        1 * publisher.publish("sm1", { it.getString("initialState") == "START" && it.getJsonArray("states").size() == 2 &&
+                it.getInteger("version") == 2 }) >> Future.succeededFuture()
+        future.result().getInteger("statusCode") == 200
+    }
+
+    def "should fail a delete whose tombstone could not be published"() {
+        given: "A controller whose publisher fails"
+        def publisher = Mock(DefinitionPublisher)
+        def publishingController = new ControllerVerticle(repoUtil, null, publisher)
+
+        when: "The state machine is deleted"
+        def future = publishingController.deleteStateMachine("sm1")
+
+        then: "A tombstone is attempted"
+        1 * repoUtil.findOneAndDelete(AppConstant.COLLECTION_STATE_MACHINES, _) >> Future.succeededFuture(new JsonObject())
+        1 * publisher.publishDeletion("sm1") >> Future.failedFuture(new RuntimeException("broker down"))
+
+        and: "The request fails so it is repeated"
+        future.failed()
+        new JsonObject(future.cause().message).getInteger("statusCode") == 500
+    }
+
+    def "should publish the tombstone again when deleting a missing state machine"() {
+        given:
+        def publisher = Mock(DefinitionPublisher)
+        def publishingController = new ControllerVerticle(repoUtil, null, publisher)
+
+        when: "A delete is repeated after its publish failed"
+        def future = publishingController.deleteStateMachine("sm1")
+
+        then:
+        1 * repoUtil.findOneAndDelete(AppConstant.COLLECTION_STATE_MACHINES, _) >> Future.succeededFuture(null)
+        1 * publisher.publishDeletion("sm1") >> Future.succeededFuture()
+        future.result().getInteger("statusCode") == 404
+    }
+
+    def "should fail an update whose definition could not be published"() {
+        given:
+        def publisher = Mock(DefinitionPublisher)
+        def publishingController = new ControllerVerticle(repoUtil, null, publisher)
+        def reqJO = new JsonObject()
+                .put("states", ["START", "END"])
+                .put("events", ["BEGIN"])
+                .put("transitions", new JsonObject().put("START", new JsonObject().put("BEGIN", "END")))
+        def stored = new JsonObject().put("_id", "sm1").put("initialState", "START").put("version", 1)
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(stored)
+        repoUtil.insert(_, _) >> Future.succeededFuture()
+        repoUtil.findOneAndUpdate(_, _, _) >> Future.succeededFuture(stored)
+
+        when:
+        def future = publishingController.updateStateMachine("sm1", reqJO)
+
+        then:
+        1 * publisher.publish("sm1", _) >> Future.failedFuture(new RuntimeException("broker down"))
+        future.failed()
+        new JsonObject(future.cause().message).getInteger("statusCode") == 500
+    }
+
+    def "should list a page of state machines after the cursor with the next cursor"() {
+        when: "A page of two is requested after sm1"
+        def future = controllerVerticle.listStateMachines("sm1", 2, ["states"])
+
+        then: "One more definition than the page is fetched in _id order"
+        1 * repoUtil.find(AppConstant.COLLECTION_STATE_MACHINES, new JsonObject().put("_id", new JsonObject().put("\$gt", "sm1")),
+                { FindOptions options -> options.limit == 3 && options.sort == new JsonObject().put("_id", 1) &&
+                        options.fields == new JsonObject().put("states", 1) }) >> Future.succeededFuture([
+                new JsonObject().put("_id", "sm2"), new JsonObject().put("_id", "sm3"), new JsonObject().put("_id", "sm4")])
+
+        and: "The page ends at the last definition returned"
+        def res = future.result()
+        res.getInteger("statusCode") == 200
+        res.getJsonArray("stateMachines").collect { it.getString("_id") } == ["sm2", "sm3"]
+        res.getString("nextCursor") == "sm3"
+    }
+
+    def "should return no next cursor on the last page"() {
+        when:
+        def res = controllerVerticle.listStateMachines(null, 2, []).result()
+
+        then:
+        1 * repoUtil.find(AppConstant.COLLECTION_STATE_MACHINES, new JsonObject(), _) >> Future.succeededFuture([
+                new JsonObject().put("_id", "sm1")])
+        res.getJsonArray("stateMachines").size() == 1
+        res.getString("nextCursor") == null
+    }
+
+    def "should return 400 for an invalid page size or field"() {
+        when:
+        def res = controllerVerticle.listStateMachines(null, limit, fields).result()
+
+        then:
+        0 * repoUtil.find(*_)
+        res.getInteger("statusCode") == 400
+
+        where:
+        limit                               | fields
+        0                                   | []
+        ControllerVerticle.MAX_PAGE_SIZE + 1 | []
+        10                                  | ['$where']
+    }
+
+    def "should export every state machine and pause while the output is full"() {
+        given: "A cursor over the definitions and an output that fills up after the first one"
+        ReadStream<JsonObject> definitions = Mock()
+        WriteStream<Buffer> out = Mock()
+        Handler<JsonObject> onDefinition = null
+        Handler<Void> onEnd = null
+        Handler<Void> drain = null
+        List<String> written = []
+        definitions.handler(_) >> { Handler<JsonObject> handler -> onDefinition = handler; definitions }
+        definitions.endHandler(_) >> { Handler<Void> handler -> onEnd = handler; definitions }
+        out.write(_) >> { Buffer buffer -> written << buffer.toString(); Future.succeededFuture() }
+        out.writeQueueFull() >>> [true, false]
+        out.drainHandler(_) >> { Handler<Void> handler -> drain = handler; out }
+        repoUtil.findBatch(AppConstant.COLLECTION_STATE_MACHINES, _, _) >> definitions
+
+        when: "The first definition is read"
+        def future = controllerVerticle.exportStateMachines(new JsonObject(), out)
+        onDefinition.handle(new JsonObject().put("_id", "sm1"))
+
+        then: "Reading pauses"
+        1 * definitions.pause()
+
+        when: "The output drains and the rest is read"
+        drain.handle(null)
+        onDefinition.handle(new JsonObject().put("_id", "sm2"))
+        onEnd.handle(null)
+
+        then: "Reading resumes and every definition is written as a line"
+        1 * definitions.resume()
+        future.result() == 2
+        written == ['{"_id":"sm1"}\n', '{"_id":"sm2"}\n']
+    }
+
+    def "should close the cursor and fail the export when the client disconnects while reading is paused"() {
+        given: "An output that is full after the first definition"
+        ReadStream<JsonObject> definitions = Mock()
+        WriteStream<Buffer> out = Mock()
+        Handler<JsonObject> onDefinition = null
+        Handler<Throwable> onOutputFailure = null
+        definitions.handler(_) >> { Handler<JsonObject> handler -> onDefinition = handler; definitions }
+        out.exceptionHandler(_) >> { Handler<Throwable> handler -> onOutputFailure = handler; out }
+        out.write(_) >> Future.succeededFuture()
+        out.writeQueueFull() >> true
+        repoUtil.findBatch(AppConstant.COLLECTION_STATE_MACHINES, _, _) >> definitions
+
+        when:
+        def future = controllerVerticle.exportStateMachines(new JsonObject(), out)
+        onDefinition.handle(new JsonObject().put("_id", "sm1"))
+
+        and: "The connection closes before the output drains"
+        onOutputFailure.handle(new IllegalStateException("Connection was closed"))
+
+        then: "The cursor is released and the export fails"
+        1 * definitions.handler(null) >> definitions
+        future.failed()
+        future.cause().message == "Connection was closed"
+    }
+
+    def "should store and report the graph analysis of a created state machine"() {
+        given: "A definition with an unreachable state"
+        def reqJO = new JsonObject()
+                .put("stateMachineName", "analysed")
+                .put("states", ["NEW", "DONE", "ORPHAN"])
+                .put("events", ["FINISH"])
+                .put("transitions", new JsonObject()
+                        .put("NEW", new JsonObject().put("FINISH", "DONE"))
+                        .put("ORPHAN", new JsonObject().put("FINISH", "DONE")))
+
+        when:
+        def res = controllerVerticle.createStateMachine(reqJO).result()
+
+        then: "The analysis is saved with the definition"
+        1 * repoUtil.findOne(AppConstant.COLLECTION_STATE_MACHINES, _, _) >> Future.succeededFuture(null)
+        1 * repoUtil.find(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, _, _) >> Future.succeededFuture([])
+        1 * repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINES, { JsonObject definition ->
+            definition.getJsonObject("analysis").getJsonArray("terminalStates").getList() == ["DONE"]
+        }) >> Future.succeededFuture()
+        1 * repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, _) >> Future.succeededFuture()
+
+        and: "Reported without rejecting the definition"
+        res.getInteger("statusCode") == 201
+        res.getJsonObject("analysis").getJsonArray("unreachableStates").getList() == ["ORPHAN"]
+    }
+
+    def "should number a re-created state machine after the versions of the deleted one"() {
+        given:
+        def reqJO = new JsonObject()
+                .put("stateMachineName", "recreated")
+                .put("states", ["START", "END"])
+                .put("events", ["BEGIN"])
+                .put("transitions", new JsonObject().put("START", new JsonObject().put("BEGIN", "END")))
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(null)
+
+        when:
+        def res = controllerVerticle.createStateMachine(reqJO).result()
+
+        then: "The newest stored version is read through the versions index"
+        1 * repoUtil.find(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, _, { FindOptions options ->
+            options.sort == new JsonObject().put("stateMachineName", 1).put("version", -1) && options.limit == 1
+        }) >> Future.succeededFuture([new JsonObject().put("_id", "recreated:4").put("version", 4)])
+        1 * repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINES, { it.getInteger("version") == 5 }) >> Future.succeededFuture()
+        1 * repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, { it.getString("_id") == "recreated:5" }) >> Future.succeededFuture()
+        res.getInteger("statusCode") == 201
+        res.getInteger("version") == 5
+    }
+
+    def "should return 409 when the same state machine is created concurrently"() {
+        given:
+        def reqJO = new JsonObject()
+                .put("stateMachineName", "raced")
+                .put("states", ["START", "END"])
+                .put("events", ["BEGIN"])
+                .put("transitions", new JsonObject().put("START", new JsonObject().put("BEGIN", "END")))
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(null)
+        repoUtil.find(_, _, _) >> Future.succeededFuture([])
+
+        when:
+        def res = controllerVerticle.createStateMachine(reqJO).result()
+
+        then:
+        1 * repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINES, _) >> Future.failedFuture(duplicateKey())
+        0 * repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, _)
+        res.getInteger("statusCode") == 409
+    }
+
+    def "should archive a definition stored before versioning as version 0 on its first update"() {
+        given:
+        def legacy = new JsonObject().put("_id", "legacy").put("stateMachineName", "legacy").put("states", ["OLD"])
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(legacy)
+        def reqJO = new JsonObject()
+                .put("states", ["START", "END"])
+                .put("events", ["BEGIN"])
+                .put("transitions", new JsonObject().put("START", new JsonObject().put("BEGIN", "END")))
+
+        when:
+        def res = controllerVerticle.updateStateMachine("legacy", reqJO).result()
+
+        then: "Mongo matches the missing version as null"
+        1 * repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, { JsonObject version ->
+            version.getString("_id") == "legacy:0" && version.getInteger("version") == 0 && version.getJsonArray("states").size() == 1
+        }) >> Future.succeededFuture()
+        1 * repoUtil.findOneAndUpdate(AppConstant.COLLECTION_STATE_MACHINES,
+                new JsonObject().put("_id", "legacy").put("version", null), { it.getInteger("version") == 1 }) >> Future.succeededFuture(legacy)
+        1 * repoUtil.insert(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS, { it.getString("_id") == "legacy:1" }) >> Future.succeededFuture()
+        res.getInteger("statusCode") == 200
+        res.getInteger("version") == 1
+    }
+
+    def "should return 409 and keep the cached definition when another update moved the version first"() {
+        given:
+        def cache = new LruCache<String, CachedStateMachine>(10)
+        cache.put("sm1", new CachedStateMachine(new JsonObject(), null, null))
+        def cachingController = new ControllerVerticle(repoUtil, cache)
+        repoUtil.findOne(_, _, _) >> Future.succeededFuture(new JsonObject().put("_id", "sm1").put("version", 2))
+        repoUtil.insert(_, _) >> Future.failedFuture(duplicateKey())
+        def reqJO = new JsonObject()
+                .put("states", ["START", "END"])
+                .put("events", ["BEGIN"])
+                .put("transitions", new JsonObject().put("START", new JsonObject().put("BEGIN", "END")))
+
+        when:
+        def res = cachingController.updateStateMachine("sm1", reqJO).result()
+
+        then:
+        1 * repoUtil.findOneAndUpdate(_, _, _) >> Future.succeededFuture(null)
+        res.getInteger("statusCode") == 409
+        res.getString("message") == "State machine was modified concurrently"
+        cache.get("sm1") != null
+    }
+
+    private static MongoWriteException duplicateKey() {
+        new MongoWriteException(new WriteError(11000, "E11000 duplicate key error", new BsonDocument()), new ServerAddress())
+    }
 }
@@ -0,0 +1,176 @@
+package com.payex.project.definition
+
+import io.vertx.core.Future
+import io.vertx.core.Handler
+import io.vertx.core.Promise
+import io.vertx.core.json.JsonObject
+import io.vertx.kafka.client.common.PartitionInfo
+import io.vertx.kafka.client.common.TopicPartition
+import io.vertx.kafka.client.consumer.KafkaConsumer
+import io.vertx.kafka.client.consumer.KafkaConsumerRecord
+import spock.lang.Specification
+
+import java.util.concurrent.TimeUnit
+
+class DefinitionViewTest extends Specification {
+
+    DefinitionView view = new DefinitionView()
+
+    def "should store definitions and remove them on tombstones"() {
+        when: "A definition and then its tombstone are applied"
+        view.apply("sm1", new JsonObject().put("initialState", "START"))
+
+        then: "The definition is served from the view"
+        view.get("sm1").getString("initialState") == "START"
+        view.size() == 1
+
+        when:
+        view.apply("sm1", null)
+
+        then: "The tombstone removes it"
+        view.get("sm1") == null
+        view.size() == 0
+        view.updates() == 2
+    }
+
+    def "should notify listeners of every changed id"() {
+        given: "A registered listener"
+        def changed = []
+        view.addListener { changed << it }
+
+        when: "An update and a deletion are applied"
+        view.apply("sm1", new JsonObject())
+        view.apply("sm2", null)
+
+        then: "The listener receives both ids"
+        changed == ["sm1", "sm2"]
+    }
+
+    def "should ignore records without a key"() {
+        when:
+        view.apply(null, new JsonObject())
+
+        then:
+        view.size() == 0
+        view.updates() == 0
+    }
+
+    def "should store a fallback read only if the topic delivered nothing meanwhile"() {
+        given: "A fallback read started before a record arrived"
+        long before = view.updates()
+        view.apply("sm2", new JsonObject())
+
+        when: "Both a stale and a current fallback result are offered"
+        view.putIfUnchanged("sm1", new JsonObject().put("source", "stale"), before)
+        view.putIfUnchanged("sm3", new JsonObject().put("source", "current"), view.updates())
+
+        then: "Only the current one is kept"
+        view.get("sm1") == null
+        view.get("sm3").getString("source") == "current"
+    }
+
+    def "should not overwrite a definition delivered by the topic with a fallback read"() {
+        given:
+        view.apply("sm1", new JsonObject().put("source", "topic"))
+
+        when:
+        view.putIfUnchanged("sm1", new JsonObject().put("source", "mongo"), view.updates())
+
+        then:
+        view.get("sm1").getString("source") == "topic"
+    }
+
+    def "should ignore definitions older than the version already applied"() {
+        given:
+        view.apply("sm1", new JsonObject().put("version", 3))
+
+        when: "An update published concurrently arrives late"
+        view.apply("sm1", new JsonObject().put("version", 2))
+
+        then:
+        view.get("sm1").getInteger("version") == 3
+        view.updates() == 1
+
+        when: "The definition is deleted and the late update arrives after the tombstone"
+        view.apply("sm1", null)
+        view.apply("sm1", new JsonObject().put("version", 2))
+
+        then:
+        view.get("sm1") == null
+
+        when: "It is created again with a higher version"
+        view.apply("sm1", new JsonObject().put("version", 4))
+
+        then:
+        view.get("sm1").getInteger("version") == 4
+    }
+
+    def "should not be ready before the end offsets are known, even if records arrive first"() {
+        given:
+        def consumer = Mock(KafkaConsumer)
+        def partition = new TopicPartition("definitions", 0)
+        def ends = Promise.<Map<TopicPartition, Long>>promise()
+        Handler<KafkaConsumerRecord> handler = null
+        consumer.handler(_) >> { args -> handler = args[0]; consumer }
+        consumer.partitionsFor("definitions") >> Future.succeededFuture([new PartitionInfo().setTopic("definitions").setPartition(0)])
+        consumer.assign(_ as Set) >> Future.succeededFuture()
+        consumer.seekToBeginning(_ as Set) >> Future.succeededFuture()
+        consumer.endOffsets(_ as Set) >> ends.future()
+
+        when: "The first of three definitions arrives before the end offsets"
+        def started = view.start(consumer, "definitions", 5000)
+        handler.handle(record(0, "sm1"))
+
+        then:
+        !started.isComplete()
+        !view.isReady()
+
+        when:
+        ends.complete([(partition): 3L])
+        handler.handle(record(1, "sm2"))
+
+        then:
+        !started.isComplete()
+
+        when:
+        handler.handle(record(2, "sm3"))
+
+        then:
+        started.toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS) == null
+        view.isReady()
+        view.size() == 3
+    }
+
+    def "should be ready once the end offsets arrive after every record was read"() {
+        given:
+        def consumer = Mock(KafkaConsumer)
+        def ends = Promise.<Map<TopicPartition, Long>>promise()
+        Handler<KafkaConsumerRecord> handler = null
+        consumer.handler(_) >> { args -> handler = args[0]; consumer }
+        consumer.partitionsFor("definitions") >> Future.succeededFuture([new PartitionInfo().setTopic("definitions").setPartition(0)])
+        consumer.assign(_ as Set) >> Future.succeededFuture()
+        consumer.seekToBeginning(_ as Set) >> Future.succeededFuture()
+        consumer.endOffsets(_ as Set) >> ends.future()
+
+        when:
+        def started = view.start(consumer, "definitions", 5000)
+        handler.handle(record(0, "sm1"))
+        handler.handle(record(1, "sm2"))
+        ends.complete([(new TopicPartition("definitions", 0)): 2L])
+
+        then:
+        started.toCompletionStage().toCompletableFuture().get(5, TimeUnit.SECONDS) == null
+        view.isReady()
+        view.size() == 2
+    }
+
+    private KafkaConsumerRecord record(long position, String id) {
+        Stub(KafkaConsumerRecord) {
+            topic() >> "definitions"
+            partition() >> 0
+            offset() >> position
+            key() >> id
+            value() >> new JsonObject().put("_id", id).put("version", 1).encode()
+        }
+    }
+}
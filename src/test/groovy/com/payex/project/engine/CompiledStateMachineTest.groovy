@@ -0,0 +1,102 @@
+package com.payex.project.engine
+
+import com.payex.project.models.StateMachineAnalysis
+import com.payex.project.models.StateMachineDB
+import spock.lang.Specification
+
+class CompiledStateMachineTest extends Specification {
+
+    def orderFlow = new StateMachineDB(
+            _id: "orderFlow",
+            stateMachineName: "orderFlow",
+            states: ["NEW", "PAID", "SHIPPED", "CANCELLED"],
+            events: ["PAY", "SHIP", "CANCEL"],
+            transitions: [
+                    "NEW" : ["PAY": "PAID", "CANCEL": "CANCELLED"],
+                    "PAID": ["SHIP": "SHIPPED", "CANCEL": "CANCELLED"]
+            ]
+    )
+
+    def "should fire a defined transition"() {
+        given:
+        def compiled = CompiledStateMachine.compile(orderFlow)
+
+        expect:
+        compiled.fire("NEW", "PAY") == "PAID"
+        compiled.fire("PAID", "SHIP") == "SHIPPED"
+        compiled.fire("PAID", "CANCEL") == "CANCELLED"
+    }
+
+    def "should reject undefined transitions, states and events"() {
+        given:
+        def compiled = CompiledStateMachine.compile(orderFlow)
+
+        expect:
+        compiled.fire("NEW", "SHIP") == null
+        compiled.fire("SHIPPED", "PAY") == null
+        compiled.fire("UNKNOWN", "PAY") == null
+        compiled.fire("NEW", "UNKNOWN") == null
+    }
+
+    def "should use the first state as initial state and expose indices"() {
+        given:
+        def compiled = CompiledStateMachine.compile(orderFlow)
+
+        expect:
+        compiled.initialState == "NEW"
+        compiled.stateCount == 4
+        compiled.eventCount == 3
+        compiled.transitionCount == 4
+        compiled.dense
+        compiled.fire(compiled.stateIndex("NEW"), compiled.eventIndex("PAY")) == compiled.stateIndex("PAID")
+        compiled.stateIndex("UNKNOWN") == CompiledStateMachine.NO_TRANSITION
+    }
+
+    def "should use a sparse table when the dense table would be too large"() {
+        given: "A chain of 3000 states each advanced by its own event"
+        def states = (0..<3000).collect { "S" + it }
+        def events = (0..<3000).collect { "E" + it }
+        def transitions = [:]
+        (0..<2999).each { transitions["S" + it] = [("E" + it): "S" + (it + 1)] }
+        def definition = new StateMachineDB(_id: "chain", states: states, events: events, transitions: transitions)
+
+        when:
+        def compiled = CompiledStateMachine.compile(definition)
+
+        then:
+        !compiled.dense
+        compiled.fire("S0", "E0") == "S1"
+        compiled.fire("S2998", "E2998") == "S2999"
+        compiled.fire("S0", "E1") == null
+    }
+
+    def "should fail to compile a transition to an undefined state"() {
+        given:
+        def definition = new StateMachineDB(_id: "broken", states: ["A"], events: ["GO"], transitions: ["A": ["GO": "B"]])
+
+        when:
+        CompiledStateMachine.compile(definition)
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "should fail to compile a definition without states"() {
+        when:
+        CompiledStateMachine.compile(new StateMachineDB(_id: "empty", states: [], events: []))
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+
+    def "should compile regardless of the stored analysis"() {
+        given: "An analysis stored for an older shape of the definition"
+        orderFlow.analysis = new StateMachineAnalysis(terminalStates: ["ARCHIVED"], components: [0])
+
+        when:
+        def compiled = CompiledStateMachine.compile(orderFlow)
+
+        then:
+        compiled.fire("NEW", "PAY") == "PAID"
+    }
+}
@@ -0,0 +1,93 @@
+package com.payex.project.engine
+
+import com.payex.project.models.StateMachineDB
+import spock.lang.Specification
+
+class StateGraphTest extends Specification {
+
+    def "should report terminal, unreachable and dead end states and cycles"() {
+        given: "NEW leads to DONE or into a LOOP_A/LOOP_B trap, and ORPHAN is never entered"
+        def definition = new StateMachineDB(
+                states: ["NEW", "PAID", "DONE", "LOOP_A", "LOOP_B", "ORPHAN"],
+                events: ["PAY", "FINISH", "SPIN"],
+                transitions: [
+                        "NEW"   : ["PAY": "PAID", "SPIN": "LOOP_A"],
+                        "PAID"  : ["FINISH": "DONE", "PAY": "PAID"],
+                        "LOOP_A": ["SPIN": "LOOP_B"],
+                        "LOOP_B": ["SPIN": "LOOP_A"],
+                        "ORPHAN": ["FINISH": "DONE"]
+                ])
+
+        when:
+        def analysis = StateGraph.analyze(definition)
+
+        then:
+        analysis.terminalStates == ["DONE"]
+        analysis.unreachableStates == ["ORPHAN"]
+        analysis.deadEndStates == ["LOOP_A", "LOOP_B"]
+        analysis.cycles == [["PAID"], ["LOOP_A", "LOOP_B"]]
+        analysis.componentCount == 5
+    }
+
+    def "should number components so no state leads to a higher component"() {
+        given:
+        def definition = new StateMachineDB(
+                states: ["A", "B", "C", "D"],
+                events: ["NEXT", "BACK"],
+                transitions: [
+                        "A": ["NEXT": "B"],
+                        "B": ["NEXT": "C", "BACK": "A"],
+                        "C": ["NEXT": "D"]
+                ])
+
+        when:
+        def components = StateGraph.analyze(definition).components
+
+        then: "A and B share a component and every edge goes down"
+        components[0] == components[1]
+        components[1] > components[2]
+        components[2] > components[3]
+    }
+
+    def "should not report dead ends for a machine without terminal states"() {
+        given:
+        def definition = new StateMachineDB(
+                states: ["ON", "OFF"],
+                events: ["TOGGLE"],
+                transitions: ["ON": ["TOGGLE": "OFF"], "OFF": ["TOGGLE": "ON"]])
+
+        when:
+        def analysis = StateGraph.analyze(definition)
+
+        then:
+        analysis.terminalStates.isEmpty()
+        analysis.deadEndStates.isEmpty()
+        analysis.cycles == [["ON", "OFF"]]
+    }
+
+    def "should analyse a long chain without recursion"() {
+        given: "A chain of 200000 states closed into one cycle"
+        int n = 200_000
+        def states = (0..<n).collect { "S" + it }
+        def transitions = [:]
+        (0..<n).each { transitions["S" + it] = ["NEXT": "S" + ((it + 1) % n)] }
+        def definition = new StateMachineDB(states: states, events: ["NEXT"], transitions: transitions)
+
+        when:
+        def analysis = StateGraph.analyze(definition)
+
+        then:
+        analysis.componentCount == 1
+        analysis.cycles.size() == 1
+        analysis.cycles[0].size() == n
+        analysis.unreachableStates.isEmpty()
+    }
+
+    def "should reject transitions to undefined states"() {
+        when:
+        StateGraph.analyze(new StateMachineDB(states: ["A"], events: ["GO"], transitions: ["A": ["GO": "B"]]))
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
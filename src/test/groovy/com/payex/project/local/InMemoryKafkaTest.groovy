@@ -0,0 +1,108 @@
+package com.payex.project.local
+
+import com.payex.project.codec.KafkaMessageCodec
+import com.payex.project.codec.KafkaMessageDeserializer
+import com.payex.project.constant.AppConstant
+import com.payex.project.models.KafkaMessage
+import org.apache.kafka.clients.consumer.Consumer
+import org.apache.kafka.clients.consumer.OffsetAndMetadata
+import org.apache.kafka.clients.producer.ProducerRecord
+import org.apache.kafka.common.TopicPartition
+import spock.lang.Specification
+
+import java.time.Duration
+
+class InMemoryKafkaTest extends Specification {
+
+    InMemoryKafka kafka = new InMemoryKafka(4)
+
+    def "should deliver produced records in offset order per partition"() {
+        given: "Records produced for a few keys and a subscribed consumer"
+        def producer = kafka.producer([:])
+        20.times { producer.send(new ProducerRecord("events", "process-" + (it % 5), "v" + it)) }
+        Consumer<String, String> consumer = consumer("group", [:])
+        consumer.subscribe(["events"])
+
+        when:
+        def records = consumer.poll(Duration.ofMillis(100)).toList()
+
+        then: "Every record arrives, with all records of a key on one partition in order"
+        records.size() == 20
+        records.groupBy { it.key() }.every { key, byKey ->
+            byKey*.partition().unique().size() == 1 && byKey*.value() == byKey*.value().sort { it.substring(1) as int }
+        }
+        kafka.endOffset("events") == 20
+    }
+
+    def "should split partitions across a group and reassign them when a member leaves"() {
+        given: "Two consumers of one group"
+        def first = consumer("group", [:])
+        def second = consumer("group", [:])
+        first.subscribe(["events"])
+        second.subscribe(["events"])
+
+        when:
+        first.poll(Duration.ZERO)
+        second.poll(Duration.ZERO)
+
+        then: "Each owns half of the partitions"
+        first.assignment().size() == 2
+        second.assignment().size() == 2
+        (first.assignment() + second.assignment()).size() == 4
+        kafka.isStable("group", 2)
+
+        when: "One of them leaves"
+        second.close()
+        first.poll(Duration.ZERO)
+
+        then: "The other owns all partitions"
+        first.assignment().size() == 4
+        kafka.isStable("group", 1)
+    }
+
+    def "should continue a group from its committed offsets and drop committed records"() {
+        given: "A manually committing consumer that read some records of partition 0"
+        def producer = kafka.producer([:])
+        10.times { producer.send(new ProducerRecord("events", 0, "key", "v" + it)) }
+        def first = consumer("group", ["enable.auto.commit": "false", "max.poll.records": "6"])
+        first.subscribe(["events"])
+        def partition = new TopicPartition("events", 0)
+
+        when: "It commits the first six and leaves"
+        def read = first.poll(Duration.ofMillis(100)).count()
+        first.commitSync([(partition): new OffsetAndMetadata(6)])
+        first.close()
+
+        and: "Another member of the group takes over"
+        def second = consumer("group", ["enable.auto.commit": "false"])
+        second.subscribe(["events"])
+        def records = second.poll(Duration.ofMillis(100)).toList()
+
+        then: "It starts after the committed offset"
+        read == 6
+        records*.offset() == [6L, 7L, 8L, 9L]
+
+        and: "The committed records are no longer kept"
+        kafka.retained("events") == 4
+    }
+
+    def "should hand the headers serializers added to the deserializers"() {
+        given: "A binary and a JSON event producer"
+        def binary = kafka.producer(["value.serializer": KafkaMessageCodec.serializerFor(AppConstant.MESSAGE_FORMAT_BINARY)])
+        def json = kafka.producer(["value.serializer": KafkaMessageCodec.serializerFor(AppConstant.MESSAGE_FORMAT_JSON)])
+        binary.send(new ProducerRecord("events", 0, "p1", new KafkaMessage("sm1", "p1", "PAY", "e1")))
+        json.send(new ProducerRecord("events", 0, "p2", new KafkaMessage("sm1", "p2", "PAY", "e2")))
+
+        when: "They are read by an event consumer"
+        Consumer<String, KafkaMessage> consumer = kafka.consumer(["value.deserializer": KafkaMessageDeserializer.name])
+        consumer.subscribe(["events"])
+        def records = consumer.poll(Duration.ofMillis(100)).toList()
+
+        then: "Both formats are decoded"
+        records*.value() == [new KafkaMessage("sm1", "p1", "PAY", "e1"), new KafkaMessage("sm1", "p2", "PAY", "e2")]
+    }
+
+    private Consumer<String, String> consumer(String groupId, Map<String, String> config) {
+        return kafka.consumer(["group.id": groupId] + config)
+    }
+}
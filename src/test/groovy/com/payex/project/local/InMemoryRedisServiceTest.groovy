@@ -0,0 +1,77 @@
+package com.payex.project.local
+
+import com.payex.project.engine.CompiledStateMachine
+import com.payex.project.models.KafkaMessage
+import com.payex.project.models.StateMachineDB
+import com.payex.project.service.StateStore
+import spock.lang.Specification
+
+class InMemoryRedisServiceTest extends Specification {
+
+    InMemoryRedisService redisService = new InMemoryRedisService(2)
+    CompiledStateMachine sm1
+
+    def setup() {
+        def definition = LoadGenerator.definition("sm1", 3, 1).mapTo(StateMachineDB)
+        sm1 = CompiledStateMachine.compile(definition)
+        redisService.loadTransitionTable(sm1)
+    }
+
+    def "should apply transitions atomically from the initial state"() {
+        when:
+        def first = redisService.applyTransition("p1", sm1, "E0", "e1").result()
+        def second = redisService.applyTransition("p1", sm1, "NOOP", "e2").result()
+
+        then: "The first event moves the process on, the second has no transition"
+        first.accepted && first.previousState == "S0" && first.newState == "S1"
+        !second.accepted && second.newState == "S1"
+        redisService.getState("p1").result() == "S1"
+    }
+
+    def "should skip events within the dedupe window"() {
+        when: "An event is redelivered after one and after two later events"
+        redisService.applyTransition("p1", sm1, "E0", "e1").result()
+        def withinWindow = redisService.applyTransition("p1", sm1, "E0", "e1").result()
+        redisService.applyTransition("p1", sm1, "E0", "e2").result()
+        redisService.applyTransition("p1", sm1, "E0", "e3").result()
+        def outsideWindow = redisService.applyTransition("p1", sm1, "E0", "e1").result()
+
+        then:
+        withinWindow.duplicate
+        !outsideWindow.duplicate
+        redisService.findProcessedEvents([new KafkaMessage("sm1", "p1", "E0", "e3")]).result() == ["e3"] as Set
+    }
+
+    def "should keep processes on the version they started on"() {
+        given: "p1 started on version 0, then version 1 adds two states"
+        redisService.applyTransition("p1", sm1, "E0", "e1").result()
+        def definition = LoadGenerator.definition("sm1", 5, 1).mapTo(StateMachineDB)
+        definition.version = 1
+        def updated = CompiledStateMachine.compile(definition)
+        redisService.loadTransitionTable(updated)
+
+        when:
+        redisService.applyTransition("p1", updated, "E0", "e2").result()
+        def pinned = redisService.applyTransition("p1", updated, "E0", "e3").result()
+        redisService.applyTransitions([new KafkaMessage("sm1", "p2", "E0", "e4"), new KafkaMessage("sm1", "p2", "E0", "e5"),
+                                       new KafkaMessage("sm1", "p2", "E0", "e6")], ["sm1": updated]).result()
+
+        then: "p1 wraps around after three states, p2 started on version 1 does not"
+        pinned.newState == "S0"
+        redisService.getState("p2").result() == "S3"
+        redisService.getStates([StateStore.versionKey("p1"), StateStore.versionKey("p2")]).result() ==
+                [(StateStore.versionKey("p1")): "0", (StateStore.versionKey("p2")): "1"]
+    }
+
+    def "should fail transitions of machines without a transition table"() {
+        given:
+        def unknown = CompiledStateMachine.compile(LoadGenerator.definition("unknown", 3, 1).mapTo(StateMachineDB))
+
+        when:
+        def result = redisService.applyTransition("p1", unknown, "E0", "e1")
+
+        then:
+        result.failed()
+        result.cause().message.contains("unknown")
+    }
+}
@@ -0,0 +1,101 @@
+package com.payex.project.local
+
+import com.payex.project.constant.AppConstant
+import com.payex.project.controller.ControllerVerticle
+import io.vertx.core.json.JsonObject
+import io.vertx.ext.mongo.FindOptions
+import spock.lang.Specification
+
+class InMemoryRepoUtilTest extends Specification {
+
+    InMemoryRepoUtil repoUtil = new InMemoryRepoUtil()
+
+    def "find should filter, sort, skip, limit and project"() {
+        given:
+        (1..5).each { repoUtil.save("docs", new JsonObject().put("_id", "d" + it).put("group", it % 2).put("rank", it)) }
+
+        when: "Odd ranks above 1, highest first, after skipping one"
+        def found = repoUtil.find("docs",
+                new JsonObject().put("group", 1).put("rank", new JsonObject().put('$gt', 1)),
+                new FindOptions()
+                        .setSort(new JsonObject().put("rank", -1))
+                        .setSkip(1)
+                        .setLimit(5)
+                        .setFields(new JsonObject().put("rank", 1))).result()
+
+        then:
+        found == [new JsonObject().put("_id", "d3").put("rank", 3)]
+    }
+
+    def "find should match alternatives and a null condition against a missing field"() {
+        given:
+        repoUtil.save("docs", new JsonObject().put("_id", "a").put("rank", 1))
+        repoUtil.save("docs", new JsonObject().put("_id", "b").put("rank", 2).put("tag", "x"))
+        repoUtil.save("docs", new JsonObject().put("_id", "c").put("rank", 3))
+
+        expect:
+        repoUtil.find("docs", new JsonObject().put('$or', [
+                [rank: [('$lt'): 2]],
+                [rank: 3, _id: [('$lte'): "c"]]]), new FindOptions().setSort(new JsonObject().put("_id", 1)))
+                .result()*.getString("_id") == ["a", "c"]
+        repoUtil.find("docs", new JsonObject().putNull("tag"), new FindOptions()).result()*.getString("_id").toSorted() == ["a", "c"]
+    }
+
+    def "find should fail on an unsupported operator"() {
+        given:
+        repoUtil.save("docs", new JsonObject().put("_id", "a").put("rank", 1))
+
+        expect:
+        repoUtil.find("docs", new JsonObject().put("rank", new JsonObject().put('$in', [1])), new FindOptions()).failed()
+    }
+
+    def "findBatch should stream the result as it is fetched and end once every document was handled"() {
+        given:
+        (1..3).each { repoUtil.save("docs", new JsonObject().put("_id", "d" + it)) }
+        def received = []
+        def ended = false
+
+        when: "The reader pauses after every document"
+        def stream = repoUtil.findBatch("docs", new JsonObject(), new FindOptions().setSort(new JsonObject().put("_id", 1)))
+        stream.endHandler { ended = true }
+        stream.handler { received << it.getString("_id"); stream.pause() }
+
+        then:
+        received == ["d1"]
+
+        when:
+        stream.fetch(1)
+        stream.resume()
+
+        then:
+        received == ["d1", "d2", "d3"]
+        !ended
+
+        when:
+        stream.resume()
+
+        then:
+        ended
+    }
+
+    def "should create and version state machines without Mongo"() {
+        given:
+        def controller = new ControllerVerticle(repoUtil)
+        def request = new JsonObject()
+                .put("stateMachineName", "orders")
+                .put("states", ["NEW", "PAID"])
+                .put("events", ["PAY"])
+                .put("transitions", new JsonObject().put("NEW", new JsonObject().put("PAY", "PAID")))
+
+        when:
+        def created = controller.createStateMachine(request).result()
+        def updated = controller.updateStateMachine("orders", request).result()
+
+        then:
+        created.getInteger("statusCode") == 201
+        created.getInteger("version") == 1
+        updated.getInteger("version") == 2
+        repoUtil.count(AppConstant.COLLECTION_STATE_MACHINE_VERSIONS) == 2
+        controller.listStateMachines(null, 10, []).result().getJsonArray("stateMachines").size() == 1
+    }
+}
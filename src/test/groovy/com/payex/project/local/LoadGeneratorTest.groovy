@@ -0,0 +1,28 @@
+package com.payex.project.local
+
+import spock.lang.Specification
+
+class LoadGeneratorTest extends Specification {
+
+    def "should apply every produced event and report on the run"() {
+        when: "A small run with two consumer instances and some rejected events"
+        def report = LoadGenerator.run([
+                events     : "2000",
+                processes  : "100",
+                machines   : "2",
+                partitions : "4",
+                instances  : "2",
+                rejectRatio: "0.1",
+                progress   : "false"])
+
+        then: "Every event was applied exactly once"
+        report.getJsonObject("outcomes").getLong("accepted") + report.getJsonObject("outcomes").getLong("rejected") == 2000
+        report.getJsonObject("outcomes").getLong("rejected") > 0
+        report.getInteger("processStates") == 100
+
+        and: "The latency and stage percentiles are reported"
+        report.getJsonObject("latencyMs").getLong("count") >= 2000
+        report.getJsonObject("stagesMs").containsKey("decode")
+        report.getLong("appliedPerSecond") > 0
+    }
+}
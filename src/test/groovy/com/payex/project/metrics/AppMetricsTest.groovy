@@ -0,0 +1,96 @@
+package com.payex.project.metrics
+
+import com.payex.project.models.TransitionResult
+import io.vertx.core.Future
+import io.vertx.core.Promise
+import spock.lang.Specification
+
+class AppMetricsTest extends Specification {
+
+    def registry = AppMetrics.registry()
+
+    def "timeStage should record a sample once the future completes"() {
+        given: "A stage whose future is still pending"
+        def before = stageCount(AppMetrics.STAGE_REDIS_READ)
+        def promise = Promise.promise()
+
+        when:
+        def future = AppMetrics.timeStage(AppMetrics.STAGE_REDIS_READ, { promise.future() })
+
+        then: "Nothing is recorded yet"
+        stageCount(AppMetrics.STAGE_REDIS_READ) == before
+
+        when:
+        promise.complete("NEW")
+
+        then: "The sample is recorded and the result passed through"
+        stageCount(AppMetrics.STAGE_REDIS_READ) == before + 1
+        future.result() == "NEW"
+    }
+
+    def "timeStage should record failed futures as well"() {
+        given:
+        def before = stageCount(AppMetrics.STAGE_REDIS_WRITE)
+
+        when:
+        def future = AppMetrics.timeStage(AppMetrics.STAGE_REDIS_WRITE, { Future.failedFuture("Redis down") })
+
+        then:
+        future.failed()
+        stageCount(AppMetrics.STAGE_REDIS_WRITE) == before + 1
+    }
+
+    def "recordStage should time synchronous work and return its result"() {
+        given:
+        def before = stageCount(AppMetrics.STAGE_TRANSITION)
+
+        when:
+        def result = AppMetrics.recordStage(AppMetrics.STAGE_TRANSITION, { "PAID" })
+
+        then:
+        result == "PAID"
+        stageCount(AppMetrics.STAGE_TRANSITION) == before + 1
+    }
+
+    def "countTransition should count results by outcome"() {
+        given:
+        def accepted = transitions(AppMetrics.OUTCOME_ACCEPTED)
+        def rejected = transitions(AppMetrics.OUTCOME_REJECTED)
+        def duplicate = transitions(AppMetrics.OUTCOME_DUPLICATE)
+
+        when:
+        AppMetrics.countTransition(new TransitionResult(true, "NEW", "PAID"))
+        AppMetrics.countTransition(new TransitionResult(false, "NEW", "NEW"))
+        AppMetrics.countTransition(TransitionResult.duplicate("PAID"))
+        AppMetrics.countTransition(null)
+
+        then:
+        transitions(AppMetrics.OUTCOME_ACCEPTED) == accepted + 1
+        transitions(AppMetrics.OUTCOME_REJECTED) == rejected + 1
+        transitions(AppMetrics.OUTCOME_DUPLICATE) == duplicate + 1
+    }
+
+    def "scrape should expose stage histograms in the Prometheus text format"() {
+        given:
+        AppMetrics.recordStage(AppMetrics.STAGE_DECODE, { null })
+        AppMetrics.timeMongo("findOne", { Future.succeededFuture() })
+
+        when:
+        def text = AppMetrics.scrape()
+
+        then:
+        text.contains('statemachine_stage_seconds_bucket{stage="decode"')
+        text.contains('statemachine_mongo_seconds_count{operation="findOne"')
+        text.contains('jvm_memory_used_bytes')
+    }
+
+    private long stageCount(String stage) {
+        def timer = registry.find("statemachine.stage").tag("stage", stage).timer()
+        timer == null ? 0 : timer.count()
+    }
+
+    private double transitions(String outcome) {
+        def counter = registry.find("statemachine.transitions").tag("outcome", outcome).counter()
+        counter == null ? 0 : counter.count()
+    }
+}
@@ -0,0 +1,64 @@
+package com.payex.project.partition
+
+import com.payex.project.constant.AppConstant
+import com.payex.project.models.KafkaMessage
+import com.payex.project.models.StateMachineDB
+import org.apache.kafka.common.utils.Utils
+import spock.lang.Specification
+
+import java.nio.charset.StandardCharsets
+
+class PartitionStrategyTest extends Specification {
+
+    def definition = new StateMachineDB(_id: "orderFlow", partition: 5)
+
+    def "processId strategy should match the hash of Kafka's default partitioner"() {
+        given:
+        def strategy = new ProcessIdPartitionStrategy()
+        def expected = Utils.toPositive(Utils.murmur2("order-1".getBytes(StandardCharsets.UTF_8))) % 12
+
+        expect:
+        strategy.partitionFor(new KafkaMessage("orderFlow", "order-1", "PAY"), definition, 12) == expected
+    }
+
+    def "processId strategy should keep a process on one partition and spread processes"() {
+        given:
+        def strategy = new ProcessIdPartitionStrategy()
+
+        when:
+        def partitions = (0..<1000).collect {
+            strategy.partitionFor(new KafkaMessage("orderFlow", "order-" + it, "PAY"), definition, 8)
+        }
+
+        then:
+        partitions.every { it >= 0 && it < 8 }
+        partitions.toSet().size() == 8
+        strategy.partitionFor(new KafkaMessage("orderFlow", "order-7", "SHIP"), definition, 8) == partitions[7]
+    }
+
+    def "stateMachine strategy should map stored partitions into the real partition range"() {
+        given:
+        def strategy = new StateMachinePartitionStrategy()
+        def message = new KafkaMessage("orderFlow", "order-1", "PAY")
+
+        expect:
+        strategy.partitionFor(message, definition, 12) == 5
+        strategy.partitionFor(message, definition, 3) == 2
+        strategy.partitionFor(message, definition, 1) == 0
+    }
+
+    def "should create strategies by name"() {
+        expect:
+        PartitionStrategy.forName(null) instanceof ProcessIdPartitionStrategy
+        PartitionStrategy.forName(AppConstant.PARTITION_STRATEGY_PROCESS_ID) instanceof ProcessIdPartitionStrategy
+        PartitionStrategy.forName(AppConstant.PARTITION_STRATEGY_STATE_MACHINE) instanceof StateMachinePartitionStrategy
+    }
+
+    def "should reject an unknown strategy"() {
+        when:
+        PartitionStrategy.forName("random")
+
+        then:
+        thrown(IllegalArgumentException)
+    }
+}
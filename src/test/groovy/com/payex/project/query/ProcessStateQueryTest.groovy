@@ -0,0 +1,141 @@
+package com.payex.project.query
+
+import com.payex.project.config.ConfigLoader
+import com.payex.project.service.StateStore
+import io.vertx.core.Future
+import io.vertx.core.Handler
+import io.vertx.core.Promise
+import io.vertx.core.buffer.Buffer
+import io.vertx.core.json.JsonObject
+import io.vertx.core.streams.WriteStream
+import spock.lang.Specification
+
+class ProcessStateQueryTest extends Specification {
+
+    StateStore stateStore = Mock()
+    WriteStream<Buffer> out = Mock()
+    List<String> written = []
+
+    def setup() {
+        out.write(_) >> { Buffer buffer ->
+            written.addAll(buffer.toString().split("\n").findAll())
+            Future.succeededFuture()
+        }
+    }
+
+    def "should read the states in chunks and write one line per process in request order"() {
+        given:
+        def query = query(2, 4)
+
+        when:
+        def count = query.stream(["p1", "p2", "p3"], null, out).result()
+
+        then:
+        1 * stateStore.getStates(["p1", "p2"]) >> Future.succeededFuture([p1: "NEW"])
+        1 * stateStore.getStates(["p3"]) >> Future.succeededFuture([p3: "PAID"])
+        count == 3
+        written.collect { new JsonObject(it).map } == [
+                [processId: "p1", state: "NEW"], [processId: "p2", state: null], [processId: "p3", state: "PAID"]]
+    }
+
+    def "should keep up to maxInFlight chunks pipelined and write them in order as they complete"() {
+        given:
+        def reads = (1..3).collect { Promise.<Map<String, String>> promise() }
+        stateStore.getStates(_) >>> reads*.future()
+        def query = query(1, 2)
+
+        when:
+        def result = query.stream(["p1", "p2", "p3"], null, out)
+
+        then: "Only two reads are issued"
+        0 * stateStore.getStates(["p3"])
+
+        when: "The second chunk completes before the first"
+        reads[1].complete([p2: "S2"])
+
+        then:
+        written.isEmpty()
+
+        when:
+        reads[0].complete([p1: "S1"])
+        reads[2].complete([p3: "S3"])
+
+        then:
+        written.collect { new JsonObject(it).getString("processId") } == ["p1", "p2", "p3"]
+        result.result() == 3
+    }
+
+    def "should only write processes in the requested states"() {
+        given:
+        stateStore.getStates(_) >> Future.succeededFuture([p1: "NEW", p2: "PAID"])
+
+        when:
+        def count = query(10, 1).stream(["p1", "p2", "p3"], ["PAID"] as Set, out).result()
+
+        then:
+        count == 1
+        written.collect { new JsonObject(it).getString("processId") } == ["p2"]
+    }
+
+    def "should wait for the output to drain when its write queue is full"() {
+        given:
+        Handler<Void> drain = null
+        out.writeQueueFull() >>> [true, false]
+        out.drainHandler(_) >> { Handler<Void> handler -> drain = handler; out }
+        stateStore.getStates(_) >>> [Future.succeededFuture([p1: "S1"]), Future.succeededFuture([p2: "S2"])]
+
+        when:
+        def result = query(1, 1).stream(["p1", "p2"], null, out)
+
+        then:
+        written.size() == 1
+        !result.isComplete()
+
+        when:
+        drain.handle(null)
+
+        then:
+        written.size() == 2
+        result.result() == 2
+    }
+
+    def "should stop when the client disconnects while waiting for the output to drain"() {
+        given:
+        Handler<Throwable> onOutputFailure = null
+        out.exceptionHandler(_) >> { Handler<Throwable> handler -> onOutputFailure = handler; out }
+        out.writeQueueFull() >> true
+        def reads = [Future.succeededFuture([p1: "S1"]), Promise.<Map<String, String>> promise()]
+        stateStore.getStates(_) >>> [reads[0], reads[1].future()]
+
+        when:
+        def result = query(1, 2).stream(["p1", "p2", "p3"], null, out)
+        onOutputFailure.handle(new IllegalStateException("Connection was closed"))
+
+        then:
+        result.failed()
+        result.cause().message == "Connection was closed"
+
+        when: "A read still in flight completes"
+        reads[1].complete([p2: "S2"])
+
+        then: "Nothing more is read or written"
+        0 * stateStore.getStates(_)
+        written.size() == 1
+    }
+
+    def "should fail when a chunk cannot be read"() {
+        given:
+        stateStore.getStates(_) >> Future.failedFuture("Redis unavailable")
+
+        expect:
+        query(10, 1).stream(["p1"], null, out).cause().message == "Redis unavailable"
+    }
+
+    private ProcessStateQuery query(int chunkSize, int maxInFlight) {
+        new ProcessStateQuery(stateStore, ConfigLoader.builder()
+                .stateQueryChunkSize(chunkSize)
+                .stateQueryMaxInFlight(maxInFlight)
+                .stateQueryMaxProcessIds(1000)
+                .build())
+    }
+}
@@ -1,8 +1,15 @@
 package com.payex.project.repository
 
+import com.mongodb.MongoBulkWriteException
+import com.mongodb.ServerAddress
+import com.mongodb.bulk.BulkWriteError
+import com.mongodb.bulk.BulkWriteResult
 import io.vertx.core.Vertx
 import io.vertx.core.json.JsonObject
+import io.vertx.ext.mongo.BulkWriteOptions
 import io.vertx.ext.mongo.MongoClient
+import io.vertx.ext.mongo.MongoClientBulkWriteResult
+import org.bson.BsonDocument
 import spock.lang.Specification
 import io.vertx.core.Future
 
@@ -462,10 +469,42 @@ class RepoUtilTest extends Specification {
         futureResult.cause().message == "Query cannot be null or empty"
     }
 
+    def "insertMany should insert every document with one unordered bulk write"() {
+        given:
+        def documents = [new JsonObject().put("_id", "a"), new JsonObject().put("_id", "b")]
 
+        when:
+        def futureResult = repoUtil.insertMany("transition_log", documents)
 
+        then:
+        1 * mongoClient.bulkWriteWithOptions("transition_log", { it.size() == 2 }, { BulkWriteOptions options -> !options.ordered }) >>
+                Future.succeededFuture(new MongoClientBulkWriteResult(2, 0, 0, 0, [], []))
+        futureResult.result() == 2
+    }
 
+    def "insertMany should skip documents that are already stored"() {
+        given: "A retried batch whose first document was written the first time"
+        def duplicate = new BulkWriteError(11000, "E11000 duplicate key error", new BsonDocument(), 0)
+        mongoClient.bulkWriteWithOptions(*_) >> Future.failedFuture(new MongoBulkWriteException(
+                BulkWriteResult.acknowledged(1, 0, 0, 0, [], []), [duplicate], null, new ServerAddress()))
 
+        when:
+        def futureResult = repoUtil.insertMany("transition_log", [new JsonObject().put("_id", "a"), new JsonObject().put("_id", "b")])
 
+        then:
+        futureResult.succeeded()
+        futureResult.result() == 1
+    }
 
+    def "insertMany should fail on other write errors"() {
+        given:
+        mongoClient.bulkWriteWithOptions(*_) >> Future.failedFuture("MongoDB connection failure")
+
+        when:
+        def futureResult = repoUtil.insertMany("transition_log", [new JsonObject().put("_id", "a")])
+
+        then:
+        futureResult.failed()
+        futureResult.cause().message == "MongoDB connection failure"
+    }
 }
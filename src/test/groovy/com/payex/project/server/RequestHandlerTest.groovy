@@ -67,5 +67,29 @@ class RequestHandlerTest extends Specification {
         1 * response.end(successResponse.encodePrettily())
     }
 
+    def "getStats should report the shared cache once and every consumer instance"() {
+        given:
+        KafkaVerticle first = Mock(KafkaVerticle)
+        KafkaVerticle second = Mock(KafkaVerticle)
+        first.stats() >> new JsonObject().put("stateMachineCache", new JsonObject().put("size", 3)).put("shards", new JsonObject().put("workers", 2))
+        second.stats() >> new JsonObject().put("stateMachineCache", new JsonObject().put("size", 3)).put("shards", new JsonObject().put("workers", 2))
+        RequestHandler requestHandler = new RequestHandler([first, second], Mock(ControllerVerticle))
+
+        RoutingContext ctx = Mock(RoutingContext)
+        HttpServerResponse response = Mock(HttpServerResponse)
+        ctx.response() >> response
+        response.setStatusCode(_) >> response
+        response.putHeader(_ as String, _ as String) >> response
 
+        when:
+        requestHandler.getStats(ctx)
+
+        then:
+        1 * response.end({ String body ->
+            def stats = new JsonObject(body)
+            stats.getJsonObject("stateMachineCache").getInteger("size") == 3 &&
+                    stats.getJsonArray("consumers").size() == 2 &&
+                    !stats.getJsonArray("consumers").getJsonObject(0).containsKey("stateMachineCache")
+        })
+    }
 }
@@ -0,0 +1,127 @@
+package com.payex.project.service
+
+import com.payex.project.cache.NearCache
+import com.payex.project.models.KafkaMessage
+import com.payex.project.models.TransitionResult
+import io.vertx.core.Future
+import io.vertx.core.Promise
+import spock.lang.Specification
+
+class NearCachedRedisServiceTest extends Specification {
+
+    RedisService redis = Mock()
+    NearCache cache = new NearCache(100, 1_000_000, 60_000)
+    NearCachedRedisService service = new NearCachedRedisService(redis, cache)
+
+    def "getState should go to Redis once and serve the next reads from the cache"() {
+        when:
+        def first = service.getState("order-1").result()
+        def second = service.getState("order-1").result()
+
+        then:
+        1 * redis.getState("order-1") >> Future.succeededFuture("PAID")
+        first == "PAID"
+        second == "PAID"
+        cache.getHits() == 1
+    }
+
+    def "unknown processes should not be cached"() {
+        when:
+        service.getState("order-1")
+        service.getState("order-1")
+
+        then:
+        2 * redis.getState("order-1") >> Future.succeededFuture(null)
+    }
+
+    def "getStates should MGET only the processes missing from the cache"() {
+        given:
+        cache.put("order-1", "PAID", cache.generation())
+
+        when:
+        def states = service.getStates(["order-1", "order-2", "order-3"]).result()
+
+        then:
+        1 * redis.getStates(["order-2", "order-3"]) >> Future.succeededFuture([("order-2"): "NEW"])
+        states == [("order-1"): "PAID", ("order-2"): "NEW"]
+        cache.get("order-2") == "NEW"
+    }
+
+    def "getStates should not touch Redis when every process is cached"() {
+        given:
+        cache.put("order-1", "PAID", cache.generation())
+
+        when:
+        def states = service.getStates(["order-1"]).result()
+
+        then:
+        0 * redis.getStates(_)
+        states == [("order-1"): "PAID"]
+    }
+
+    def "saves should write through and cache only once Redis acknowledged them"() {
+        given:
+        def write = Promise.<Void> promise()
+        redis.saveStates([("order-1"): "PAID"], []) >> write.future()
+
+        when:
+        service.saveStates([("order-1"): "PAID"], [])
+
+        then:
+        cache.size() == 0
+
+        when:
+        write.complete()
+
+        then:
+        cache.get("order-1") == "PAID"
+    }
+
+    def "a failed save should invalidate the process"() {
+        given:
+        cache.put("order-1", "NEW", cache.generation())
+        redis.saveState("order-1", "PAID") >> Future.failedFuture("timeout")
+
+        when:
+        service.saveState("order-1", "PAID")
+
+        then:
+        cache.get("order-1") == null
+    }
+
+    def "atomic transitions should cache the state only when the script stored it"() {
+        given:
+        def messages = [message("order-1"), message("order-2"), message("order-3")]
+        redis.applyTransitions(messages, _) >> Future.succeededFuture([
+                new TransitionResult(true, "NEW", "PAID"),
+                new TransitionResult(false, "NEW", "NEW"),
+                null])
+
+        when:
+        service.applyTransitions(messages, [:])
+
+        then:
+        cache.get("order-1") == "PAID"
+        cache.size() == 1
+    }
+
+    def "onRebalance should clear the cache, and a read in flight should not refill it"() {
+        given:
+        def read = Promise.<String> promise()
+        redis.getState("order-2") >> read.future()
+        cache.put("order-1", "PAID", cache.generation())
+        service.getState("order-2")
+
+        when:
+        service.onRebalance()
+        read.complete("NEW")
+
+        then:
+        cache.size() == 0
+        1 * redis.onRebalance()
+    }
+
+    private static KafkaMessage message(String processId) {
+        KafkaMessage.builder().processId(processId).stateMachineId("orderFlow").event("PAY").build()
+    }
+}
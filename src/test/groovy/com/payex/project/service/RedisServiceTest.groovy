@@ -0,0 +1,211 @@
+package com.payex.project.service
+
+import com.payex.project.engine.CompiledStateMachine
+import com.payex.project.models.KafkaMessage
+import com.payex.project.models.StateMachineDB
+import io.vertx.core.Future
+import io.vertx.redis.client.Command
+import io.vertx.redis.client.Redis
+import io.vertx.redis.client.Request
+import io.vertx.redis.client.Response
+import spock.lang.Specification
+
+class RedisServiceTest extends Specification {
+
+    Redis redis = Mock(Redis)
+    RedisService redisService = new RedisService(redis, 0)
+    CompiledStateMachine orderFlow = CompiledStateMachine.compile(new StateMachineDB(
+            _id: "orderFlow", version: 3, states: ["NEW", "PAID"], events: ["PAY", "SHIP"],
+            transitions: ["NEW": ["PAY": "PAID"]]))
+
+    def "getState should return the stored state"() {
+        given:
+        def response = Mock(Response)
+        response.toString() >> "PAID"
+
+        when:
+        def state = redisService.getState("order-1").result()
+
+        then:
+        1 * redis.send({ it.command() == Command.GET }) >> Future.succeededFuture(response)
+        state == "PAID"
+    }
+
+    def "getState should return null for an unknown process"() {
+        given:
+        redis.send(_) >> Future.succeededFuture(null)
+
+        expect:
+        redisService.getState("order-1").result() == null
+    }
+
+    def "saveState should issue a SET"() {
+        when:
+        def future = redisService.saveState("order-1", "PAID")
+
+        then:
+        1 * redis.send({ it.command() == Command.SET }) >> Future.succeededFuture(null)
+        future.succeeded()
+    }
+
+    def "should propagate Redis failures"() {
+        given:
+        redis.send(_) >> Future.failedFuture(new RuntimeException("Connection refused"))
+
+        when:
+        def future = redisService.getState("order-1")
+
+        then:
+        future.failed()
+        future.cause().message == "Connection refused"
+    }
+
+    def "applyTransition should parse the script reply"() {
+        given:
+        def reply = Mock(Response)
+        reply.get(0) >> response("1")
+        reply.get(1) >> response("NEW")
+        reply.get(2) >> response("PAID")
+
+        when:
+        def result = redisService.applyTransition("order-1", orderFlow, "PAY", null).result()
+
+        then:
+        1 * redis.send({ it.command() == Command.EVALSHA }) >> Future.succeededFuture(reply)
+        result.accepted
+        result.previousState == "NEW"
+        result.newState == "PAID"
+    }
+
+    def "applyTransition should fall back to EVAL when the script is not cached"() {
+        given:
+        def reply = Mock(Response)
+        reply.get(0) >> response("0")
+        reply.get(1) >> response("NEW")
+        reply.get(2) >> response("NEW")
+
+        when:
+        def result = redisService.applyTransition("order-1", orderFlow, "SHIP", null).result()
+
+        then:
+        1 * redis.send({ it.command() == Command.EVALSHA }) >> Future.failedFuture(new RuntimeException("NOSCRIPT No matching script"))
+        1 * redis.send({ it.command() == Command.EVAL }) >> Future.succeededFuture(reply)
+        !result.accepted
+        result.newState == "NEW"
+    }
+
+    def "should recognise a missing transition table"() {
+        expect:
+        StateStore.isMissingTransitionTable(new RuntimeException("NOTABLE"))
+        !StateStore.isMissingTransitionTable(new RuntimeException("ERR"))
+    }
+
+    def "getStates should map MGET replies to process ids and skip unknown processes"() {
+        given:
+        def reply = Mock(Response)
+        reply.get(0) >> response("PAID")
+        reply.get(1) >> null
+
+        when:
+        def states = redisService.getStates(["order-1", "order-2"]).result()
+
+        then:
+        1 * redis.send({ it.command() == Command.MGET }) >> Future.succeededFuture(reply)
+        states == ["order-1": "PAID"]
+    }
+
+    def "saveStates should issue a single MSET and skip empty maps"() {
+        when:
+        redisService.saveStates(["order-1": "PAID", "order-2": "NEW"])
+        redisService.saveStates([:])
+
+        then:
+        1 * redis.send({ it.command() == Command.MSET }) >> Future.succeededFuture(null)
+    }
+
+    def "applyTransition should pass the event id, window and pinned version to the script"() {
+        given:
+        def reply = Mock(Response)
+        reply.get(0) >> response("2")
+        reply.get(1) >> response("PAID")
+
+        when:
+        def result = redisService.applyTransition("order-1", orderFlow, "PAY", "evt-1").result()
+
+        then:
+        1 * redis.send({ Request request ->
+            request.command() == Command.EVALSHA && request.toString().contains("sm:events:order-1") &&
+                    request.toString().contains("evt-1") && request.toString().contains(StateStore.versionKey("order-1"))
+        }) >> Future.succeededFuture(reply)
+        result.duplicate
+        !result.accepted
+        result.newState == "PAID"
+    }
+
+    def "findProcessedEvents should pipeline LPOS for messages with an id"() {
+        given:
+        def messages = [
+                new KafkaMessage("orderFlow", "order-1", "PAY", "evt-1"),
+                new KafkaMessage("orderFlow", "order-2", "PAY", "evt-2"),
+                new KafkaMessage("orderFlow", "order-3", "PAY")
+        ]
+
+        when:
+        def processed = redisService.findProcessedEvents(messages).result()
+
+        then:
+        1 * redis.batch({ it.size() == 2 && it.every { it.command() == Command.LPOS } }) >>
+                Future.succeededFuture([response("0"), null])
+        processed == ["evt-1"] as Set
+    }
+
+    def "findProcessedEvents should not call Redis when dedupe is disabled"() {
+        given:
+        def service = new RedisService(redis, 0, 0)
+
+        when:
+        def processed = service.findProcessedEvents([new KafkaMessage("orderFlow", "order-1", "PAY", "evt-1")]).result()
+
+        then:
+        0 * redis._
+        processed.isEmpty()
+        !service.dedupeEnabled
+    }
+
+    def "saveStates should write states and event ids in one transaction"() {
+        given:
+        def messages = [
+                new KafkaMessage("orderFlow", "order-1", "PAY", "evt-1"),
+                new KafkaMessage("orderFlow", "order-1", "SHIP", "evt-2")
+        ]
+
+        when:
+        def future = redisService.saveStates(["order-1": "SHIPPED"], messages)
+
+        then:
+        1 * redis.batch({ List<Request> requests ->
+            requests*.command() == [Command.MULTI, Command.MSET, Command.LPUSH, Command.LTRIM, Command.EXPIRE, Command.EXEC]
+        }) >> Future.succeededFuture([])
+        future.succeeded()
+    }
+
+    def "saveStates should leave the event ids without expiry when the TTL is 0"() {
+        given:
+        def service = new RedisService(redis, 0, 100, 0)
+
+        when:
+        service.saveStates(["order-1": "PAID"], [new KafkaMessage("orderFlow", "order-1", "PAY", "evt-1")])
+
+        then:
+        1 * redis.batch({ List<Request> requests ->
+            requests*.command() == [Command.MULTI, Command.MSET, Command.LPUSH, Command.LTRIM, Command.EXEC]
+        }) >> Future.succeededFuture([])
+    }
+
+    private Response response(String value) {
+        def response = Mock(Response)
+        response.toString() >> value
+        response.toInteger() >> { Integer.valueOf(value) }
+        return response
+    }
+}
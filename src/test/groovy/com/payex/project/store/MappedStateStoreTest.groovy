@@ -0,0 +1,303 @@
+package com.payex.project.store
+
+import com.payex.project.engine.CompiledStateMachine
+import com.payex.project.local.LoadGenerator
+import com.payex.project.models.KafkaMessage
+import com.payex.project.models.StateMachineDB
+import com.payex.project.service.StateStore
+import spock.lang.Specification
+import spock.lang.TempDir
+
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.Executor
+import java.util.function.LongSupplier
+
+class MappedStateStoreTest extends Specification {
+
+    @TempDir
+    Path dir
+
+    MappedStateStore store
+
+    def setup() {
+        store = open(4096)
+    }
+
+    def cleanup() {
+        store.close()
+    }
+
+    def "should read back the latest state of every process"() {
+        when:
+        store.saveState("p1", "NEW")
+        store.saveStates([p1: "PAID", p2: "NEW"])
+
+        then:
+        store.getState("p1").result() == "PAID"
+        store.getState("p3").result() == null
+        store.getStates(["p1", "p2", "p3"]).result() == [p1: "PAID", p2: "NEW"]
+        store.stats().getInteger("stateNames") == 2
+    }
+
+    def "should apply transitions and skip events within the dedupe window"() {
+        given:
+        def sm1 = loadMachine()
+
+        when:
+        def first = store.applyTransition("p1", sm1, "E0", "e1").result()
+        def duplicate = store.applyTransition("p1", sm1, "E0", "e1").result()
+        def rejected = store.applyTransition("p1", sm1, "NOOP", "e2").result()
+
+        then:
+        first.accepted && first.newState == "S1"
+        duplicate.duplicate
+        !rejected.accepted && rejected.newState == "S1"
+        store.findProcessedEvents([new KafkaMessage("sm1", "p1", "E0", "e2")]).result() == ["e2"] as Set
+    }
+
+    def "should fail transitions of machines whose table was not loaded"() {
+        given:
+        def sm2 = CompiledStateMachine.compile(LoadGenerator.definition("sm2", 3, 1).mapTo(StateMachineDB))
+
+        expect:
+        StateStore.isMissingTransitionTable(store.applyTransition("p1", sm2, "E0", null).cause())
+    }
+
+    def "should recover states and dedupe windows after a restart"() {
+        given:
+        def sm1 = loadMachine()
+        store.applyTransition("p1", sm1, "E0", "e1")
+        store.saveStates([p2: "S2"], [new KafkaMessage("sm1", "p2", "E1", "e2")])
+        store.close()
+
+        when:
+        store = open(4096)
+
+        then:
+        store.getStates(["p1", "p2"]).result() == [p1: "S1", p2: "S2"]
+        store.getState(StateStore.versionKey("p1")).result() == "0"
+        store.findProcessedEvents([new KafkaMessage("sm1", "p1", "E0", "e1"),
+                                   new KafkaMessage("sm1", "p2", "E1", "e2")]).result() == ["e1", "e2"] as Set
+    }
+
+    def "should discard a record left incomplete by a crash and keep appending after the last complete one"() {
+        given:
+        store.saveState("p1", "NEW")
+        store.saveState("p1", "PAID")
+        def end = store.stats().getInteger("usedBytes")
+        store.close()
+
+        and: "A record whose body was written but not its length and CRC"
+        FileChannel.open(dir.resolve("states.log"), StandardOpenOption.WRITE).withCloseable {
+            it.write(ByteBuffer.wrap([0, 0, 0, 0, 0, 0, 0, 0, 2, 0, 0, 0, 2, 'p' as char, '1' as char] as byte[]), end)
+        }
+
+        when:
+        store = open(4096)
+        store.saveState("p2", "NEW")
+        store.close()
+        store = open(4096)
+
+        then:
+        store.getStates(["p1", "p2"]).result() == [p1: "PAID", p2: "NEW"]
+    }
+
+    def "should pin a process before storing its first state, so a crash in between leaves no unpinned state"() {
+        given:
+        def sm1 = loadMachine()
+        store.applyTransition("p1", sm1, "E0", "e1")
+        def end = store.stats().getInteger("usedBytes")
+        store.close()
+
+        and: "The last record, the state of p1, cut off by a crash"
+        def stateRecord = 8 + 5 + 2 + 2
+        FileChannel.open(dir.resolve("states.log"), StandardOpenOption.WRITE).withCloseable {
+            it.write(ByteBuffer.wrap(new byte[4]), end - stateRecord)
+        }
+
+        when:
+        store = open(4096)
+
+        then:
+        store.getState("p1").result() == null
+        store.getState(StateStore.versionKey("p1")).result() == "0"
+    }
+
+    def "should compact the log once full and grow it when the live states fill more than half"() {
+        when: "Far more writes than fit into the initial file"
+        (1..2000).each { store.saveState("p" + (it % 100), "S" + (it % 3)) }
+
+        then:
+        store.stats().getLong("compactions") > 0
+        store.size() == 100
+        store.getState("p1").result() == "S" + (1901 % 3)
+        store.getState("p42").result() == "S" + (1942 % 3)
+
+        when: "The compacted file is replayed"
+        store.close()
+        store = open(4096)
+
+        then:
+        store.size() == 100
+        store.getState("p1").result() == "S" + (1901 % 3)
+        !Files.exists(dir.resolve("states.log.compact"))
+
+        when: "Many more processes than fit"
+        (1..5000).each { store.saveState("process-" + it, "S1") }
+
+        then:
+        store.size() == 5100
+        store.stats().getInteger("capacityBytes") > 4096
+        (1..5000).every { store.getState("process-" + it).result() == "S1" }
+    }
+
+    def "should keep appending while a compaction runs and carry the appended records over"() {
+        given: "A compactor that only runs when told to"
+        store.close()
+        List<Runnable> compactions = []
+        store = new MappedStateStore(dir.resolve("states.log"), 4096, 2, 0, { compactions << it } as Executor)
+
+        when: "The log fills up until a compaction is due"
+        def writes = 0
+        while (compactions.isEmpty()) {
+            store.saveState("p" + (writes++ % 10), "S0")
+        }
+
+        and: "More is appended than fits before it runs, including a new state name and new processes"
+        (1..500).each { store.saveState("q" + it, "S1") }
+        store.saveState("p1", "S2")
+
+        then: "The log grew in place instead"
+        store.stats().getLong("compactions") == 0
+        store.stats().getInteger("capacityBytes") > 4096
+
+        when:
+        compactions.each { it.run() }
+
+        then:
+        store.stats().getLong("compactions") == 1
+        store.size() == 510
+        store.getState("p1").result() == "S2"
+        store.getState("p2").result() == "S0"
+        store.getState("q500").result() == "S1"
+        !Files.exists(dir.resolve("states.log.compact"))
+
+        when: "The compacted file is replayed"
+        store.close()
+        store = open(4096)
+
+        then:
+        store.size() == 510
+        store.getStates(["p1", "p2", "q1", "q500"]).result() == [p1: "S2", p2: "S0", q1: "S1", q500: "S1"]
+    }
+
+    def "compaction should keep the dedupe windows"() {
+        given:
+        def sm1 = loadMachine()
+        store.applyTransition("p1", sm1, "E0", "e1")
+
+        when:
+        (1..500).each { store.saveState("p" + (it % 10 + 2), "S0") }
+
+        then:
+        store.stats().getLong("compactions") > 0
+        store.applyTransition("p1", sm1, "E0", "e1").result().duplicate
+    }
+
+    def "should forget a dedupe window a TTL after its last event, also after a compaction and a restart"() {
+        given:
+        store.close()
+        long now = 0
+        store = new MappedStateStore(dir.resolve("states.log"), 4096, 2, 10, Runnable::run, { now } as LongSupplier)
+        def sm1 = loadMachine()
+        store.applyTransition("p1", sm1, "E0", "e1")
+        store.applyTransition("p2", sm1, "E0", "e2")
+
+        when: "p2 keeps its window alive"
+        now = 6_000
+        store.applyTransition("p2", sm1, "NOOP", "e3")
+        now = 11_000
+
+        then:
+        store.findProcessedEvents([new KafkaMessage("sm1", "p1", "E0", "e1"),
+                                   new KafkaMessage("sm1", "p2", "E0", "e2")]).result() == ["e2"] as Set
+
+        when: "The log is compacted and replayed"
+        (1..300).each { store.saveState("q" + (it % 10), "S0") }
+        def compactions = store.stats().getLong("compactions")
+        store.close()
+        store = new MappedStateStore(dir.resolve("states.log"), 4096, 2, 10, Runnable::run, { now } as LongSupplier)
+
+        then:
+        compactions > 0
+        store.findProcessedEvents([new KafkaMessage("sm1", "p1", "E0", "e1"),
+                                   new KafkaMessage("sm1", "p2", "E0", "e2")]).result() == ["e2"] as Set
+
+        when:
+        now = 16_000
+
+        then:
+        store.findProcessedEvents([new KafkaMessage("sm1", "p2", "E0", "e2")]).result().isEmpty()
+    }
+
+    def "should keep version pins out of the state names, also after a compaction and a restart"() {
+        when:
+        (1..50).each { store.saveStates([("p" + it): "S1", (StateStore.versionKey("p" + it)): String.valueOf(it)]) }
+        (1..300).each { store.saveState("q" + (it % 10), "S0") }
+
+        then:
+        store.stats().getLong("compactions") > 0
+        store.stats().getInteger("stateNames") == 2
+        store.getState(StateStore.versionKey("p42")).result() == "42"
+
+        when:
+        store.close()
+        store = open(4096)
+
+        then:
+        store.stats().getInteger("stateNames") == 2
+        store.getStates(["p7", StateStore.versionKey("p7")]).result() == [p7: "S1", (StateStore.versionKey("p7")): "7"]
+    }
+
+    def "should refuse files that are not state stores"() {
+        given:
+        def other = dir.resolve("other.log")
+        Files.write(other, "not a state store".bytes)
+
+        when:
+        new MappedStateStore(other, 4096, 2)
+
+        then:
+        thrown(IllegalStateException)
+    }
+
+    def "should refuse a file another store has open until it is closed"() {
+        when:
+        open(4096)
+
+        then:
+        thrown(IllegalStateException)
+
+        when:
+        store.saveState("p1", "NEW")
+        store.close()
+        store = open(4096)
+
+        then:
+        store.getState("p1").result() == "NEW"
+    }
+
+    private MappedStateStore open(int capacity) {
+        new MappedStateStore(dir.resolve("states.log"), capacity, 2)
+    }
+
+    private CompiledStateMachine loadMachine() {
+        def compiled = CompiledStateMachine.compile(LoadGenerator.definition("sm1", 3, 1).mapTo(StateMachineDB))
+        store.loadTransitionTable(compiled)
+        compiled
+    }
+}